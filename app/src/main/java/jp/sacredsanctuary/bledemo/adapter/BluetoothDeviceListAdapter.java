@@ -20,41 +20,114 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.AsyncDifferConfig;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
 
 import jp.sacredsanctuary.bledemo.R;
 import jp.sacredsanctuary.bledemo.model.BluetoothDeviceData;
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
 import jp.sacredsanctuary.bledemo.view.ViewHolder;
 
 /**
- * Adapter for a GridView containing image items from the Image data of the device.
+ * Adapter for the list of discovered devices.
+ * <p>
+ * Every new list is diffed against the displayed one on a background thread, keyed on the
+ * device address, and only the inserted, moved and changed rows are dispatched. Item IDs are
+ * the packed device addresses, so rows keep their views while results stream in; devices
+ * whose address cannot be packed are not listed, as they would share one item ID.
  */
 public class BluetoothDeviceListAdapter extends RecyclerView.Adapter<ViewHolder> {
     private static final String ClassName = BluetoothDeviceListAdapter.class.getSimpleName();
-    private List<BluetoothDeviceData> mDeviceDataList;
+
+    private static final DiffUtil.ItemCallback<BluetoothDeviceData> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<BluetoothDeviceData>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull BluetoothDeviceData oldItem,
+                        @NonNull BluetoothDeviceData newItem) {
+                    return Objects.equals(oldItem.getAddress(), newItem.getAddress());
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull BluetoothDeviceData oldItem,
+                        @NonNull BluetoothDeviceData newItem) {
+                    // Only the bound values matter.
+                    return Objects.equals(oldItem.getName(), newItem.getName());
+                }
+            };
+
+    private final AsyncListDiffer<BluetoothDeviceData> mDiffer;
 
     /**
      * Create a new BluetoothDeviceListAdapter.
      */
     public BluetoothDeviceListAdapter() {
-        this.mDeviceDataList = new ArrayList<>();
+        this(null);
+    }
+
+    /**
+     * Create a new BluetoothDeviceListAdapter.
+     *
+     * @param diffExecutor Executor computing the diffs, or null to use the shared one
+     */
+    @VisibleForTesting
+    BluetoothDeviceListAdapter(@Nullable Executor diffExecutor) {
+        AsyncDifferConfig.Builder<BluetoothDeviceData> config =
+                new AsyncDifferConfig.Builder<>(DIFF_CALLBACK);
+        if (diffExecutor != null) {
+            config.setBackgroundThreadExecutor(diffExecutor);
+        }
+        this.mDiffer = new AsyncListDiffer<>(new AdapterListUpdateCallback(this), config.build());
+        setHasStableIds(true);
     }
 
+    /**
+     * Displays the given list. The list must not be modified afterwards.
+     *
+     * @param deviceDataList The devices to display
+     */
     public void setItems(List<BluetoothDeviceData> deviceDataList) {
-        mDeviceDataList.clear();
-        mDeviceDataList.addAll(deviceDataList);
-        notifyItemRangeInserted(0, getItemCount());
+        mDiffer.submitList(withValidAddresses(deviceDataList));
+    }
+
+    /**
+     * Returns the devices of a list whose address packs into an item ID.
+     *
+     * @param list The devices, or null
+     * @return The list itself if every address is valid, a filtered copy otherwise.
+     */
+    @VisibleForTesting
+    static List<BluetoothDeviceData> withValidAddresses(@Nullable List<BluetoothDeviceData> list) {
+        if (list == null) return null;
+        List<BluetoothDeviceData> valid = null;
+        for (int index = 0; index < list.size(); index++) {
+            final BluetoothDeviceData data = list.get(index);
+            final boolean invalid =
+                    MacAddressIndex.pack(data.getAddress()) == MacAddressIndex.INVALID_ADDRESS;
+            if (invalid && valid == null) {
+                valid = new ArrayList<>(list.subList(0, index));
+            } else if (!invalid && valid != null) {
+                valid.add(data);
+            }
+        }
+        return valid != null ? valid : list;
     }
 
     public void clearItems() {
-        mDeviceDataList.clear();
+        mDiffer.submitList(null);
     }
 
     public List<BluetoothDeviceData> getAllItem() {
-        return mDeviceDataList;
+        return mDiffer.getCurrentList();
     }
 
     protected void onItemClicked(@NonNull BluetoothDeviceData data) {
@@ -71,7 +144,9 @@ public class BluetoothDeviceListAdapter extends RecyclerView.Adapter<ViewHolder>
         final ViewHolder holder = new ViewHolder(inflate);
         inflate.setOnClickListener(v -> {
             final int position = holder.getAdapterPosition();
-            onItemClicked(mDeviceDataList.get(position));
+            if (position != RecyclerView.NO_POSITION) {
+                onItemClicked(getAllItem().get(position));
+            }
         });
         return holder;
     }
@@ -81,10 +156,18 @@ public class BluetoothDeviceListAdapter extends RecyclerView.Adapter<ViewHolder>
      */
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        holder.getDeviceName().setText(mDeviceDataList.get(
-                position).getBluetoothDevice().getName());
-        holder.geDeviceHardwareAddress().setText(mDeviceDataList.get(
-                position).getBluetoothDevice().getAddress());
+        final BluetoothDeviceData data = getAllItem().get(position);
+        holder.getDeviceName().setText(data.getName());
+        holder.geDeviceHardwareAddress().setText(data.getAddress());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getItemId(int position) {
+        // Unique, as setItems() drops the addresses that cannot be packed.
+        return MacAddressIndex.pack(getAllItem().get(position).getAddress());
     }
 
     /**
@@ -92,6 +175,6 @@ public class BluetoothDeviceListAdapter extends RecyclerView.Adapter<ViewHolder>
      */
     @Override
     public int getItemCount() {
-        return (mDeviceDataList != null) ? mDeviceDataList.size() : 0;
+        return getAllItem().size();
     }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+
+import java.util.List;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+import jp.sacredsanctuary.bledemo.util.Preconditions;
+
+/**
+ * {@link GattTransport} backed by {@link BluetoothGatt}.
+ * <p>
+ * The GATT client is created by the first connection and kept across background reconnects
+ * until the transport is closed; a direct connection opens a new one. The events of every
+ * client are received by the {@link BleGattCallback} shared by every device, which hands them
+ * to the session of their device.
+ */
+class AndroidGattTransport implements GattTransport {
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final BluetoothGattCallback mGattCallback;
+    private final Handler mHandler;
+    private volatile BluetoothGatt mGatt;
+    private Callback mCallback;
+
+    /**
+     * Create a new AndroidGattTransport.
+     *
+     * @param context      A context of the current app
+     * @param device       The remote device
+     * @param gattCallback The callback receiving the events of the GATT client
+     * @param handler      Handler of the thread the session runs on
+     */
+    AndroidGattTransport(Context context, BluetoothDevice device,
+            BluetoothGattCallback gattCallback, Handler handler) {
+        mContext = context;
+        mDevice = device;
+        mGattCallback = gattCallback;
+        mHandler = handler;
+    }
+
+    /**
+     * Returns the GATT client connected to the device.
+     *
+     * @return The GATT client, or null if the device was never connected or has been closed.
+     */
+    BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean connect(boolean autoConnect) {
+        final BluetoothGatt existing = mGatt;
+        // BluetoothGatt#connect() always starts a background connection, whatever mode the
+        // handle was opened with. A background reconnect reuses the handle, keeping the
+        // services discovered; a direct one needs a new handle.
+        if (Preconditions.checkNotNull(existing)) {
+            if (autoConnect) return existing.connect();
+            existing.close();
+        }
+        mGatt = mDevice.connectGatt(mContext, autoConnect, mGattCallback,
+                BluetoothDevice.TRANSPORT_LE);
+        return Preconditions.checkNotNull(mGatt);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (Preconditions.checkNotNull(gatt)) {
+            gatt.disconnect();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        final BluetoothGatt gatt = mGatt;
+        if (Preconditions.checkNotNull(gatt)) {
+            gatt.close();
+            mGatt = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean discoverServices() {
+        final BluetoothGatt gatt = mGatt;
+        return Preconditions.checkNotNull(gatt) && gatt.discoverServices();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public GattDatabase getDatabase() {
+        // BluetoothGatt keeps the attributes of the previous discovery across a reconnect.
+        final BluetoothGatt gatt = mGatt;
+        if (!Preconditions.checkNotNull(gatt) || Preconditions.isEmpty(gatt.getServices())) {
+            return null;
+        }
+        return toGattDatabase(gatt.getServices());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requestMtu(int mtu) {
+        final BluetoothGatt gatt = mGatt;
+        return Preconditions.checkNotNull(gatt) && gatt.requestMtu(mtu);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setPreferredPhy(int phyMask) {
+        final BluetoothGatt gatt = mGatt;
+        if (!Preconditions.checkNotNull(gatt)) return false;
+        // LE 2M and Coded PHYs are supported from Android 8.0; older links stay on LE 1M.
+        // Reported like the framework would, after the request has returned to the session.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            final Callback callback = mCallback;
+            return mHandler.post(() -> callback.onPhyUpdated(BluetoothDevice.PHY_LE_1M,
+                    BluetoothDevice.PHY_LE_1M, BluetoothGatt.GATT_SUCCESS));
+        }
+        // Reported once by onPhyUpdate(), which the controller raises even when the PHY does
+        // not change. The call does not tell whether the request was queued, so a report that
+        // never comes is left to the watchdog.
+        gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        final BluetoothGatt gatt = mGatt;
+        return Preconditions.checkNotNull(gatt) && gatt.requestConnectionPriority(priority);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean readCharacteristic(UUID serviceUuid, UUID uuid) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUuid, uuid);
+        return Preconditions.checkNotNull(characteristic)
+                && mGatt.readCharacteristic(characteristic);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean writeCharacteristic(UUID serviceUuid, UUID uuid, byte[] value,
+            boolean withResponse) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUuid, uuid);
+        if (!Preconditions.checkNotNull(characteristic)) return false;
+        characteristic.setWriteType(withResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(value);
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setNotification(UUID serviceUuid, UUID uuid, int configuration) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(serviceUuid, uuid);
+        if (!Preconditions.checkNotNull(characteristic)) return false;
+        final BluetoothGattDescriptor descriptor =
+                characteristic.getDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG);
+        if (!Preconditions.checkNotNull(descriptor)) return false;
+        switch (configuration) {
+            case CCCD_NOTIFICATION:
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                break;
+            case CCCD_INDICATION:
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                break;
+            default:
+                descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                break;
+        }
+        mGatt.setCharacteristicNotification(characteristic, CCCD_DISABLED != configuration);
+        return mGatt.writeDescriptor(descriptor);
+    }
+
+    private BluetoothGattCharacteristic getCharacteristic(UUID serviceUuid, UUID uuid) {
+        final BluetoothGatt gatt = mGatt;
+        if (!Preconditions.checkNotNull(gatt)) return null;
+        final BluetoothGattService service = gatt.getService(serviceUuid);
+        return Preconditions.checkNotNull(service) ? service.getCharacteristic(uuid) : null;
+    }
+
+    /**
+     * Converts the services held by {@link BluetoothGatt} to an attribute table. Instance ids
+     * stand in for the handles, which the framework does not expose.
+     */
+    private static GattDatabase toGattDatabase(List<BluetoothGattService> services) {
+        final GattDatabase.Builder builder = new GattDatabase.Builder();
+        for (BluetoothGattService service : services) {
+            builder.addService(service.getUuid(), service.getInstanceId());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                builder.addCharacteristic(characteristic.getUuid(),
+                        characteristic.getInstanceId(), characteristic.getProperties());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    builder.addDescriptor(descriptor.getUuid(), 0);
+                }
+            }
+        }
+        return builder.build();
+    }
+}
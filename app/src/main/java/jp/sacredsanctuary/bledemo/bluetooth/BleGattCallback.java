@@ -18,24 +18,50 @@ package jp.sacredsanctuary.bledemo.bluetooth;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.SystemClock;
 
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationStream;
 import jp.sacredsanctuary.bledemo.util.LogUtil;
 import jp.sacredsanctuary.bledemo.util.Preconditions;
 
 /**
  * Callback for GATT Writing
+ * <p>
+ * A single instance is shared by the connections to every device; events are routed to the
+ * {@link GattSession} of their device through {@link GattConnectionManager}, as the events of
+ * its {@link AndroidGattTransport}. The Bluetooth stack invokes these callbacks on a binder
+ * thread. Every event is handed to the worker thread of {@link BluetoothLowEnergyController},
+ * which owns the sessions. Notifications are first published to the {@link NotificationStream}
+ * of the controller from the binder thread, without copying their value.
  */
 public class BleGattCallback extends BluetoothGattCallback {
     private static final String ClassName = BleGattCallback.class.getSimpleName();
-    private IBluetoothLowEnergyControllerCallback mCallback;
+
+    private final GattConnectionManager mConnections;
+    private final Handler mHandler;
+    private final IBluetoothLowEnergyControllerCallback mCallback;
+    private final NotificationStream mNotifications;
 
     /**
-     * Sets an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events.
+     * Create a new BleGattCallback.
      *
-     * @param callback The new callback or null, if the callback should be unregistered.
+     * @param connections   The manager holding the session of every device
+     * @param handler       The handler of the thread owning the sessions
+     * @param callback      The callback reporting the events to the app
+     * @param notifications The stream every notification is published to
      */
-    void setCallback(IBluetoothLowEnergyControllerCallback callback) {
+    BleGattCallback(GattConnectionManager connections, Handler handler,
+            IBluetoothLowEnergyControllerCallback callback, NotificationStream notifications) {
+        mConnections = connections;
+        mHandler = handler;
         mCallback = callback;
+        mNotifications = notifications;
     }
 
     /**
@@ -43,11 +69,25 @@ public class BleGattCallback extends BluetoothGattCallback {
      */
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        LogUtil.V(ClassName,
-                "onConnectionStateChange() [INF] status:" + status + " newState:" + newState);
-        if (Preconditions.checkNotNull(mCallback)) {
-            mCallback.onConnectionStateChange(gatt, status, newState);
-        }
+        LogUtil.V(ClassName, "onConnectionStateChange() [INF] status:{} newState:{}", status,
+                newState);
+        mHandler.post(() -> {
+            // The session is gone if the device was closed while the event was in flight.
+            final GattSession session = mConnections.getSession(gatt);
+            boolean reconnecting = false;
+            if (Preconditions.checkNotNull(session)
+                    && (BluetoothProfile.STATE_CONNECTED == newState
+                    || BluetoothProfile.STATE_DISCONNECTED == newState)) {
+                reconnecting = session.isReconnecting();
+                session.onConnectionStateChanged(BluetoothProfile.STATE_CONNECTED == newState,
+                        status);
+                reconnecting |= session.isReconnecting();
+            }
+            // A link being restored by the session stays connected as far as the app knows.
+            if (!reconnecting) {
+                mCallback.onConnectionStateChange(gatt, status, newState);
+            }
+        });
     }
 
     /**
@@ -55,10 +95,14 @@ public class BleGattCallback extends BluetoothGattCallback {
      */
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        LogUtil.V(ClassName, "onServicesDiscovered() [INF] status:" + status);
-        if (Preconditions.checkNotNull(mCallback)) {
-            mCallback.onServicesDiscovered(gatt, status);
-        }
+        LogUtil.V(ClassName, "onServicesDiscovered() [INF] status:{}", status);
+        // Reported to the app by the controller once the attribute table is resolved.
+        mHandler.post(() -> {
+            final GattSession session = mConnections.getSession(gatt);
+            if (Preconditions.checkNotNull(session)) {
+                session.onServicesDiscovered(status);
+            }
+        });
     }
 
     /**
@@ -66,10 +110,64 @@ public class BleGattCallback extends BluetoothGattCallback {
      */
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-        LogUtil.V(ClassName, "onMtuChanged() [INF] mtu=" + mtu + " status=" + status);
-        if (Preconditions.checkNotNull(mCallback)) {
-            mCallback.onMtuChanged(gatt, mtu, status);
-        }
+        LogUtil.V(ClassName, "onMtuChanged() [INF] mtu={} status={}", mtu, status);
+        mHandler.post(() -> {
+            final GattSession session = mConnections.getSession(gatt);
+            boolean reconnecting = false;
+            if (Preconditions.checkNotNull(session)) {
+                reconnecting = session.isReconnecting();
+                session.onMtuChanged(mtu, status);
+            }
+            if (!reconnecting) {
+                mCallback.onMtuChanged(gatt, mtu, status);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        LogUtil.V(ClassName, "onPhyUpdate() [INF] txPhy:{} rxPhy:{} status:{}", txPhy, rxPhy,
+                status);
+        mHandler.post(() -> onPhyReported(gatt, txPhy, rxPhy, status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        LogUtil.V(ClassName, "onPhyRead() [INF] txPhy:{} rxPhy:{} status:{}", txPhy, rxPhy,
+                status);
+        mHandler.post(() -> onPhyReported(gatt, txPhy, rxPhy, status));
+    }
+
+    /**
+     * Callback indicating the connection parameters were updated. This callback is hidden in
+     * the SDK but invoked by the stack since Android 8.0, so it is declared without
+     * {@code @Override}.
+     *
+     * @param gatt     GATT client involved
+     * @param interval Connection interval used on this connection, in units of 1.25 ms
+     * @param latency  Peripheral latency for the connection in number of connection events
+     * @param timeout  Supervision timeout for this connection, in units of 10 ms
+     * @param status   {@link BluetoothGatt#GATT_SUCCESS} if the connection has been updated
+     *                 successfully
+     */
+    public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout,
+            int status) {
+        LogUtil.V(ClassName, "onConnectionUpdated() [INF] interval:{} latency:{} timeout:{}"
+                + " status:{}", interval, latency, timeout, status);
+        mHandler.post(() -> {
+            final GattSession session = mConnections.getSession(gatt);
+            if (!Preconditions.checkNotNull(session)) return;
+            session.onConnectionUpdated(interval, latency, timeout, status);
+            if (BluetoothGatt.GATT_SUCCESS == status) {
+                LogUtil.I(ClassName, "onConnectionUpdated() [INF] {}", session);
+            }
+        });
     }
 
     /**
@@ -79,10 +177,17 @@ public class BleGattCallback extends BluetoothGattCallback {
     public void onCharacteristicRead(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic,
             int status) {
-        LogUtil.I(ClassName, "onServicesDiscovered() [INF] status:" + status);
-        if (Preconditions.checkNotNull(mCallback)) {
+        LogUtil.I(ClassName, "onCharacteristicRead() [INF] uuid:{} status:{}",
+                characteristic.getUuid(), status);
+        mHandler.post(() -> {
+            // Report before completing: the next operation may overwrite the value.
             mCallback.onCharacteristicRead(gatt, characteristic, status);
-        }
+            final GattSession session = mConnections.getSession(gatt);
+            if (Preconditions.checkNotNull(session)) {
+                session.onCharacteristicRead(characteristic.getUuid(),
+                        characteristic.getValue(), status);
+            }
+        });
     }
 
     /**
@@ -92,10 +197,31 @@ public class BleGattCallback extends BluetoothGattCallback {
     public void onCharacteristicWrite(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic,
             int status) {
-        LogUtil.I(ClassName, "onCharacteristicWrite() [INF] status:" + status);
-        if (Preconditions.checkNotNull(mCallback)) {
+        LogUtil.I(ClassName, "onCharacteristicWrite() [INF] uuid:{} status:{}",
+                characteristic.getUuid(), status);
+        mHandler.post(() -> {
+            // Report before completing: the next operation may overwrite the value.
             mCallback.onCharacteristicWrite(gatt, characteristic, status);
-        }
+            final GattSession session = mConnections.getSession(gatt);
+            if (Preconditions.checkNotNull(session)) {
+                session.onCharacteristicWrite(characteristic.getUuid(), status);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+            int status) {
+        LogUtil.V(ClassName, "onDescriptorWrite() [INF] status:{}", status);
+        mHandler.post(() -> {
+            final GattSession session = mConnections.getSession(gatt);
+            if (Preconditions.checkNotNull(session)) {
+                session.onNotificationChanged(descriptor.getCharacteristic().getUuid(), status);
+            }
+        });
     }
 
     /**
@@ -104,8 +230,35 @@ public class BleGattCallback extends BluetoothGattCallback {
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic) {
-        if (Preconditions.checkNotNull(mCallback)) {
-            mCallback.onCharacteristicChanged(gatt, characteristic);
+        if (GattDatabase.SERVICE_CHANGED.equals(characteristic.getUuid())) {
+            LogUtil.I(ClassName, "onCharacteristicChanged() [INF] Service Changed");
+            mHandler.post(() -> {
+                final GattSession session = mConnections.getSession(gatt);
+                if (Preconditions.checkNotNull(session)) {
+                    session.onServiceChanged();
+                }
+            });
+            return;
+        }
+        final UUID uuid = characteristic.getUuid();
+        final byte[] value = characteristic.getValue();
+        LogUtil.V(ClassName, "onCharacteristicChanged() [INF] uuid:{} length:{}", uuid,
+                value.length);
+        mNotifications.publish(SystemClock.elapsedRealtimeNanos(), gatt.getDevice().getAddress(),
+                uuid, value);
+        // The stack hands a new array for every notification, so the value is not copied.
+        mHandler.post(() -> {
+            final GattSession session = mConnections.getSession(gatt);
+            if (Preconditions.checkNotNull(session)) {
+                session.onNotification(uuid, value);
+            }
+        });
+    }
+
+    private void onPhyReported(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+        final GattSession session = mConnections.getSession(gatt);
+        if (Preconditions.checkNotNull(session)) {
+            session.onPhyUpdated(txPhy, rxPhy, status);
         }
     }
 }
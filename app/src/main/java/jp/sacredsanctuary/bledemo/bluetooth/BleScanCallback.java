@@ -18,31 +18,92 @@ package jp.sacredsanctuary.bledemo.bluetooth;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import jp.sacredsanctuary.bledemo.bluetooth.scan.DeviceStateTable;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanDeliveryStats;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanFilterEngine;
 import jp.sacredsanctuary.bledemo.util.LogUtil;
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+import jp.sacredsanctuary.bledemo.util.Preconditions;
 
 /**
  * Helper class for BLE scan callback.
+ * <p>
+ * Results are delivered on the main thread and read on the controller's worker thread. The
+ * latest state of every device is kept in a bounded {@link DeviceStateTable}, so memory stays
+ * flat however long the scan runs.
+ * <p>
+ * While scanning, the devices seen since the last update are published to an
+ * {@link UpdateListener} on the worker thread. The first result is published right away,
+ * following ones at most once per update interval, carrying only the latest result of every
+ * device that advertised in between.
  */
 public class BleScanCallback extends ScanCallback {
     private static final String ClassName = BleScanCallback.class.getSimpleName();
-    private Set<ScanResult> mResults = new HashSet<>();
-    private List<ScanResult> mBatchScanResults = new ArrayList<>();
+
+    /**
+     * Receives the devices that were found or updated while scanning.
+     */
+    public interface UpdateListener {
+        /**
+         * Called on the worker thread with the latest result of every device that advertised
+         * since the previous update.
+         *
+         * @param results The new and updated scan results
+         */
+        void onScanResultsUpdated(List<ScanResult> results);
+    }
+
+    private final DeviceStateTable<ScanResult> mDevices;
+    private final ScanDeliveryStats mStats = new ScanDeliveryStats();
+    private ScanFilterEngine mFilterEngine;
+    private long mDiscoveryCount;
+    private final Handler mHandler;
+    private final long mUpdateIntervalMillis;
+    private final UpdateListener mListener;
+    private final Runnable mFlushRunnable = this::flushUpdates;
+    // Latest result per device address since the last update, in order of first appearance.
+    private final Map<String, ScanResult> mPendingUpdates = new LinkedHashMap<>();
+    private boolean mFlushScheduled = false;
+    private long mLastFlushMillis = 0;
+
+    /**
+     * Create a new BleScanCallback.
+     *
+     * @param capacity             Maximum number of devices remembered
+     * @param ttlNanos             Time after which a device that has not advertised is
+     *                             forgotten, or 0 to forget devices only when the table is full
+     * @param handler              Handler of the thread the updates are published on
+     * @param updateIntervalMillis Minimum time between two updates
+     * @param listener             Listener receiving the updates
+     */
+    BleScanCallback(int capacity, long ttlNanos, Handler handler, long updateIntervalMillis,
+            UpdateListener listener) {
+        mDevices = new DeviceStateTable<>(capacity, ttlNanos);
+        mHandler = handler;
+        mUpdateIntervalMillis = updateIntervalMillis;
+        mListener = listener;
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void onScanResult(int callbackType, ScanResult result) {
+    public synchronized void onScanResult(int callbackType, ScanResult result) {
         if (callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
-            LogUtil.V(ClassName, "onScanResult() [INF] result:" + result);
-            mResults.add(result);
+            LogUtil.V(ClassName, "onScanResult() [INF] result:{}", result);
+            mStats.onDelivery(1, SystemClock.elapsedRealtimeNanos());
+            addResult(result);
         }
     }
 
@@ -50,31 +111,100 @@ public class BleScanCallback extends ScanCallback {
      * {@inheritDoc}
      */
     @Override
-    public void onBatchScanResults(List<ScanResult> results) {
+    public synchronized void onBatchScanResults(List<ScanResult> results) {
         // In case onBatchScanResults are called due to buffer full, we want to collect all
         // scan results.
-        mBatchScanResults.addAll(results);
+        LogUtil.V(ClassName, "onBatchScanResults() [INF] results:{}", results.size());
+        mStats.onDelivery(results.size(), SystemClock.elapsedRealtimeNanos());
+        for (ScanResult result : results) {
+            addResult(result);
+        }
     }
 
     /**
-     * Clear regular and batch scan results.
+     * Clear regular and batch scan results, and drop the updates not published yet.
      */
     synchronized void clear() {
-        mResults.clear();
-        mBatchScanResults.clear();
+        mDevices.clear();
+        mDiscoveryCount = 0;
+        mStats.start(SystemClock.elapsedRealtimeNanos());
+        mPendingUpdates.clear();
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        mLastFlushMillis = 0;
+    }
+
+    /**
+     * Publishes the pending updates right away. Must be called on the thread of the handler.
+     */
+    void flushUpdates() {
+        final List<ScanResult> updates;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            if (mPendingUpdates.isEmpty()) return;
+            updates = new ArrayList<>(mPendingUpdates.values());
+            mPendingUpdates.clear();
+            mLastFlushMillis = SystemClock.uptimeMillis();
+        }
+        mListener.onScanResultsUpdated(updates);
     }
 
     /**
-     * Return regular BLE scan results accumulated so far.
+     * Return a snapshot of the latest scan result of every device remembered.
      */
-    synchronized Set<ScanResult> getScanResults() {
-        return Collections.unmodifiableSet(mResults);
+    Set<ScanResult> getScanResults() {
+        return Collections.unmodifiableSet(new HashSet<>(mDevices.values()));
     }
 
     /**
-     * Return batch scan results.
+     * Return the latest state of every device remembered.
      */
-    synchronized public List<ScanResult> getBatchScanResults() {
-        return Collections.unmodifiableList(mBatchScanResults);
+    public DeviceStateTable<ScanResult> getDeviceStates() {
+        return mDevices;
+    }
+
+    /**
+     * Sets the engine applying the filter conditions the Bluetooth stack cannot apply.
+     *
+     * @param filterEngine The engine, or null to accept every result
+     */
+    synchronized void setFilterEngine(ScanFilterEngine filterEngine) {
+        mFilterEngine = filterEngine;
+    }
+
+    /**
+     * Return the number of devices that were added to the device table since the scan started.
+     */
+    synchronized long getDiscoveryCount() {
+        return mDiscoveryCount;
+    }
+
+    /**
+     * Return the wakeup statistics of the current scan.
+     */
+    public ScanDeliveryStats getDeliveryStats() {
+        return mStats;
+    }
+
+    private void addResult(ScanResult result) {
+        if (!Preconditions.checkNotNull(result.getDevice())) return;
+        final long address = MacAddressIndex.pack(result.getDevice().getAddress());
+        if (address == MacAddressIndex.INVALID_ADDRESS) return;
+        final byte[] record = Preconditions.checkNotNull(result.getScanRecord())
+                ? result.getScanRecord().getBytes() : null;
+        if (Preconditions.checkNotNull(mFilterEngine) && !mFilterEngine.test(result.getRssi(),
+                record, record == null ? 0 : record.length)) {
+            return;
+        }
+        if (mDevices.update(address, result.getRssi(), result.getTimestampNanos(), record,
+                result)) {
+            mDiscoveryCount++;
+        }
+        mPendingUpdates.put(result.getDevice().getAddress(), result);
+        if (mFlushScheduled) return;
+        mFlushScheduled = true;
+        final long delay = mLastFlushMillis + mUpdateIntervalMillis - SystemClock.uptimeMillis();
+        mHandler.postDelayed(mFlushRunnable, Math.max(0, delay));
     }
 }
\ No newline at end of file
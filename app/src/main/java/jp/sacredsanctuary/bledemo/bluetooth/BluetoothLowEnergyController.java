@@ -18,44 +18,205 @@ package jp.sacredsanctuary.bledemo.bluetooth;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.framing.FrameDecoder;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationRecorder;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationRingBuffer;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationStream;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.RecordingPolicy;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.DeviceFilter;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanDeliveryStats;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanFilterEngine;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanScheduler;
 import jp.sacredsanctuary.bledemo.util.LogUtil;
 import jp.sacredsanctuary.bledemo.util.Preconditions;
 
 /**
  * Controller used to operation Bluetooth Low Energy.
+ * <p>
+ * The controller owns a worker thread that holds its state, runs the scan timer and receives
+ * the GATT callbacks. Methods other than the capability queries must be called on that
+ * thread, see {@link #getHandler()}.
  */
 public class BluetoothLowEnergyController {
     private static final String ClassName = BluetoothLowEnergyController.class.getSimpleName();
-    // Descriptor UUID for enabling characteristic changed notifications
-    private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString(
-            "00002902-0000-1000-8000-00805f9b34fb");
+    // Minimum time between two incremental scan result updates.
+    private static final long SCAN_UPDATE_INTERVAL = 250;
+    // Maximum number of devices a scan remembers, and how long a silent device is remembered.
+    private static final int SCAN_DEVICE_CAPACITY = 4096;
+    private static final long SCAN_DEVICE_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // Time given to the controller to deliver its last batch once a batch scan ends.
+    private static final long BATCH_FLUSH_DELAY = 500;
+    // Interval between two evaluations of the continuous scan mode.
+    private static final long SCAN_TICK_INTERVAL = 2000;
+    // New devices per minute above which the continuous scan becomes more aggressive, and
+    // below which it becomes more economic.
+    private static final double SCAN_RAISE_RATE = 6;
+    private static final double SCAN_LOWER_RATE = 2;
+    // Directory of the attribute cache, in the files directory of the app.
+    private static final String GATT_CACHE_DIRECTORY = "gatt_cache";
+    // Devices connected at once. Matches GATT_MAX_PHY_CHANNEL of the Android Bluetooth stack,
+    // the lowest limit found on current controllers.
+    private static final int MAX_CONNECTIONS = 7;
+    // Notifications kept for the consumers of the notification stream, and the largest value
+    // of a notification, the ATT_MTU 517 less its 3 byte header.
+    private static final int NOTIFICATION_CAPACITY = 1024;
+    private static final int NOTIFICATION_MAX_PAYLOAD = 514;
+    // Directory of the notification recordings, in the files directory of the app.
+    private static final String NOTIFICATION_DIRECTORY = "notifications";
     private final Context mContext;
     private final BluetoothAdapter mBluetoothAdapter;
     private final BluetoothLeScanner mBluetoothScanner;
+    private final HandlerThread mWorkerThread;
     private final Handler mBackgroundHandler;
     private final BleScanCallback mBleScanCallback;
     private boolean mScanning = false;
-    private BluetoothGatt mBluetoothGatt;
-    private String mBluetoothDeviceAddress = null;
-    private IBluetoothLowEnergyControllerCallback mCallback;
+    private boolean mContinuousScanning = false;
+    private boolean mBatching = false;
+    private long mReportDelayMillis = 0;
+    private DeviceFilter mScanFilter;
+    private ScanFilterEngine mScanFilterEngine;
+    // Callbacks of the app, called without lock from the worker thread.
+    private final ControllerCallbackDispatcher mCallbacks = new ControllerCallbackDispatcher();
+
+    private final GattConnectionManager mConnections;
+    private final BleGattCallback mGattCallback;
+    private final GattAttributeCache mAttributeCache;
+    // Notifications of every device, published from the binder threads. A consumer falling
+    // behind loses the oldest ones rather than stalling the Bluetooth stack.
+    private final NotificationStream mNotifications = new NotificationStream(
+            new NotificationRingBuffer(NOTIFICATION_CAPACITY, NOTIFICATION_MAX_PAYLOAD,
+                    NotificationRingBuffer.OVERFLOW_DROP_OLDEST,
+                    NotificationRingBuffer.WAIT_BLOCKING));
+    private NotificationRecordingThread mRecording;
+    // Latencies of every device, fed by the statistics of each session.
+    private final GattLatencyStats mLatencyStats = new GattLatencyStats();
+    // Deadlines of the outstanding requests of every device, on the worker thread.
+    private final GattWatchdog mWatchdog;
+    // Jitter of the reconnect delays of every device.
+    private final Random mRandom = new Random();
+    private final GattReconnector.Listener mReconnectListener = new GattReconnector.Listener() {
+        @Override
+        public void onReconnectScheduled(GattSession session, int attempt, long delayNanos,
+                boolean autoConnect) {
+            LogUtil.I(ClassName, "onReconnectScheduled() [INF] address:{} attempt:{} delay:{}ms"
+                    + " autoConnect:{}", session.getAddress(), attempt,
+                    TimeUnit.NANOSECONDS.toMillis(delayNanos), autoConnect);
+        }
+
+        @Override
+        public void onReconnected(GattSession session, int attempts, long latencyNanos,
+                boolean success) {
+            LogUtil.I(ClassName, "onReconnected() [INF] address:{} attempts:{} latency:{}ms"
+                    + " success:{}", session.getAddress(), attempts,
+                    TimeUnit.NANOSECONDS.toMillis(latencyNanos), success);
+        }
+    };
+    private final GattSession.Listener mSessionListener = new GattSession.Listener() {
+        @Override
+        public void onConnected(GattSession session) {
+            LogUtil.V(ClassName, "onConnected() [INF] address:{}", session.getAddress());
+        }
+
+        @Override
+        public void onConnectionLost(GattSession session) {
+            mConnections.onConnectionLost(session.getAddress());
+        }
+
+        @Override
+        public void onServicesResolved(GattSession session, GattDatabase database,
+                boolean cached) {
+            if (Preconditions.checkNotNull(database)) {
+                LogUtil.I(ClassName, "onServicesResolved() [INF] address:{} cached:{}"
+                        + " attributes:{}", session.getAddress(), cached,
+                        database.getAttributeCount());
+            } else {
+                LogUtil.W(ClassName, "onServicesResolved() [WAN] discovery failed, address:{}",
+                        session.getAddress());
+            }
+            // The app already knows the services of a link the session restores.
+            final BluetoothGatt gatt = getGatt(session);
+            if (!session.isReconnecting() && Preconditions.checkNotNull(gatt)) {
+                mCallbacks.onServicesDiscovered(gatt, Preconditions.checkNotNull(database)
+                        ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_FAILURE);
+            }
+        }
 
-    private BleGattCallback mGattCallback = new BleGattCallback();
+        @Override
+        public void onLinkConfigured(GattSession session, boolean success) {
+            LogUtil.I(ClassName, "onLinkConfigured() [INF] success:{} link:{}", success,
+                    session);
+        }
+
+        @Override
+        public void onNotification(GattSession session, UUID uuid, byte[] value) {
+            final BluetoothGatt gatt = getGatt(session);
+            if (Preconditions.checkNotNull(gatt)) {
+                mCallbacks.onCharacteristicChanged(gatt, uuid, value);
+            }
+        }
+
+        @Override
+        public void onMessageReceived(GattSession session, UUID uuid, byte[] buffer,
+                int offset, int length) {
+            final BluetoothGatt gatt = getGatt(session);
+            if (Preconditions.checkNotNull(gatt)) {
+                mCallbacks.onMessageReceived(gatt, uuid, buffer, offset, length);
+            }
+        }
+    };
+
+    private final ScanScheduler mScanScheduler = new ScanScheduler(new ScanScheduler.Scanner() {
+        @Override
+        public boolean startScan(int mode) {
+            LogUtil.V(ClassName, "startScan() [INF] mode:{}", mode);
+            mBluetoothScanner.startScan(buildScanFilters(), buildScanSettings(mode),
+                    mBleScanCallback);
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            mBluetoothScanner.stopScan(mBleScanCallback);
+        }
+    }, SCAN_RAISE_RATE, SCAN_LOWER_RATE);
+
+    private final Runnable mScanTick = new Runnable() {
+        @Override
+        public void run() {
+            mScanScheduler.onTick(SystemClock.elapsedRealtimeNanos(),
+                    mBleScanCallback.getDiscoveryCount());
+            mBackgroundHandler.postDelayed(this, SCAN_TICK_INTERVAL);
+        }
+    };
 
     /**
      * Create a new BluetoothLowEnergyController.
@@ -64,21 +225,90 @@ public class BluetoothLowEnergyController {
      */
     public BluetoothLowEnergyController(Context context) {
         this.mContext = context;
-        this.mBackgroundHandler = new Handler();
+        this.mWorkerThread = new HandlerThread(ClassName, Process.THREAD_PRIORITY_BACKGROUND);
+        this.mWorkerThread.start();
+        this.mBackgroundHandler = new Handler(mWorkerThread.getLooper());
+        this.mWatchdog = new GattWatchdog(GattTimeoutPolicy.DEFAULT, System::nanoTime,
+                (delayNanos, task) -> mBackgroundHandler.postDelayed(task,
+                        TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+        this.mConnections = new GattConnectionManager(MAX_CONNECTIONS, this::startConnection,
+                new GattConnectionManager.SessionFactory() {
+                    @Override
+                    public GattSession createSession(String address) {
+                        final AndroidGattTransport transport = new AndroidGattTransport(
+                                mContext, mBluetoothAdapter.getRemoteDevice(address),
+                                mGattCallback, mBackgroundHandler);
+                        final GattSession session = new GattSession(transport, mAttributeCache,
+                                mSessionListener, System::nanoTime,
+                                new GattLatencyStats(mLatencyStats));
+                        session.setWatchdog(mWatchdog);
+                        session.setReconnectPolicy(ReconnectPolicy.DEFAULT,
+                                (delayNanos, task) -> mBackgroundHandler.postDelayed(task,
+                                        TimeUnit.NANOSECONDS.toMillis(delayNanos)), mRandom);
+                        session.getReconnector().setListener(mReconnectListener);
+                        return session;
+                    }
+                });
+        this.mGattCallback = new BleGattCallback(mConnections, mBackgroundHandler, mCallbacks,
+                mNotifications);
+        this.mAttributeCache = new GattAttributeCache(
+                new File(context.getFilesDir(), GATT_CACHE_DIRECTORY));
         this.mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         this.mBluetoothScanner = Preconditions.checkNotNull(mBluetoothAdapter)
                 ? mBluetoothAdapter.getBluetoothLeScanner() : null;
-        this.mBleScanCallback = new BleScanCallback();
+        this.mBleScanCallback = new BleScanCallback(SCAN_DEVICE_CAPACITY, SCAN_DEVICE_TTL_NANOS,
+                mBackgroundHandler, SCAN_UPDATE_INTERVAL, mCallbacks::onScanResultsUpdated);
+    }
+
+    /**
+     * Returns the handler of the worker thread that owns the state of this controller.
+     *
+     * @return The handler of the worker thread.
+     */
+    public Handler getHandler() {
+        return mBackgroundHandler;
+    }
+
+    /**
+     * Stops a continuous scan and the worker thread. Pending work is completed before the
+     * thread exits.
+     */
+    public void release() {
+        stopRecording();
+        if (mContinuousScanning) {
+            mContinuousScanning = false;
+            mBackgroundHandler.removeCallbacks(mScanTick);
+            mScanScheduler.stop(SystemClock.elapsedRealtimeNanos(),
+                    mBleScanCallback.getDiscoveryCount());
+        }
+        mWorkerThread.quitSafely();
+    }
+
+    /**
+     * Registers an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events,
+     * or changes the executor and the filter of a registered one. May be called from any
+     * thread.
+     *
+     * @param callback The callback
+     * @param executor The executor the callback is called on, or null to call it on the
+     *                 worker thread. A slow callback only delays the callbacks sharing its
+     *                 executor.
+     * @param filter   The events the callback receives, see the {@code EVENT_*} constants of
+     *                 {@link IBluetoothLowEnergyControllerCallback}, or null for every event
+     */
+    public void registerCallback(IBluetoothLowEnergyControllerCallback callback,
+            @Nullable Executor executor, @Nullable EventFilter filter) {
+        mCallbacks.register(callback, executor, filter);
     }
 
     /**
-     * Sets an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events.
+     * Unregisters a callback. Events still queued on its executor are dropped. May be called
+     * from any thread.
      *
-     * @param callback The new callback or null, if the callback should be unregistered.
+     * @param callback The callback
      */
-    public void setCallback(IBluetoothLowEnergyControllerCallback callback) {
-        mCallback = callback;
-        mGattCallback.setCallback(callback);
+    public void unregisterCallback(IBluetoothLowEnergyControllerCallback callback) {
+        mCallbacks.unregister(callback);
     }
 
     /**
@@ -110,257 +340,661 @@ public class BluetoothLowEnergyController {
     }
 
     /**
-     * Initiate a connection to a Bluetooth GATT capable device.
+     * Selects between real-time and batch scanning for the following scans. In batch mode the
+     * Bluetooth controller buffers the results and wakes the app once per report delay.
+     * Batch mode falls back to real-time scanning if the controller cannot buffer results.
+     *
+     * @param reportDelayMillis Delay between two batches, or 0 for real-time scanning
+     */
+    public void setScanReportDelay(long reportDelayMillis) {
+        if (reportDelayMillis < 0) {
+            throw new IllegalArgumentException("reportDelayMillis:" + reportDelayMillis);
+        }
+        mReportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * Sets the filter applied by the following scans.
+     *
+     * @param filter The filter, or null to report every device
+     */
+    public void setScanFilter(@Nullable DeviceFilter filter) {
+        mScanFilter = filter;
+    }
+
+    /**
+     * Returns the engine applying the software part of the filter of the current or last scan,
+     * which counts the results rejected by every stage.
+     *
+     * @return The filter engine, or null if the scan is not filtered.
+     */
+    @Nullable
+    public ScanFilterEngine getScanFilterEngine() {
+        return mScanFilterEngine;
+    }
+
+    /**
+     * Returns the wakeup statistics of the current or last scan.
+     *
+     * @return The scan delivery statistics.
+     */
+    public ScanDeliveryStats getScanDeliveryStats() {
+        return mBleScanCallback.getDeliveryStats();
+    }
+
+    /**
+     * Returns the metrics collected by the GATT operation queue of a device.
+     *
+     * @param address Bluetooth address as string
+     * @return The metrics of the GATT operation queue, or null if the device has no session.
+     */
+    @Nullable
+    public GattOperationMetrics getOperationMetrics(String address) {
+        final GattSession session = mConnections.getSession(address);
+        return Preconditions.checkNotNull(session)
+                ? session.getOperationQueue().getMetrics() : null;
+    }
+
+    /**
+     * Returns the latency histograms of a device, or of every device.
+     *
+     * @param address Bluetooth address as string, or null for the aggregate of every device
+     * @return The latency statistics, or null if the device has no session.
+     */
+    @Nullable
+    public GattLatencyStats getLatencyStats(@Nullable String address) {
+        if (address == null) return mLatencyStats;
+        final GattSession session = mConnections.getSession(address);
+        return Preconditions.checkNotNull(session) ? session.getLatencyStats() : null;
+    }
+
+    /**
+     * Returns the engine restoring the lost links of a device.
+     *
+     * @param address Bluetooth address as string
+     * @return The reconnector, or null if the device has no session.
+     */
+    @Nullable
+    public GattReconnector getReconnector(String address) {
+        final GattSession session = mConnections.getSession(address);
+        return Preconditions.checkNotNull(session) ? session.getReconnector() : null;
+    }
+
+    /**
+     * Returns the watchdog timing out the requests of every device. Its policy may be replaced
+     * from any thread.
+     *
+     * @return The GATT watchdog.
+     */
+    public GattWatchdog getWatchdog() {
+        return mWatchdog;
+    }
+
+    /**
+     * Returns the stream of the notifications of every device. Consumers added to its ring
+     * buffer drain them on their own threads.
+     *
+     * @return The notification stream.
+     */
+    public NotificationStream getNotificationStream() {
+        return mNotifications;
+    }
+
+    /**
+     * Starts appending every notification to segment files in the files directory of the app,
+     * see {@link NotificationRecorder}.
+     *
+     * @return Returns {@code true} if notifications are recorded, {@code false} otherwise.
+     */
+    public boolean startRecording() {
+        if (null != mRecording) return true;
+        final NotificationRecorder recorder;
+        try {
+            recorder = new NotificationRecorder(
+                    new File(mContext.getFilesDir(), NOTIFICATION_DIRECTORY), mNotifications,
+                    RecordingPolicy.DEFAULT);
+        } catch (IOException e) {
+            LogUtil.W(ClassName, "startRecording() [WAN] {}", e);
+            return false;
+        }
+        mRecording = new NotificationRecordingThread(mNotifications.getBuffer(), recorder);
+        mRecording.start();
+        return true;
+    }
+
+    /**
+     * Stops recording notifications. The notifications already published are still recorded
+     * before the last segment is closed.
+     */
+    public void stopRecording() {
+        if (null == mRecording) return;
+        mRecording.quit();
+        mRecording = null;
+    }
+
+    /**
+     * Returns whether notifications are being recorded.
+     *
+     * @return Returns {@code true} if notifications are recorded, {@code false} otherwise.
+     */
+    public boolean isRecording() {
+        return null != mRecording && mRecording.isAlive();
+    }
+
+    /**
+     * Prints the latency histograms of every device and of each device that has a session,
+     * the requests that timed out, the reconnections of each device, the notification stream
+     * and its recording.
+     *
+     * @param writer The writer to print to
+     */
+    public void dump(PrintWriter writer) {
+        writer.println(mNotifications);
+        if (null != mRecording) {
+            writer.println(mRecording.getRecorder());
+        }
+        writer.println("GATT timeouts (all devices):");
+        mWatchdog.dump(writer, "  ");
+        writer.println("GATT latencies (all devices):");
+        mLatencyStats.dump(writer, "  ");
+        for (GattSession session : mConnections.getSessions()) {
+            writer.println("GATT latencies " + session.getAddress() + ":");
+            session.getLatencyStats().dump(writer, "  ");
+            writer.println("  " + session.getReconnector());
+        }
+    }
+
+    /**
+     * Returns the manager holding the session of every device.
+     *
+     * @return The connection manager.
+     */
+    public GattConnectionManager getConnectionManager() {
+        return mConnections;
+    }
+
+    /**
+     * Sets the decoder used to reassemble messages split across several notifications of a
+     * characteristic. Reassembled messages are reported through
+     * {@link IBluetoothLowEnergyControllerCallback#onMessageReceived}.
+     *
+     * @param address Bluetooth address as string
+     * @param uuid The UUID of the characteristic
+     * @param decoder The decoder, or null to report raw notifications again
+     */
+    public void setFrameDecoder(String address, UUID uuid, @Nullable FrameDecoder decoder) {
+        if (!Preconditions.checkNotNull(mBluetoothAdapter) || Preconditions.isEmpty(address)) {
+            return;
+        }
+        mConnections.openSession(address).getReassembler().setDecoder(uuid, decoder);
+    }
+
+    /**
+     * Initiate a connection to a Bluetooth GATT capable device. Once every connection slot is
+     * in use, the connection waits until another device disconnects or is closed.
      *
      * @param address Bluetooth address as string
-     * @return true, if the connection attempt was initiated successfully
+     * @return true, if the connection attempt was initiated or queued successfully
      */
     public boolean connect(String address) {
-        LogUtil.V(ClassName, "connect() [INF] address:" + address);
+        LogUtil.V(ClassName, "connect() [INF] address:{}", address);
         if (!Preconditions.checkNotNull(mBluetoothAdapter) || Preconditions.isEmpty(address)) {
             LogUtil.W(ClassName, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-        // Previously connected device.  Try to reconnect.
-        if (!Preconditions.isEmpty(mBluetoothDeviceAddress)
-                && address.equals(mBluetoothDeviceAddress)
-                && Preconditions.checkNotNull(mBluetoothGatt)) {
-            LogUtil.D(ClassName, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                return true;
-            } else {
-                return false;
-            }
+        mConnections.openSession(address);
+        if (!mConnections.connect(address)) return false;
+        if (mConnections.isWaiting(address)) {
+            LogUtil.I(ClassName, "connect() [INF] waiting for a connection slot, active:{}"
+                    + " waiting:{}", mConnections.getActiveCount(),
+                    mConnections.getWaitingCount());
         }
+        return true;
+    }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (!Preconditions.checkNotNull(device)) {
-            LogUtil.W(ClassName, "Device not found.  Unable to connect.");
-            return false;
+    /**
+     * Starts the connection of a device admitted by the connection manager.
+     */
+    private boolean startConnection(String address) {
+        final GattSession session = mConnections.getSession(address);
+        if (!Preconditions.checkNotNull(session)) return false;
+        if (Preconditions.checkNotNull(getGatt(session))) {
+            // Previously connected device.  Try to reconnect.
+            LogUtil.D(ClassName, "Trying to use an existing BluetoothGatt for connection.");
+        } else {
+            LogUtil.W(ClassName, "Trying to create a new connection.");
         }
-        LogUtil.V(ClassName, "connect() [INF] device:" + device);
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback,
-                BluetoothDevice.TRANSPORT_LE);
-        LogUtil.W(ClassName, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
+        session.connect();
         return true;
     }
 
     /**
      * Disconnects an established connection, or cancels a connection attempt
      * currently in progress.
+     *
+     * @param address Bluetooth address as string
      */
-    public void disconnect() {
+    public void disconnect(String address) {
+        final GattSession session = mConnections.getSession(address);
         if (!Preconditions.checkNotNull(mBluetoothAdapter)
-                || !Preconditions.checkNotNull(mBluetoothGatt)) {
+                || !Preconditions.checkNotNull(session)) {
             LogUtil.W(ClassName, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnections.release(address);
+        session.disconnect();
+    }
+
+    /**
+     * Disconnects every device, and cancels every connection attempt in progress or waiting.
+     */
+    public void disconnectAll() {
+        for (GattSession session : mConnections.getSessions()) {
+            disconnect(session.getAddress());
+        }
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
+     *
+     * @param address Bluetooth address as string
      */
-    public void close() {
-        if (!Preconditions.checkNotNull(mBluetoothGatt)) {
+    public void close(String address) {
+        final GattSession session = mConnections.closeSession(address);
+        if (!Preconditions.checkNotNull(session)) {
             LogUtil.W(ClassName, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        session.close();
     }
 
     /**
-     * Return the remote bluetooth device this GATT client targets to
+     * Closes the connection to every device.
+     */
+    public void closeAll() {
+        for (GattSession session : mConnections.getSessions()) {
+            close(session.getAddress());
+        }
+    }
+
+    /**
+     * Return the remote bluetooth device a GATT client targets to
      *
+     * @param address Bluetooth address as string
      * @return remote bluetooth device
      */
     @Nullable
-    public BluetoothDevice getDevice() {
-        if (!Preconditions.checkNotNull(mBluetoothGatt)) {
+    public BluetoothDevice getDevice(String address) {
+        final GattSession session = mConnections.getSession(address);
+        final BluetoothGatt gatt = Preconditions.checkNotNull(session) ? getGatt(session) : null;
+        if (!Preconditions.checkNotNull(gatt)) {
             LogUtil.W(ClassName, "BluetoothAdapter not initialized");
             return null;
         }
-        return mBluetoothGatt.getDevice();
+        return gatt.getDevice();
     }
 
     /**
      * Start Bluetooth LE scan. The scan results will be delivered through {@code mBleScanCallback}.
+     * New and updated devices are reported incrementally while scanning, every result is
+     * reported again when the scan completes.
      * For unfiltered scans, scanning is stopped on screen off to save power. Scanning is
      * resumed when screen is turned on again. To avoid this, do filetered scanning by
      * using proper {@link android.bluetooth.le.ScanFilter}.
      */
     public void scanBluetoothLowEnergyDevice(final long time) {
-        LogUtil.V(ClassName, "scanBluetoothLowEnergyDevice() [INF] time:" + time);
+        LogUtil.V(ClassName, "scanBluetoothLowEnergyDevice() [INF] time:{}", time);
         if (mScanning) return;
         if (!Preconditions.checkNotNull(mBluetoothScanner)) return;
 
         // Stops scanning after a pre-defined scan period.
-        mBackgroundHandler.postDelayed(() -> {
-            mScanning = false;
-            LogUtil.V(ClassName, "scanLeDevice() [INF] call stopScan() ");
-            mBluetoothScanner.stopScan(mBleScanCallback);
-            if (Preconditions.checkNotNull(mCallback)) {
-                mCallback.onScanCompleted(mBleScanCallback.getScanResults());
-            }
-        }, time);
+        mBackgroundHandler.postDelayed(() -> stopScanAfterFlush(this::stopScan), time);
 
-        mScanning = true;
-        mBleScanCallback.clear();
+        prepareScan();
         LogUtil.V(ClassName, "scanLeDevice() [INF] call startScan() ");
         mBluetoothScanner.startScan(
                 buildScanFilters(),
-                buildScanSettings(),
+                buildScanSettings(ScanSettings.SCAN_MODE_LOW_POWER),
                 mBleScanCallback);
     }
 
+    /**
+     * Start a Bluetooth LE scan that runs until {@link #stopContinuousScan()} is called. The
+     * scan mode follows the rate new devices are discovered, see {@link ScanScheduler}.
+     */
+    public void startContinuousScan() {
+        LogUtil.V(ClassName, "startContinuousScan() [INF] ");
+        if (mScanning) return;
+        if (!Preconditions.checkNotNull(mBluetoothScanner)) return;
+
+        prepareScan();
+        mContinuousScanning = true;
+        // Start aggressively to take the inventory quickly; the scheduler backs off once
+        // no new device shows up.
+        mScanScheduler.start(ScanScheduler.MODE_LOW_LATENCY, SystemClock.elapsedRealtimeNanos(),
+                mBleScanCallback.getDiscoveryCount());
+        mBackgroundHandler.postDelayed(mScanTick, SCAN_TICK_INTERVAL);
+    }
+
+    /**
+     * Stop the scan started by {@link #startContinuousScan()}.
+     */
+    public void stopContinuousScan() {
+        LogUtil.V(ClassName, "stopContinuousScan() [INF] ");
+        if (!mContinuousScanning) return;
+        mContinuousScanning = false;
+        mBackgroundHandler.removeCallbacks(mScanTick);
+        stopScanAfterFlush(() -> {
+            mScanScheduler.stop(SystemClock.elapsedRealtimeNanos(),
+                    mBleScanCallback.getDiscoveryCount());
+            LogUtil.I(ClassName, "stopContinuousScan() [INF] {}", mScanScheduler);
+            finishScan();
+        });
+    }
+
+    /**
+     * Returns the scheduler of the continuous scan, which reports the time spent and devices
+     * discovered in every scan mode.
+     *
+     * @return The scan scheduler.
+     */
+    public ScanScheduler getScanScheduler() {
+        return mScanScheduler;
+    }
+
+    private void prepareScan() {
+        mScanning = true;
+        mBatching = isBatchScanAvailable();
+        mBleScanCallback.clear();
+        mScanFilterEngine = Preconditions.checkNotNull(mScanFilter)
+                ? new ScanFilterEngine(mScanFilter) : null;
+        mBleScanCallback.setFilterEngine(mScanFilterEngine);
+        mCallbacks.onScanStarted();
+    }
+
+    private void stopScanAfterFlush(Runnable stop) {
+        if (mBatching) {
+            // Have the controller deliver the results it still holds before stopping.
+            mBluetoothScanner.flushPendingScanResults(mBleScanCallback);
+            mBackgroundHandler.postDelayed(stop, BATCH_FLUSH_DELAY);
+        } else {
+            stop.run();
+        }
+    }
+
+    private void stopScan() {
+        LogUtil.V(ClassName, "scanLeDevice() [INF] call stopScan() ");
+        mBluetoothScanner.stopScan(mBleScanCallback);
+        finishScan();
+    }
+
+    private void finishScan() {
+        mScanning = false;
+        mBleScanCallback.flushUpdates();
+        final ScanDeliveryStats stats = mBleScanCallback.getDeliveryStats();
+        LogUtil.I(ClassName, "finishScan() [INF] {} wakeups/min:{}", stats,
+                stats.getWakeupsPerMinute(SystemClock.elapsedRealtimeNanos()));
+        if (Preconditions.checkNotNull(mScanFilterEngine)) {
+            LogUtil.I(ClassName, "finishScan() [INF] {}", mScanFilterEngine);
+        }
+        mCallbacks.onScanCompleted(mBleScanCallback.getScanResults());
+    }
+
+    private boolean isBatchScanAvailable() {
+        if (mReportDelayMillis == 0) return false;
+        if (!mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            LogUtil.W(ClassName, "isBatchScanAvailable() [WAN] batch scan is not supported");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
+     * @param address Bluetooth address as string
      * @param serviceUuid The UUID of the requested service
      * @param uuid The UUID of the requested descriptor
      * @param data Data to write to Bluetooth
      */
-    public void writeCharacteristic(UUID serviceUuid, UUID uuid, byte[] data) {
-        if (!Preconditions.checkNotNull(mBluetoothGatt)) return;
+    public void writeCharacteristic(String address, UUID serviceUuid, UUID uuid, byte[] data) {
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return;
         if (Preconditions.isEmpty(data)) return;
-        LogUtil.V(ClassName, "writeCharacteristic() [INF] serviceUuid:" + serviceUuid
-                + " uuid:" + uuid + " data length:" + data.length);
-        BluetoothGattService service = mBluetoothGatt.getService(serviceUuid);
-        if (Preconditions.checkNotNull(service)) {
-            BluetoothGattCharacteristic blechar = service.getCharacteristic(uuid);
-            if (Preconditions.checkNotNull(blechar)) {
-                blechar.setValue(data);
-                mBluetoothGatt.writeCharacteristic(blechar);
-            }
-        }
+        LogUtil.V(ClassName, "writeCharacteristic() [INF] serviceUuid:{} uuid:{} data:{}",
+                serviceUuid, uuid, data);
+        session.writeCharacteristic(serviceUuid, uuid, data);
     }
 
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
+     * @param address Bluetooth address as string
      * @param serviceUuid The UUID of the requested service
      * @param uuid The UUID of the requested descriptor
      * @param data Data to write to Bluetooth
      */
-    public void writeCharacteristic(UUID serviceUuid, UUID uuid, String data) {
-        if (!Preconditions.checkNotNull(mBluetoothGatt)) return;
+    public void writeCharacteristic(String address, UUID serviceUuid, UUID uuid, String data) {
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return;
         if (Preconditions.isEmpty(data)) return;
-        LogUtil.V(ClassName, "writeCharacteristic() [INF] serviceUuid:" + serviceUuid
-                + " uuid:" + uuid + " data:" + data);
-        BluetoothGattService service = mBluetoothGatt.getService(serviceUuid);
-        if (Preconditions.checkNotNull(service)) {
-            BluetoothGattCharacteristic blechar = service.getCharacteristic(uuid);
-            if (Preconditions.checkNotNull(blechar)) {
-                blechar.setValue(data);
-                mBluetoothGatt.writeCharacteristic(blechar);
-            }
-        }
+        LogUtil.V(ClassName, "writeCharacteristic() [INF] serviceUuid:{} uuid:{} data:{}",
+                serviceUuid, uuid, data);
+        session.writeCharacteristic(serviceUuid, uuid, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Streams a payload to the associated remote device in chunks that fit the negotiated MTU,
+     * using write without response.
+     *
+     * @param address Bluetooth address as string
+     * @param serviceUuid The UUID of the requested service
+     * @param uuid The UUID of the requested characteristic
+     * @param data Data to write to Bluetooth
+     * @param listener Listener notified when the transfer finishes, or null
+     * @return true, if the transfer was started successfully
+     */
+    public boolean writeCharacteristicStream(String address, UUID serviceUuid, UUID uuid,
+            byte[] data, @Nullable GattWriteTransfer.Listener listener) {
+        if (Preconditions.isEmpty(data)) return false;
+        return writeCharacteristicStream(address, serviceUuid, uuid,
+                new ByteArrayInputStream(data), listener);
+    }
+
+    /**
+     * Streams a payload to the associated remote device in chunks that fit the negotiated MTU,
+     * using write without response. The stream is read as chunks are written and is not closed.
+     *
+     * @param address Bluetooth address as string
+     * @param serviceUuid The UUID of the requested service
+     * @param uuid The UUID of the requested characteristic
+     * @param data Data to write to Bluetooth
+     * @param listener Listener notified when the transfer finishes, or null
+     * @return true, if the transfer was started successfully
+     */
+    public boolean writeCharacteristicStream(String address, UUID serviceUuid, UUID uuid,
+            InputStream data, @Nullable GattWriteTransfer.Listener listener) {
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return false;
+        if (!Preconditions.checkNotNull(data)) return false;
+
+        LogUtil.V(ClassName, "writeCharacteristicStream() [INF] uuid:{} mtu:{}", uuid,
+                session.getMtu());
+        final GattWriteTransfer transfer = session.writeCharacteristicStream(serviceUuid, uuid,
+                data, (t, success) -> {
+                    LogUtil.I(ClassName, "writeCharacteristicStream() [INF] success:{} bytes:{}"
+                            + " chunks:{} link:{}", success, t.getBytesWritten(),
+                            t.getChunksWritten(), session);
+                    LogUtil.I(ClassName, "writeCharacteristicStream() [INF] bytes/sec:{}",
+                            t.getThroughput());
+                    if (Preconditions.checkNotNull(listener)) {
+                        listener.onTransferFinished(t, success);
+                    }
+                });
+        return Preconditions.checkNotNull(transfer);
     }
 
     /**
      * Discovers services offered by a remote device as well as their
-     * characteristics and descriptors.
+     * characteristics and descriptors. On a reconnect, the attributes of the previous
+     * connection are used instead if the attribute cache holds them and the Database Hash of
+     * the device has not changed.
+     *
+     * @param address Bluetooth address as string
      */
-    public void discoverServices() {
-        if (Preconditions.checkNotNull(mBluetoothGatt)) {
-            mBluetoothGatt.discoverServices();
-        }
+    public void discoverServices(String address) {
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return;
+
+        session.discoverServices();
     }
 
     /**
-     * Enable notifications/indications for a given characteristic.
+     * Returns the cache of the attribute tables of the devices connected to.
+     *
+     * @return The attribute cache.
      */
-    public void setCharacteristicNotification() {
-        if (Preconditions.isEmpty(getSupportedGattServices())) return;
-        for (BluetoothGattService gattService : getSupportedGattServices()) {
-            for (BluetoothGattCharacteristic gattCharacteristic :
-                    gattService.getCharacteristics()) {
-                LogUtil.V(ClassName,
-                        "setCharacteristicNotification() [INF] Service:"
-                                + gattService.getUuid().toString()
-                                + ", Characteristic:"
-                                + gattCharacteristic.getUuid().toString());
-                setCharacteristicNotification(gattCharacteristic, true);
-            }
-        }
+    public GattAttributeCache getAttributeCache() {
+        return mAttributeCache;
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enable notifications/indications for every characteristic of a device that supports them.
      *
-     * @param characteristic Characteristic to act on.
-     * @param enabled        If true, enable notification. False otherwise.
+     * @param address Bluetooth address as string
      */
-    private void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-            boolean enabled) {
-        LogUtil.V(ClassName,
-                "setCharacteristicNotification() [INF] characteristic:" + characteristic);
-        LogUtil.V(ClassName, "setCharacteristicNotification() [INF] enabled:" + enabled);
-        if (!Preconditions.checkNotNull(mBluetoothAdapter)
-                || !Preconditions.checkNotNull(mBluetoothGatt)) {
-            LogUtil.W(ClassName, "BluetoothAdapter not initialized");
-            return;
+    public void setCharacteristicNotification(String address) {
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return;
+        final int count = session.setNotifications(true);
+        LogUtil.V(ClassName, "setCharacteristicNotification() [INF] address:{} characteristics:{}",
+                address, count);
+    }
+
+    /**
+     * Subscribes to the notifications or indications of a set of characteristics of a device,
+     * writing their configurations one after the other.
+     *
+     * @param address Bluetooth address as string
+     * @param configurations The configuration of each characteristic, one of the
+     * {@code GattTransport.CCCD_*} constants
+     * @param listener Listener notified on the worker thread when the subscription completes,
+     * or null
+     * @return The subscription, or null if the device is not connected, its services are not
+     * resolved or a characteristic does not support its configuration.
+     */
+    @Nullable
+    public GattSubscription subscribe(String address, Map<UUID, Integer> configurations,
+            @Nullable GattSubscription.Listener listener) {
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return null;
+        LogUtil.V(ClassName, "subscribe() [INF] address:{} characteristics:{}", address,
+                configurations.size());
+        final GattSubscription subscription = session.subscribe(configurations, listener);
+        if (!Preconditions.checkNotNull(subscription)) {
+            LogUtil.W(ClassName, "subscribe() [WAN] unsupported configuration, address:{}",
+                    address);
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        return subscription;
+    }
 
-        BluetoothGattDescriptor descriptor =
-                characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-        if (Preconditions.checkNotNull(descriptor)) {
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+    /**
+     * Selects the link profile of a device. The profile is applied when the device is
+     * connected, right after service discovery; the PHY and the connection priority of a
+     * device already set up are changed right away.
+     *
+     * @param address Bluetooth address as string
+     * @param profile The link profile
+     */
+    public void setLinkProfile(String address, LinkProfile profile) {
+        if (!Preconditions.checkNotNull(mBluetoothAdapter) || Preconditions.isEmpty(address)
+                || !Preconditions.checkNotNull(profile)) {
+            return;
         }
+        LogUtil.V(ClassName, "setLinkProfile() [INF] address:{} profile:{}", address, profile);
+        mConnections.openSession(address).setLinkProfile(profile);
     }
 
     /**
      * Request an MTU size used for a given connection.
      *
+     * @param address Bluetooth address as string
      * @param mtu The new MTU size to request
      */
-    public void requestMtu(int mtu) {
+    public void requestMtu(String address, int mtu) {
         LogUtil.V(ClassName, "requestMtu() [INF] ");
-        if (!Preconditions.checkNotNull(mBluetoothGatt)) return;
+        final GattSession session = getConnectedSession(address);
+        if (!Preconditions.checkNotNull(session)) return;
 
-        mBluetoothGatt.requestMtu(mtu);
+        session.requestMtu(mtu);
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected device. This should be
-     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+     * Returns the session of a device that has a GATT client.
      *
-     * @return A {@code List} of supported services.
+     * @return The session, or null if the device was never connected or has been closed.
      */
-    private List<BluetoothGattService> getSupportedGattServices() {
-        if (!Preconditions.checkNotNull(mBluetoothGatt)) return null;
+    @Nullable
+    private GattSession getConnectedSession(String address) {
+        final GattSession session = mConnections.getSession(address);
+        return Preconditions.checkNotNull(session) && Preconditions.checkNotNull(getGatt(session))
+                ? session : null;
+    }
 
-        return mBluetoothGatt.getServices();
+    /**
+     * Returns the GATT client of a session.
+     *
+     * @return The GATT client, or null if the device was never connected or has been closed.
+     */
+    @Nullable
+    private static BluetoothGatt getGatt(GattSession session) {
+        return ((AndroidGattTransport) session.getTransport()).getGatt();
     }
 
     /**
-     * Return a List of {@link android.bluetooth.le.ScanFilter} objects to filter by Service UUID.
+     * Return a List of {@link android.bluetooth.le.ScanFilter} objects holding the conditions of
+     * the scan filter the Bluetooth stack applies, the service UUID and manufacturer data. The
+     * stack applies them in the controller when it supports filter offload, so advertisements
+     * that do not match never wake the app.
      */
     private List<ScanFilter> buildScanFilters() {
         List<ScanFilter> scanFilters = new ArrayList<>();
 
         ScanFilter.Builder builder = new ScanFilter.Builder();
-        // Comment out the below line to see all BLE devices around you
-        builder.setServiceUuid(null);
+        final DeviceFilter filter = mScanFilter;
+        if (Preconditions.checkNotNull(filter)) {
+            if (Preconditions.checkNotNull(filter.getServiceUuid())) {
+                builder.setServiceUuid(new ParcelUuid(filter.getServiceUuid()));
+            }
+            if (DeviceFilter.NO_MANUFACTURER != filter.getManufacturerId()) {
+                final byte[] data = filter.getManufacturerData();
+                builder.setManufacturerData(filter.getManufacturerId(),
+                        Preconditions.checkNotNull(data) ? data : new byte[0],
+                        filter.getManufacturerDataMask());
+            }
+        } else {
+            // Comment out the below line to see all BLE devices around you
+            builder.setServiceUuid(null);
+        }
         scanFilters.add(builder.build());
 
         return scanFilters;
     }
 
     /**
-     * Return a {@link android.bluetooth.le.ScanSettings} object set to use low power (to preserve
-     * battery life).
+     * Return a {@link android.bluetooth.le.ScanSettings} object set to use the given scan mode,
+     * delivering the results in batches if requested.
+     *
+     * @param scanMode One of the {@code ScanSettings.SCAN_MODE_*} constants, which the
+     *                 {@code ScanScheduler.MODE_*} constants share
      */
-    private ScanSettings buildScanSettings() {
+    private ScanSettings buildScanSettings(int scanMode) {
         ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+        builder.setScanMode(scanMode);
+        if (mBatching) {
+            builder.setReportDelay(mReportDelayMillis);
+        }
         return builder.build();
     }
 }
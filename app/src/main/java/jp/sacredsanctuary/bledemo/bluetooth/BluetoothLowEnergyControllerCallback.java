@@ -20,11 +20,13 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.fragment.app.FragmentActivity;
 import androidx.lifecycle.ViewModelProvider;
 
-import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
@@ -34,20 +36,31 @@ import jp.sacredsanctuary.bledemo.view.MainActivity;
 import jp.sacredsanctuary.bledemo.viewModel.BluetoothDeviceDataViewModel;
 import jp.sacredsanctuary.bledemo.viewModel.BluetoothDeviceListViewModel;
 
+/**
+ * Receives the events of the Bluetooth controller on its worker thread and forwards the final
+ * results to the UI. Only UI updates are posted to the main thread.
+ */
 public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergyControllerCallback {
     private static final String ClassName =
             BluetoothLowEnergyControllerCallback.class.getSimpleName();
-    private static final int MAX_MTU_SIZE = 512;
 
     private final Context mContext;
+    private final Handler mMainHandler;
+    private final BluetoothDeviceListViewModel mDeviceListViewModel;
+    private final BluetoothDeviceDataViewModel mDeviceDataViewModel;
 
     /**
-     * Create a new BluetoothLowEnergyControllerCallback.
+     * Create a new BluetoothLowEnergyControllerCallback. Must be called on the main thread.
      *
      * @param context A context of the current app
      */
     public BluetoothLowEnergyControllerCallback(Context context) {
         mContext = context;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        // ViewModelProvider is not thread safe, resolve the view models up front.
+        ViewModelProvider provider = new ViewModelProvider((FragmentActivity) mContext);
+        mDeviceListViewModel = provider.get(BluetoothDeviceListViewModel.class);
+        mDeviceDataViewModel = provider.get(BluetoothDeviceDataViewModel.class);
     }
 
     /**
@@ -55,15 +68,17 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
      */
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        LogUtil.I(ClassName,
-                "onConnectionStateChange() [INF] status:" + status + " newState:" + newState);
+        LogUtil.I(ClassName, "onConnectionStateChange() [INF] status:{} newState:{}", status,
+                newState);
         if (BluetoothProfile.STATE_CONNECTED == newState) {
             LogUtil.I(ClassName, "Connected to GATT server.");
-            ((MainActivity) mContext).getBleServiceConnection().discoverServices();
+            ((MainActivity) mContext).getBleServiceConnection().discoverServices(
+                    gatt.getDevice().getAddress());
         } else if (BluetoothProfile.STATE_DISCONNECTED == newState) {
             LogUtil.I(ClassName, "Disconnected from GATT server.");
-            ((MainActivity) mContext).getBleServiceConnection().disconnect();
-            ((MainActivity) mContext).onConnectionFailed();
+            ((MainActivity) mContext).getBleServiceConnection().disconnect(
+                    gatt.getDevice().getAddress());
+            mMainHandler.post(((MainActivity) mContext)::onConnectionFailed);
         }
     }
 
@@ -72,12 +87,14 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
      */
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        LogUtil.I(ClassName, "onServicesDiscovered() [INF] status:" + status);
+        LogUtil.I(ClassName, "onServicesDiscovered() [INF] status:{}", status);
+        final String address = gatt.getDevice().getAddress();
         if (BluetoothGatt.GATT_SUCCESS == status) {
-            ((MainActivity) mContext).getBleServiceConnection().setCharacteristicNotification();
-            ((MainActivity) mContext).getBleServiceConnection().requestMtu(MAX_MTU_SIZE);
+            // The controller exchanges the MTU of the link profile by itself.
+            ((MainActivity) mContext).getBleServiceConnection()
+                    .setCharacteristicNotification(address);
         } else {
-            ((MainActivity) mContext).getBleServiceConnection().close();
+            ((MainActivity) mContext).getBleServiceConnection().close(address);
         }
     }
 
@@ -86,12 +103,13 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
      */
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-        LogUtil.I(ClassName, "onMtuChanged() [INF] mtu=" + mtu + " status=" + status);
-        if ((BluetoothGatt.GATT_SUCCESS == status) && (MAX_MTU_SIZE == mtu)) {
-            ((MainActivity) mContext).onConnectionCompleted();
-            setBluetoothDevice();
+        LogUtil.I(ClassName, "onMtuChanged() [INF] mtu={} status={}", mtu, status);
+        // The peripheral may settle on a smaller MTU than requested, which is still a success.
+        if (BluetoothGatt.GATT_SUCCESS == status) {
+            mMainHandler.post(((MainActivity) mContext)::onConnectionCompleted);
+            setBluetoothDevice(gatt);
         } else {
-            ((MainActivity) mContext).onConnectionFailed();
+            mMainHandler.post(((MainActivity) mContext)::onConnectionFailed);
         }
     }
 
@@ -102,19 +120,10 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
     public void onCharacteristicRead(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic,
             int status) {
-        if (characteristic.getValue().length > 32) {
-            LogUtil.I(ClassName,
-                    "onCharacteristicRead() [INF] status=" + status
-                            + " uid=" + characteristic.getUuid()
-                            + " val.length=" + characteristic.getValue().length);
-        } else {
-            LogUtil.I(ClassName,
-                    "onCharacteristicRead() [INF] status=" + status
-                            + " uid=" + characteristic.getUuid()
-                            + " val=" + Arrays.toString(characteristic.getValue()));
-        }
+        LogUtil.I(ClassName, "onCharacteristicRead() [INF] uid={} val={} status={}",
+                characteristic.getUuid(), characteristic.getValue(), status);
         if (status != BluetoothGatt.GATT_SUCCESS) {
-            LogUtil.E(ClassName, "Read characteristic failure on " + gatt + " " + characteristic);
+            LogUtil.E(ClassName, "Read characteristic failure on {} {}", gatt, characteristic);
         }
     }
 
@@ -125,19 +134,10 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
     public void onCharacteristicWrite(BluetoothGatt gatt,
             BluetoothGattCharacteristic characteristic,
             int status) {
-        if (characteristic.getValue().length > 32) {
-            LogUtil.I(ClassName,
-                    "onCharacteristicWrite() [INF] status=" + status
-                            + " uid=" + characteristic.getUuid()
-                            + " val.length=" + characteristic.getValue().length);
-        } else {
-            LogUtil.I(ClassName,
-                    "onCharacteristicWrite() [INF] status=" + status
-                            + " uid=" + characteristic.getUuid()
-                            + " val=" + Arrays.toString(characteristic.getValue()));
-        }
+        LogUtil.I(ClassName, "onCharacteristicWrite() [INF] uid={} val={} status={}",
+                characteristic.getUuid(), characteristic.getValue(), status);
         if (status != BluetoothGatt.GATT_SUCCESS) {
-            LogUtil.E(ClassName, "Write characteristic failure on " + gatt + " " + characteristic);
+            LogUtil.E(ClassName, "Write characteristic failure on {} {}", gatt, characteristic);
         }
     }
 
@@ -145,10 +145,35 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
      * {@inheritDoc}
      */
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt,
-            BluetoothGattCharacteristic characteristic) {
-        UUID uuid = characteristic.getUuid();
-        LogUtil.I(ClassName, "onCharacteristicChanged() [INF] uuid:" + uuid);
+    public void onCharacteristicChanged(BluetoothGatt gatt, UUID uuid, byte[] value) {
+        LogUtil.I(ClassName, "onCharacteristicChanged() [INF] uuid:{} value:{}", uuid, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onMessageReceived(BluetoothGatt gatt, UUID uuid, byte[] buffer, int offset,
+            int length) {
+        LogUtil.I(ClassName, "onMessageReceived() [INF] uuid:{} length:{}", uuid, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScanStarted() {
+        LogUtil.V(ClassName, "onScanStarted() [INF] ");
+        mDeviceListViewModel.clearBluetoothDeviceDataList();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScanResultsUpdated(List<ScanResult> results) {
+        LogUtil.V(ClassName, "onScanResultsUpdated() [INF] results:{}", results.size());
+        mDeviceListViewModel.setBluetoothDeviceDataList(results);
     }
 
     /**
@@ -156,17 +181,15 @@ public class BluetoothLowEnergyControllerCallback implements IBluetoothLowEnergy
      */
     @Override
     public void onScanCompleted(Set<ScanResult> results) {
-        LogUtil.V(ClassName, "onScanCompleted() [INF] results:" + results);
-        BluetoothDeviceListViewModel model =
-                new ViewModelProvider((FragmentActivity) mContext).get(BluetoothDeviceListViewModel.class);
-        model.setBluetoothDeviceDataList(results);
-        if (Preconditions.isEmpty(results)) ((MainActivity) mContext).onScanCompleted();
+        LogUtil.V(ClassName, "onScanCompleted() [INF] results:{}", results);
+        // The device list has already been built from the incremental updates.
+        if (Preconditions.isEmpty(results)) {
+            mMainHandler.post(((MainActivity) mContext)::onScanCompleted);
+        }
     }
 
-    private void setBluetoothDevice() {
+    private void setBluetoothDevice(BluetoothGatt gatt) {
         LogUtil.V(ClassName, "setBluetoothDevice() [INF] ");
-        BluetoothDeviceDataViewModel model =
-                new ViewModelProvider((FragmentActivity) mContext).get(BluetoothDeviceDataViewModel.class);
-        model.setBluetoothDevice(((MainActivity) mContext).getBleServiceConnection().getDevice());
+        mDeviceDataViewModel.setBluetoothDevice(gatt.getDevice());
     }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.le.ScanResult;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Reports the events of the controller to every registered
+ * {@link IBluetoothLowEnergyControllerCallback}, through a {@link ListenerRegistry}.
+ * <p>
+ * Events are dispatched on the thread that raises them, the worker thread of the controller,
+ * without taking a lock. Callbacks registered without executor are called right there, the
+ * others on their executor, with a copy of the notified values and of the characteristics
+ * read or written.
+ */
+final class ControllerCallbackDispatcher implements IBluetoothLowEnergyControllerCallback {
+    private final ListenerRegistry<IBluetoothLowEnergyControllerCallback> mCallbacks =
+            new ListenerRegistry<>();
+
+    /**
+     * Registers a callback, or changes the executor and the filter of a registered callback.
+     *
+     * @param callback The callback
+     * @param executor The executor the callback is called on, or null to call it on the
+     *                 worker thread of the controller
+     * @param filter   The events the callback receives, or null for every event
+     */
+    void register(IBluetoothLowEnergyControllerCallback callback, Executor executor,
+            EventFilter filter) {
+        mCallbacks.add(callback, executor, filter);
+    }
+
+    /**
+     * Unregisters a callback.
+     *
+     * @param callback The callback
+     * @return Returns {@code true} if the callback was registered, {@code false} otherwise.
+     */
+    boolean unregister(IBluetoothLowEnergyControllerCallback callback) {
+        return mCallbacks.remove(callback);
+    }
+
+    /**
+     * Returns the number of callbacks registered.
+     *
+     * @return The number of callbacks.
+     */
+    int size() {
+        return mCallbacks.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        mCallbacks.dispatch(EVENT_CONNECTION_STATE_CHANGE, getAddress(gatt), null,
+                callback -> callback.onConnectionStateChange(gatt, status, newState));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        mCallbacks.dispatch(EVENT_SERVICES_DISCOVERED, getAddress(gatt), null,
+                callback -> callback.onServicesDiscovered(gatt, status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        mCallbacks.dispatch(EVENT_MTU_CHANGED, getAddress(gatt), null,
+                callback -> callback.onMtuChanged(gatt, mtu, status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt,
+            BluetoothGattCharacteristic characteristic, int status) {
+        mCallbacks.dispatch(EVENT_CHARACTERISTIC_READ, getAddress(gatt), characteristic.getUuid(),
+                new ListenerRegistry.TransientEvent<IBluetoothLowEnergyControllerCallback>() {
+                    @Override
+                    public void dispatch(IBluetoothLowEnergyControllerCallback callback) {
+                        callback.onCharacteristicRead(gatt, characteristic, status);
+                    }
+
+                    @Override
+                    public ListenerRegistry.Event<IBluetoothLowEnergyControllerCallback>
+                            copy() {
+                        final BluetoothGattCharacteristic copy = snapshot(characteristic);
+                        return callback -> callback.onCharacteristicRead(gatt, copy, status);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt,
+            BluetoothGattCharacteristic characteristic, int status) {
+        mCallbacks.dispatch(EVENT_CHARACTERISTIC_WRITE, getAddress(gatt), characteristic.getUuid(),
+                new ListenerRegistry.TransientEvent<IBluetoothLowEnergyControllerCallback>() {
+                    @Override
+                    public void dispatch(IBluetoothLowEnergyControllerCallback callback) {
+                        callback.onCharacteristicWrite(gatt, characteristic, status);
+                    }
+
+                    @Override
+                    public ListenerRegistry.Event<IBluetoothLowEnergyControllerCallback>
+                            copy() {
+                        final BluetoothGattCharacteristic copy = snapshot(characteristic);
+                        return callback -> callback.onCharacteristicWrite(gatt, copy, status);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, UUID uuid, byte[] value) {
+        final String address = getAddress(gatt);
+        if (!mCallbacks.hasListeners(EVENT_CHARACTERISTIC_CHANGED, address, uuid)) return;
+        mCallbacks.dispatch(EVENT_CHARACTERISTIC_CHANGED, address, uuid,
+                new ListenerRegistry.TransientEvent<IBluetoothLowEnergyControllerCallback>() {
+                    @Override
+                    public void dispatch(IBluetoothLowEnergyControllerCallback callback) {
+                        callback.onCharacteristicChanged(gatt, uuid, value);
+                    }
+
+                    @Override
+                    public ListenerRegistry.Event<IBluetoothLowEnergyControllerCallback>
+                            copy() {
+                        final byte[] copy = value.clone();
+                        return callback -> callback.onCharacteristicChanged(gatt, uuid, copy);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onMessageReceived(BluetoothGatt gatt, UUID uuid, byte[] buffer, int offset,
+            int length) {
+        final String address = getAddress(gatt);
+        if (!mCallbacks.hasListeners(EVENT_MESSAGE_RECEIVED, address, uuid)) return;
+        mCallbacks.dispatch(EVENT_MESSAGE_RECEIVED, address, uuid,
+                new ListenerRegistry.TransientEvent<IBluetoothLowEnergyControllerCallback>() {
+                    @Override
+                    public void dispatch(IBluetoothLowEnergyControllerCallback callback) {
+                        callback.onMessageReceived(gatt, uuid, buffer, offset, length);
+                    }
+
+                    @Override
+                    public ListenerRegistry.Event<IBluetoothLowEnergyControllerCallback>
+                            copy() {
+                        final byte[] copy = Arrays.copyOfRange(buffer, offset, offset + length);
+                        return callback -> callback.onMessageReceived(gatt, uuid, copy, 0,
+                                length);
+                    }
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScanStarted() {
+        mCallbacks.dispatch(EVENT_SCAN_STARTED, null, null,
+                IBluetoothLowEnergyControllerCallback::onScanStarted);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScanResultsUpdated(List<ScanResult> results) {
+        // The scan callback hands over a new list on every update.
+        mCallbacks.dispatch(EVENT_SCAN_RESULTS_UPDATED, null, null,
+                callback -> callback.onScanResultsUpdated(results));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScanCompleted(Set<ScanResult> results) {
+        mCallbacks.dispatch(EVENT_SCAN_COMPLETED, null, null,
+                callback -> callback.onScanCompleted(results));
+    }
+
+    /**
+     * Copies the UUID, properties and value of a characteristic, which the stack updates on
+     * the next read, write or notification. The copy belongs to no service.
+     */
+    private static BluetoothGattCharacteristic snapshot(
+            BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattCharacteristic copy = new BluetoothGattCharacteristic(
+                characteristic.getUuid(), characteristic.getProperties(),
+                characteristic.getPermissions());
+        copy.setWriteType(characteristic.getWriteType());
+        final byte[] value = characteristic.getValue();
+        if (value != null) copy.setValue(value.clone());
+        return copy;
+    }
+
+    private static String getAddress(BluetoothGatt gatt) {
+        final BluetoothDevice device = gatt.getDevice();
+        return device == null ? null : device.getAddress();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a {@link GattSession} per device and caps the number of concurrent connections.
+ * <p>
+ * Every session has its own operation queue, so requests to different devices run in
+ * parallel while requests to the same device stay serialized. The events of the single
+ * {@link BleGattCallback} shared by every connection are routed to the session of their
+ * device. Connection requests beyond {@code maxConnections} wait in a {@link ConnectionLimiter}
+ * until a device disconnects or is closed.
+ * <p>
+ * Sessions are created and removed on the worker thread of the controller, and may be looked
+ * up from any thread.
+ */
+public class GattConnectionManager {
+    /**
+     * Creates the sessions, with the transport to their device.
+     */
+    interface SessionFactory {
+        /**
+         * Called on the worker thread to create the session of a device.
+         *
+         * @param address Bluetooth address as string, in upper case
+         * @return The new session
+         */
+        GattSession createSession(String address);
+    }
+
+    private final Map<String, GattSession> mSessions = new ConcurrentHashMap<>();
+    private final ConnectionLimiter mLimiter;
+    private final SessionFactory mFactory;
+
+    /**
+     * Create a new GattConnectionManager.
+     *
+     * @param maxConnections Maximum number of devices connected at once
+     * @param connector      Connector starting the admitted connections
+     * @param factory        Factory of the new sessions
+     */
+    GattConnectionManager(int maxConnections, ConnectionLimiter.Connector connector,
+            SessionFactory factory) {
+        mLimiter = new ConnectionLimiter(maxConnections, connector);
+        mFactory = factory;
+    }
+
+    /**
+     * Returns the session of a device.
+     *
+     * @param address Bluetooth address as string
+     * @return The session, or null if the device has none.
+     */
+    public GattSession getSession(String address) {
+        return address == null ? null : mSessions.get(toKey(address));
+    }
+
+    /**
+     * Returns the session of the device a GATT client is connected to.
+     *
+     * @param gatt The GATT client
+     * @return The session, or null if the device has none.
+     */
+    public GattSession getSession(BluetoothGatt gatt) {
+        final BluetoothDevice device = gatt.getDevice();
+        return device == null ? null : getSession(device.getAddress());
+    }
+
+    /**
+     * Returns the session of a device, creating it if needed.
+     *
+     * @param address Bluetooth address as string
+     * @return The session.
+     */
+    GattSession openSession(String address) {
+        final String key = toKey(address);
+        GattSession session = mSessions.get(key);
+        if (session == null) {
+            session = mFactory.createSession(key);
+            mSessions.put(key, session);
+        }
+        return session;
+    }
+
+    /**
+     * Requests a connection to a device, which is started once a connection slot is free.
+     *
+     * @param address Bluetooth address as string
+     * @return Returns {@code true} if the connection was started or is waiting for a slot,
+     * {@code false} otherwise.
+     */
+    boolean connect(String address) {
+        return mLimiter.request(toKey(address));
+    }
+
+    /**
+     * Releases the connection slot of a device whose link was lost, admitting the next
+     * waiting device. The session is kept for a reconnect.
+     *
+     * @param address Bluetooth address as string
+     */
+    void onConnectionLost(String address) {
+        mLimiter.release(toKey(address));
+    }
+
+    /**
+     * Releases the connection slot of a device, or withdraws its waiting request, because it
+     * is being disconnected. The session is kept for a reconnect.
+     *
+     * @param address Bluetooth address as string
+     */
+    void release(String address) {
+        final String key = toKey(address);
+        mLimiter.cancel(key);
+        mLimiter.release(key);
+    }
+
+    /**
+     * Removes the session of a device and releases its connection slot.
+     *
+     * @param address Bluetooth address as string
+     * @return The removed session, or null if the device had none.
+     */
+    GattSession closeSession(String address) {
+        final String key = toKey(address);
+        final GattSession session = mSessions.remove(key);
+        release(key);
+        return session;
+    }
+
+    /**
+     * Returns a snapshot of the sessions.
+     *
+     * @return The sessions of every device.
+     */
+    public List<GattSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    /**
+     * Determines if a device is waiting for a connection slot.
+     *
+     * @param address Bluetooth address as string
+     * @return Returns {@code true} if the device is waiting, {@code false} otherwise.
+     */
+    public boolean isWaiting(String address) {
+        return mLimiter.isWaiting(toKey(address));
+    }
+
+    /**
+     * Returns the number of devices holding a connection slot.
+     *
+     * @return The number of connecting or connected devices.
+     */
+    public int getActiveCount() {
+        return mLimiter.getActiveCount();
+    }
+
+    /**
+     * Returns the number of devices waiting for a connection slot.
+     *
+     * @return The number of waiting devices.
+     */
+    public int getWaitingCount() {
+        return mLimiter.getWaitingCount();
+    }
+
+    /**
+     * Returns the maximum number of devices connected at once.
+     *
+     * @return The number of connection slots.
+     */
+    public int getMaxConnections() {
+        return mLimiter.getMaxConnections();
+    }
+
+    private static String toKey(String address) {
+        // BluetoothDevice reports addresses in upper case.
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
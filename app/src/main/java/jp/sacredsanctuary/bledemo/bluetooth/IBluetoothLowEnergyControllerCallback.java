@@ -20,16 +20,34 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanResult;
 
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 /**
  * Callbacks invoked when actions have been taken on a bluetooth.
  * <p>
+ * Several callbacks may be registered, each on its own executor and for the events of its
+ * filter, see {@link BluetoothLowEnergyController#registerCallback}. Arrays that a method may
+ * reuse once it returns are copied for the callbacks called on an executor.
+ * <p>
  * NOTE: The current arguments are merely to support the existing use cases. This
  * needs to be properly thought out with appropriate arguments for each of the
  * callback methods.
  */
 public interface IBluetoothLowEnergyControllerCallback {
+    // Type of the event reported by each method, for the EventFilter of a callback.
+    int EVENT_CONNECTION_STATE_CHANGE = 0;
+    int EVENT_SERVICES_DISCOVERED = 1;
+    int EVENT_MTU_CHANGED = 2;
+    int EVENT_CHARACTERISTIC_READ = 3;
+    int EVENT_CHARACTERISTIC_WRITE = 4;
+    int EVENT_CHARACTERISTIC_CHANGED = 5;
+    int EVENT_MESSAGE_RECEIVED = 6;
+    int EVENT_SCAN_STARTED = 7;
+    int EVENT_SCAN_RESULTS_UPDATED = 8;
+    int EVENT_SCAN_COMPLETED = 9;
+
     /**
      * Callback indicating when GATT client has connected/disconnected to/from a remote
      * GATT server.
@@ -96,13 +114,40 @@ public interface IBluetoothLowEnergyControllerCallback {
             int status);
 
     /**
-     * Callback triggered as a result of a remote characteristic notification.
+     * Callback triggered as a result of a remote characteristic notification, for
+     * characteristics without frame decoder.
+     *
+     * @param gatt  GATT client the characteristic is associated with
+     * @param uuid  The UUID of the characteristic that has been updated
+     * @param value The value notified. It may be reused once this method returns.
+     */
+    void onCharacteristicChanged(BluetoothGatt gatt, UUID uuid, byte[] value);
+
+    /**
+     * Callback triggered when a message split across several notifications of a characteristic
+     * with a registered {@link jp.sacredsanctuary.bledemo.bluetooth.framing.FrameDecoder} has
+     * been reassembled.
+     *
+     * @param gatt   GATT client the characteristic is associated with
+     * @param uuid   The UUID of the characteristic that sent the message
+     * @param buffer Array holding the message. It is reused once this method returns.
+     * @param offset Offset of the message in {@code buffer}
+     * @param length Length of the message in bytes
+     */
+    void onMessageReceived(BluetoothGatt gatt, UUID uuid, byte[] buffer, int offset, int length);
+
+    /**
+     * Called to notify when the Bluetooth scanner has started scanning.
+     */
+    void onScanStarted();
+
+    /**
+     * Called while scanning with the devices found or updated since the previous call.
      *
-     * @param gatt           GATT client the characteristic is associated with
-     * @param characteristic Characteristic that has been updated as a result of a remote
-     *                       notification event.
+     * @param results The latest scan result of every device that advertised since the previous
+     *                call.
      */
-    void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic);
+    void onScanResultsUpdated(List<ScanResult> results);
 
     /**
      * Called to notify when the Bluetooth scanner has finished scanning.
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationRecorder;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationRingBuffer;
+import jp.sacredsanctuary.bledemo.util.LogUtil;
+
+/**
+ * Thread draining a consumer of the notification ring into a {@link NotificationRecorder}, so
+ * the binder threads delivering notifications never wait for storage.
+ * <p>
+ * The thread is stopped with {@link #quit()} rather than interrupted: an interrupt would close
+ * the file channel of the segment being written.
+ */
+final class NotificationRecordingThread extends Thread {
+    private static final String ClassName = NotificationRecordingThread.class.getSimpleName();
+    // Notifications drained at once, and the longest wait for one before the recorder is
+    // given a chance to sync or close its segment.
+    private static final int BATCH = 256;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final NotificationRingBuffer mBuffer;
+    private final NotificationRingBuffer.Consumer mConsumer;
+    private final NotificationRecorder mRecorder;
+    private volatile boolean mQuit = false;
+
+    /**
+     * Create a new NotificationRecordingThread. The notifications published from now on are
+     * recorded once the thread is started.
+     *
+     * @param buffer   The ring the notifications are published to
+     * @param recorder The recorder appending them to storage
+     */
+    NotificationRecordingThread(NotificationRingBuffer buffer, NotificationRecorder recorder) {
+        super(ClassName);
+        mBuffer = buffer;
+        mConsumer = buffer.newConsumer();
+        mRecorder = recorder;
+    }
+
+    /**
+     * Returns the recorder fed by the thread.
+     *
+     * @return The notification recorder.
+     */
+    NotificationRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Asks the thread to record what was published so far and close the recorder.
+     */
+    void quit() {
+        mQuit = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (!mQuit && null == mRecorder.getFailure()) {
+                mConsumer.take(mRecorder, BATCH, TICK_NANOS);
+                mRecorder.tick(SystemClock.elapsedRealtimeNanos());
+            }
+            while (mConsumer.poll(mRecorder, BATCH) > 0) {
+                // Drain what was published before quit().
+            }
+        } catch (InterruptedException | IOException e) {
+            LogUtil.W(ClassName, "run() [WAN] recording stopped: {}", e);
+        } finally {
+            mBuffer.removeConsumer(mConsumer);
+            try {
+                mRecorder.close();
+            } catch (IOException e) {
+                LogUtil.W(ClassName, "run() [WAN] close failed: {}", e);
+            }
+        }
+        if (null != mRecorder.getFailure()) {
+            LogUtil.W(ClassName, "run() [WAN] recording failed: {}", mRecorder.getFailure());
+        }
+        LogUtil.I(ClassName, "run() [INF] {}", mRecorder);
+    }
+}
@@ -18,15 +18,23 @@ package jp.sacredsanctuary.bledemo.model;
 import android.bluetooth.BluetoothDevice;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * This class is used to hold the BluetoothDevice.
+ * <p>
+ * The name and address are captured when the instance is created, so two instances describe
+ * what was known about the device at two points in time.
  */
 public class BluetoothDeviceData {
     private BluetoothDevice mBluetoothDevice;
+    private final String mName;
+    private final String mAddress;
 
     public BluetoothDeviceData(@NonNull BluetoothDevice bluetoothDevice) {
         this.mBluetoothDevice = bluetoothDevice;
+        this.mName = bluetoothDevice.getName();
+        this.mAddress = bluetoothDevice.getAddress();
     }
 
     /**
@@ -38,4 +46,23 @@ public class BluetoothDeviceData {
     public BluetoothDevice getBluetoothDevice() {
         return this.mBluetoothDevice;
     }
+
+    /**
+     * Gets the friendly name of the device when this instance was created.
+     *
+     * @return Returns the device name, or null if it is not known.
+     */
+    @Nullable
+    public String getName() {
+        return this.mName;
+    }
+
+    /**
+     * Gets the hardware address of the device.
+     *
+     * @return Returns the hardware address.
+     */
+    public String getAddress() {
+        return this.mAddress;
+    }
 }
\ No newline at end of file
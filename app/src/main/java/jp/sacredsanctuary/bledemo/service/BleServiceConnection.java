@@ -20,30 +20,39 @@ import android.content.ComponentName;
 import android.content.ServiceConnection;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 
 import androidx.annotation.Nullable;
 
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
+import jp.sacredsanctuary.bledemo.bluetooth.EventFilter;
+import jp.sacredsanctuary.bledemo.bluetooth.GattLatencyStats;
+import jp.sacredsanctuary.bledemo.bluetooth.GattReconnector;
+import jp.sacredsanctuary.bledemo.bluetooth.GattSubscription;
+import jp.sacredsanctuary.bledemo.bluetooth.GattWriteTransfer;
 import jp.sacredsanctuary.bledemo.bluetooth.IBluetoothLowEnergyControllerCallback;
+import jp.sacredsanctuary.bledemo.bluetooth.LinkProfile;
+import jp.sacredsanctuary.bledemo.bluetooth.framing.FrameDecoder;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.DeviceFilter;
 import jp.sacredsanctuary.bledemo.util.LogUtil;
 import jp.sacredsanctuary.bledemo.util.Preconditions;
 
 /**
  * Connection for controlling the BluetoothLeService.
+ * <p>
+ * Requests are posted to the worker thread of the Bluetooth controller so that they never
+ * run on the main thread.
  */
 public class BleServiceConnection implements ServiceConnection {
     private static final String ClassName = BleServiceConnection.class.getSimpleName();
-    private BluetoothLeService mBluetoothLeService;
-    private final Handler mHandler;
+    private volatile BluetoothLeService mBluetoothLeService;
     private final ServiceConnection mCallbackServiceConnection;
 
-    // BLE API call after 10 millisecond.
-    private static final long WAIT_TIME = 10;
-
     public BleServiceConnection(ServiceConnection callback) {
-        mHandler = new Handler(Looper.getMainLooper());
         mCallbackServiceConnection = callback;
     }
 
@@ -70,14 +79,41 @@ public class BleServiceConnection implements ServiceConnection {
         mCallbackServiceConnection.onServiceDisconnected(name);
     }
 
+    private void post(Runnable action) {
+        final BluetoothLeService service = mBluetoothLeService;
+        final Handler handler = Preconditions.checkNotNull(service) ? service.getHandler() : null;
+        if (!Preconditions.checkNotNull(handler)) {
+            LogUtil.W(ClassName, "post() [WAN] BluetoothLeService not initialized");
+            return;
+        }
+        handler.post(action);
+    }
+
     /**
-     * Sets an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events.
+     * Registers an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events.
+     * Several callbacks may be registered; each is called on its own executor, so a slow one
+     * does not delay the others.
      *
-     * @param callback The new callback or null, if the callback should be unregistered.
+     * @param callback The callback
+     * @param executor The executor the callback is called on, or null for the worker thread
+     *                 of the service
+     * @param filter   The events the callback receives, or null for every event
      */
-    public void setCallback(IBluetoothLowEnergyControllerCallback callback) {
+    public void registerCallback(IBluetoothLowEnergyControllerCallback callback,
+            @Nullable Executor executor, @Nullable EventFilter filter) {
         if (Preconditions.checkNotNull(mBluetoothLeService)) {
-            mBluetoothLeService.setCallback(callback);
+            mBluetoothLeService.registerCallback(callback, executor, filter);
+        }
+    }
+
+    /**
+     * Unregisters a callback.
+     *
+     * @param callback The callback
+     */
+    public void unregisterCallback(IBluetoothLowEnergyControllerCallback callback) {
+        if (Preconditions.checkNotNull(mBluetoothLeService)) {
+            mBluetoothLeService.unregisterCallback(callback);
         }
     }
 
@@ -85,11 +121,59 @@ public class BleServiceConnection implements ServiceConnection {
      * Start Bluetooth LE scan.
      */
     public void scanBluetoothLowEnergyDevice(final long time) {
-        mHandler.postDelayed(() -> {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
                 mBluetoothLeService.scanBluetoothLowEnergyDevice(time);
             }
-        }, WAIT_TIME);
+        });
+    }
+
+    /**
+     * Start a Bluetooth LE scan that runs until {@link #stopContinuousScan()} is called.
+     */
+    public void startContinuousScan() {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.startContinuousScan();
+            }
+        });
+    }
+
+    /**
+     * Stop the scan started by {@link #startContinuousScan()}.
+     */
+    public void stopContinuousScan() {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.stopContinuousScan();
+            }
+        });
+    }
+
+    /**
+     * Selects between real-time and batch scanning for the following scans.
+     *
+     * @param reportDelayMillis Delay between two batches, or 0 for real-time scanning
+     */
+    public void setScanReportDelay(final long reportDelayMillis) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.setScanReportDelay(reportDelayMillis);
+            }
+        });
+    }
+
+    /**
+     * Sets the filter applied by the following scans.
+     *
+     * @param filter The filter, or null to report every device
+     */
+    public void setScanFilter(@Nullable final DeviceFilter filter) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.setScanFilter(filter);
+            }
+        });
     }
 
     /**
@@ -98,23 +182,36 @@ public class BleServiceConnection implements ServiceConnection {
      * @param address The device address of the destination device.
      */
     public void connect(final String address) {
-        mHandler.postDelayed(() -> {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
                 mBluetoothLeService.connect(address);
             }
-        }, WAIT_TIME);
+        });
     }
 
     /**
      * Disconnects an established connection, or cancels a connection attempt
      * currently in progress.
+     *
+     * @param address The device address of the destination device.
+     */
+    public void disconnect(final String address) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.disconnect(address);
+            }
+        });
+    }
+
+    /**
+     * Disconnects every device connected to and cancels the pending connections.
      */
-    public void disconnect() {
-        mHandler.postDelayed(() -> {
+    public void disconnectAll() {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnectAll();
             }
-        }, WAIT_TIME);
+        });
     }
 
     /**
@@ -122,47 +219,94 @@ public class BleServiceConnection implements ServiceConnection {
      *
      * Application should call this method as early as possible after it is done with
      * this GATT client.
+     *
+     * @param address The device address of the destination device.
      */
-    public void close() {
-        mHandler.postDelayed(() -> {
+    public void close(final String address) {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.close();
+                mBluetoothLeService.close(address);
             }
-        }, WAIT_TIME);
+        });
     }
 
     /**
      * Discovers services offered by a remote device as well as their
      * characteristics and descriptors.
+     *
+     * @param address The device address of the destination device.
      */
-    public void discoverServices() {
-        mHandler.postDelayed(() -> {
+    public void discoverServices(final String address) {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.discoverServices();
+                mBluetoothLeService.discoverServices(address);
             }
-        }, WAIT_TIME);
+        });
     }
 
     /**
      * Enable or disable notifications/indications for a given characteristic.
+     *
+     * @param address The device address of the destination device.
      */
-    public void setCharacteristicNotification() {
-        mHandler.postDelayed(() -> {
+    public void setCharacteristicNotification(final String address) {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.setCharacteristicNotification();
+                mBluetoothLeService.setCharacteristicNotification(address);
             }
-        }, WAIT_TIME);
+        });
+    }
+
+    /**
+     * Subscribes to the notifications or indications of a set of characteristics. Their
+     * configurations are written one after the other, in the iteration order of the map.
+     *
+     * @param address The device address of the destination device.
+     * @param configurations The configuration of each characteristic, one of the
+     * {@code GattTransport.CCCD_*} constants
+     * @param listener Listener notified on the worker thread when the subscription completes,
+     * with a null subscription if it could not be started, or null
+     */
+    public void subscribe(final String address, final Map<UUID, Integer> configurations,
+            @Nullable final GattSubscription.Listener listener) {
+        final Map<UUID, Integer> copy = new LinkedHashMap<>(configurations);
+        post(() -> {
+            final GattSubscription subscription =
+                    Preconditions.checkNotNull(mBluetoothLeService)
+                            ? mBluetoothLeService.subscribe(address, copy, listener) : null;
+            if (!Preconditions.checkNotNull(subscription)
+                    && Preconditions.checkNotNull(listener)) {
+                listener.onSubscriptionCompleted(null, false);
+            }
+        });
     }
 
     /**
      * Request an MTU size used for a given connection.
+     *
+     * @param address The device address of the destination device.
+     * @param mtu The new MTU size to request
      */
-    public void requestMtu(final int mtu) {
-        mHandler.postDelayed(() -> {
+    public void requestMtu(final String address, final int mtu) {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.requestMtu(mtu);
+                mBluetoothLeService.requestMtu(address, mtu);
             }
-        }, WAIT_TIME);
+        });
+    }
+
+    /**
+     * Selects the link profile applied when a device is connected.
+     *
+     * @param address The device address of the destination device.
+     * @param profile The link profile
+     */
+    public void setLinkProfile(final String address, final LinkProfile profile) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.setLinkProfile(address, profile);
+            }
+        });
     }
 
     /**
@@ -193,14 +337,15 @@ public class BleServiceConnection implements ServiceConnection {
     }
 
     /**
-     * Return the remote bluetooth device this GATT client targets to
+     * Return the remote bluetooth device a GATT client targets to
      *
+     * @param address The device address of the destination device.
      * @return remote bluetooth device
      */
     @Nullable
-    public BluetoothDevice getDevice() {
+    public BluetoothDevice getDevice(String address) {
         if (Preconditions.checkNotNull(mBluetoothLeService)) {
-            return mBluetoothLeService.getDevice();
+            return mBluetoothLeService.getDevice(address);
         } else {
             return null;
         }
@@ -209,30 +354,136 @@ public class BleServiceConnection implements ServiceConnection {
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
+     * @param address The device address of the destination device.
      * @param serviceUuid The UUID of the requested service
      * @param uuid The UUID of the requested descriptor
      * @param data Data to write to Bluetooth
      */
-    public void writeCharacteristic(final UUID serviceUuid, final UUID uuid, final byte[] data) {
-        mHandler.postDelayed(() -> {
+    public void writeCharacteristic(final String address, final UUID serviceUuid, final UUID uuid,
+            final byte[] data) {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.writeCharacteristic(serviceUuid, uuid, data);
+                mBluetoothLeService.writeCharacteristic(address, serviceUuid, uuid, data);
             }
-        }, WAIT_TIME);
+        });
     }
 
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
+     * @param address The device address of the destination device.
      * @param serviceUuid The UUID of the requested service
      * @param uuid The UUID of the requested descriptor
      * @param data Data to write to Bluetooth
      */
-    public void writeCharacteristic(final UUID serviceUuid, final UUID uuid, final String data) {
-        mHandler.postDelayed(() -> {
+    public void writeCharacteristic(final String address, final UUID serviceUuid, final UUID uuid,
+            final String data) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.writeCharacteristic(address, serviceUuid, uuid, data);
+            }
+        });
+    }
+
+    /**
+     * Streams a payload to the associated remote device in MTU sized chunks.
+     *
+     * @param address The device address of the destination device.
+     * @param serviceUuid The UUID of the requested service
+     * @param uuid The UUID of the requested characteristic
+     * @param data Data to write to Bluetooth
+     * @param listener Listener notified when the transfer finishes, or null
+     */
+    public void writeCharacteristicStream(final String address, final UUID serviceUuid,
+            final UUID uuid,
+            final byte[] data, @Nullable final GattWriteTransfer.Listener listener) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.writeCharacteristicStream(address, serviceUuid, uuid, data,
+                        listener);
+            }
+        });
+    }
+
+    /**
+     * Streams a payload to the associated remote device in MTU sized chunks.
+     *
+     * @param address The device address of the destination device.
+     * @param serviceUuid The UUID of the requested service
+     * @param uuid The UUID of the requested characteristic
+     * @param data Data to write to Bluetooth. The stream is not closed.
+     * @param listener Listener notified when the transfer finishes, or null
+     */
+    public void writeCharacteristicStream(final String address, final UUID serviceUuid,
+            final UUID uuid,
+            final InputStream data, @Nullable final GattWriteTransfer.Listener listener) {
+        post(() -> {
             if (Preconditions.checkNotNull(mBluetoothLeService)) {
-                mBluetoothLeService.writeCharacteristic(serviceUuid, uuid, data);
+                mBluetoothLeService.writeCharacteristicStream(address, serviceUuid, uuid, data,
+                        listener);
             }
-        }, WAIT_TIME);
+        });
+    }
+
+    /**
+     * Sets the decoder used to reassemble messages split across several notifications of a
+     * characteristic.
+     *
+     * @param address The device address of the destination device.
+     * @param uuid The UUID of the characteristic
+     * @param decoder The decoder, or null to report raw notifications again
+     */
+    public void setFrameDecoder(final String address, final UUID uuid,
+            @Nullable final FrameDecoder decoder) {
+        post(() -> {
+            if (Preconditions.checkNotNull(mBluetoothLeService)) {
+                mBluetoothLeService.setFrameDecoder(address, uuid, decoder);
+            }
+        });
+    }
+
+    /**
+     * Returns the latency histograms of a device, or of every device. They may be read from
+     * any thread.
+     *
+     * @param address The device address of the destination device, or null for every device
+     * @return The latency statistics, or null if unavailable.
+     */
+    @Nullable
+    public GattLatencyStats getLatencyStats(@Nullable String address) {
+        if (Preconditions.checkNotNull(mBluetoothLeService)) {
+            return mBluetoothLeService.getLatencyStats(address);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the latency below which the given share of the measured values falls.
+     *
+     * @param address The device address of the destination device, or null for every device
+     * @param type One of the {@code GattOperation.TYPE_*} constants,
+     * {@link GattLatencyStats#TYPE_NOTIFICATION_INTERVAL} or
+     * {@link GattLatencyStats#TYPE_RECONNECT}
+     * @param percentile The share of values, from 0 to 100
+     * @return The latency in nanoseconds, 0 if nothing was measured, or -1 if unavailable.
+     */
+    public long getLatencyPercentile(@Nullable String address, int type, double percentile) {
+        final GattLatencyStats stats = getLatencyStats(address);
+        return Preconditions.checkNotNull(stats)
+                ? stats.getValueAtPercentile(type, percentile) : -1;
+    }
+
+    /**
+     * Returns the share of the attempts that restored a lost link of a device. Its reconnect
+     * latencies are in the {@link GattLatencyStats#TYPE_RECONNECT} histogram.
+     *
+     * @param address The device address of the destination device.
+     * @return The success rate from 0 to 1, or -1 if unavailable.
+     */
+    public double getReconnectSuccessRate(String address) {
+        final GattReconnector reconnector = Preconditions.checkNotNull(mBluetoothLeService)
+                ? mBluetoothLeService.getReconnector(address) : null;
+        return Preconditions.checkNotNull(reconnector) ? reconnector.getSuccessRate() : -1;
     }
 }
@@ -19,16 +19,31 @@ import android.app.Service;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 
+import java.io.FileDescriptor;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import jp.sacredsanctuary.bledemo.R;
 import jp.sacredsanctuary.bledemo.bluetooth.BluetoothLowEnergyController;
+import jp.sacredsanctuary.bledemo.bluetooth.EventFilter;
+import jp.sacredsanctuary.bledemo.bluetooth.GattLatencyStats;
+import jp.sacredsanctuary.bledemo.bluetooth.GattReconnector;
+import jp.sacredsanctuary.bledemo.bluetooth.GattSubscription;
+import jp.sacredsanctuary.bledemo.bluetooth.GattWriteTransfer;
 import jp.sacredsanctuary.bledemo.bluetooth.IBluetoothLowEnergyControllerCallback;
+import jp.sacredsanctuary.bledemo.bluetooth.LinkProfile;
+import jp.sacredsanctuary.bledemo.bluetooth.framing.FrameDecoder;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationStream;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.DeviceFilter;
 import jp.sacredsanctuary.bledemo.util.LogUtil;
 import jp.sacredsanctuary.bledemo.util.Preconditions;
 
@@ -70,14 +85,57 @@ public class BluetoothLeService extends Service {
     private final IBinder mBinder = new LocalBinder();
 
     /**
-     * Sets an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events.
+     * Prints the GATT latency histograms. Run
+     * {@code adb shell dumpsys activity service BluetoothLeService} while the
+     * service is bound.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final BluetoothLowEnergyController controller = mBleController;
+        if (!Preconditions.checkNotNull(controller)) {
+            writer.println("BluetoothLeService not initialized");
+            return;
+        }
+        controller.dump(writer);
+    }
+
+    /**
+     * Registers an instance of {@link IBluetoothLowEnergyControllerCallback} to receive events.
+     *
+     * @param callback The callback
+     * @param executor The executor the callback is called on, or null for the worker thread
+     * @param filter   The events the callback receives, or null for every event
+     */
+    public void registerCallback(IBluetoothLowEnergyControllerCallback callback,
+            @Nullable Executor executor, @Nullable EventFilter filter) {
+        if (Preconditions.checkNotNull(mBleController)) {
+            mBleController.registerCallback(callback, executor, filter);
+        }
+    }
+
+    /**
+     * Unregisters a callback.
      *
-     * @param callback The new callback or null, if the callback should be unregistered.
+     * @param callback The callback
      */
-    public void setCallback(IBluetoothLowEnergyControllerCallback callback) {
+    public void unregisterCallback(IBluetoothLowEnergyControllerCallback callback) {
         if (Preconditions.checkNotNull(mBleController)) {
-            mBleController.setCallback(callback);
+            mBleController.unregisterCallback(callback);
+        }
+    }
+
+    /**
+     * Returns the handler of the worker thread that owns the Bluetooth controller. Every call
+     * that talks to the controller should be posted to it.
+     *
+     * @return The handler of the worker thread, or null if the service is not initialized.
+     */
+    @Nullable
+    public Handler getHandler() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            return null;
         }
+        return mBleController.getHandler();
     }
 
     /**
@@ -123,67 +181,138 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
+     * Disconnects an existing connection or cancel a pending connection of a device. The
+     * disconnection result
      * is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int,
      * int)}
      * callback.
+     *
+     * @param address The device address of the destination device.
      */
-    public void disconnect() {
+    public void disconnect(String address) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "disconnect() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.disconnect();
+        mBleController.disconnect(address);
+    }
+
+    /**
+     * Disconnects every device connected to and cancels the pending connections.
+     */
+    public void disconnectAll() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "disconnectAll() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.disconnectAll();
+    }
+
+    /**
+     * Closes the GATT client of a device once the app is done with it, releasing its
+     * connection slot.
+     *
+     * @param address The device address of the destination device.
+     */
+    public void close(String address) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "close() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.close(address);
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * After using the BLE devices, the app must call this method to ensure resources are
+     * released properly. Every GATT client is closed and the controller is shut down.
      */
     public void close() {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "close() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.close();
+        final BluetoothLowEnergyController controller = mBleController;
         mBleController = null;
+        controller.getHandler().post(() -> {
+            controller.closeAll();
+            controller.release();
+        });
     }
 
     /**
      * Discovers services offered by a remote device as well as their
      * characteristics and descriptors.
+     *
+     * @param address The device address of the destination device.
      */
-    public void discoverServices() {
+    public void discoverServices(String address) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "discoverServices() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.discoverServices();
+        mBleController.discoverServices(address);
     }
 
     /**
      * Enable or disable notifications/indications for a given characteristic.
+     *
+     * @param address The device address of the destination device.
      */
-    public void setCharacteristicNotification() {
+    public void setCharacteristicNotification(String address) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "discoverServices() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.setCharacteristicNotification();
+        mBleController.setCharacteristicNotification(address);
+    }
+
+    /**
+     * Subscribes to the notifications or indications of a set of characteristics, writing
+     * their configurations one after the other.
+     *
+     * @param address The device address of the destination device.
+     * @param configurations The configuration of each characteristic, one of the
+     * {@code GattTransport.CCCD_*} constants
+     * @param listener Listener notified when the subscription completes, or null
+     * @return The subscription, or null if it could not be started.
+     */
+    @Nullable
+    public GattSubscription subscribe(String address, Map<UUID, Integer> configurations,
+            @Nullable GattSubscription.Listener listener) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "subscribe() [WAN] BluetoothAdapter not initialized");
+            return null;
+        }
+        return mBleController.subscribe(address, configurations, listener);
     }
 
     /**
      * Request an MTU size used for a given connection.
      *
+     * @param address The device address of the destination device.
      * @param mtu The new MTU size to request
      */
-    public void requestMtu(int mtu) {
+    public void requestMtu(String address, int mtu) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "discoverServices() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.requestMtu(mtu);
+        mBleController.requestMtu(address, mtu);
+    }
+
+    /**
+     * Selects the link profile applied when a device is connected.
+     *
+     * @param address The device address of the destination device.
+     * @param profile The link profile
+     */
+    public void setLinkProfile(String address, LinkProfile profile) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "setLinkProfile() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.setLinkProfile(address, profile);
     }
 
     /**
@@ -214,17 +343,18 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Return the remote bluetooth device this GATT client targets to
+     * Return the remote bluetooth device a GATT client targets to
      *
+     * @param address The device address of the destination device.
      * @return remote bluetooth device
      */
     @Nullable
-    public BluetoothDevice getDevice() {
+    public BluetoothDevice getDevice(String address) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "getDevice() [WAN] BluetoothAdapter not initialized");
             return null;
         }
-        return mBleController.getDevice();
+        return mBleController.getDevice(address);
     }
 
     /**
@@ -239,33 +369,205 @@ public class BluetoothLeService extends Service {
         mBleController.scanBluetoothLowEnergyDevice(time);
     }
 
+    /**
+     * Start a Bluetooth LE scan that runs until {@link #stopContinuousScan()} is called.
+     */
+    public void startContinuousScan() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "startContinuousScan() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.startContinuousScan();
+    }
+
+    /**
+     * Stop the scan started by {@link #startContinuousScan()}.
+     */
+    public void stopContinuousScan() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "stopContinuousScan() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.stopContinuousScan();
+    }
+
+    /**
+     * Selects between real-time and batch scanning for the following scans.
+     *
+     * @param reportDelayMillis Delay between two batches, or 0 for real-time scanning
+     */
+    public void setScanReportDelay(long reportDelayMillis) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "setScanReportDelay() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.setScanReportDelay(reportDelayMillis);
+    }
+
+    /**
+     * Sets the filter applied by the following scans.
+     *
+     * @param filter The filter, or null to report every device
+     */
+    public void setScanFilter(@Nullable DeviceFilter filter) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "setScanFilter() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.setScanFilter(filter);
+    }
+
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
+     * @param address The device address of the destination device.
      * @param serviceUuid The UUID of the requested service
      * @param uuid The UUID of the requested descriptor
      * @param data Data to write to Bluetooth.
      */
-    public void writeCharacteristic(UUID serviceUuid, UUID uuid, byte[] data) {
+    public void writeCharacteristic(String address, UUID serviceUuid, UUID uuid, byte[] data) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "writeCharacteristic() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.writeCharacteristic(serviceUuid, uuid, data);
+        mBleController.writeCharacteristic(address, serviceUuid, uuid, data);
     }
 
     /**
      * Writes a given characteristic and its values to the associated remote device.
      *
+     * @param address The device address of the destination device.
      * @param serviceUuid The UUID of the requested service
      * @param uuid The UUID of the requested descriptor
      * @param data Data to write to Bluetooth.
      */
-    public void writeCharacteristic(UUID serviceUuid, UUID uuid, String data) {
+    public void writeCharacteristic(String address, UUID serviceUuid, UUID uuid, String data) {
         if (!Preconditions.checkNotNull(mBleController)) {
             LogUtil.W(ClassName, "writeCharacteristic() [WAN] BluetoothAdapter not initialized");
             return;
         }
-        mBleController.writeCharacteristic(serviceUuid, uuid, data);
+        mBleController.writeCharacteristic(address, serviceUuid, uuid, data);
+    }
+
+    /**
+     * Streams a payload to the associated remote device in MTU sized chunks.
+     *
+     * @param address The device address of the destination device.
+     * @param serviceUuid The UUID of the requested service
+     * @param uuid The UUID of the requested characteristic
+     * @param data Data to write to Bluetooth.
+     * @param listener Listener notified when the transfer finishes, or null
+     */
+    public void writeCharacteristicStream(String address, UUID serviceUuid, UUID uuid, byte[] data,
+            @Nullable GattWriteTransfer.Listener listener) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName,
+                    "writeCharacteristicStream() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.writeCharacteristicStream(address, serviceUuid, uuid, data, listener);
+    }
+
+    /**
+     * Streams a payload to the associated remote device in MTU sized chunks.
+     *
+     * @param address The device address of the destination device.
+     * @param serviceUuid The UUID of the requested service
+     * @param uuid The UUID of the requested characteristic
+     * @param data Data to write to Bluetooth. The stream is not closed.
+     * @param listener Listener notified when the transfer finishes, or null
+     */
+    public void writeCharacteristicStream(String address, UUID serviceUuid, UUID uuid, InputStream data,
+            @Nullable GattWriteTransfer.Listener listener) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName,
+                    "writeCharacteristicStream() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.writeCharacteristicStream(address, serviceUuid, uuid, data, listener);
+    }
+
+    /**
+     * Sets the decoder used to reassemble messages split across several notifications of a
+     * characteristic.
+     *
+     * @param address The device address of the destination device.
+     * @param uuid The UUID of the characteristic
+     * @param decoder The decoder, or null to report raw notifications again
+     */
+    public void setFrameDecoder(String address, UUID uuid, @Nullable FrameDecoder decoder) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "setFrameDecoder() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.setFrameDecoder(address, uuid, decoder);
+    }
+
+    /**
+     * Returns the latency histograms of a device, or of every device.
+     *
+     * @param address The device address of the destination device, or null for every device
+     * @return The latency statistics, or null if unavailable.
+     */
+    @Nullable
+    public GattLatencyStats getLatencyStats(@Nullable String address) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "getLatencyStats() [WAN] BluetoothAdapter not initialized");
+            return null;
+        }
+        return mBleController.getLatencyStats(address);
+    }
+
+    /**
+     * Returns the engine restoring the lost links of a device.
+     *
+     * @param address The device address of the destination device.
+     * @return The reconnector, or null if unavailable.
+     */
+    @Nullable
+    public GattReconnector getReconnector(String address) {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "getReconnector() [WAN] BluetoothAdapter not initialized");
+            return null;
+        }
+        return mBleController.getReconnector(address);
+    }
+
+    /**
+     * Returns the stream of the notifications of every device.
+     *
+     * @return The notification stream, or null if unavailable.
+     */
+    @Nullable
+    public NotificationStream getNotificationStream() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "getNotificationStream() [WAN] BluetoothAdapter not initialized");
+            return null;
+        }
+        return mBleController.getNotificationStream();
+    }
+
+    /**
+     * Starts recording every notification to the files directory of the app.
+     *
+     * @return Returns {@code true} if notifications are recorded, {@code false} otherwise.
+     */
+    public boolean startRecording() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "startRecording() [WAN] BluetoothAdapter not initialized");
+            return false;
+        }
+        return mBleController.startRecording();
+    }
+
+    /**
+     * Stops recording notifications.
+     */
+    public void stopRecording() {
+        if (!Preconditions.checkNotNull(mBleController)) {
+            LogUtil.W(ClassName, "stopRecording() [WAN] BluetoothAdapter not initialized");
+            return;
+        }
+        mBleController.stopRecording();
     }
 }
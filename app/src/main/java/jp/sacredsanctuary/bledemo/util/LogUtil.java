@@ -18,7 +18,12 @@
  * @note <br>
  * VERBOSE: adb shell setprop log.tag.BleDemo VERBOSE<br>
  * DEBUG:   adb shell setprop log.tag.BleDemo DEBUG<br>
- * INFO:    adb shell setprop log.tag.BleDemo INFO
+ * INFO:    adb shell setprop log.tag.BleDemo INFO<br>
+ * <br>
+ * The overloads taking arguments defer building the message until the level is known to be
+ * enabled, then build it with {@link LogFormat}: each {} of the message is replaced by the next
+ * argument, and a byte[] argument is printed as its values. Primitive arguments are not boxed,
+ * so a disabled call allocates nothing and may be left in the notification and scan callbacks.
  */
 package jp.sacredsanctuary.bledemo.util;
 
@@ -35,27 +40,281 @@ public class LogUtil {
         }
     }
 
+    public static void V(String ClassName, String format, Object arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void V(String ClassName, String format, long arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void V(String ClassName, String format, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void V(String ClassName, String format, Object arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void V(String ClassName, String format, long arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void V(String ClassName, String format, Object arg1, Object arg2, Object arg3) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void V(String ClassName, String format, Object arg1, long arg2, long arg3,
+            Object arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    public static void V(String ClassName, String format, long arg1, long arg2, long arg3,
+            long arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
     public static void D(String ClassName, String log) {
         if (VERBOSE) {
             Log.v(TAG, "[" + ClassName + "] " + log);
         }
     }
 
+    public static void D(String ClassName, String format, Object arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void D(String ClassName, String format, long arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void D(String ClassName, String format, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void D(String ClassName, String format, Object arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void D(String ClassName, String format, long arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void D(String ClassName, String format, Object arg1, Object arg2, Object arg3) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void D(String ClassName, String format, Object arg1, long arg2, long arg3,
+            Object arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    public static void D(String ClassName, String format, long arg1, long arg2, long arg3,
+            long arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
     public static void I(String ClassName, String log) {
         if (VERBOSE) {
             Log.v(TAG, "[" + ClassName + "] " + log);
         }
     }
 
+    public static void I(String ClassName, String format, Object arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void I(String ClassName, String format, long arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void I(String ClassName, String format, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void I(String ClassName, String format, Object arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void I(String ClassName, String format, long arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void I(String ClassName, String format, Object arg1, Object arg2, Object arg3) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void I(String ClassName, String format, Object arg1, long arg2, long arg3,
+            Object arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    public static void I(String ClassName, String format, long arg1, long arg2, long arg3,
+            long arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
     public static void W(String ClassName, String log) {
         if (VERBOSE) {
             Log.v(TAG, "[" + ClassName + "] " + log);
         }
     }
 
+    public static void W(String ClassName, String format, Object arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void W(String ClassName, String format, long arg) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void W(String ClassName, String format, Object arg1, Object arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void W(String ClassName, String format, Object arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void W(String ClassName, String format, long arg1, long arg2) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void W(String ClassName, String format, Object arg1, Object arg2, Object arg3) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void W(String ClassName, String format, Object arg1, long arg2, long arg3,
+            Object arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    public static void W(String ClassName, String format, long arg1, long arg2, long arg3,
+            long arg4) {
+        if (VERBOSE) {
+            Log.v(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
     public static void E(String ClassName, String log) {
         if (DEBUG) {
             Log.e(TAG, "[" + ClassName + "] " + log);
         }
     }
+
+    public static void E(String ClassName, String format, Object arg) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void E(String ClassName, String format, long arg) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg));
+        }
+    }
+
+    public static void E(String ClassName, String format, Object arg1, Object arg2) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void E(String ClassName, String format, Object arg1, long arg2) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void E(String ClassName, String format, long arg1, long arg2) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg1, arg2));
+        }
+    }
+
+    public static void E(String ClassName, String format, Object arg1, Object arg2, Object arg3) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void E(String ClassName, String format, Object arg1, long arg2, long arg3,
+            Object arg4) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    public static void E(String ClassName, String format, long arg1, long arg2, long arg3,
+            long arg4) {
+        if (DEBUG) {
+            Log.e(TAG, "[" + ClassName + "] " + format(format, arg1, arg2, arg3, arg4));
+        }
+    }
+
+    private static String format(String format, Object... args) {
+        return LogFormat.format(format, args);
+    }
 }
@@ -97,12 +97,24 @@ public class BluetoothDeviceDiscoveryListFragment extends Fragment {
         mRecyclerView.addItemDecoration(itemDecoration);
         mRecyclerView.setAdapter(mBluetoothDeviceListAdapter);
 
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        if (!isAdded() || !Preconditions.checkNotNull(getActivity())) return;
+        // Renders the devices as the scan reports them.
         BluetoothDeviceListViewModel model =
                 new ViewModelProvider(getActivity()).get(BluetoothDeviceListViewModel.class);
-        mBluetoothDeviceListAdapter.setItems(model.getBluetoothDeviceDataList().getValue());
-        mBluetoothDeviceListAdapter.notifyDataSetChanged();
-
-        return view;
+        model.getBluetoothDeviceDataList().observe(getViewLifecycleOwner(), deviceDataList -> {
+            if (Preconditions.checkNotNull(mBluetoothDeviceListAdapter)) {
+                mBluetoothDeviceListAdapter.setItems(deviceDataList);
+            }
+        });
     }
 
     /**
@@ -85,12 +85,27 @@ public class MainActivity extends AppCompatActivity implements ServiceConnection
         super.onResume();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDestroy() {
+        LogUtil.V(ClassName, "onDestroy() [INF] ");
+        // Unbinding does not report onServiceDisconnected(), so the callback is dropped here.
+        if (Preconditions.checkNotNull(mBleServiceConnection)) {
+            mBleServiceConnection.unregisterCallback(mBluetoothLowEnergyControllerCallback);
+            unbindService(mBleServiceConnection);
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
         LogUtil.V(ClassName, "onServiceConnected() [INF] name:" + name);
         if (!isFinishing()) {
             if (mBleServiceConnection.isBluetoothLowEnergySupported()) {
-                mBleServiceConnection.setCallback(mBluetoothLowEnergyControllerCallback);
+                mBleServiceConnection.registerCallback(mBluetoothLowEnergyControllerCallback,
+                        null, null);
                 setContentView(R.layout.activity_main);
 
                 Toolbar toolbar = findViewById(R.id.toolbar);
@@ -109,7 +124,7 @@ public class MainActivity extends AppCompatActivity implements ServiceConnection
     @Override
     public void onServiceDisconnected(ComponentName name) {
         LogUtil.V(ClassName, "onServiceDisconnected() [INF] name:" + name);
-        mBleServiceConnection.setCallback(null);
+        mBleServiceConnection.unregisterCallback(mBluetoothLowEnergyControllerCallback);
     }
 
     private void requestEnableBluetooth() {
@@ -196,7 +211,7 @@ public class MainActivity extends AppCompatActivity implements ServiceConnection
     }
 
     private void onReload() {
-        mBleServiceConnection.disconnect();
+        mBleServiceConnection.disconnectAll();
         if (Preconditions.checkNotNull(
                 getSupportFragmentManager().getPrimaryNavigationFragment())) {
             Fragment navHostFragment = getSupportFragmentManager().getPrimaryNavigationFragment();
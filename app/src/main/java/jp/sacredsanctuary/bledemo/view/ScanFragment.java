@@ -29,6 +29,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.navigation.NavDestination;
 import androidx.navigation.fragment.NavHostFragment;
 
 import jp.sacredsanctuary.bledemo.R;
@@ -58,7 +59,10 @@ public class ScanFragment extends Fragment {
             model.getBluetoothDeviceDataList().observe(getActivity(), bluetoothDeviceList -> {
                 LogUtil.V(ClassName,
                         "observe() [INF] bluetoothDeviceList:" + bluetoothDeviceList);
-                if (!Preconditions.isEmpty(bluetoothDeviceList) && isAdded()) {
+                // Devices are published while scanning; move to the list on the first one,
+                // the list keeps rendering the following updates.
+                if (!Preconditions.isEmpty(bluetoothDeviceList) && isAdded()
+                        && isCurrentDestination()) {
                     NavHostFragment.findNavController(this).navigate(
                             R.id.action_scan_to_list);
                 }
@@ -106,4 +110,11 @@ public class ScanFragment extends Fragment {
             }
         }
     }
+
+    private boolean isCurrentDestination() {
+        NavDestination destination = NavHostFragment.findNavController(this)
+                .getCurrentDestination();
+        return Preconditions.checkNotNull(destination)
+                && R.id.scan_fragment == destination.getId();
+    }
 }
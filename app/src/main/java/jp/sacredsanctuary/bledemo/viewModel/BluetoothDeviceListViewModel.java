@@ -29,6 +29,7 @@ import java.util.Set;
 
 import jp.sacredsanctuary.bledemo.model.BluetoothDeviceData;
 import jp.sacredsanctuary.bledemo.util.LogUtil;
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
 import jp.sacredsanctuary.bledemo.util.Preconditions;
 
 /**
@@ -36,48 +37,80 @@ import jp.sacredsanctuary.bledemo.util.Preconditions;
  */
 public class BluetoothDeviceListViewModel extends ViewModel {
     private static final String ClassName = BluetoothDeviceListViewModel.class.getSimpleName();
-    private MutableLiveData<List<BluetoothDeviceData>> mMutableDeviceDataList;
-    private List<BluetoothDeviceData> mDeviceDataList;
+    private volatile List<BluetoothDeviceData> mDeviceDataList = new ArrayList<>();
+    // Created with the view model, as scan callbacks may post before anything observes it.
+    private final MutableLiveData<List<BluetoothDeviceData>> mMutableDeviceDataList =
+            new MutableLiveData<>(mDeviceDataList);
+    // Position of every listed device in mDeviceDataList, keyed by its packed address.
+    private final MacAddressIndex mDeviceIndex = new MacAddressIndex();
 
     public LiveData<List<BluetoothDeviceData>> getBluetoothDeviceDataList() {
-        if (!Preconditions.checkNotNull(mDeviceDataList)) {
-            mDeviceDataList = new ArrayList<>();
-        }
-        if (!Preconditions.checkNotNull(mMutableDeviceDataList)) {
-            mMutableDeviceDataList = new MutableLiveData<>();
-            mMutableDeviceDataList.postValue(mDeviceDataList);
-        }
         return mMutableDeviceDataList;
     }
 
-    public void setBluetoothDeviceDataList(Set<ScanResult> list) {
-        mDeviceDataList.clear();
+    /**
+     * Empties the device list. May be called from any thread.
+     */
+    public synchronized void clearBluetoothDeviceDataList() {
+        mDeviceIndex.clear();
+        mDeviceDataList = new ArrayList<>();
+        mMutableDeviceDataList.postValue(mDeviceDataList);
+    }
+
+    /**
+     * Replaces the device list with the devices of the given scan results. May be called from
+     * any thread; the observers receive a new list instance.
+     *
+     * @param list The scan results
+     */
+    public synchronized void setBluetoothDeviceDataList(Set<ScanResult> list) {
+        // The posted list is read on the main thread, so it is never modified afterwards.
+        List<BluetoothDeviceData> deviceDataList = new ArrayList<>(list.size());
+        mDeviceIndex.clear();
         for (ScanResult result : list) {
-            if (Preconditions.checkNotNull(result.getDevice())
-                    && !containsDeviceDataList(result.getDevice())) {
+            if (Preconditions.checkNotNull(result.getDevice())) {
                 LogUtil.V(ClassName, "setBluetoothDeviceDataList() [INF] result:" + result);
-                mDeviceDataList.add(new BluetoothDeviceData(result.getDevice()));
+                putDeviceData(deviceDataList, result.getDevice());
             }
         }
-        mMutableDeviceDataList.postValue(mDeviceDataList);
+        mDeviceDataList = deviceDataList;
+        mMutableDeviceDataList.postValue(deviceDataList);
     }
 
-    public void setBluetoothDeviceDataList(List<ScanResult> list) {
+    /**
+     * Adds the devices of the given scan results to the device list. May be called from any
+     * thread; the observers receive a new list instance.
+     *
+     * @param list The scan results
+     */
+    public synchronized void setBluetoothDeviceDataList(List<ScanResult> list) {
+        List<BluetoothDeviceData> deviceDataList = new ArrayList<>(mDeviceDataList);
         for (ScanResult result : list) {
-            if (Preconditions.checkNotNull(result.getDevice())
-                    && !containsDeviceDataList(result.getDevice())) {
-                mDeviceDataList.add(new BluetoothDeviceData(result.getDevice()));
+            if (Preconditions.checkNotNull(result.getDevice())) {
+                putDeviceData(deviceDataList, result.getDevice());
             }
         }
-        mMutableDeviceDataList.postValue(mDeviceDataList);
+        mDeviceDataList = deviceDataList;
+        mMutableDeviceDataList.postValue(deviceDataList);
     }
 
-    private boolean containsDeviceDataList(@NonNull BluetoothDevice bluetoothDevice) {
-        for (BluetoothDeviceData data : mDeviceDataList) {
-            if (data.getBluetoothDevice().getAddress().equals(bluetoothDevice.getAddress())) {
-                return true;
-            }
+    /**
+     * Adds a device to the list, or updates its entry if the address is already listed.
+     * {@code mDeviceIndex} maps every address to its position in {@code list}.
+     */
+    private void putDeviceData(@NonNull List<BluetoothDeviceData> list,
+            @NonNull BluetoothDevice bluetoothDevice) {
+        final long address = MacAddressIndex.pack(bluetoothDevice.getAddress());
+        if (address == MacAddressIndex.INVALID_ADDRESS) {
+            list.add(new BluetoothDeviceData(bluetoothDevice));
+            return;
+        }
+        final int position = mDeviceIndex.get(address);
+        if (position == MacAddressIndex.NOT_FOUND) {
+            mDeviceIndex.put(address, list.size());
+            list.add(new BluetoothDeviceData(bluetoothDevice));
+        } else {
+            list.set(position, new BluetoothDeviceData(bluetoothDevice));
         }
-        return false;
     }
 }
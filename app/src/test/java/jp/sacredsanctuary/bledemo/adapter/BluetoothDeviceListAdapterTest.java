@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.adapter;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.os.Looper;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.sacredsanctuary.bledemo.model.BluetoothDeviceData;
+import jp.sacredsanctuary.bledemo.view.ViewHolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Counts the rows {@link BluetoothDeviceListAdapter} rebinds for every list update.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BluetoothDeviceListAdapterTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 10000;
+    private static final int DEVICES = 10;
+
+    private RecyclerView mRecyclerView;
+    private CountingAdapter mAdapter;
+
+    private static class CountingAdapter extends BluetoothDeviceListAdapter {
+        int mBindCount;
+
+        CountingAdapter() {
+            // Diffs are computed inline, the results are still dispatched on the main looper.
+            super(Runnable::run);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+            mBindCount++;
+            super.onBindViewHolder(holder, position);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Activity activity = Robolectric.buildActivity(Activity.class).setup().get();
+        mRecyclerView = new RecyclerView(activity);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(activity));
+        // The change animation binds a second holder for every changed row.
+        mRecyclerView.setItemAnimator(null);
+        mAdapter = new CountingAdapter();
+        mRecyclerView.setAdapter(mAdapter);
+        activity.setContentView(mRecyclerView);
+        assertEquals(DEVICES, update(devices(DEVICES, null)));
+    }
+
+    @Test
+    public void unchangedDevicesAreNotRebound() {
+        assertEquals(0, update(devices(DEVICES, null)));
+    }
+
+    @Test
+    public void onlyNewDeviceIsBound() {
+        assertEquals(1, update(devices(DEVICES + 1, null)));
+        assertEquals(DEVICES + 1, mRecyclerView.getChildCount());
+    }
+
+    @Test
+    public void onlyRenamedDeviceIsRebound() {
+        List<BluetoothDeviceData> list = devices(DEVICES, null);
+        list.set(3, device(3, "renamed"));
+        assertEquals(1, update(list));
+    }
+
+    @Test
+    public void itemIdIsPackedAddress() {
+        assertEquals(0x001122334403L, mAdapter.getItemId(3));
+    }
+
+    private int update(List<BluetoothDeviceData> list) {
+        mAdapter.mBindCount = 0;
+        mAdapter.setItems(list);
+        shadowOf(Looper.getMainLooper()).idle();
+        mRecyclerView.measure(
+                View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        mRecyclerView.layout(0, 0, WIDTH, HEIGHT);
+        return mAdapter.mBindCount;
+    }
+
+    private static List<BluetoothDeviceData> devices(int count, String name) {
+        List<BluetoothDeviceData> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(device(i, name));
+        }
+        return list;
+    }
+
+    private static BluetoothDeviceData device(int index, String name) {
+        BluetoothDevice device =
+                ShadowBluetoothDevice.newInstance(String.format("00:11:22:33:44:%02X", index));
+        shadowOf(device).setName(name);
+        return new BluetoothDeviceData(device);
+    }
+}
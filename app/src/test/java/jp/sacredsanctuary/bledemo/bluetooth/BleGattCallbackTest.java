@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationRingBuffer;
+import jp.sacredsanctuary.bledemo.bluetooth.notification.NotificationStream;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualBleStack;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualPeripheral;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualScheduler;
+import jp.sacredsanctuary.bledemo.util.LogUtil;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts the bytes {@link LogUtil} and {@link BleGattCallback} allocate per notification while
+ * logging is disabled, as it is unless the log.tag.BleDemo property is set.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BleGattCallbackTest {
+    private static final String ClassName = BleGattCallbackTest.class.getSimpleName();
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID TX = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final int NOTIFICATIONS = 100000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private com.sun.management.ThreadMXBean mThreads;
+    private long mNotifications;
+
+    private final GattSession.Listener mListener = new GattSession.Listener() {
+        @Override
+        public void onConnected(GattSession session) {
+        }
+
+        @Override
+        public void onConnectionLost(GattSession session) {
+        }
+
+        @Override
+        public void onServicesResolved(GattSession session, GattDatabase database,
+                boolean cached) {
+        }
+
+        @Override
+        public void onLinkConfigured(GattSession session, boolean success) {
+        }
+
+        @Override
+        public void onNotification(GattSession session, UUID uuid, byte[] value) {
+            LogUtil.I(ClassName, "onNotification() [INF] uuid:{} value:{}", uuid, value);
+            mNotifications++;
+        }
+
+        @Override
+        public void onMessageReceived(GattSession session, UUID uuid, byte[] buffer,
+                int offset, int length) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Posts a task capturing as much as the one updating the session of a notification.
+     */
+    private static void handOff(Handler handler, GattConnectionManager connections,
+            BluetoothGatt gatt, UUID uuid, byte[] value) {
+        handler.post(() -> {
+            if (connections.getSession(gatt) == null) fail(uuid + " " + value.length);
+        });
+    }
+
+    private static void log(byte[] value) {
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            LogUtil.V(ClassName, "test() [INF] uuid:{} value:{}", TX, value);
+            LogUtil.D(ClassName, "test() [INF] index:{}", i);
+            LogUtil.I(ClassName, "test() [INF] uuid:{} index:{}", TX, i);
+            LogUtil.W(ClassName, "test() [WAN] index:{} length:{}", i, value.length);
+            LogUtil.E(ClassName, "test() [ERR] uuid:{} value:{}", TX, value);
+            LogUtil.V(ClassName, "test() [INF] interval:{} latency:{} timeout:{} status:{}",
+                    i, 0, 500, 0);
+        }
+    }
+
+    @Test
+    public void disabledLoggingDoesNotAllocate() {
+        final byte[] value = new byte[20];
+        // Warm up so that loading LogUtil is not counted.
+        log(value);
+        final long before = allocatedBytes();
+        log(value);
+        final long allocated = allocatedBytes() - before;
+        assertTrue("allocated:" + allocated, allocated < NOTIFICATIONS);
+    }
+
+    @Test
+    public void notificationsOnlyAllocateTheHandOff() {
+        final VirtualBleStack stack = new VirtualBleStack(new VirtualScheduler(), 1);
+        stack.addPeripheral(new VirtualPeripheral(ADDRESS, new GattDatabase.Builder().build()));
+        final GattAttributeCache cache = new GattAttributeCache(mFolder.getRoot());
+        final GattConnectionManager connections = new GattConnectionManager(1,
+                address -> true,
+                address -> new GattSession(stack.openGatt(address), cache, mListener));
+        connections.openSession(ADDRESS);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final NotificationStream notifications = new NotificationStream(
+                new NotificationRingBuffer(1024, 20, NotificationRingBuffer.OVERFLOW_DROP_OLDEST,
+                        NotificationRingBuffer.WAIT_BLOCKING));
+        final BleGattCallback callback = new BleGattCallback(connections, handler,
+                new ControllerCallbackDispatcher(), notifications);
+        final BluetoothDevice device = ShadowBluetoothDevice.newInstance(ADDRESS);
+        final BluetoothGatt gatt = device.connectGatt(RuntimeEnvironment.application, false,
+                callback);
+        final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(TX,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        characteristic.setValue(new byte[20]);
+
+        // Warm up so that the measured loops run compiled code.
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            callback.onCharacteristicChanged(gatt, characteristic);
+            handOff(handler, connections, gatt, TX, characteristic.getValue());
+        }
+        // The session is updated on the thread of the handler, which costs a task per
+        // notification; everything else must come for free.
+        long before = allocatedBytes();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            handOff(handler, connections, gatt, TX, characteristic.getValue());
+        }
+        final long posted = allocatedBytes() - before;
+        before = allocatedBytes();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            callback.onCharacteristicChanged(gatt, characteristic);
+        }
+        final long allocated = allocatedBytes() - before;
+
+        assertEquals(2L * NOTIFICATIONS, mNotifications);
+        assertEquals(2L * NOTIFICATIONS, notifications.getBuffer().getPublishedCount());
+        assertTrue("allocated:" + allocated + " posted:" + posted,
+                allocated < posted + NOTIFICATIONS);
+    }
+}
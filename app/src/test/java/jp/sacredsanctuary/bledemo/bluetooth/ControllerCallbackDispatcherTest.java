@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.le.ScanResult;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ControllerCallbackDispatcherTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID RX = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    private final List<BluetoothGattCharacteristic> mRead = new ArrayList<>();
+    private final List<BluetoothGattCharacteristic> mWritten = new ArrayList<>();
+    private final List<byte[]> mValues = new ArrayList<>();
+
+    private final IBluetoothLowEnergyControllerCallback mCallback =
+            new IBluetoothLowEnergyControllerCallback() {
+                @Override
+                public void onConnectionStateChange(BluetoothGatt gatt, int status,
+                        int newState) {
+                }
+
+                @Override
+                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                }
+
+                @Override
+                public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                }
+
+                @Override
+                public void onCharacteristicRead(BluetoothGatt gatt,
+                        BluetoothGattCharacteristic characteristic, int status) {
+                    mRead.add(characteristic);
+                    mValues.add(characteristic.getValue());
+                }
+
+                @Override
+                public void onCharacteristicWrite(BluetoothGatt gatt,
+                        BluetoothGattCharacteristic characteristic, int status) {
+                    mWritten.add(characteristic);
+                    mValues.add(characteristic.getValue());
+                }
+
+                @Override
+                public void onCharacteristicChanged(BluetoothGatt gatt, UUID uuid,
+                        byte[] value) {
+                }
+
+                @Override
+                public void onMessageReceived(BluetoothGatt gatt, UUID uuid, byte[] buffer,
+                        int offset, int length) {
+                }
+
+                @Override
+                public void onScanStarted() {
+                }
+
+                @Override
+                public void onScanResultsUpdated(List<ScanResult> results) {
+                }
+
+                @Override
+                public void onScanCompleted(Set<ScanResult> results) {
+                }
+            };
+
+    private ControllerCallbackDispatcher mDispatcher;
+    private BluetoothGatt mGatt;
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    @Before
+    public void setUp() {
+        mDispatcher = new ControllerCallbackDispatcher();
+        mGatt = ShadowBluetoothDevice.newInstance(ADDRESS).connectGatt(
+                RuntimeEnvironment.application, false, null);
+        mCharacteristic = new BluetoothGattCharacteristic(RX,
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+        mCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    }
+
+    @Test
+    public void callbackOnExecutorGetsTheCharacteristicAsRead() {
+        mDispatcher.register(mCallback, mTasks::add, null);
+        mCharacteristic.setValue(new byte[]{1, 2});
+        mDispatcher.onCharacteristicRead(mGatt, mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        mCharacteristic.setValue(new byte[]{3});
+        mDispatcher.onCharacteristicWrite(mGatt, mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        mCharacteristic.setValue(new byte[]{4});
+
+        while (!mTasks.isEmpty()) mTasks.poll().run();
+
+        assertArrayEquals(new byte[]{1, 2}, mValues.get(0));
+        assertArrayEquals(new byte[]{3}, mValues.get(1));
+        assertNotSame(mCharacteristic, mRead.get(0));
+        assertEquals(RX, mRead.get(0).getUuid());
+        assertEquals(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE,
+                mWritten.get(0).getWriteType());
+        assertEquals(BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                mWritten.get(0).getProperties());
+    }
+
+    @Test
+    public void callbackWithoutExecutorGetsTheCharacteristic() {
+        mDispatcher.register(mCallback, null, null);
+        mCharacteristic.setValue(new byte[]{1, 2});
+        mDispatcher.onCharacteristicRead(mGatt, mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+
+        assertSame(mCharacteristic, mRead.get(0));
+    }
+}
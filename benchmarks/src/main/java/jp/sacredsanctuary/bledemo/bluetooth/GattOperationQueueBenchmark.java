@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost {@link GattOperationQueue} adds to every GATT request, bookkeeping and
+ * metrics included, when the link is idle and when a burst of requests is queued.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GattOperationQueueBenchmark {
+    private static final int BURST = 64;
+
+    private final GattOperationQueue mQueue = new GattOperationQueue();
+    private final GattOperation[] mOperations = new GattOperation[BURST];
+    private long mExecuted;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < BURST; i++) {
+            mOperations[i] = new GattOperation(GattOperation.TYPE_WRITE_CHARACTERISTIC, 20) {
+                @Override
+                public boolean execute() {
+                    mExecuted++;
+                    return true;
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    public long single() {
+        mQueue.enqueue(mOperations[0]);
+        mQueue.onOperationCompleted(GattOperation.TYPE_WRITE_CHARACTERISTIC,
+                GattOperationQueue.GATT_SUCCESS);
+        return mExecuted;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public long burst() {
+        for (GattOperation operation : mOperations) {
+            mQueue.enqueue(operation);
+        }
+        for (int i = 0; i < BURST; i++) {
+            mQueue.onOperationCompleted(GattOperation.TYPE_WRITE_CHARACTERISTIC,
+                    GattOperationQueue.GATT_SUCCESS);
+        }
+        return mExecuted;
+    }
+}
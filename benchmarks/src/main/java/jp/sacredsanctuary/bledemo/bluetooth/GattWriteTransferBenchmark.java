@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time {@link GattWriteTransfer} spends splitting a 64 KiB payload into chunks
+ * and queueing them, with a link that acknowledges every write at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GattWriteTransferBenchmark {
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+    private static final int WINDOW = 4;
+
+    @Param({"23", "247", "512"})
+    public int mtu;
+
+    private byte[] mPayload;
+    private final GattOperationQueue mQueue = new GattOperationQueue();
+    private long mChecksum;
+    private final GattWriteTransfer.ChunkWriter mWriter = chunk -> {
+        mChecksum += chunk[0];
+        return true;
+    };
+
+    @Setup
+    public void setUp() {
+        mPayload = new byte[PAYLOAD_SIZE];
+        new Random(0).nextBytes(mPayload);
+    }
+
+    @Benchmark
+    public long transfer() {
+        GattWriteTransfer transfer = new GattWriteTransfer(new ByteArrayInputStream(mPayload),
+                mtu, WINDOW, mWriter, null);
+        transfer.start(mQueue);
+        while (!mQueue.isIdle()) {
+            mQueue.onOperationCompleted(GattOperation.TYPE_WRITE_CHARACTERISTIC,
+                    GattOperationQueue.GATT_SUCCESS);
+        }
+        return transfer.getBytesWritten() + mChecksum;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many messages per second the {@link FrameDecoder} implementations reassemble
+ * from a stream of notifications.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDecoderBenchmark {
+    private static final int MESSAGE_SIZE = 1500;
+    private static final int MESSAGES = 100;
+
+    // Notification payload: ATT_MTU minus the 3 byte header, for the default and a large MTU.
+    @Param({"20", "244"})
+    public int packetSize;
+
+    private byte[] mLengthPrefixed;
+    private byte[] mSlip;
+    private final LengthPrefixedFrameDecoder mLengthPrefixedDecoder =
+            new LengthPrefixedFrameDecoder(2, true, 4096);
+    private final SlipFrameDecoder mSlipDecoder = new SlipFrameDecoder(4096);
+    private long mChecksum;
+    private final FrameDecoder.FrameListener mListener =
+            (buffer, offset, length) -> mChecksum += length;
+
+    @Setup
+    public void setUp() {
+        byte[] message = new byte[MESSAGE_SIZE];
+        new Random(0).nextBytes(message);
+
+        mLengthPrefixed = new byte[MESSAGES * (MESSAGE_SIZE + 2)];
+        for (int i = 0; i < MESSAGES; i++) {
+            int base = i * (MESSAGE_SIZE + 2);
+            mLengthPrefixed[base] = (byte) (MESSAGE_SIZE >> 8);
+            mLengthPrefixed[base + 1] = (byte) MESSAGE_SIZE;
+            System.arraycopy(message, 0, mLengthPrefixed, base + 2, MESSAGE_SIZE);
+        }
+        byte[] frame = SlipFrameDecoder.encode(message, 0, message.length);
+        mSlip = new byte[MESSAGES * frame.length];
+        for (int i = 0; i < MESSAGES; i++) {
+            System.arraycopy(frame, 0, mSlip, i * frame.length, frame.length);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long lengthPrefixed() {
+        return decode(mLengthPrefixedDecoder, mLengthPrefixed);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long slip() {
+        return decode(mSlipDecoder, mSlip);
+    }
+
+    private long decode(FrameDecoder decoder, byte[] stream) {
+        for (int offset = 0; offset < stream.length; offset += packetSize) {
+            decoder.decode(stream, offset, Math.min(packetSize, stream.length - offset),
+                    mListener);
+        }
+        return mChecksum;
+    }
+}
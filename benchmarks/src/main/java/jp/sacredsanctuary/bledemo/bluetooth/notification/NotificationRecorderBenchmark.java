@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of appending a 20 byte notification with {@link NotificationRecorder},
+ * segment rotation and syncs included, for several sync thresholds.
+ * <p>
+ * Notifications are stamped one millisecond apart, so a second of measurement records hours
+ * of a 1 kHz stream and the interval syncs and age rotations happen as often as they would in
+ * such a stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NotificationRecorderBenchmark {
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int PAYLOAD = 20;
+    private static final UUID CHARACTERISTIC =
+            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+
+    @Param({"4096", "65536", "1048576"})
+    public int syncBytes;
+
+    private final byte[] mValue = new byte[PAYLOAD];
+    private File mDirectory;
+    private NotificationRecorder mRecorder;
+    private long mTimestampNanos;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("recorder").toFile();
+        mRecorder = new NotificationRecorder(mDirectory, new NotificationRecorder.Dictionary() {
+            @Override
+            public String getDeviceAddress(int device) {
+                return "00:11:22:33:44:55";
+            }
+
+            @Override
+            public UUID getCharacteristic(int characteristic) {
+                return CHARACTERISTIC;
+            }
+        }, new RecordingPolicy(RecordingPolicy.DEFAULT.getSegmentSize(),
+                RecordingPolicy.DEFAULT.getMaxSegmentAgeNanos(), syncBytes,
+                RecordingPolicy.DEFAULT.getSyncIntervalNanos(), 4));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRecorder.close();
+        System.out.printf("%n%s%n", mRecorder);
+        for (File segment : NotificationLogReader.listSegments(mDirectory)) {
+            segment.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public boolean append() throws IOException {
+        mTimestampNanos += MILLIS;
+        return mRecorder.append(mTimestampNanos, 0, 0, mValue, 0, PAYLOAD);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.util.LatencyHistogram;
+
+/**
+ * Measures how many notifications one producer publishes through a
+ * {@link NotificationRingBuffer} drained by two consumers, for every wait strategy, and prints
+ * the latency from publication to consumer of every notification at the end of each trial.
+ * <p>
+ * The producer publishes as fast as it can, so the ring is full most of the time and the
+ * latency mostly measures the time spent queued. {@link NotificationRingBuffer#OVERFLOW_BLOCK}
+ * is not measured: the producer would wait forever for consumers stopped at the end of an
+ * iteration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class NotificationRingBufferBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final int PAYLOAD = 20;
+    private static final int BATCH = 256;
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Param({"1", "2"})
+    public int overflow;
+
+    @Param({"0", "1", "2", "3"})
+    public int waitStrategy;
+
+    private final byte[] mValue = new byte[PAYLOAD];
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private NotificationRingBuffer mBuffer;
+    private long mStartNanos;
+
+    /**
+     * A consumer of the ring, one per consuming thread.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final NotificationRingBuffer.Handler mHandler = (sequence, timestampNanos,
+                device, characteristic, buffer, offset, length, endOfBatch) ->
+                mLatency.record(System.nanoTime() - timestampNanos);
+        private NotificationRingBufferBenchmark mRing;
+        private NotificationRingBuffer.Consumer mConsumer;
+
+        @Setup
+        public void setUp(NotificationRingBufferBenchmark ring) {
+            mRing = ring;
+            mConsumer = ring.mBuffer.newConsumer();
+        }
+
+        @TearDown
+        public void tearDown() {
+            mRing.mBuffer.removeConsumer(mConsumer);
+            mRing.mLatency.add(mLatency);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mBuffer = new NotificationRingBuffer(CAPACITY, PAYLOAD, overflow, waitStrategy);
+        mStartNanos = System.nanoTime();
+    }
+
+    @TearDown
+    public void tearDown() {
+        final long elapsed = System.nanoTime() - mStartNanos;
+        System.out.printf("%n%s: %.2f M notifications/s per consumer, latency p50 %d ns"
+                        + " p99 %d ns p99.9 %d ns%n", mBuffer,
+                mLatency.getCount() * 1000.0 / 2 / elapsed, mLatency.getValueAtPercentile(50),
+                mLatency.getValueAtPercentile(99), mLatency.getValueAtPercentile(99.9));
+    }
+
+    @Benchmark
+    @Group("spmc")
+    @GroupThreads(1)
+    public boolean publish() {
+        return mBuffer.publish(System.nanoTime(), 0, 0, mValue, 0, PAYLOAD);
+    }
+
+    @Benchmark
+    @Group("spmc")
+    @GroupThreads(2)
+    public int drain(Reader reader) throws InterruptedException {
+        return reader.mConsumer.take(reader.mHandler, BATCH, TIMEOUT_NANOS);
+    }
+}
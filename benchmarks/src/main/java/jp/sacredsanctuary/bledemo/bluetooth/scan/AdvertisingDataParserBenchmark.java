@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link AdvertisingDataParser} against a copy of the parsing done by
+ * {@code ScanRecord.parseFromBytes()}, which builds UUID lists, maps and a name String for every
+ * advertisement, on a set of captured advertisements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdvertisingDataParserBenchmark {
+    private static final UUID HEART_RATE = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    // iBeacon, Eddystone-URL, heart rate sensor and UART peripheral advertisements.
+    private static final byte[][] RECORDS = {
+            hex("0201061AFF4C000215" + "E2C56DB5DFFB48D2B060D0F5A71096E0" + "00010002C5"),
+            hex("0201060303AAFE0D16AAFE10EB03676F6F676C6500"),
+            hex("02010605030D180F18020AF40A0948524D2D3132333435"),
+            hex("0201061107" + "9ECADC240EE5A9E093F3A3B50100406E" + "05084E555331" + "00000000"),
+    };
+
+    private final AdvertisingDataParser mParser = new AdvertisingDataParser();
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public int scanRecord() {
+        int checksum = 0;
+        for (byte[] record : RECORDS) {
+            checksum += scanRecord(record);
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(4)
+    public int flyweight() {
+        int checksum = 0;
+        for (byte[] record : RECORDS) {
+            checksum += flyweight(mParser, record);
+        }
+        return checksum;
+    }
+
+    // Looks up what a scan callback typically needs: the heart rate service and the name.
+    private static int flyweight(AdvertisingDataParser parser, byte[] record) {
+        int checksum = 0;
+        parser.reset(record, 0, record.length);
+        while (parser.next()) {
+            switch (parser.getType()) {
+                case AdvertisingDataParser.TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+                case AdvertisingDataParser.TYPE_COMPLETE_SERVICE_UUIDS_16:
+                    if (parser.containsUuid(HEART_RATE.getMostSignificantBits(),
+                            HEART_RATE.getLeastSignificantBits())) {
+                        checksum++;
+                    }
+                    break;
+                case AdvertisingDataParser.TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    checksum += parser.getManufacturerId();
+                    break;
+                case AdvertisingDataParser.TYPE_SHORTENED_LOCAL_NAME:
+                case AdvertisingDataParser.TYPE_COMPLETE_LOCAL_NAME:
+                    checksum += parser.getDataLength();
+                    break;
+                default:
+                    break;
+            }
+        }
+        return checksum;
+    }
+
+    private static int scanRecord(byte[] record) {
+        final ParsedRecord parsed = ParsedRecord.parse(record);
+        int checksum = 0;
+        if (parsed.mServiceUuids.contains(HEART_RATE)) checksum++;
+        for (Integer id : parsed.mManufacturerData.keySet()) checksum += id;
+        if (parsed.mName != null) checksum += parsed.mName.length();
+        return checksum;
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    // Same allocations as ScanRecord.parseFromBytes(); SparseArray is replaced by a HashMap.
+    private static class ParsedRecord {
+        final List<UUID> mServiceUuids = new ArrayList<>();
+        final Map<Integer, byte[]> mManufacturerData = new HashMap<>();
+        final Map<UUID, byte[]> mServiceData = new HashMap<>();
+        int mFlags = -1;
+        int mTxPower = Integer.MIN_VALUE;
+        String mName;
+
+        static ParsedRecord parse(byte[] record) {
+            final ParsedRecord parsed = new ParsedRecord();
+            int offset = 0;
+            while (offset < record.length) {
+                final int length = record[offset++] & 0xFF;
+                if (length == 0) break;
+                final int dataLength = length - 1;
+                final int type = record[offset++] & 0xFF;
+                switch (type) {
+                    case 0x01:
+                        parsed.mFlags = record[offset] & 0xFF;
+                        break;
+                    case 0x02:
+                    case 0x03:
+                        parseUuids(record, offset, dataLength, 2, parsed.mServiceUuids);
+                        break;
+                    case 0x04:
+                    case 0x05:
+                        parseUuids(record, offset, dataLength, 4, parsed.mServiceUuids);
+                        break;
+                    case 0x06:
+                    case 0x07:
+                        parseUuids(record, offset, dataLength, 16, parsed.mServiceUuids);
+                        break;
+                    case 0x08:
+                    case 0x09:
+                        parsed.mName = new String(extract(record, offset, dataLength),
+                                StandardCharsets.UTF_8);
+                        break;
+                    case 0x0A:
+                        parsed.mTxPower = record[offset];
+                        break;
+                    case 0x16:
+                    case 0x20:
+                    case 0x21: {
+                        final int size = type == 0x16 ? 2 : type == 0x20 ? 4 : 16;
+                        parsed.mServiceData.put(
+                                toUuid(extract(record, offset, size)),
+                                extract(record, offset + size, dataLength - size));
+                        break;
+                    }
+                    case 0xFF: {
+                        final int id = ((record[offset + 1] & 0xFF) << 8)
+                                | (record[offset] & 0xFF);
+                        parsed.mManufacturerData.put(id,
+                                extract(record, offset + 2, dataLength - 2));
+                        break;
+                    }
+                    default:
+                        break;
+                }
+                offset += dataLength;
+            }
+            return parsed;
+        }
+
+        private static void parseUuids(byte[] record, int offset, int length, int size,
+                List<UUID> uuids) {
+            while (length > 0) {
+                uuids.add(toUuid(extract(record, offset, size)));
+                offset += size;
+                length -= size;
+            }
+        }
+
+        private static UUID toUuid(byte[] bytes) {
+            long lsb = 0;
+            long msb = 0;
+            if (bytes.length == 16) {
+                for (int i = 7; i >= 0; i--) lsb = (lsb << 8) | (bytes[i] & 0xFF);
+                for (int i = 15; i >= 8; i--) msb = (msb << 8) | (bytes[i] & 0xFF);
+                return new UUID(msb, lsb);
+            }
+            long value = 0;
+            for (int i = bytes.length - 1; i >= 0; i--) value = (value << 8) | (bytes[i] & 0xFF);
+            return new UUID(AdvertisingDataParser.BASE_UUID_MOST_SIGNIFICANT_BITS | value << 32,
+                    AdvertisingDataParser.BASE_UUID_LEAST_SIGNIFICANT_BITS);
+        }
+
+        private static byte[] extract(byte[] record, int offset, int length) {
+            final byte[] bytes = new byte[length];
+            System.arraycopy(record, offset, bytes, 0, length);
+            return bytes;
+        }
+    }
+}
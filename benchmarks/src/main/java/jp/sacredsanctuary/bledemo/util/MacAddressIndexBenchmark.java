@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building a deduplicated device list from 10k synthetic scan results with
+ * {@link MacAddressIndex}, as {@code BluetoothDeviceListViewModel} does, against the previous
+ * linear search over address Strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MacAddressIndexBenchmark {
+    private static final int RESULTS = 10000;
+    private static final int DEVICES = 5000;
+
+    private String[] mResults;
+    private final MacAddressIndex mIndex = new MacAddressIndex();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        String[] addresses = new String[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            addresses[i] = MacAddressIndex.format(random.nextLong() & 0xFFFFFFFFFFFFL);
+        }
+        // Every device advertises about twice, in random order.
+        mResults = new String[RESULTS];
+        for (int i = 0; i < RESULTS; i++) {
+            mResults[i] = addresses[random.nextInt(DEVICES)];
+        }
+    }
+
+    // Mirrors the former containsDeviceDataList() loop.
+    @Benchmark
+    public int linear() {
+        List<String> list = new ArrayList<>();
+        for (String address : mResults) {
+            boolean found = false;
+            for (String listed : list) {
+                if (listed.equals(address)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) list.add(address);
+        }
+        return list.size();
+    }
+
+    // Mirrors BluetoothDeviceListViewModel.putDeviceData().
+    @Benchmark
+    public int indexed() {
+        List<String> list = new ArrayList<>();
+        mIndex.clear();
+        for (String address : mResults) {
+            long key = MacAddressIndex.pack(address);
+            int position = mIndex.get(key);
+            if (position == MacAddressIndex.NOT_FOUND) {
+                mIndex.put(key, list.size());
+                list.add(address);
+            } else {
+                list.set(position, address);
+            }
+        }
+        return list.size();
+    }
+}
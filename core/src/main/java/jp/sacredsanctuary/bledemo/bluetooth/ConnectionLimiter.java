@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Caps the number of concurrent connections and queues the other connection requests.
+ * <p>
+ * A request is admitted right away while a slot is free. Otherwise it waits in arrival order
+ * and is admitted when a slot is released, so a device that is slow to disconnect cannot
+ * starve the others; a device released and requested again goes to the back of the queue.
+ * A device is admitted or waiting at most once.
+ * <p>
+ * This class is not thread safe.
+ */
+public class ConnectionLimiter {
+    /**
+     * Starts the connection of an admitted device.
+     */
+    public interface Connector {
+        /**
+         * Starts connecting to a device.
+         *
+         * @param address Bluetooth address as string
+         * @return Returns {@code true} if the connection was started, {@code false} otherwise.
+         */
+        boolean connect(String address);
+    }
+
+    private final int mMaxConnections;
+    private final Connector mConnector;
+    private final Set<String> mActive = new HashSet<>();
+    private final ArrayDeque<String> mWaiting = new ArrayDeque<>();
+    private long mQueuedCount;
+
+    /**
+     * Create a new ConnectionLimiter.
+     *
+     * @param maxConnections Maximum number of devices connected at once
+     * @param connector      Connector starting the admitted connections
+     */
+    public ConnectionLimiter(int maxConnections, Connector connector) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections:" + maxConnections);
+        }
+        mMaxConnections = maxConnections;
+        mConnector = connector;
+    }
+
+    /**
+     * Requests a connection to a device.
+     *
+     * @param address Bluetooth address as string
+     * @return Returns {@code true} if the connection was started or is waiting for a slot,
+     * {@code false} if it could not be started.
+     */
+    public boolean request(String address) {
+        if (mActive.contains(address)) {
+            // Reconnect over the slot the device already holds.
+            return mConnector.connect(address);
+        }
+        if (mWaiting.contains(address)) return true;
+        if (mActive.size() < mMaxConnections) {
+            return admit(address);
+        }
+        mWaiting.add(address);
+        mQueuedCount++;
+        return true;
+    }
+
+    /**
+     * Releases the slot held by a device and admits the next waiting device.
+     *
+     * @param address Bluetooth address as string
+     */
+    public void release(String address) {
+        if (mActive.remove(address)) {
+            admitWaiting();
+        }
+    }
+
+    /**
+     * Withdraws the request of a device waiting for a slot.
+     *
+     * @param address Bluetooth address as string
+     */
+    public void cancel(String address) {
+        mWaiting.remove(address);
+    }
+
+    /**
+     * Determines if a device holds a connection slot.
+     *
+     * @param address Bluetooth address as string
+     * @return Returns {@code true} if the device is admitted, {@code false} otherwise.
+     */
+    public boolean isActive(String address) {
+        return mActive.contains(address);
+    }
+
+    /**
+     * Determines if a device is waiting for a connection slot.
+     *
+     * @param address Bluetooth address as string
+     * @return Returns {@code true} if the device is waiting, {@code false} otherwise.
+     */
+    public boolean isWaiting(String address) {
+        return mWaiting.contains(address);
+    }
+
+    /**
+     * Returns the number of devices holding a connection slot.
+     *
+     * @return The number of admitted devices.
+     */
+    public int getActiveCount() {
+        return mActive.size();
+    }
+
+    /**
+     * Returns the number of devices waiting for a connection slot.
+     *
+     * @return The number of waiting devices.
+     */
+    public int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    /**
+     * Returns the maximum number of devices connected at once.
+     *
+     * @return The number of connection slots.
+     */
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Returns the number of requests that had to wait for a slot.
+     *
+     * @return The number of queued requests.
+     */
+    public long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    private boolean admit(String address) {
+        mActive.add(address);
+        if (mConnector.connect(address)) return true;
+        mActive.remove(address);
+        return false;
+    }
+
+    private void admitWaiting() {
+        while (mActive.size() < mMaxConnections && !mWaiting.isEmpty()) {
+            admit(mWaiting.poll());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Events a listener of a {@link ListenerRegistry} is interested in. Every condition that is set
+ * must match.
+ * <p>
+ * An event has a type, and the address of its device and the UUID of its characteristic when
+ * it has one. The device condition only applies to events of a device, and the characteristic
+ * condition only to events of a characteristic: a listener restricted to one characteristic
+ * still receives the connection events of its device, unless the event types exclude them.
+ * <p>
+ * Instances are immutable.
+ */
+public final class EventFilter {
+    // Largest number of event types a filter tells apart.
+    public static final int MAX_EVENT_TYPES = 32;
+    /**
+     * Accepts every event.
+     */
+    public static final EventFilter ALL = new Builder().build();
+
+    private final int mEventMask;
+    private final Set<String> mAddresses;
+    private final Set<UUID> mUuids;
+
+    private EventFilter(Builder builder) {
+        // No type added means every type.
+        mEventMask = builder.mEventMask == 0 ? ~0 : builder.mEventMask;
+        mAddresses = builder.mAddresses.isEmpty()
+                ? null : Collections.unmodifiableSet(new HashSet<>(builder.mAddresses));
+        mUuids = builder.mUuids.isEmpty()
+                ? null : Collections.unmodifiableSet(new HashSet<>(builder.mUuids));
+    }
+
+    /**
+     * Determines if an event is accepted.
+     *
+     * @param type    The type of the event, from 0 to {@link #MAX_EVENT_TYPES} - 1
+     * @param address The address of the device, or null if the event has no device
+     * @param uuid    The UUID of the characteristic, or null if the event has no characteristic
+     * @return Returns {@code true} if every condition matches, {@code false} otherwise.
+     */
+    public boolean accepts(int type, String address, UUID uuid) {
+        if ((mEventMask & (1 << type)) == 0) return false;
+        if (address != null && mAddresses != null && !mAddresses.contains(address)) {
+            return false;
+        }
+        return uuid == null || mUuids == null || mUuids.contains(uuid);
+    }
+
+    /**
+     * Returns the addresses of the devices accepted.
+     *
+     * @return The addresses, or null if every device is accepted.
+     */
+    public Set<String> getAddresses() {
+        return mAddresses;
+    }
+
+    /**
+     * Returns the UUIDs of the characteristics accepted.
+     *
+     * @return The UUIDs, or null if every characteristic is accepted.
+     */
+    public Set<UUID> getUuids() {
+        return mUuids;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "EventFilter{events=0x" + Integer.toHexString(mEventMask)
+                + " devices=" + mAddresses + " characteristics=" + mUuids + "}";
+    }
+
+    /**
+     * Builder for {@link EventFilter}. Events of every type, device and characteristic are
+     * accepted unless restricted.
+     */
+    public static final class Builder {
+        private int mEventMask = 0;
+        private final Set<String> mAddresses = new HashSet<>();
+        private final Set<UUID> mUuids = new HashSet<>();
+
+        /**
+         * Accepts events of a type. Once a type is added, events of the types not added are
+         * rejected.
+         *
+         * @param type The type of the events, from 0 to {@link #MAX_EVENT_TYPES} - 1
+         * @return This builder.
+         */
+        public Builder addEventType(int type) {
+            if (type < 0 || type >= MAX_EVENT_TYPES) {
+                throw new IllegalArgumentException("type:" + type);
+            }
+            mEventMask |= 1 << type;
+            return this;
+        }
+
+        /**
+         * Accepts the events of a device. Once a device is added, the events of the devices
+         * not added are rejected.
+         *
+         * @param address The Bluetooth address of the device
+         * @return This builder.
+         */
+        public Builder addDevice(String address) {
+            if (address == null) throw new IllegalArgumentException("address:null");
+            mAddresses.add(address);
+            return this;
+        }
+
+        /**
+         * Accepts the events of a characteristic. Once a characteristic is added, the events of
+         * the characteristics not added are rejected.
+         *
+         * @param uuid The UUID of the characteristic
+         * @return This builder.
+         */
+        public Builder addCharacteristic(UUID uuid) {
+            if (uuid == null) throw new IllegalArgumentException("uuid:null");
+            mUuids.add(uuid);
+            return this;
+        }
+
+        /**
+         * Builds the filter.
+         *
+         * @return The event filter.
+         */
+        public EventFilter build() {
+            return new EventFilter(this);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import jp.sacredsanctuary.bledemo.util.LatencyHistogram;
+
+/**
+ * Latency histograms of the GATT lifecycle of a device, or of every device.
+ * <p>
+ * One histogram is kept per {@code GattOperation.TYPE_*}, timing an operation from its start
+ * to its successful completion, one for the time between two notifications received from the
+ * device, and one for the time a lost link took to be restored by {@link GattReconnector}.
+ * The statistics of a device may forward every value to aggregate
+ * statistics shared by all devices. Recording allocates nothing.
+ */
+public class GattLatencyStats {
+    // Histograms of the time between two notifications and of the time from a link loss to
+    // the restored link, after the GattOperation types.
+    public static final int TYPE_NOTIFICATION_INTERVAL = GattOperation.TYPE_COUNT;
+    public static final int TYPE_RECONNECT = GattOperation.TYPE_COUNT + 1;
+    public static final int TYPE_COUNT = GattOperation.TYPE_COUNT + 2;
+
+    private static final String[] TYPE_NAMES = {
+            "connect", "discoverServices", "writeDescriptor", "requestMtu",
+            "writeCharacteristic", "readCharacteristic", "setPreferredPhy",
+            "requestConnectionPriority", "notificationInterval", "reconnect"};
+    private static final double[] DUMP_PERCENTILES = {50, 90, 99, 99.9};
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[TYPE_COUNT];
+    private final GattLatencyStats mAggregate;
+
+    /**
+     * Create new GattLatencyStats that are not forwarded.
+     */
+    public GattLatencyStats() {
+        this(null);
+    }
+
+    /**
+     * Create new GattLatencyStats.
+     *
+     * @param aggregate Statistics also receiving every recorded value, or null
+     */
+    public GattLatencyStats(GattLatencyStats aggregate) {
+        mAggregate = aggregate;
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            mHistograms[type] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns a readable name for a histogram type.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants,
+     *             {@link #TYPE_NOTIFICATION_INTERVAL} or {@link #TYPE_RECONNECT}
+     * @return The name of the type.
+     */
+    public static String getTypeName(int type) {
+        checkType(type);
+        return TYPE_NAMES[type];
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param type  One of the {@code GattOperation.TYPE_*} constants,
+     *              {@link #TYPE_NOTIFICATION_INTERVAL} or {@link #TYPE_RECONNECT}
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(int type, long nanos) {
+        mHistograms[type].record(nanos);
+        if (mAggregate != null) {
+            mAggregate.record(type, nanos);
+        }
+    }
+
+    /**
+     * Returns the histogram of a type.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants,
+     *             {@link #TYPE_NOTIFICATION_INTERVAL} or {@link #TYPE_RECONNECT}
+     * @return The histogram.
+     */
+    public LatencyHistogram getHistogram(int type) {
+        checkType(type);
+        return mHistograms[type];
+    }
+
+    /**
+     * Returns the latency below which the given share of the values of a type falls.
+     *
+     * @param type       One of the {@code GattOperation.TYPE_*} constants,
+     *                   {@link #TYPE_NOTIFICATION_INTERVAL} or {@link #TYPE_RECONNECT}
+     * @param percentile The share of values, from 0 to 100
+     * @return The latency in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(int type, double percentile) {
+        return getHistogram(type).getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Clears every histogram. The aggregate statistics are left untouched.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Prints one line per non-empty histogram, with its count, mean, percentiles and maximum
+     * in milliseconds.
+     *
+     * @param writer The writer to print to
+     * @param prefix Text printed at the start of each line
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        for (int type = 0; type < TYPE_COUNT; type++) {
+            final LatencyHistogram histogram = mHistograms[type];
+            final long count = histogram.getCount();
+            if (count == 0) continue;
+            final StringBuilder line = new StringBuilder(prefix)
+                    .append(String.format(Locale.ROOT, "%-26s n=%-6d mean=%.2f",
+                            TYPE_NAMES[type] + ':', count, toMillis(histogram.getMean())));
+            for (double percentile : DUMP_PERCENTILES) {
+                line.append(String.format(Locale.ROOT, " p%s=%.2f",
+                        percentile == (long) percentile
+                                ? Long.toString((long) percentile) : Double.toString(percentile),
+                        toMillis(histogram.getValueAtPercentile(percentile))));
+            }
+            line.append(String.format(Locale.ROOT, " max=%.2f ms", toMillis(histogram.getMax())));
+            writer.println(line);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    private static void checkType(int type) {
+        if (type < 0 || type >= TYPE_COUNT) {
+            throw new IllegalArgumentException("type:" + type);
+        }
+    }
+}
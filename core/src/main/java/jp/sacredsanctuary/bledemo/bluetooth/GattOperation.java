@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+/**
+ * A single GATT request executed by {@link GattOperationQueue}.
+ * <p>
+ * The Android GATT client accepts only one outstanding request per connection, so every
+ * request is wrapped in an operation and started once the previous one has completed.
+ */
+public abstract class GattOperation {
+    public static final int TYPE_CONNECT = 0;
+    public static final int TYPE_DISCOVER_SERVICES = 1;
+    public static final int TYPE_WRITE_DESCRIPTOR = 2;
+    public static final int TYPE_REQUEST_MTU = 3;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 4;
+    public static final int TYPE_READ_CHARACTERISTIC = 5;
+    public static final int TYPE_SET_PREFERRED_PHY = 6;
+    public static final int TYPE_REQUEST_CONNECTION_PRIORITY = 7;
+    public static final int TYPE_COUNT = 8;
+
+    private final int mType;
+    private final int mLength;
+    long mEnqueuedNanos;
+    long mStartedNanos;
+
+    /**
+     * Create a new GattOperation that carries no payload.
+     *
+     * @param type One of the {@code TYPE_*} constants
+     */
+    protected GattOperation(int type) {
+        this(type, 0);
+    }
+
+    /**
+     * Create a new GattOperation.
+     *
+     * @param type   One of the {@code TYPE_*} constants
+     * @param length Number of payload bytes transferred by this operation
+     */
+    protected GattOperation(int type, int length) {
+        mType = type;
+        mLength = length;
+    }
+
+    /**
+     * Returns the type of this operation.
+     *
+     * @return One of the {@code TYPE_*} constants.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the number of payload bytes transferred by this operation.
+     *
+     * @return The payload length in bytes.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Hands the request to the Bluetooth stack. The result is reported asynchronously through
+     * {@link BleGattCallback}, which completes the operation on the queue.
+     *
+     * @return Returns {@code true} if the request was started, {@code false} otherwise.
+     */
+    public abstract boolean execute();
+
+    /**
+     * Determines if the {@link GattWatchdog} of the queue may time this operation out.
+     *
+     * @return Returns {@code true} unless the operation may wait as long as it takes, such as a
+     * background connection waiting for the device to come in range.
+     */
+    protected boolean isWatched() {
+        return true;
+    }
+
+    /**
+     * Called by the queue once the result of this operation is known, including when the
+     * operation could not be started or was dropped because the link was lost.
+     *
+     * @param success {@code true} if the operation completed successfully
+     */
+    protected void onCompleted(boolean success) {
+    }
+}
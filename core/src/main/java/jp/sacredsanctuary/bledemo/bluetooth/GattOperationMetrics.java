@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+/**
+ * Per operation timings and write throughput collected by {@link GattOperationQueue}.
+ * <p>
+ * Connection setup time is measured from the start of a {@link GattOperation#TYPE_CONNECT}
+ * operation to the first successful {@link GattOperation#TYPE_REQUEST_MTU} that follows it,
+ * which is the point where the connection is reported as completed to the UI.
+ * <p>
+ * The latency of every successful operation is also recorded in {@link GattLatencyStats}.
+ * Operations that time out are counted as failed once their recovery gives up on them.
+ */
+public class GattOperationMetrics {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long[] mCompletedCount = new long[GattOperation.TYPE_COUNT];
+    private final long[] mFailedCount = new long[GattOperation.TYPE_COUNT];
+    private final long[] mTotalNanos = new long[GattOperation.TYPE_COUNT];
+    private final long[] mMaxNanos = new long[GattOperation.TYPE_COUNT];
+    private final long[] mTotalWaitNanos = new long[GattOperation.TYPE_COUNT];
+    private final long[] mTimeoutCount = new long[GattOperation.TYPE_COUNT];
+    private final long[] mRecoveryCount = new long[GattTimeoutPolicy.ACTION_COUNT];
+    private long mBytesWritten;
+    private long mWriteNanos;
+    private long mConnectionStartedNanos = -1;
+    private long mConnectionSetupNanos = -1;
+    private final GattLatencyStats mLatencyStats;
+
+    /**
+     * Create new GattOperationMetrics.
+     */
+    public GattOperationMetrics() {
+        this(new GattLatencyStats());
+    }
+
+    /**
+     * Create new GattOperationMetrics.
+     *
+     * @param latencyStats Statistics receiving the latency of every successful operation
+     */
+    public GattOperationMetrics(GattLatencyStats latencyStats) {
+        mLatencyStats = latencyStats;
+    }
+
+    synchronized void onOperationStarted(GattOperation operation) {
+        mTotalWaitNanos[operation.getType()] += operation.mStartedNanos - operation.mEnqueuedNanos;
+        if (GattOperation.TYPE_CONNECT == operation.getType()) {
+            mConnectionStartedNanos = operation.mStartedNanos;
+            mConnectionSetupNanos = -1;
+        }
+    }
+
+    synchronized void onOperationCompleted(GattOperation operation, boolean success,
+            long nowNanos) {
+        final int type = operation.getType();
+        if (!success) {
+            mFailedCount[type]++;
+            return;
+        }
+        final long elapsed = nowNanos - operation.mStartedNanos;
+        mCompletedCount[type]++;
+        mTotalNanos[type] += elapsed;
+        mMaxNanos[type] = Math.max(mMaxNanos[type], elapsed);
+        mLatencyStats.record(type, elapsed);
+        if (GattOperation.TYPE_WRITE_CHARACTERISTIC == type) {
+            mBytesWritten += operation.getLength();
+            mWriteNanos += elapsed;
+        } else if (GattOperation.TYPE_REQUEST_MTU == type && mConnectionStartedNanos >= 0) {
+            mConnectionSetupNanos = nowNanos - mConnectionStartedNanos;
+            mConnectionStartedNanos = -1;
+        }
+    }
+
+    synchronized void onOperationTimedOut(GattOperation operation) {
+        mTimeoutCount[operation.getType()]++;
+    }
+
+    synchronized void onRecovery(int action) {
+        mRecoveryCount[action]++;
+    }
+
+    /**
+     * Returns the number of operations of the given type that completed successfully.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The number of successful operations.
+     */
+    public synchronized long getCompletedCount(int type) {
+        return mCompletedCount[type];
+    }
+
+    /**
+     * Returns the number of operations of the given type that failed or could not be started.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The number of failed operations.
+     */
+    public synchronized long getFailedCount(int type) {
+        return mFailedCount[type];
+    }
+
+    /**
+     * Returns the number of times operations of the given type timed out, retries included.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The number of timeouts.
+     */
+    public synchronized long getTimeoutCount(int type) {
+        return mTimeoutCount[type];
+    }
+
+    /**
+     * Returns the number of times a recovery was applied to an operation that timed out.
+     *
+     * @param action One of the {@code GattTimeoutPolicy.ACTION_*} constants
+     * @return The number of recoveries.
+     */
+    public synchronized long getRecoveryCount(int action) {
+        return mRecoveryCount[action];
+    }
+
+    /**
+     * Returns the average time between starting an operation and its completion.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The average latency in nanoseconds, or 0 if none completed.
+     */
+    public synchronized long getAverageLatencyNanos(int type) {
+        return mCompletedCount[type] == 0 ? 0 : mTotalNanos[type] / mCompletedCount[type];
+    }
+
+    /**
+     * Returns the longest time between starting an operation and its completion.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The maximum latency in nanoseconds, or 0 if none completed.
+     */
+    public synchronized long getMaxLatencyNanos(int type) {
+        return mMaxNanos[type];
+    }
+
+    /**
+     * Returns the total time operations of the given type spent waiting in the queue.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The total queueing delay in nanoseconds.
+     */
+    public synchronized long getTotalWaitNanos(int type) {
+        return mTotalWaitNanos[type];
+    }
+
+    /**
+     * Returns the time taken by the last connection setup.
+     *
+     * @return The connection setup time in nanoseconds, or -1 if no setup has completed.
+     */
+    public synchronized long getConnectionSetupNanos() {
+        return mConnectionSetupNanos;
+    }
+
+    /**
+     * Returns the number of payload bytes written by successful characteristic writes.
+     *
+     * @return The number of bytes written.
+     */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the characteristic write throughput.
+     *
+     * @return The throughput in bytes per second, or 0 if nothing has been written.
+     */
+    public synchronized long getWriteThroughput() {
+        return mWriteNanos == 0 ? 0 : mBytesWritten * NANOS_PER_SECOND / mWriteNanos;
+    }
+
+    /**
+     * Returns the latency histograms of the operations.
+     *
+     * @return The latency statistics.
+     */
+    public GattLatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * Clears every collected value.
+     */
+    public synchronized void reset() {
+        for (int type = 0; type < GattOperation.TYPE_COUNT; type++) {
+            mCompletedCount[type] = 0;
+            mFailedCount[type] = 0;
+            mTotalNanos[type] = 0;
+            mMaxNanos[type] = 0;
+            mTotalWaitNanos[type] = 0;
+            mTimeoutCount[type] = 0;
+        }
+        for (int action = 0; action < GattTimeoutPolicy.ACTION_COUNT; action++) {
+            mRecoveryCount[action] = 0;
+        }
+        mBytesWritten = 0;
+        mWriteNanos = 0;
+        mConnectionStartedNanos = -1;
+        mConnectionSetupNanos = -1;
+        mLatencyStats.reset();
+    }
+}
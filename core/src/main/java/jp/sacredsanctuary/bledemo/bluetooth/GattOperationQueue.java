@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import jp.sacredsanctuary.bledemo.util.HashedTimerWheel;
+
+/**
+ * Serializes {@link GattOperation}s for a single connection.
+ * <p>
+ * Exactly one operation is outstanding at a time. The next operation is started as soon as
+ * {@link #onOperationCompleted(int, int)} reports the result of the current one.
+ * <p>
+ * With a {@link GattWatchdog}, the outstanding operation is given a deadline by the
+ * {@link GattTimeoutPolicy} of the watchdog, so a result that never arrives does not block the
+ * link forever. ATT leaves a request pending until it is answered or the link is lost, so the
+ * result of a request that timed out is still owed: it is dropped when it arrives, rather than
+ * completing the retry or the next operation of the same type.
+ */
+public class GattOperationQueue {
+    // Same value as BluetoothGatt.GATT_SUCCESS.
+    public static final int GATT_SUCCESS = 0;
+
+    /**
+     * Source of monotonic time used to measure operations.
+     */
+    public interface Clock {
+        /**
+         * Returns the current value of a monotonic clock, in nanoseconds.
+         */
+        long nanoTime();
+    }
+
+    /**
+     * Receives the operations whose timeout tears the link down.
+     */
+    public interface StallListener {
+        /**
+         * Called when an operation timed out and the policy tears the link down, once the
+         * operation and every pending one have been failed.
+         *
+         * @param operation The operation that timed out
+         */
+        void onLinkStalled(GattOperation operation);
+    }
+
+    private final Clock mClock;
+    private final ArrayDeque<GattOperation> mOperations = new ArrayDeque<>();
+    private final GattOperationMetrics mMetrics;
+    private GattOperation mCurrentOperation;
+    private boolean mExecuting = false;
+    private final HashedTimerWheel.Timeout mTimeout =
+            new HashedTimerWheel.Timeout(this::onTimeout);
+    private GattWatchdog mWatchdog;
+    private StallListener mStallListener;
+    // Retries of the outstanding operation, and timeouts since the device last answered.
+    private int mRetries;
+    private int mConsecutiveTimeouts;
+    // Results still owed for the requests that timed out, per type of operation.
+    private final int[] mLateResults = new int[GattOperation.TYPE_COUNT];
+
+    /**
+     * Create a new GattOperationQueue.
+     */
+    public GattOperationQueue() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * Create a new GattOperationQueue.
+     *
+     * @param clock Clock used to timestamp operations
+     */
+    public GattOperationQueue(Clock clock) {
+        this(clock, new GattLatencyStats());
+    }
+
+    /**
+     * Create a new GattOperationQueue.
+     *
+     * @param clock        Clock used to timestamp operations
+     * @param latencyStats Statistics receiving the latency of every successful operation
+     */
+    public GattOperationQueue(Clock clock, GattLatencyStats latencyStats) {
+        mClock = clock;
+        mMetrics = new GattOperationMetrics(latencyStats);
+    }
+
+    /**
+     * Gives the operations started from now on a deadline.
+     *
+     * @param watchdog The watchdog, or null to wait for every result however long it takes
+     * @param listener Listener tearing the link down when the policy says so, or null
+     */
+    public synchronized void setWatchdog(GattWatchdog watchdog, StallListener listener) {
+        if (mWatchdog != null) {
+            mWatchdog.disarm(mTimeout);
+        }
+        mWatchdog = watchdog;
+        mStallListener = listener;
+    }
+
+    /**
+     * Adds an operation to the end of the queue, starting it right away if the link is idle.
+     *
+     * @param operation The operation to execute
+     */
+    public synchronized void enqueue(GattOperation operation) {
+        operation.mEnqueuedNanos = mClock.nanoTime();
+        mOperations.add(operation);
+        executeNext();
+    }
+
+    /**
+     * Completes the outstanding operation and starts the next one.
+     *
+     * @param type   The type of the operation reported by the Bluetooth stack
+     * @param status {@code BluetoothGatt#GATT_SUCCESS} if the operation succeeded
+     * @return Returns {@code true} if the outstanding operation was completed, {@code false} if
+     * the event was not solicited by this queue or answers a request that timed out.
+     */
+    public synchronized boolean onOperationCompleted(int type, int status) {
+        if (mLateResults[type] > 0) {
+            // Results of a type arrive in the order of the requests: this one is stale.
+            mLateResults[type]--;
+            return false;
+        }
+        final GattOperation operation = mCurrentOperation;
+        if (operation == null || operation.getType() != type) {
+            return false;
+        }
+        mCurrentOperation = null;
+        disarm();
+        mConsecutiveTimeouts = 0;
+        final boolean success = GATT_SUCCESS == status;
+        mMetrics.onOperationCompleted(operation, success, mClock.nanoTime());
+        operation.onCompleted(success);
+        executeNext();
+        return true;
+    }
+
+    /**
+     * Fails the outstanding operation and drops every pending one. Called when the link is lost.
+     */
+    public synchronized void onConnectionLost() {
+        final GattOperation operation = mCurrentOperation;
+        mCurrentOperation = null;
+        disarm();
+        mConsecutiveTimeouts = 0;
+        // Nothing is answered on a link that is gone.
+        Arrays.fill(mLateResults, 0);
+        if (operation != null) {
+            mMetrics.onOperationCompleted(operation, false, mClock.nanoTime());
+            operation.onCompleted(false);
+        }
+        dropPendingOperations();
+    }
+
+    /**
+     * Drops the outstanding and every pending operation without recording them in the metrics.
+     */
+    public synchronized void clear() {
+        final GattOperation operation = mCurrentOperation;
+        mCurrentOperation = null;
+        disarm();
+        Arrays.fill(mLateResults, 0);
+        if (operation != null) {
+            operation.onCompleted(false);
+        }
+        dropPendingOperations();
+    }
+
+    /**
+     * Determines if no operation is outstanding or pending.
+     *
+     * @return Returns {@code true} if the queue is idle, {@code false} otherwise.
+     */
+    public synchronized boolean isIdle() {
+        return mCurrentOperation == null && mOperations.isEmpty();
+    }
+
+    /**
+     * Returns the number of operations waiting behind the outstanding one.
+     *
+     * @return The number of pending operations.
+     */
+    public synchronized int getPendingCount() {
+        return mOperations.size();
+    }
+
+    /**
+     * Returns the metrics collected for the operations executed by this queue.
+     *
+     * @return The metrics of this queue.
+     */
+    public GattOperationMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private void executeNext() {
+        // An operation may complete synchronously from execute(); keep a single loop running.
+        if (mExecuting) return;
+        mExecuting = true;
+        try {
+            while (mCurrentOperation == null && !mOperations.isEmpty()) {
+                final GattOperation operation = mOperations.poll();
+                operation.mStartedNanos = mClock.nanoTime();
+                mMetrics.onOperationStarted(operation);
+                mCurrentOperation = operation;
+                mRetries = 0;
+                if (operation.execute()) {
+                    // Unless the result was reported synchronously.
+                    if (mCurrentOperation == operation && mWatchdog != null
+                            && operation.isWatched()) {
+                        mWatchdog.arm(mTimeout, operation.getType());
+                    }
+                } else if (mCurrentOperation == operation) {
+                    mCurrentOperation = null;
+                    mMetrics.onOperationCompleted(operation, false, mClock.nanoTime());
+                    operation.onCompleted(false);
+                }
+            }
+        } finally {
+            mExecuting = false;
+        }
+    }
+
+    /**
+     * Recovers from an outstanding operation whose result did not arrive in time.
+     */
+    private synchronized void onTimeout() {
+        final GattOperation operation = mCurrentOperation;
+        if (operation == null || mWatchdog == null) return;
+        final GattTimeoutPolicy policy = mWatchdog.getPolicy();
+        final int type = operation.getType();
+        int action;
+        if (++mConsecutiveTimeouts >= policy.getMaxConsecutiveTimeouts()) {
+            action = GattTimeoutPolicy.ACTION_DISCONNECT;
+        } else if (mRetries < policy.getMaxRetries(type)) {
+            action = GattTimeoutPolicy.ACTION_RETRY;
+        } else {
+            action = policy.getAction(type);
+        }
+        mWatchdog.onTimedOut(type);
+        mMetrics.onOperationTimedOut(operation);
+        mLateResults[type]++;
+        if (GattTimeoutPolicy.ACTION_RETRY == action) {
+            mRetries++;
+            mWatchdog.onRecovery(action);
+            mMetrics.onRecovery(action);
+            // The latency of the operation keeps counting from its first attempt.
+            if (operation.execute()) {
+                if (mCurrentOperation == operation) {
+                    mWatchdog.arm(mTimeout, type);
+                }
+                return;
+            }
+            if (mCurrentOperation != operation) return;
+            // The request could not be sent again, most likely as the stack is still busy.
+            action = policy.getAction(type);
+        }
+        mWatchdog.onRecovery(action);
+        mMetrics.onRecovery(action);
+        mCurrentOperation = null;
+        mMetrics.onOperationCompleted(operation, false, mClock.nanoTime());
+        operation.onCompleted(false);
+        if (GattTimeoutPolicy.ACTION_FAIL == action) {
+            executeNext();
+            return;
+        }
+        dropPendingOperations();
+        if (mStallListener != null) {
+            mStallListener.onLinkStalled(operation);
+        }
+    }
+
+    private void disarm() {
+        if (mWatchdog != null) {
+            mWatchdog.disarm(mTimeout);
+        }
+    }
+
+    private void dropPendingOperations() {
+        GattOperation operation;
+        while ((operation = mOperations.poll()) != null) {
+            operation.onCompleted(false);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Restores the link of a {@link GattSession} that dropped, see
+ * {@link GattSession#setReconnectPolicy}.
+ * <p>
+ * Only a link that went through its whole setup is restored; a first connection that fails is
+ * reported to the app as before, as is a link the app disconnects. Once a link is lost,
+ * attempts are made as the {@link ReconnectPolicy} says until one succeeds or the app
+ * disconnects or connects the device itself. On the restored link the session discovers the
+ * services, from the attribute cache when it can, exchanges the MTU last requested, applies
+ * the link profile and writes the Client Characteristic Configuration of every characteristic
+ * subscribed to, without involving the app.
+ * <p>
+ * The reconnect latency, from the link loss until the link is set up and its subscriptions
+ * are restored, is recorded in the {@link GattLatencyStats#TYPE_RECONNECT} histogram of the
+ * session. The engine runs on the thread that owns the session; the counters may be read from
+ * any thread.
+ */
+public class GattReconnector {
+    /**
+     * Receives the progress of the reconnections, on the thread that owns the session.
+     */
+    public interface Listener {
+        /**
+         * Called when an attempt to restore the link is scheduled.
+         *
+         * @param session     The session of the device
+         * @param attempt     Number of the attempt since the link was lost, from 1
+         * @param delayNanos  Time until the attempt starts
+         * @param autoConnect {@code true} for a background connection
+         */
+        void onReconnectScheduled(GattSession session, int attempt, long delayNanos,
+                boolean autoConnect);
+
+        /**
+         * Called once the link is set up again and its subscriptions are restored.
+         *
+         * @param session      The session of the device
+         * @param attempts     Number of attempts it took
+         * @param latencyNanos Time since the link was lost
+         * @param success      {@code false} if a subscription could not be restored
+         */
+        void onReconnected(GattSession session, int attempts, long latencyNanos,
+                boolean success);
+    }
+
+    private final GattSession mSession;
+    private final ReconnectPolicy mPolicy;
+    private final GattWatchdog.Scheduler mScheduler;
+    private final GattOperationQueue.Clock mClock;
+    private final Random mRandom;
+    private volatile Listener mListener;
+    // Whether the current link went through its setup, so that its loss is recovered.
+    private boolean mEstablished = false;
+    private volatile boolean mReconnecting = false;
+    // Whether the link is up again and being set up, and whether subscriptions are restored.
+    private boolean mRestoring = false;
+    private boolean mRestoringSubscriptions = false;
+    private int mAttempt;
+    private long mLostNanos;
+    // Invalidates the attempts scheduled before a cancel().
+    private int mGeneration;
+    private long mLinkLossCount;
+    private long mAttemptCount;
+    private long mAutoConnectCount;
+    private long mReconnectCount;
+
+    GattReconnector(GattSession session, ReconnectPolicy policy,
+            GattWatchdog.Scheduler scheduler, GattOperationQueue.Clock clock, Random random) {
+        mSession = session;
+        mPolicy = policy;
+        mScheduler = scheduler;
+        mClock = clock;
+        mRandom = random;
+    }
+
+    /**
+     * Sets the listener receiving the progress of the reconnections.
+     *
+     * @param listener The listener, or null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the policy of the attempts.
+     *
+     * @return The reconnect policy.
+     */
+    public ReconnectPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Determines if a lost link is being restored. Events of the link are then handled by the
+     * session alone.
+     *
+     * @return Returns {@code true} if an attempt is scheduled, in progress, or setting the
+     * restored link up, {@code false} otherwise.
+     */
+    public boolean isReconnecting() {
+        return mReconnecting;
+    }
+
+    /**
+     * Returns the number of links lost that were being restored.
+     *
+     * @return The number of link losses.
+     */
+    public synchronized long getLinkLossCount() {
+        return mLinkLossCount;
+    }
+
+    /**
+     * Returns the number of attempts made, background connections included.
+     *
+     * @return The number of attempts.
+     */
+    public synchronized long getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    /**
+     * Returns the number of attempts that were background connections.
+     *
+     * @return The number of background connections.
+     */
+    public synchronized long getAutoConnectCount() {
+        return mAutoConnectCount;
+    }
+
+    /**
+     * Returns the number of links restored.
+     *
+     * @return The number of successful reconnections.
+     */
+    public synchronized long getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Returns the share of the attempts that restored the link.
+     *
+     * @return The success rate from 0 to 1, or 0 if no attempt was made.
+     */
+    public synchronized double getSuccessRate() {
+        return mAttemptCount == 0 ? 0 : (double) mReconnectCount / mAttemptCount;
+    }
+
+    /**
+     * Stops restoring the link, as the app disconnects or connects the device itself.
+     */
+    void cancel() {
+        mGeneration++;
+        mEstablished = false;
+        mReconnecting = false;
+        mRestoring = false;
+        mRestoringSubscriptions = false;
+    }
+
+    /**
+     * Reports that the link went through its setup.
+     */
+    void onLinkConfigured(boolean success) {
+        mEstablished = true;
+        if (mRestoring && !mRestoringSubscriptions) {
+            onRestored(success);
+        }
+    }
+
+    /**
+     * Reports that the link is lost, or that an attempt failed.
+     *
+     * @return Returns {@code true} if the link is being restored, {@code false} if the loss is
+     * left to the app.
+     */
+    boolean onConnectionLost() {
+        if (!mEstablished) return false;
+        if (!mReconnecting) {
+            mReconnecting = true;
+            mAttempt = 0;
+            mLostNanos = mClock.nanoTime();
+            synchronized (this) {
+                mLinkLossCount++;
+            }
+        }
+        mRestoring = false;
+        mRestoringSubscriptions = false;
+        final int attempt = mAttempt;
+        final boolean autoConnect = mPolicy.isAutoConnect(attempt);
+        final long delay = mPolicy.getDelayNanos(attempt, mRandom.nextDouble());
+        final int generation = mGeneration;
+        mScheduler.schedule(delay, () -> {
+            if (generation != mGeneration || !mReconnecting || mRestoring) return;
+            mAttempt++;
+            synchronized (this) {
+                mAttemptCount++;
+                if (autoConnect) mAutoConnectCount++;
+            }
+            mSession.reconnect(autoConnect);
+        });
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onReconnectScheduled(mSession, attempt + 1, delay, autoConnect);
+        }
+        return true;
+    }
+
+    /**
+     * Reports that the link is up.
+     *
+     * @return Returns {@code true} if the link was restored and is set up by the session,
+     * {@code false} if it was connected by the app.
+     */
+    boolean onConnected() {
+        if (!mReconnecting) return false;
+        mRestoring = true;
+        return true;
+    }
+
+    /**
+     * Determines if the link is up again and being set up.
+     */
+    boolean isRestoring() {
+        return mRestoring;
+    }
+
+    /**
+     * Reports that the subscriptions of the restored link are being written, after its setup.
+     */
+    void onRestoringSubscriptions() {
+        mRestoringSubscriptions = true;
+    }
+
+    /**
+     * Reports that the subscriptions of the restored link have been written.
+     */
+    void onSubscriptionsRestored(boolean success) {
+        if (mRestoringSubscriptions) {
+            onRestored(success);
+        }
+    }
+
+    private void onRestored(boolean success) {
+        final long latency = mClock.nanoTime() - mLostNanos;
+        final int attempts = mAttempt;
+        mReconnecting = false;
+        mRestoring = false;
+        mRestoringSubscriptions = false;
+        synchronized (this) {
+            mReconnectCount++;
+        }
+        mSession.getLatencyStats().record(GattLatencyStats.TYPE_RECONNECT, latency);
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onReconnected(mSession, attempts, latency, success);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "GattReconnector{losses=" + mLinkLossCount + " attempts=" + mAttemptCount
+                + " autoConnect=" + mAutoConnectCount + " reconnects=" + mReconnectCount
+                + " successRate=" + String.format(Locale.ROOT, "%.2f", getSuccessRate())
+                + "}";
+    }
+}
@@ -0,0 +1,981 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.ServiceDiscovery;
+import jp.sacredsanctuary.bledemo.bluetooth.framing.NotificationReassembler;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+
+/**
+ * State of the connection to a single device: its GATT transport, the queue serializing its
+ * requests, the reassembler of its notifications and the link parameters negotiated.
+ * <p>
+ * The session issues every request to the device through its queue, and receives the results
+ * as the {@link GattTransport.Callback} of its transport. Requests and results must be handled
+ * on the thread that owns the session, the worker thread of the controller in the app. The
+ * link parameters are also read by the thread delivering notifications and by the app.
+ */
+public class GattSession implements GattTransport.Callback {
+    // ATT_MTU used until an MTU exchange succeeds.
+    public static final int DEFAULT_MTU = 23;
+    // PHY reported before the stack has told which PHY the link uses.
+    public static final int PHY_UNKNOWN = 0;
+    // Link layer units of the connection interval and the supervision timeout, in microseconds.
+    private static final int INTERVAL_UNIT_MICROS = 1250;
+    private static final int TIMEOUT_UNIT_MILLIS = 10;
+    // Number of chunks a streaming write keeps queued ahead of the link.
+    private static final int WRITE_WINDOW = 4;
+    private static final long NO_NOTIFICATION = Long.MIN_VALUE;
+
+    /**
+     * Receives the events of the session, on the thread that owns it unless stated otherwise.
+     */
+    public interface Listener {
+        /**
+         * Called when the link to the device is up. Services are typically discovered from
+         * here.
+         *
+         * @param session The session of the device
+         */
+        void onConnected(GattSession session);
+
+        /**
+         * Called when the link to the device is lost or could not be established, before the
+         * pending operations are dropped.
+         *
+         * @param session The session of the device
+         */
+        void onConnectionLost(GattSession session);
+
+        /**
+         * Called once the attribute table of the device is known.
+         *
+         * @param session  The session of the device
+         * @param database The attribute table, or null if the discovery failed
+         * @param cached   {@code true} if the table was taken from the attribute cache
+         */
+        void onServicesResolved(GattSession session, GattDatabase database, boolean cached);
+
+        /**
+         * Called once the link profile has been applied after service discovery.
+         *
+         * @param session The session of the device
+         * @param success {@code true} if every link parameter was requested
+         */
+        void onLinkConfigured(GattSession session, boolean success);
+
+        /**
+         * Called on the thread delivering notifications for a notification of a characteristic
+         * without frame decoder.
+         *
+         * @param session The session of the device
+         * @param uuid    The UUID of the characteristic
+         * @param value   The value notified. It may be reused once this method returns.
+         */
+        void onNotification(GattSession session, UUID uuid, byte[] value);
+
+        /**
+         * Called on the thread delivering notifications for a message reassembled from the
+         * notifications of a characteristic.
+         *
+         * @param session The session of the device
+         * @param uuid    The UUID of the characteristic
+         * @param buffer  Buffer holding the message. It may be reused once this method returns.
+         * @param offset  Offset of the message in the buffer
+         * @param length  Length of the message
+         */
+        void onMessageReceived(GattSession session, UUID uuid, byte[] buffer, int offset,
+                int length);
+    }
+
+    private final GattTransport mTransport;
+    private final Listener mListener;
+    private final GattOperationQueue.Clock mClock;
+    private final GattOperationQueue mOperationQueue;
+    private final GattLatencyStats mLatencyStats;
+    private final NotificationReassembler mReassembler = new NotificationReassembler();
+    private final ServiceDiscovery mServiceDiscovery;
+    // Configuration last requested for each characteristic subscribed to, restored with the
+    // MTU last requested when a lost link is restored.
+    private final Map<UUID, Integer> mSubscriptions = new LinkedHashMap<>();
+    private int mRequestedMtu = 0;
+    private GattReconnector mReconnector;
+    private volatile GattDatabase mDatabase;
+    private byte[] mReadValue;
+    private volatile int mMtu = DEFAULT_MTU;
+    private volatile LinkProfile mLinkProfile = LinkProfile.BALANCED;
+    private volatile boolean mConnected = false;
+    private volatile boolean mLinkConfigured = false;
+    private volatile int mTxPhy = PHY_UNKNOWN;
+    private volatile int mRxPhy = PHY_UNKNOWN;
+    private volatile int mConnectionPriority = LinkProfile.CONNECTION_PRIORITY_BALANCED;
+    // Connection parameters in the units of the link layer, 0 until reported by the stack.
+    private volatile int mInterval;
+    private volatile int mLatency;
+    private volatile int mSupervisionTimeout;
+    private volatile long mThroughput;
+    // Time of the last notification received on the current link, NO_NOTIFICATION if none.
+    private volatile long mLastNotificationNanos = NO_NOTIFICATION;
+
+    /**
+     * Create a new GattSession.
+     *
+     * @param transport The transport to the device
+     * @param cache     The cache of attribute tables
+     * @param listener  The listener receiving the events of the session
+     */
+    public GattSession(GattTransport transport, GattAttributeCache cache, Listener listener) {
+        this(transport, cache, listener, System::nanoTime);
+    }
+
+    /**
+     * Create a new GattSession.
+     *
+     * @param transport The transport to the device
+     * @param cache     The cache of attribute tables
+     * @param listener  The listener receiving the events of the session
+     * @param clock     Clock used to measure operations and transfers
+     */
+    public GattSession(GattTransport transport, GattAttributeCache cache, Listener listener,
+            GattOperationQueue.Clock clock) {
+        this(transport, cache, listener, clock, new GattLatencyStats());
+    }
+
+    /**
+     * Create a new GattSession.
+     *
+     * @param transport    The transport to the device
+     * @param cache        The cache of attribute tables
+     * @param listener     The listener receiving the events of the session
+     * @param clock        Clock used to measure operations and transfers
+     * @param latencyStats Statistics receiving the latencies measured on the device
+     */
+    public GattSession(GattTransport transport, GattAttributeCache cache, Listener listener,
+            GattOperationQueue.Clock clock, GattLatencyStats latencyStats) {
+        mTransport = transport;
+        mListener = listener;
+        mClock = clock;
+        mLatencyStats = latencyStats;
+        mOperationQueue = new GattOperationQueue(clock, latencyStats);
+        mServiceDiscovery = new ServiceDiscovery(cache, new DiscoveryClient(),
+                new ServiceDiscovery.Listener() {
+                    @Override
+                    public void onDiscoveryCompleted(GattDatabase database, boolean cached) {
+                        mDatabase = database;
+                        if (mConnected && !mLinkConfigured) {
+                            configureLink();
+                            if (isRestoring()) {
+                                restoreSubscriptions(database);
+                            }
+                        }
+                        mListener.onServicesResolved(GattSession.this, database, cached);
+                    }
+
+                    @Override
+                    public void onDiscoveryFailed() {
+                        if (isRestoring()) {
+                            // Dropping the link has the next attempt discover the services.
+                            mTransport.disconnect();
+                            return;
+                        }
+                        mListener.onServicesResolved(GattSession.this, null, false);
+                    }
+                });
+        mReassembler.setListener((uuid, buffer, offset, length) ->
+                mListener.onMessageReceived(GattSession.this, uuid, buffer, offset, length));
+        transport.setCallback(this);
+    }
+
+    /**
+     * Returns the address of the device.
+     *
+     * @return Bluetooth address as string.
+     */
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    /**
+     * Returns the transport to the device.
+     *
+     * @return The GATT transport.
+     */
+    public GattTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Returns the queue serializing the requests sent to the device.
+     *
+     * @return The operation queue.
+     */
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    /**
+     * Returns the latency histograms of the operations and notifications of the device.
+     *
+     * @return The latency statistics.
+     */
+    public GattLatencyStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * Gives the requests sent to the device from now on a deadline. A request that times out
+     * is retried, failed or has the link torn down as the policy of the watchdog says; a link
+     * torn down is reported through {@link Listener#onConnectionLost} once the transport has
+     * disconnected.
+     *
+     * @param watchdog The watchdog shared by the sessions of the thread, or null
+     */
+    public void setWatchdog(GattWatchdog watchdog) {
+        mOperationQueue.setWatchdog(watchdog, operation -> mTransport.disconnect());
+    }
+
+    /**
+     * Has a link that drops restored from now on, as the policy says. Once a link that went
+     * through its setup is lost, {@link Listener#onConnectionLost} is no longer called;
+     * the session reconnects, discovers the services and restores the MTU last requested, the
+     * link profile and the subscriptions, then reports the services through
+     * {@link Listener#onServicesResolved} and the link through
+     * {@link Listener#onLinkConfigured} again. Failed first connections and links the app
+     * disconnects are reported as before.
+     *
+     * @param policy    The reconnect policy, or null not to restore links
+     * @param scheduler Runs the attempts after their delay, on the thread that owns the session
+     * @param random    Source of the jitter of the delays
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy, GattWatchdog.Scheduler scheduler,
+            Random random) {
+        if (mReconnector != null) {
+            mReconnector.cancel();
+        }
+        mReconnector = policy == null
+                ? null : new GattReconnector(this, policy, scheduler, mClock, random);
+    }
+
+    /**
+     * Returns the engine restoring the lost links of the device.
+     *
+     * @return The reconnector, or null if no reconnect policy is set.
+     */
+    public GattReconnector getReconnector() {
+        return mReconnector;
+    }
+
+    /**
+     * Determines if a lost link is being restored.
+     *
+     * @return Returns {@code true} if the link is being restored, {@code false} otherwise.
+     */
+    public boolean isReconnecting() {
+        final GattReconnector reconnector = mReconnector;
+        return reconnector != null && reconnector.isReconnecting();
+    }
+
+    /**
+     * Returns the reassembler fed with the notifications of the device.
+     *
+     * @return The notification reassembler.
+     */
+    public NotificationReassembler getReassembler() {
+        return mReassembler;
+    }
+
+    /**
+     * Returns the discovery resolving the attribute table of the device.
+     *
+     * @return The service discovery.
+     */
+    public ServiceDiscovery getServiceDiscovery() {
+        return mServiceDiscovery;
+    }
+
+    /**
+     * Returns the attribute table resolved for the device.
+     *
+     * @return The attribute table, or null if it has not been resolved yet.
+     */
+    public GattDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Connects to the device, or reconnects after the link was lost. Every pending request is
+     * dropped.
+     */
+    public void connect() {
+        cancelReconnect();
+        reconnect(false);
+    }
+
+    /**
+     * Connects to the device on behalf of the reconnector.
+     *
+     * @param autoConnect {@code true} for a background connection
+     */
+    void reconnect(boolean autoConnect) {
+        mOperationQueue.clear();
+        mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_CONNECT) {
+            @Override
+            public boolean execute() {
+                if (mTransport.connect(autoConnect)) return true;
+                if (!onLinkLost()) {
+                    mListener.onConnectionLost(GattSession.this);
+                }
+                return false;
+            }
+
+            @Override
+            protected boolean isWatched() {
+                // A background connection waits for the device to come back in range.
+                return !autoConnect;
+            }
+        });
+    }
+
+    /**
+     * Disconnects from the device, or cancels a connection attempt. Disconnection preempts
+     * every pending request, and the link is not restored.
+     */
+    public void disconnect() {
+        cancelReconnect();
+        forgetConfiguration();
+        mOperationQueue.clear();
+        mTransport.disconnect();
+    }
+
+    /**
+     * Releases the transport. The session cannot be used afterwards.
+     */
+    public void close() {
+        cancelReconnect();
+        forgetConfiguration();
+        mServiceDiscovery.cancel();
+        mOperationQueue.clear();
+        mTransport.close();
+    }
+
+    /**
+     * Resolves the attribute table of the device, from the attribute cache when possible. The
+     * result is reported through {@link Listener#onServicesResolved}, and the link profile is
+     * applied once the table of a new connection is known.
+     */
+    public void discoverServices() {
+        mServiceDiscovery.start(getAddress());
+    }
+
+    /**
+     * Requests an MTU.
+     *
+     * @param mtu The MTU requested
+     */
+    public void requestMtu(int mtu) {
+        mRequestedMtu = mtu;
+        enqueueMtu(mtu);
+    }
+
+    private void enqueueMtu(int mtu) {
+        mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_REQUEST_MTU) {
+            @Override
+            public boolean execute() {
+                return mTransport.requestMtu(mtu);
+            }
+        });
+    }
+
+    /**
+     * Writes a characteristic with response.
+     *
+     * @param serviceUuid The UUID of the service
+     * @param uuid        The UUID of the characteristic
+     * @param data        The value to write
+     */
+    public void writeCharacteristic(UUID serviceUuid, UUID uuid, byte[] data) {
+        mOperationQueue.enqueue(
+                new GattOperation(GattOperation.TYPE_WRITE_CHARACTERISTIC, data.length) {
+                    @Override
+                    public boolean execute() {
+                        return mTransport.writeCharacteristic(serviceUuid, uuid, data, true);
+                    }
+                });
+    }
+
+    /**
+     * Streams a payload to a characteristic in chunks that fit the negotiated MTU, using write
+     * without response. The stream is read as chunks are written and is not closed.
+     *
+     * @param serviceUuid The UUID of the service
+     * @param uuid        The UUID of the characteristic
+     * @param data        The payload to write
+     * @param listener    Listener notified when the transfer finishes, or null
+     * @return The transfer started, or null if the device has no such characteristic.
+     */
+    public GattWriteTransfer writeCharacteristicStream(UUID serviceUuid, UUID uuid,
+            InputStream data, GattWriteTransfer.Listener listener) {
+        final GattDatabase database = mDatabase;
+        if (database == null || database.findCharacteristic(serviceUuid, uuid) == null) {
+            return null;
+        }
+        final GattWriteTransfer transfer = new GattWriteTransfer(data, mMtu, WRITE_WINDOW,
+                chunk -> mTransport.writeCharacteristic(serviceUuid, uuid, chunk, false),
+                (t, success) -> {
+                    if (success) mThroughput = t.getThroughput();
+                    if (listener != null) {
+                        listener.onTransferFinished(t, success);
+                    }
+                }, mClock);
+        transfer.start(mOperationQueue);
+        return transfer;
+    }
+
+    /**
+     * Subscribes to the notifications or indications of a set of characteristics, or
+     * unsubscribes from them. Their configurations are written one after the other, in the
+     * iteration order of the map, and the first failure ends the subscription.
+     *
+     * @param configurations The configuration of each characteristic, one of the
+     *                       {@code GattTransport.CCCD_*} constants. A characteristic found in
+     *                       several services is configured in the first.
+     * @param listener       Listener notified when the subscription completes, or null
+     * @return The subscription, or null if the services are not resolved or a characteristic
+     * does not support its configuration.
+     */
+    public GattSubscription subscribe(Map<UUID, Integer> configurations,
+            GattSubscription.Listener listener) {
+        final GattDatabase database = mDatabase;
+        if (database == null) return null;
+        final int count = configurations.size();
+        final UUID[] serviceUuids = new UUID[count];
+        final UUID[] uuids = new UUID[count];
+        final int[] values = new int[count];
+        int index = 0;
+        for (Map.Entry<UUID, Integer> entry : configurations.entrySet()) {
+            final GattDatabase.Service service =
+                    findConfigurableService(database, entry.getKey(), entry.getValue());
+            if (service == null) return null;
+            serviceUuids[index] = service.getUuid();
+            uuids[index] = entry.getKey();
+            values[index] = entry.getValue();
+            index++;
+        }
+        for (int i = 0; i < count; i++) {
+            rememberSubscription(uuids[i], values[i]);
+        }
+        return startSubscription(serviceUuids, uuids, values, listener);
+    }
+
+    /**
+     * Enables or disables the notifications of every characteristic of the device that has a
+     * Client Characteristic Configuration descriptor. Characteristics that only support
+     * indications are subscribed to their indications.
+     *
+     * @param enable {@code true} to enable the notifications
+     * @return The number of characteristics whose configuration is written.
+     */
+    public int setNotifications(boolean enable) {
+        final GattDatabase database = mDatabase;
+        if (database == null) return 0;
+        final List<UUID> serviceUuids = new ArrayList<>();
+        final List<UUID> uuids = new ArrayList<>();
+        final List<Integer> values = new ArrayList<>();
+        for (GattDatabase.Service service : database.getServices()) {
+            for (GattDatabase.Characteristic characteristic : service.getCharacteristics()) {
+                if (!characteristic.hasDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG)
+                        || !characteristic.isSubscribable()) {
+                    continue;
+                }
+                serviceUuids.add(service.getUuid());
+                uuids.add(characteristic.getUuid());
+                if (!enable) {
+                    values.add(GattTransport.CCCD_DISABLED);
+                } else if (GattSubscription.isSupported(characteristic,
+                        GattTransport.CCCD_NOTIFICATION)) {
+                    values.add(GattTransport.CCCD_NOTIFICATION);
+                } else {
+                    values.add(GattTransport.CCCD_INDICATION);
+                }
+            }
+        }
+        final int[] configurations = new int[values.size()];
+        for (int index = 0; index < configurations.length; index++) {
+            configurations[index] = values.get(index);
+            rememberSubscription(uuids.get(index), configurations[index]);
+        }
+        startSubscription(serviceUuids.toArray(new UUID[0]), uuids.toArray(new UUID[0]),
+                configurations, null);
+        return configurations.length;
+    }
+
+    /**
+     * Selects the link profile. The profile is applied when the device is connected, right
+     * after service discovery; the PHY and the connection priority of a link already set up
+     * are changed right away.
+     *
+     * @param linkProfile The link profile
+     */
+    public void setLinkProfile(LinkProfile linkProfile) {
+        mLinkProfile = linkProfile;
+        if (mConnected && mLinkConfigured) {
+            enqueuePreferredPhy(linkProfile.getPhyMask());
+            enqueueConnectionPriority(linkProfile.getConnectionPriority(), false);
+        }
+    }
+
+    /**
+     * Returns the MTU negotiated for the connection.
+     *
+     * @return The ATT MTU in bytes.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Returns the link profile applied when the connection is set up.
+     *
+     * @return The link profile.
+     */
+    public LinkProfile getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    /**
+     * Determines if the link to the device is up.
+     *
+     * @return Returns {@code true} if the device is connected, {@code false} otherwise.
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Determines if the link profile has been applied to the current connection.
+     *
+     * @return Returns {@code true} if the link is set up, {@code false} otherwise.
+     */
+    public boolean isLinkConfigured() {
+        return mLinkConfigured;
+    }
+
+    /**
+     * Returns the PHY used by the transmitter of this device.
+     *
+     * @return One of the {@code BluetoothDevice.PHY_LE_*} constants, or {@link #PHY_UNKNOWN}.
+     */
+    public int getTxPhy() {
+        return mTxPhy;
+    }
+
+    /**
+     * Returns the PHY used by the receiver of this device.
+     *
+     * @return One of the {@code BluetoothDevice.PHY_LE_*} constants, or {@link #PHY_UNKNOWN}.
+     */
+    public int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * Returns the connection priority last granted by the stack.
+     *
+     * @return One of the {@code LinkProfile.CONNECTION_PRIORITY_*} constants.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Returns the connection interval negotiated for the link.
+     *
+     * @return The interval in microseconds, or 0 if the stack has not reported it.
+     */
+    public int getConnectionIntervalMicros() {
+        return mInterval * INTERVAL_UNIT_MICROS;
+    }
+
+    /**
+     * Returns the number of connection events the peripheral may skip.
+     *
+     * @return The peripheral latency.
+     */
+    public int getConnectionLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Returns the time after which the link is considered lost.
+     *
+     * @return The supervision timeout in milliseconds, or 0 if the stack has not reported it.
+     */
+    public int getSupervisionTimeoutMillis() {
+        return mSupervisionTimeout * TIMEOUT_UNIT_MILLIS;
+    }
+
+    /**
+     * Returns the throughput of the last streaming write that completed.
+     *
+     * @return The throughput in bytes per second, or 0 if no transfer has completed.
+     */
+    public long getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConnectionStateChanged(boolean connected, int status) {
+        if (connected) {
+            mOperationQueue.onOperationCompleted(GattOperation.TYPE_CONNECT, status);
+            setConnected(true);
+            // Discovery runs at the shortest interval whatever the profile.
+            enqueueConnectionPriority(LinkProfile.CONNECTION_PRIORITY_HIGH, false);
+            if (mReconnector != null && mReconnector.onConnected()) {
+                discoverServices();
+            } else {
+                mListener.onConnected(this);
+            }
+            return;
+        }
+        setConnected(false);
+        mServiceDiscovery.cancel();
+        if (!onLinkLost()) {
+            mListener.onConnectionLost(this);
+        }
+        mOperationQueue.onConnectionLost();
+        mReassembler.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onServicesDiscovered(int status) {
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_DISCOVER_SERVICES, status);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        if (GattTransport.GATT_SUCCESS == status) {
+            mMtu = mtu;
+        }
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_REQUEST_MTU, status);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onPhyUpdated(int txPhy, int rxPhy, int status) {
+        if (GattTransport.GATT_SUCCESS == status) {
+            mTxPhy = txPhy;
+            mRxPhy = rxPhy;
+        }
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_SET_PREFERRED_PHY, status);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        if (GattTransport.GATT_SUCCESS != status) return;
+        mInterval = interval;
+        mLatency = latency;
+        mSupervisionTimeout = timeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCharacteristicRead(UUID uuid, byte[] value, int status) {
+        mReadValue = value;
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_READ_CHARACTERISTIC, status);
+        mReadValue = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCharacteristicWrite(UUID uuid, int status) {
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_WRITE_CHARACTERISTIC, status);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onNotificationChanged(UUID uuid, int status) {
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_WRITE_DESCRIPTOR, status);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onNotification(UUID uuid, byte[] value) {
+        final long now = mClock.nanoTime();
+        final long last = mLastNotificationNanos;
+        mLastNotificationNanos = now;
+        if (last != NO_NOTIFICATION) {
+            mLatencyStats.record(GattLatencyStats.TYPE_NOTIFICATION_INTERVAL, now - last);
+        }
+        // Fragments of framed messages are reported through onMessageReceived() once complete.
+        if (mReassembler.onNotification(uuid, value)) return;
+        mListener.onNotification(this, uuid, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onServiceChanged() {
+        mServiceDiscovery.onServiceChanged();
+    }
+
+    /**
+     * Applies the link profile of a device whose services have been discovered: exchanges the
+     * MTU first, as the stack extends the data length after a large MTU, then switches the PHY
+     * and settles on the connection priority of the profile.
+     */
+    private void configureLink() {
+        final LinkProfile profile = mLinkProfile;
+        mLinkConfigured = true;
+        enqueueMtu(mRequestedMtu > 0 ? mRequestedMtu : profile.getMtu());
+        enqueuePreferredPhy(profile.getPhyMask());
+        enqueueConnectionPriority(profile.getConnectionPriority(), true);
+    }
+
+    private void enqueuePreferredPhy(int phyMask) {
+        mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_SET_PREFERRED_PHY) {
+            @Override
+            public boolean execute() {
+                return mConnected && mTransport.setPreferredPhy(phyMask);
+            }
+        });
+    }
+
+    private void enqueueConnectionPriority(int priority, boolean linkSetup) {
+        mOperationQueue.enqueue(
+                new GattOperation(GattOperation.TYPE_REQUEST_CONNECTION_PRIORITY) {
+                    @Override
+                    public boolean execute() {
+                        if (!mConnected || !mTransport.requestConnectionPriority(priority)) {
+                            return false;
+                        }
+                        // The stack reports no result, the request completes once accepted.
+                        mConnectionPriority = priority;
+                        mOperationQueue.onOperationCompleted(getType(),
+                                GattTransport.GATT_SUCCESS);
+                        return true;
+                    }
+
+                    @Override
+                    protected void onCompleted(boolean success) {
+                        if (!linkSetup) return;
+                        mListener.onLinkConfigured(GattSession.this, success);
+                        if (mReconnector != null) {
+                            mReconnector.onLinkConfigured(success);
+                        }
+                    }
+                });
+    }
+
+    private GattSubscription startSubscription(UUID[] serviceUuids, UUID[] uuids,
+            int[] configurations, GattSubscription.Listener listener) {
+        final GattSubscription subscription = new GattSubscription(serviceUuids, uuids,
+                configurations, (serviceUuid, uuid, configuration) ->
+                        mConnected && mTransport.setNotification(serviceUuid, uuid, configuration),
+                listener, mClock);
+        subscription.start(mOperationQueue);
+        return subscription;
+    }
+
+    private void rememberSubscription(UUID uuid, int configuration) {
+        if (GattTransport.CCCD_DISABLED == configuration) {
+            mSubscriptions.remove(uuid);
+        } else {
+            mSubscriptions.put(uuid, configuration);
+        }
+    }
+
+    /**
+     * Writes the configurations of the characteristics subscribed to on the lost link, after
+     * the setup of the restored one. Characteristics the device no longer has are skipped.
+     */
+    private void restoreSubscriptions(GattDatabase database) {
+        final List<UUID> serviceUuids = new ArrayList<>();
+        final List<UUID> uuids = new ArrayList<>();
+        final List<Integer> values = new ArrayList<>();
+        for (Map.Entry<UUID, Integer> entry : mSubscriptions.entrySet()) {
+            final GattDatabase.Service service =
+                    findConfigurableService(database, entry.getKey(), entry.getValue());
+            if (service == null) continue;
+            serviceUuids.add(service.getUuid());
+            uuids.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        if (uuids.isEmpty()) return;
+        final int[] configurations = new int[values.size()];
+        for (int index = 0; index < configurations.length; index++) {
+            configurations[index] = values.get(index);
+        }
+        mReconnector.onRestoringSubscriptions();
+        startSubscription(serviceUuids.toArray(new UUID[0]), uuids.toArray(new UUID[0]),
+                configurations, (subscription, success) -> {
+                    if (mReconnector != null) {
+                        mReconnector.onSubscriptionsRestored(success);
+                    }
+                });
+    }
+
+    private boolean isRestoring() {
+        return mReconnector != null && mReconnector.isRestoring();
+    }
+
+    /**
+     * Has the reconnector restore the link lost, if it was set up.
+     *
+     * @return Returns {@code true} if the link is being restored, {@code false} if the loss is
+     * reported to the app.
+     */
+    private boolean onLinkLost() {
+        return mReconnector != null && mReconnector.onConnectionLost();
+    }
+
+    private void cancelReconnect() {
+        if (mReconnector != null) {
+            mReconnector.cancel();
+        }
+    }
+
+    private void forgetConfiguration() {
+        mSubscriptions.clear();
+        mRequestedMtu = 0;
+    }
+
+    private static GattDatabase.Service findConfigurableService(GattDatabase database, UUID uuid,
+            int configuration) {
+        for (GattDatabase.Service service : database.getServices()) {
+            for (GattDatabase.Characteristic characteristic : service.getCharacteristics()) {
+                if (characteristic.getUuid().equals(uuid)
+                        && characteristic.hasDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG)
+                        && GattSubscription.isSupported(characteristic, configuration)) {
+                    return service;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the link as up, or as lost and forgets the parameters negotiated for it.
+     */
+    private void setConnected(boolean connected) {
+        mConnected = connected;
+        mLinkConfigured = false;
+        if (connected) return;
+        mMtu = DEFAULT_MTU;
+        mTxPhy = PHY_UNKNOWN;
+        mRxPhy = PHY_UNKNOWN;
+        mConnectionPriority = LinkProfile.CONNECTION_PRIORITY_BALANCED;
+        mInterval = 0;
+        mLatency = 0;
+        mSupervisionTimeout = 0;
+        mLastNotificationNanos = NO_NOTIFICATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "GattSession{address=" + getAddress() + " profile=" + mLinkProfile
+                + " mtu=" + mMtu + " txPhy=" + mTxPhy + " rxPhy=" + mRxPhy
+                + " interval=" + getConnectionIntervalMicros() + "us latency=" + mLatency
+                + " throughput=" + mThroughput
+                + " pending=" + mOperationQueue.getPendingCount() + "}";
+    }
+
+    /**
+     * Issues the requests of the service discovery through the operation queue.
+     */
+    private class DiscoveryClient implements ServiceDiscovery.Client {
+        @Override
+        public boolean canUseCachedDatabase(GattDatabase database) {
+            // The transport keeps the attributes of the previous discovery across a reconnect.
+            final GattDatabase known = mTransport.getDatabase();
+            return known != null && known.hasSameAttributes(database);
+        }
+
+        @Override
+        public boolean discoverServices() {
+            mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_DISCOVER_SERVICES) {
+                @Override
+                public boolean execute() {
+                    return mTransport.discoverServices();
+                }
+
+                @Override
+                protected void onCompleted(boolean success) {
+                    mServiceDiscovery.onServicesDiscovered(
+                            success ? mTransport.getDatabase() : null);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean readDatabaseHash() {
+            final GattDatabase known = mTransport.getDatabase();
+            if (known == null || known.findCharacteristic(GattDatabase.GENERIC_ATTRIBUTE_SERVICE,
+                    GattDatabase.DATABASE_HASH) == null) {
+                return false;
+            }
+            mOperationQueue.enqueue(new GattOperation(GattOperation.TYPE_READ_CHARACTERISTIC) {
+                @Override
+                public boolean execute() {
+                    return mTransport.readCharacteristic(GattDatabase.GENERIC_ATTRIBUTE_SERVICE,
+                            GattDatabase.DATABASE_HASH);
+                }
+
+                @Override
+                protected void onCompleted(boolean success) {
+                    mServiceDiscovery.onDatabaseHashRead(success ? mReadValue : null);
+                }
+            });
+            return true;
+        }
+    }
+}
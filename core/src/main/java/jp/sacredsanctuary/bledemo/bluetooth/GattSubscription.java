@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+
+/**
+ * Writes the Client Characteristic Configuration of a set of characteristics, one after the
+ * other.
+ * <p>
+ * A single write is handed to the {@link GattOperationQueue} at a time, and the next one only
+ * once it has succeeded, so the writes never compete with each other for the link and other
+ * requests may run in between. The first failure ends the subscription. The subscription is
+ * the {@link Future} of its success, completed once every configuration has been written,
+ * and times each write from its start to its completion.
+ * <p>
+ * {@link #get()} blocks until the subscription completes, so it must not be called on the
+ * thread that owns the session.
+ */
+public class GattSubscription implements Future<Boolean> {
+    private static final long NOT_WRITTEN = -1;
+
+    /**
+     * Writes the configuration of a single characteristic.
+     */
+    public interface ConfigurationWriter {
+        /**
+         * Hands the write to the Bluetooth stack.
+         *
+         * @param serviceUuid   The UUID of the service
+         * @param uuid          The UUID of the characteristic
+         * @param configuration One of the {@code GattTransport.CCCD_*} constants
+         * @return Returns {@code true} if the write was started, {@code false} otherwise.
+         */
+        boolean writeConfiguration(UUID serviceUuid, UUID uuid, int configuration);
+    }
+
+    /**
+     * Callback invoked when a subscription has completed.
+     */
+    public interface Listener {
+        /**
+         * Called once every configuration has been written, or the subscription has failed
+         * or been cancelled.
+         *
+         * @param subscription The completed subscription
+         * @param success      {@code true} if every configuration has been written
+         */
+        void onSubscriptionCompleted(GattSubscription subscription, boolean success);
+    }
+
+    private final UUID[] mServiceUuids;
+    private final UUID[] mUuids;
+    private final int[] mConfigurations;
+    private final long[] mElapsedNanos;
+    private final ConfigurationWriter mWriter;
+    private final Listener mListener;
+    private final GattOperationQueue.Clock mClock;
+    private GattOperationQueue mQueue;
+    private int mNext;
+    private boolean mDone = false;
+    private boolean mSuccess = false;
+    private boolean mCancelled = false;
+    private long mStartNanos;
+    private long mEndNanos;
+
+    /**
+     * Create a new GattSubscription.
+     *
+     * @param serviceUuids   The UUID of the service of each characteristic
+     * @param uuids          The UUIDs of the characteristics, in the order of the writes
+     * @param configurations The configuration of each characteristic, one of the
+     *                       {@code GattTransport.CCCD_*} constants
+     * @param writer         Writer used for every configuration
+     * @param listener       Listener notified when the subscription completes, or null
+     * @param clock          Clock used to time the writes
+     */
+    public GattSubscription(UUID[] serviceUuids, UUID[] uuids, int[] configurations,
+            ConfigurationWriter writer, Listener listener, GattOperationQueue.Clock clock) {
+        if (serviceUuids.length != uuids.length || configurations.length != uuids.length) {
+            throw new IllegalArgumentException("services:" + serviceUuids.length
+                    + " characteristics:" + uuids.length + " configurations:"
+                    + configurations.length);
+        }
+        mServiceUuids = serviceUuids.clone();
+        mUuids = uuids.clone();
+        mConfigurations = configurations.clone();
+        mElapsedNanos = new long[uuids.length];
+        Arrays.fill(mElapsedNanos, NOT_WRITTEN);
+        mWriter = writer;
+        mListener = listener;
+        mClock = clock;
+    }
+
+    /**
+     * Determines if a characteristic accepts a configuration.
+     *
+     * @param characteristic The characteristic
+     * @param configuration  One of the {@code GattTransport.CCCD_*} constants
+     * @return Returns {@code true} if the characteristic supports the configuration.
+     */
+    public static boolean isSupported(GattDatabase.Characteristic characteristic,
+            int configuration) {
+        switch (configuration) {
+            case GattTransport.CCCD_DISABLED:
+                return characteristic.isSubscribable();
+            case GattTransport.CCCD_NOTIFICATION:
+                return (characteristic.getProperties() & GattDatabase.PROPERTY_NOTIFY) != 0;
+            case GattTransport.CCCD_INDICATION:
+                return (characteristic.getProperties() & GattDatabase.PROPERTY_INDICATE) != 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Starts the subscription by queueing the first write.
+     *
+     * @param queue The queue of the connection to write to
+     */
+    public void start(GattOperationQueue queue) {
+        // The subscription state is guarded by the queue, which holds its lock while
+        // completing operations.
+        synchronized (queue) {
+            mQueue = queue;
+            mStartNanos = mClock.nanoTime();
+            writeNext();
+        }
+    }
+
+    /**
+     * Returns the number of characteristics of the subscription.
+     *
+     * @return The number of characteristics.
+     */
+    public int getCount() {
+        return mUuids.length;
+    }
+
+    /**
+     * Returns the UUID of a characteristic.
+     *
+     * @param index The position of the characteristic, in the order of the writes
+     * @return The UUID of the characteristic.
+     */
+    public UUID getUuid(int index) {
+        return mUuids[index];
+    }
+
+    /**
+     * Returns the configuration written to a characteristic.
+     *
+     * @param index The position of the characteristic, in the order of the writes
+     * @return One of the {@code GattTransport.CCCD_*} constants.
+     */
+    public int getConfiguration(int index) {
+        return mConfigurations[index];
+    }
+
+    /**
+     * Returns the time the configuration of a characteristic took to write, from the start of
+     * the write to its completion.
+     *
+     * @param index The position of the characteristic, in the order of the writes
+     * @return The duration in nanoseconds, or -1 if the configuration has not been written.
+     */
+    public synchronized long getElapsedNanos(int index) {
+        return mElapsedNanos[index];
+    }
+
+    /**
+     * Returns the time the configuration of a characteristic took to write.
+     *
+     * @param uuid The UUID of the characteristic
+     * @return The duration in nanoseconds, or -1 if the configuration has not been written.
+     */
+    public synchronized long getElapsedNanos(UUID uuid) {
+        for (int index = 0; index < mUuids.length; index++) {
+            if (mUuids[index].equals(uuid)) return mElapsedNanos[index];
+        }
+        return NOT_WRITTEN;
+    }
+
+    /**
+     * Returns the time between the start and the completion of the subscription.
+     *
+     * @return The duration in nanoseconds, or 0 if the subscription has not completed.
+     */
+    public synchronized long getTotalElapsedNanos() {
+        return mDone ? mEndNanos - mStartNanos : 0;
+    }
+
+    /**
+     * Returns the number of configurations written so far.
+     *
+     * @return The number of configurations written.
+     */
+    public synchronized int getWrittenCount() {
+        return mNext;
+    }
+
+    /**
+     * Determines if every configuration has been written.
+     *
+     * @return Returns {@code true} if the subscription succeeded, {@code false} otherwise.
+     */
+    public synchronized boolean isSuccessful() {
+        return mSuccess;
+    }
+
+    /**
+     * Stops the subscription before its next write. A write in progress still completes, but
+     * the subscription is completed as failed right away.
+     *
+     * @param mayInterruptIfRunning Ignored, a write cannot be interrupted
+     * @return Returns {@code true} if the subscription was cancelled, {@code false} if it had
+     * already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mDone) return false;
+            mCancelled = true;
+        }
+        return finish(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Waits until the subscription completes.
+     *
+     * @return Whether every configuration has been written.
+     * @throws CancellationException if the subscription was cancelled
+     * @throws InterruptedException  if the thread was interrupted while waiting
+     */
+    @Override
+    public synchronized Boolean get() throws InterruptedException {
+        while (!mDone) {
+            wait();
+        }
+        return getResult();
+    }
+
+    /**
+     * Waits at most the given time until the subscription completes.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of the timeout
+     * @return Whether every configuration has been written.
+     * @throws CancellationException if the subscription was cancelled
+     * @throws InterruptedException  if the thread was interrupted while waiting
+     * @throws TimeoutException      if the subscription did not complete in time
+     */
+    @Override
+    public synchronized Boolean get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private Boolean getResult() {
+        if (mCancelled) throw new CancellationException();
+        return mSuccess;
+    }
+
+    private void writeNext() {
+        final int index;
+        synchronized (this) {
+            if (mDone) return;
+            index = mNext;
+        }
+        if (index == mUuids.length) {
+            finish(true);
+            return;
+        }
+        mQueue.enqueue(new GattOperation(GattOperation.TYPE_WRITE_DESCRIPTOR) {
+            @Override
+            public boolean execute() {
+                return !isDone() && mWriter.writeConfiguration(mServiceUuids[index],
+                        mUuids[index], mConfigurations[index]);
+            }
+
+            @Override
+            protected void onCompleted(boolean success) {
+                // Timed from the start of this write, not from the start of the subscription.
+                onWriteCompleted(index, success, mClock.nanoTime() - this.mStartedNanos);
+            }
+        });
+    }
+
+    private void onWriteCompleted(int index, boolean success, long elapsedNanos) {
+        synchronized (this) {
+            if (mDone) return;
+            if (success) {
+                mElapsedNanos[index] = elapsedNanos;
+                mNext++;
+            }
+        }
+        if (success) {
+            writeNext();
+        } else {
+            finish(false);
+        }
+    }
+
+    private boolean finish(boolean success) {
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mSuccess = success;
+            mEndNanos = mClock.nanoTime();
+            notifyAll();
+        }
+        if (mListener != null) {
+            mListener.onSubscriptionCompleted(this, success);
+        }
+        return true;
+    }
+}
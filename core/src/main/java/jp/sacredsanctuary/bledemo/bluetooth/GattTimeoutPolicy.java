@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlines of the GATT operations, and how a link recovers from an operation whose result
+ * never arrives.
+ * <p>
+ * An operation that times out is executed again up to its number of retries, then its
+ * action is applied: {@link #ACTION_FAIL} completes it as failed and lets the queue move on,
+ * {@link #ACTION_DISCONNECT} tears the link down. A link on which several operations in a row
+ * have timed out is torn down whatever the action, as the device is most likely hung.
+ * <p>
+ * A retry reissues the request; a late result of the first attempt completes the operation.
+ * Only requests that can safely be sent twice should be retried.
+ * <p>
+ * Instances are immutable.
+ */
+public final class GattTimeoutPolicy {
+    // Deadline of an operation that is never timed out.
+    public static final long NO_TIMEOUT = 0;
+    // Recoveries from a timeout, also used to count them in the metrics.
+    public static final int ACTION_RETRY = 0;
+    public static final int ACTION_FAIL = 1;
+    public static final int ACTION_DISCONNECT = 2;
+    public static final int ACTION_COUNT = 3;
+
+    private static final String[] ACTION_NAMES = {"retry", "fail", "disconnect"};
+
+    /**
+     * Deadlines a little longer than the longest the Android stack takes on a healthy link.
+     * The link is torn down if the connection, the service discovery or the MTU exchange
+     * stalls, as the UI waits for them; other requests fail and the queue moves on.
+     */
+    public static final GattTimeoutPolicy DEFAULT = new Builder()
+            .setTimeout(GattOperation.TYPE_CONNECT, TimeUnit.SECONDS.toNanos(35), 0,
+                    ACTION_DISCONNECT)
+            .setTimeout(GattOperation.TYPE_DISCOVER_SERVICES, TimeUnit.SECONDS.toNanos(15), 1,
+                    ACTION_DISCONNECT)
+            .setTimeout(GattOperation.TYPE_REQUEST_MTU, TimeUnit.SECONDS.toNanos(5), 1,
+                    ACTION_DISCONNECT)
+            .setTimeout(GattOperation.TYPE_WRITE_DESCRIPTOR, TimeUnit.SECONDS.toNanos(5), 0,
+                    ACTION_FAIL)
+            .setTimeout(GattOperation.TYPE_WRITE_CHARACTERISTIC, TimeUnit.SECONDS.toNanos(5), 0,
+                    ACTION_FAIL)
+            .setTimeout(GattOperation.TYPE_READ_CHARACTERISTIC, TimeUnit.SECONDS.toNanos(5), 1,
+                    ACTION_FAIL)
+            .setTimeout(GattOperation.TYPE_SET_PREFERRED_PHY, TimeUnit.SECONDS.toNanos(5), 0,
+                    ACTION_FAIL)
+            .setTimeout(GattOperation.TYPE_REQUEST_CONNECTION_PRIORITY,
+                    TimeUnit.SECONDS.toNanos(5), 0, ACTION_FAIL)
+            .setMaxConsecutiveTimeouts(3)
+            .build();
+
+    private final long[] mTimeoutNanos;
+    private final int[] mMaxRetries;
+    private final int[] mActions;
+    private final int mMaxConsecutiveTimeouts;
+
+    private GattTimeoutPolicy(Builder builder) {
+        mTimeoutNanos = builder.mTimeoutNanos.clone();
+        mMaxRetries = builder.mMaxRetries.clone();
+        mActions = builder.mActions.clone();
+        mMaxConsecutiveTimeouts = builder.mMaxConsecutiveTimeouts;
+    }
+
+    /**
+     * Returns the name of a recovery action, used in logs and dumps.
+     *
+     * @param action One of the {@code ACTION_*} constants
+     * @return The name of the action.
+     */
+    public static String getActionName(int action) {
+        if (action < 0 || action >= ACTION_COUNT) {
+            throw new IllegalArgumentException("action:" + action);
+        }
+        return ACTION_NAMES[action];
+    }
+
+    /**
+     * Returns the time an operation of a type may take before it times out.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The deadline in nanoseconds, or {@link #NO_TIMEOUT}.
+     */
+    public long getTimeoutNanos(int type) {
+        return mTimeoutNanos[type];
+    }
+
+    /**
+     * Returns the number of times an operation of a type is executed again after it timed out.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The number of retries.
+     */
+    public int getMaxRetries(int type) {
+        return mMaxRetries[type];
+    }
+
+    /**
+     * Returns the action applied once an operation of a type has timed out on its last retry.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return {@link #ACTION_FAIL} or {@link #ACTION_DISCONNECT}.
+     */
+    public int getAction(int type) {
+        return mActions[type];
+    }
+
+    /**
+     * Returns the number of timeouts in a row, retries included, after which the link is torn
+     * down. The count starts again once an operation completes.
+     *
+     * @return The number of consecutive timeouts.
+     */
+    public int getMaxConsecutiveTimeouts() {
+        return mMaxConsecutiveTimeouts;
+    }
+
+    /**
+     * Builder for {@link GattTimeoutPolicy}. No operation times out unless set.
+     */
+    public static final class Builder {
+        private final long[] mTimeoutNanos = new long[GattOperation.TYPE_COUNT];
+        private final int[] mMaxRetries = new int[GattOperation.TYPE_COUNT];
+        private final int[] mActions = new int[GattOperation.TYPE_COUNT];
+        private int mMaxConsecutiveTimeouts = Integer.MAX_VALUE;
+
+        /**
+         * Create a new Builder.
+         */
+        public Builder() {
+            for (int type = 0; type < GattOperation.TYPE_COUNT; type++) {
+                mActions[type] = ACTION_FAIL;
+            }
+        }
+
+        /**
+         * Sets the deadline of the operations of a type and their recovery.
+         *
+         * @param type         One of the {@code GattOperation.TYPE_*} constants
+         * @param timeoutNanos Time an operation may take, or {@link #NO_TIMEOUT}
+         * @param maxRetries   Number of times a timed out operation is executed again
+         * @param action       {@link #ACTION_FAIL} or {@link #ACTION_DISCONNECT}, applied once
+         *                     the last retry has timed out
+         * @return This builder.
+         */
+        public Builder setTimeout(int type, long timeoutNanos, int maxRetries, int action) {
+            if (type < 0 || type >= GattOperation.TYPE_COUNT) {
+                throw new IllegalArgumentException("type:" + type);
+            }
+            if (timeoutNanos < 0) {
+                throw new IllegalArgumentException("timeoutNanos:" + timeoutNanos);
+            }
+            if (maxRetries < 0) throw new IllegalArgumentException("maxRetries:" + maxRetries);
+            if (action != ACTION_FAIL && action != ACTION_DISCONNECT) {
+                throw new IllegalArgumentException("action:" + action);
+            }
+            mTimeoutNanos[type] = timeoutNanos;
+            mMaxRetries[type] = maxRetries;
+            mActions[type] = action;
+            return this;
+        }
+
+        /**
+         * Sets the number of timeouts in a row after which the link is torn down.
+         *
+         * @param maxConsecutiveTimeouts The number of consecutive timeouts
+         * @return This builder.
+         */
+        public Builder setMaxConsecutiveTimeouts(int maxConsecutiveTimeouts) {
+            if (maxConsecutiveTimeouts <= 0) {
+                throw new IllegalArgumentException(
+                        "maxConsecutiveTimeouts:" + maxConsecutiveTimeouts);
+            }
+            mMaxConsecutiveTimeouts = maxConsecutiveTimeouts;
+            return this;
+        }
+
+        /**
+         * Creates the policy.
+         *
+         * @return The new policy.
+         */
+        public GattTimeoutPolicy build() {
+            return new GattTimeoutPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.util.HashedTimerWheel;
+
+/**
+ * Deadlines of the outstanding GATT operations of every link, see {@link GattTimeoutPolicy}.
+ * <p>
+ * The operation queue of each session arms a single timeout when it starts an operation and
+ * cancels it when the result arrives. Timeouts are held in a {@link HashedTimerWheel} driven
+ * by one periodic event, scheduled only while a timeout is pending, so arming and cancelling
+ * cost the same whatever the number of links and post nothing to the scheduler.
+ * <p>
+ * The watchdog must be used on the thread that owns the sessions, which is also the thread
+ * its scheduler runs events on. The counters may be read from any thread.
+ */
+public class GattWatchdog {
+    // Resolution of the deadlines, and number of ticks in a turn of the wheel.
+    public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int TICKS_PER_WHEEL = 256;
+
+    /**
+     * Runs the periodic event of the watchdog.
+     */
+    public interface Scheduler {
+        /**
+         * Runs a task once after a delay, on the thread that owns the sessions.
+         *
+         * @param delayNanos Time from now after which the task runs
+         * @param task       The task
+         */
+        void schedule(long delayNanos, Runnable task);
+    }
+
+    private final GattOperationQueue.Clock mClock;
+    private final Scheduler mScheduler;
+    private final HashedTimerWheel mWheel;
+    private final Runnable mTick = this::onTick;
+    private volatile GattTimeoutPolicy mPolicy;
+    private boolean mTickScheduled = false;
+    private final long[] mTimeoutCount = new long[GattOperation.TYPE_COUNT];
+    private final long[] mRecoveryCount = new long[GattTimeoutPolicy.ACTION_COUNT];
+
+    /**
+     * Create a new GattWatchdog.
+     *
+     * @param policy    The deadlines and recoveries of the operations
+     * @param clock     Clock the deadlines are measured with
+     * @param scheduler Scheduler running the periodic event
+     */
+    public GattWatchdog(GattTimeoutPolicy policy, GattOperationQueue.Clock clock,
+            Scheduler scheduler) {
+        this(policy, clock, scheduler, DEFAULT_TICK_NANOS);
+    }
+
+    /**
+     * Create a new GattWatchdog.
+     *
+     * @param policy    The deadlines and recoveries of the operations
+     * @param clock     Clock the deadlines are measured with
+     * @param scheduler Scheduler running the periodic event
+     * @param tickNanos Resolution of the deadlines
+     */
+    public GattWatchdog(GattTimeoutPolicy policy, GattOperationQueue.Clock clock,
+            Scheduler scheduler, long tickNanos) {
+        mPolicy = policy;
+        mClock = clock;
+        mScheduler = scheduler;
+        mWheel = new HashedTimerWheel(tickNanos, TICKS_PER_WHEEL, clock.nanoTime());
+    }
+
+    /**
+     * Returns the policy applied to the operations started from now on.
+     *
+     * @return The timeout policy.
+     */
+    public GattTimeoutPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Replaces the policy. Operations already outstanding keep their deadline.
+     *
+     * @param policy The timeout policy
+     */
+    public void setPolicy(GattTimeoutPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Returns the number of deadlines pending.
+     *
+     * @return The number of operations being watched.
+     */
+    public int getPendingCount() {
+        return mWheel.size();
+    }
+
+    /**
+     * Returns the number of operations of a type that timed out, retries included.
+     *
+     * @param type One of the {@code GattOperation.TYPE_*} constants
+     * @return The number of timeouts.
+     */
+    public synchronized long getTimeoutCount(int type) {
+        return mTimeoutCount[type];
+    }
+
+    /**
+     * Returns the number of times a recovery was applied to an operation that timed out.
+     *
+     * @param action One of the {@code GattTimeoutPolicy.ACTION_*} constants
+     * @return The number of recoveries.
+     */
+    public synchronized long getRecoveryCount(int action) {
+        return mRecoveryCount[action];
+    }
+
+    /**
+     * Clears the counters.
+     */
+    public synchronized void reset() {
+        for (int type = 0; type < GattOperation.TYPE_COUNT; type++) {
+            mTimeoutCount[type] = 0;
+        }
+        for (int action = 0; action < GattTimeoutPolicy.ACTION_COUNT; action++) {
+            mRecoveryCount[action] = 0;
+        }
+    }
+
+    /**
+     * Prints the timeouts of every operation type that timed out, and the recoveries applied.
+     *
+     * @param writer The writer to print to
+     * @param prefix Prefix of every line, such as an indentation
+     */
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        for (int type = 0; type < GattOperation.TYPE_COUNT; type++) {
+            if (mTimeoutCount[type] == 0) continue;
+            writer.println(String.format(Locale.ROOT, "%s%-26s timeouts=%d", prefix,
+                    GattLatencyStats.getTypeName(type) + ':', mTimeoutCount[type]));
+        }
+        final StringBuilder line = new StringBuilder(prefix).append("recoveries:");
+        for (int action = 0; action < GattTimeoutPolicy.ACTION_COUNT; action++) {
+            line.append(' ').append(GattTimeoutPolicy.getActionName(action)).append('=')
+                    .append(mRecoveryCount[action]);
+        }
+        writer.println(line);
+    }
+
+    /**
+     * Arms the deadline of an operation that has just been started.
+     *
+     * @return Returns {@code true} if the operation is watched, {@code false} if its type is
+     * never timed out.
+     */
+    boolean arm(HashedTimerWheel.Timeout timeout, int type) {
+        final long timeoutNanos = mPolicy.getTimeoutNanos(type);
+        if (GattTimeoutPolicy.NO_TIMEOUT == timeoutNanos) {
+            mWheel.cancel(timeout);
+            return false;
+        }
+        mWheel.schedule(timeout, mClock.nanoTime(), timeoutNanos);
+        if (!mTickScheduled) {
+            mTickScheduled = true;
+            mScheduler.schedule(mWheel.getTickNanos(), mTick);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the deadline of an operation whose result has arrived.
+     */
+    void disarm(HashedTimerWheel.Timeout timeout) {
+        mWheel.cancel(timeout);
+    }
+
+    synchronized void onTimedOut(int type) {
+        mTimeoutCount[type]++;
+    }
+
+    synchronized void onRecovery(int action) {
+        mRecoveryCount[action]++;
+    }
+
+    private void onTick() {
+        mTickScheduled = false;
+        mWheel.advance(mClock.nanoTime());
+        // The event stops once nothing is watched, and is started again by the next arm().
+        if (!mWheel.isEmpty() && !mTickScheduled) {
+            mTickScheduled = true;
+            mScheduler.schedule(mWheel.getTickNanos(), mTick);
+        }
+    }
+}
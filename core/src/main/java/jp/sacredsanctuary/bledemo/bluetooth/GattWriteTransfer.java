@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streams a payload to a characteristic in MTU sized chunks.
+ * <p>
+ * The payload is read lazily and split into chunks of (MTU - 3) bytes. At most
+ * {@code window} chunks are handed to the {@link GattOperationQueue} at once; every completed
+ * chunk write makes room for the next one, so the link never runs dry while only a bounded
+ * amount of the payload is buffered. Chunk buffers are recycled, only the final partial chunk
+ * is allocated.
+ * <p>
+ * The caller owns the source stream and is responsible for closing it.
+ */
+public class GattWriteTransfer {
+    // ATT opcode (1 byte) and attribute handle (2 bytes) precede the value of a write.
+    private static final int ATT_WRITE_HEADER_SIZE = 3;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * Writes a single chunk to the remote characteristic.
+     */
+    public interface ChunkWriter {
+        /**
+         * Hands a chunk to the Bluetooth stack.
+         *
+         * @param chunk The chunk to write. The array is reused once the write has completed.
+         * @return Returns {@code true} if the write was started, {@code false} otherwise.
+         */
+        boolean writeChunk(byte[] chunk);
+    }
+
+    /**
+     * Callback invoked when a transfer has finished.
+     */
+    public interface Listener {
+        /**
+         * Called once every chunk has been written or the transfer has failed.
+         *
+         * @param transfer The finished transfer
+         * @param success  {@code true} if the whole payload has been written
+         */
+        void onTransferFinished(GattWriteTransfer transfer, boolean success);
+    }
+
+    private final InputStream mSource;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final ChunkWriter mWriter;
+    private final Listener mListener;
+    private final GattOperationQueue.Clock mClock;
+    private final byte[][] mBuffers;
+    private GattOperationQueue mQueue;
+    private int mNextBuffer;
+    private int mInFlight;
+    private boolean mEndOfStream = false;
+    private boolean mFinished = false;
+    private boolean mSuccess = false;
+    private long mBytesWritten;
+    private long mChunksWritten;
+    private long mStartedNanos;
+    private long mFinishedNanos;
+
+    /**
+     * Create a new GattWriteTransfer.
+     *
+     * @param source   The payload to write
+     * @param mtu      The MTU negotiated for the connection
+     * @param window   Maximum number of chunks queued at once
+     * @param writer   Writer used for every chunk
+     * @param listener Listener notified when the transfer finishes, or null
+     */
+    public GattWriteTransfer(InputStream source, int mtu, int window, ChunkWriter writer,
+            Listener listener) {
+        this(source, mtu, window, writer, listener, System::nanoTime);
+    }
+
+    /**
+     * Create a new GattWriteTransfer.
+     *
+     * @param source   The payload to write
+     * @param mtu      The MTU negotiated for the connection
+     * @param window   Maximum number of chunks queued at once
+     * @param writer   Writer used for every chunk
+     * @param listener Listener notified when the transfer finishes, or null
+     * @param clock    Clock used to measure the transfer
+     */
+    public GattWriteTransfer(InputStream source, int mtu, int window, ChunkWriter writer,
+            Listener listener, GattOperationQueue.Clock clock) {
+        if (mtu <= ATT_WRITE_HEADER_SIZE || window <= 0) {
+            throw new IllegalArgumentException("mtu:" + mtu + " window:" + window);
+        }
+        mSource = source;
+        mChunkSize = getChunkSize(mtu);
+        mWindow = window;
+        mWriter = writer;
+        mListener = listener;
+        mClock = clock;
+        mBuffers = new byte[window][];
+    }
+
+    /**
+     * Returns the largest value that fits in a single write for the given MTU.
+     *
+     * @param mtu The MTU negotiated for the connection
+     * @return The chunk size in bytes.
+     */
+    public static int getChunkSize(int mtu) {
+        return mtu - ATT_WRITE_HEADER_SIZE;
+    }
+
+    /**
+     * Starts the transfer by filling the window of the given queue.
+     *
+     * @param queue The queue of the connection to write to
+     */
+    public void start(GattOperationQueue queue) {
+        // The transfer state is guarded by the queue, which holds its lock while completing
+        // operations.
+        synchronized (queue) {
+            mQueue = queue;
+            mStartedNanos = mClock.nanoTime();
+            fill();
+            if (mEndOfStream && mInFlight == 0) {
+                finish(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of payload bytes written so far.
+     *
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the number of chunks written so far.
+     *
+     * @return The number of chunks written.
+     */
+    public long getChunksWritten() {
+        return mChunksWritten;
+    }
+
+    /**
+     * Returns the size of every chunk but the last.
+     *
+     * @return The chunk size in bytes.
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Returns the time between the start and the end of the transfer.
+     *
+     * @return The duration in nanoseconds, or 0 if the transfer has not finished.
+     */
+    public long getElapsedNanos() {
+        return mFinished ? mFinishedNanos - mStartedNanos : 0;
+    }
+
+    /**
+     * Returns the effective throughput of the finished transfer.
+     *
+     * @return The throughput in bytes per second, or 0 if the transfer has not finished.
+     */
+    public long getThroughput() {
+        final long elapsed = getElapsedNanos();
+        return elapsed <= 0 ? 0 : mBytesWritten * NANOS_PER_SECOND / elapsed;
+    }
+
+    /**
+     * Determines if the whole payload has been written.
+     *
+     * @return Returns {@code true} if the transfer succeeded, {@code false} otherwise.
+     */
+    public boolean isSuccessful() {
+        return mSuccess;
+    }
+
+    private void fill() {
+        while (!mFinished && !mEndOfStream && mInFlight < mWindow) {
+            final byte[] chunk;
+            try {
+                chunk = readChunk();
+            } catch (IOException e) {
+                finish(false);
+                return;
+            }
+            if (chunk == null) {
+                mEndOfStream = true;
+                return;
+            }
+            mInFlight++;
+            mQueue.enqueue(newChunkOperation(chunk));
+        }
+    }
+
+    private byte[] readChunk() throws IOException {
+        if (mBuffers[mNextBuffer] == null) {
+            mBuffers[mNextBuffer] = new byte[mChunkSize];
+        }
+        final byte[] buffer = mBuffers[mNextBuffer];
+        int length = 0;
+        while (length < mChunkSize) {
+            final int read = mSource.read(buffer, length, mChunkSize - length);
+            if (read < 0) break;
+            length += read;
+        }
+        if (length == 0) return null;
+        if (length < mChunkSize) {
+            mEndOfStream = true;
+            return Arrays.copyOf(buffer, length);
+        }
+        // Completions arrive in queue order, so this buffer is free again after mWindow chunks.
+        mNextBuffer = (mNextBuffer + 1) % mWindow;
+        return buffer;
+    }
+
+    private GattOperation newChunkOperation(final byte[] chunk) {
+        return new GattOperation(GattOperation.TYPE_WRITE_CHARACTERISTIC, chunk.length) {
+            @Override
+            public boolean execute() {
+                return !mFinished && mWriter.writeChunk(chunk);
+            }
+
+            @Override
+            protected void onCompleted(boolean success) {
+                onChunkCompleted(chunk.length, success);
+            }
+        };
+    }
+
+    private void onChunkCompleted(int length, boolean success) {
+        mInFlight--;
+        if (mFinished) return;
+        if (!success) {
+            finish(false);
+            return;
+        }
+        mBytesWritten += length;
+        mChunksWritten++;
+        fill();
+        if (mEndOfStream && mInFlight == 0) {
+            finish(true);
+        }
+    }
+
+    private void finish(boolean success) {
+        if (mFinished) return;
+        mFinished = true;
+        mSuccess = success;
+        mFinishedNanos = mClock.nanoTime();
+        if (mListener != null) {
+            mListener.onTransferFinished(this, success);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+/**
+ * Link parameters requested while a connection is set up.
+ * <p>
+ * The controller applies a profile in the order that gets the attribute table and the first
+ * transfers through fastest: the connection priority is raised to high as soon as the link is
+ * up so service discovery runs at the shortest connection interval, then the MTU is exchanged,
+ * the preferred PHY is requested, and the connection priority of the profile is requested
+ * last. Android offers no call to negotiate the data length; the stack extends it on its own
+ * once a large MTU has been exchanged.
+ * <p>
+ * Instances are immutable.
+ */
+public final class LinkProfile {
+    // Same values as BluetoothGatt.CONNECTION_PRIORITY_*.
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+    public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+    // Same values as BluetoothDevice.PHY_LE_*_MASK.
+    public static final int PHY_LE_1M_MASK = 1;
+    public static final int PHY_LE_2M_MASK = 2;
+    // ATT_MTU requested by every profile, the largest value accepted by the UI.
+    public static final int DEFAULT_MTU = 512;
+
+    /**
+     * Shortest connection interval on the 2M PHY, for bulk transfers.
+     */
+    public static final LinkProfile THROUGHPUT = new LinkProfile("throughput",
+            CONNECTION_PRIORITY_HIGH, PHY_LE_2M_MASK, DEFAULT_MTU);
+
+    /**
+     * Default connection interval on the 2M PHY, which halves the time on air of every packet.
+     */
+    public static final LinkProfile BALANCED = new LinkProfile("balanced",
+            CONNECTION_PRIORITY_BALANCED, PHY_LE_2M_MASK, DEFAULT_MTU);
+
+    /**
+     * Longest connection interval on the 1M PHY, for devices that mostly sit idle.
+     */
+    public static final LinkProfile LOW_POWER = new LinkProfile("low-power",
+            CONNECTION_PRIORITY_LOW_POWER, PHY_LE_1M_MASK, DEFAULT_MTU);
+
+    private final String mName;
+    private final int mConnectionPriority;
+    private final int mPhyMask;
+    private final int mMtu;
+
+    /**
+     * Create a new LinkProfile.
+     *
+     * @param name               Name of the profile, used in logs
+     * @param connectionPriority Connection priority requested once the link is set up, one of
+     *                           the {@code CONNECTION_PRIORITY_*} constants
+     * @param phyMask            Preferred transmitter and receiver PHY, a combination of the
+     *                           {@code PHY_LE_*_MASK} constants
+     * @param mtu                ATT_MTU requested
+     */
+    public LinkProfile(String name, int connectionPriority, int phyMask, int mtu) {
+        if (connectionPriority < CONNECTION_PRIORITY_BALANCED
+                || connectionPriority > CONNECTION_PRIORITY_LOW_POWER) {
+            throw new IllegalArgumentException("connectionPriority:" + connectionPriority);
+        }
+        if (phyMask <= 0) throw new IllegalArgumentException("phyMask:" + phyMask);
+        if (mtu < GattSession.DEFAULT_MTU) throw new IllegalArgumentException("mtu:" + mtu);
+        mName = name;
+        mConnectionPriority = connectionPriority;
+        mPhyMask = phyMask;
+        mMtu = mtu;
+    }
+
+    /**
+     * Returns the name of this profile.
+     *
+     * @return The name of the profile.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns the connection priority requested once the link is set up.
+     *
+     * @return One of the {@code CONNECTION_PRIORITY_*} constants.
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Returns the preferred transmitter and receiver PHY.
+     *
+     * @return A combination of the {@code PHY_LE_*_MASK} constants.
+     */
+    public int getPhyMask() {
+        return mPhyMask;
+    }
+
+    /**
+     * Returns the ATT_MTU requested.
+     *
+     * @return The MTU in bytes.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
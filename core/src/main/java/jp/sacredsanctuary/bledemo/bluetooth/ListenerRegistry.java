@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Listeners of a source of events, each called on the executor it chose for the events its
+ * {@link EventFilter} accepts.
+ * <p>
+ * The listeners are held in an array that is copied whenever a listener is added or removed,
+ * so dispatching an event takes no lock and listeners may come and go from any thread, even
+ * from a listener. An event is handed to the executor of each listener that has one before
+ * the listeners without executor are called on the dispatching thread; a listener that is
+ * slow to run only delays the listeners sharing its executor. Listeners without executor
+ * must return quickly, as they hold back the source of the events.
+ *
+ * @param <L> The type of the listeners
+ */
+public final class ListenerRegistry<L> {
+    /**
+     * Calls the method of a listener that reports an event.
+     *
+     * @param <L> The type of the listeners
+     */
+    public interface Event<L> {
+        /**
+         * Reports the event to a listener.
+         *
+         * @param listener The listener
+         */
+        void dispatch(L listener);
+    }
+
+    /**
+     * An event whose arguments are only valid while it is dispatched, such as a buffer that is
+     * reused once the listeners without executor have returned.
+     *
+     * @param <L> The type of the listeners
+     */
+    public interface TransientEvent<L> extends Event<L> {
+        /**
+         * Copies the event for the listeners called on an executor. Made at most once per
+         * dispatch, and shared by those listeners, which must not modify it.
+         *
+         * @return An event that stays valid once the dispatch has returned.
+         */
+        Event<L> copy();
+    }
+
+    private static final class Registration<L> {
+        final L mListener;
+        final Executor mExecutor;
+        final EventFilter mFilter;
+        // Cleared on removal, to drop the events still queued on the executor.
+        volatile boolean mActive = true;
+
+        Registration(L listener, Executor executor, EventFilter filter) {
+            mListener = listener;
+            mExecutor = executor;
+            mFilter = filter;
+        }
+    }
+
+    private static final Registration<?>[] EMPTY = new Registration<?>[0];
+
+    // Replaced, never modified, under the lock of the registry.
+    private volatile Registration<?>[] mRegistrations = EMPTY;
+
+    /**
+     * Adds a listener, or changes the executor and the filter of a listener already added.
+     * Listeners are compared by identity.
+     *
+     * @param listener The listener
+     * @param executor The executor the listener is called on, or null to call it on the
+     *                 thread dispatching the events
+     * @param filter   The events the listener receives, or null for every event
+     */
+    public synchronized void add(L listener, Executor executor, EventFilter filter) {
+        if (listener == null) throw new IllegalArgumentException("listener:null");
+        final Registration<L> registration = new Registration<>(listener, executor,
+                filter == null ? EventFilter.ALL : filter);
+        final Registration<?>[] registrations = mRegistrations;
+        final int index = indexOf(registrations, listener);
+        final Registration<?>[] updated;
+        if (index >= 0) {
+            registrations[index].mActive = false;
+            updated = registrations.clone();
+            updated[index] = registration;
+        } else {
+            updated = Arrays.copyOf(registrations, registrations.length + 1);
+            updated[registrations.length] = registration;
+        }
+        mRegistrations = updated;
+    }
+
+    /**
+     * Removes a listener. Events dispatched before and still queued on its executor are
+     * dropped.
+     *
+     * @param listener The listener
+     * @return Returns {@code true} if the listener was added, {@code false} otherwise.
+     */
+    public synchronized boolean remove(L listener) {
+        final Registration<?>[] registrations = mRegistrations;
+        final int index = indexOf(registrations, listener);
+        if (index < 0) return false;
+        registrations[index].mActive = false;
+        final Registration<?>[] updated = new Registration<?>[registrations.length - 1];
+        System.arraycopy(registrations, 0, updated, 0, index);
+        System.arraycopy(registrations, index + 1, updated, index, updated.length - index);
+        mRegistrations = updated;
+        return true;
+    }
+
+    /**
+     * Removes every listener.
+     */
+    public synchronized void clear() {
+        for (Registration<?> registration : mRegistrations) {
+            registration.mActive = false;
+        }
+        mRegistrations = EMPTY;
+    }
+
+    /**
+     * Returns the number of listeners.
+     *
+     * @return The number of listeners added.
+     */
+    public int size() {
+        return mRegistrations.length;
+    }
+
+    /**
+     * Determines if a listener would receive an event, so that an event nobody listens to is
+     * not built.
+     *
+     * @param type    The type of the event
+     * @param address The address of the device, or null if the event has no device
+     * @param uuid    The UUID of the characteristic, or null if the event has no characteristic
+     * @return Returns {@code true} if a listener accepts the event, {@code false} otherwise.
+     */
+    public boolean hasListeners(int type, String address, UUID uuid) {
+        for (Registration<?> registration : mRegistrations) {
+            if (registration.mFilter.accepts(type, address, uuid)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports an event to the listeners whose filter accepts it.
+     *
+     * @param type    The type of the event
+     * @param address The address of the device, or null if the event has no device
+     * @param uuid    The UUID of the characteristic, or null if the event has no characteristic
+     * @param event   The event. A {@link TransientEvent} is copied for the listeners called on
+     *                an executor.
+     * @return The number of listeners the event was reported or handed to.
+     */
+    @SuppressWarnings("unchecked")
+    public int dispatch(int type, String address, UUID uuid, Event<L> event) {
+        final Registration<?>[] registrations = mRegistrations;
+        int count = 0;
+        Event<L> copy = null;
+        for (Registration<?> registration : registrations) {
+            if (registration.mExecutor == null
+                    || !registration.mFilter.accepts(type, address, uuid)) {
+                continue;
+            }
+            if (copy == null) {
+                copy = event instanceof TransientEvent
+                        ? ((TransientEvent<L>) event).copy() : event;
+            }
+            final Registration<L> target = (Registration<L>) registration;
+            final Event<L> queued = copy;
+            target.mExecutor.execute(() -> {
+                if (target.mActive) queued.dispatch(target.mListener);
+            });
+            count++;
+        }
+        for (Registration<?> registration : registrations) {
+            if (registration.mExecutor != null || !registration.mActive
+                    || !registration.mFilter.accepts(type, address, uuid)) {
+                continue;
+            }
+            event.dispatch(((Registration<L>) registration).mListener);
+            count++;
+        }
+        return count;
+    }
+
+    private static int indexOf(Registration<?>[] registrations, Object listener) {
+        for (int index = 0; index < registrations.length; index++) {
+            if (registrations[index].mListener == listener) return index;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When {@link GattReconnector} tries to restore a lost link.
+ * <p>
+ * The delay before each attempt grows exponentially from the initial delay up to the maximum
+ * delay, and a random part of it is taken off so devices dropped together, by an interference
+ * or by the phone moving away, do not all reconnect at the same time. The first attempts are
+ * direct connections, which the stack gives up after about 30 seconds; once they have all
+ * failed, the device is most likely out of range and the following attempts are background
+ * connections ({@code autoConnect}), which wait for the device to advertise again without a
+ * time limit at the cost of a slower link setup.
+ * <p>
+ * Instances are immutable.
+ */
+public final class ReconnectPolicy {
+    /**
+     * Three direct attempts after 0.5, 1 and 2 seconds, then background connections.
+     */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(
+            TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(30), 2, 0.5, 3);
+
+    private final long mInitialDelayNanos;
+    private final long mMaxDelayNanos;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mDirectAttempts;
+
+    /**
+     * Create a new ReconnectPolicy.
+     *
+     * @param initialDelayNanos Delay before the first attempt
+     * @param maxDelayNanos     Longest delay before an attempt
+     * @param multiplier        Factor applied to the delay after each attempt, at least 1
+     * @param jitter            Largest share of a delay taken off at random, from 0 to 1
+     * @param directAttempts    Number of direct connection attempts before falling back to
+     *                          background connections
+     */
+    public ReconnectPolicy(long initialDelayNanos, long maxDelayNanos, double multiplier,
+            double jitter, int directAttempts) {
+        if (initialDelayNanos < 0) {
+            throw new IllegalArgumentException("initialDelayNanos:" + initialDelayNanos);
+        }
+        if (maxDelayNanos < initialDelayNanos) {
+            throw new IllegalArgumentException("maxDelayNanos:" + maxDelayNanos);
+        }
+        if (!(multiplier >= 1)) throw new IllegalArgumentException("multiplier:" + multiplier);
+        if (!(jitter >= 0 && jitter <= 1)) throw new IllegalArgumentException("jitter:" + jitter);
+        if (directAttempts < 0) {
+            throw new IllegalArgumentException("directAttempts:" + directAttempts);
+        }
+        mInitialDelayNanos = initialDelayNanos;
+        mMaxDelayNanos = maxDelayNanos;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mDirectAttempts = directAttempts;
+    }
+
+    /**
+     * Returns the delay before an attempt.
+     *
+     * @param attempt Number of attempts already made since the link was lost
+     * @param random  A random value from 0 inclusive to 1 exclusive
+     * @return The delay in nanoseconds.
+     */
+    public long getDelayNanos(int attempt, double random) {
+        double delay = mInitialDelayNanos;
+        for (int i = 0; i < attempt && delay < mMaxDelayNanos; i++) {
+            delay *= mMultiplier;
+        }
+        final double capped = Math.min(delay, mMaxDelayNanos);
+        return (long) (capped - capped * mJitter * random);
+    }
+
+    /**
+     * Determines if an attempt is a background connection.
+     *
+     * @param attempt Number of attempts already made since the link was lost
+     * @return Returns {@code true} if the attempt uses {@code autoConnect}, {@code false} if it
+     * is a direct connection.
+     */
+    public boolean isAutoConnect(int attempt) {
+        return attempt >= mDirectAttempts;
+    }
+
+    /**
+     * Returns the number of direct connection attempts.
+     *
+     * @return The number of attempts before falling back to background connections.
+     */
+    public int getDirectAttempts() {
+        return mDirectAttempts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ReconnectPolicy{initial=" + TimeUnit.NANOSECONDS.toMillis(mInitialDelayNanos)
+                + "ms max=" + TimeUnit.NANOSECONDS.toMillis(mMaxDelayNanos)
+                + "ms multiplier=" + mMultiplier + " jitter=" + mJitter
+                + " directAttempts=" + mDirectAttempts + "}";
+    }
+}
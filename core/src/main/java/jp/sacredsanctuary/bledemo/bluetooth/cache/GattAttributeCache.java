@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+
+/**
+ * Disk-backed cache of the attribute table of every device connected to, keyed by device
+ * address. Each entry carries the Database Hash of its table, so the table can be validated
+ * against the server before it is used, see {@link ServiceDiscovery}.
+ * <p>
+ * Every entry is stored in its own file, named after the packed address. Files are written to a
+ * temporary file first and renamed, so a crash never leaves a partial entry behind; a file that
+ * cannot be read is deleted and treated as a miss. Entries are kept in memory once loaded.
+ * <p>
+ * This class is not thread safe.
+ */
+public class GattAttributeCache {
+    private static final String FILE_SUFFIX = ".gatt";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final Map<String, GattDatabase> mEntries = new HashMap<>();
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidationCount;
+
+    /**
+     * Create a new GattAttributeCache.
+     *
+     * @param directory Directory holding the cache files, created when needed
+     */
+    public GattAttributeCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the cached attribute table of a device.
+     *
+     * @param address Bluetooth address as string
+     * @return The table, or null if the device is not cached.
+     */
+    public GattDatabase get(String address) {
+        final String key = toKey(address);
+        if (key == null) return null;
+        GattDatabase database = mEntries.get(key);
+        if (database == null) {
+            database = load(key);
+            if (database != null) {
+                mEntries.put(key, database);
+            }
+        }
+        if (database == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return database;
+    }
+
+    /**
+     * Stores the attribute table of a device, replacing the previous one.
+     *
+     * @param address  Bluetooth address as string
+     * @param database The table discovered on the device
+     * @return Returns {@code true} if the table was written to disk, {@code false} if it is only
+     * kept in memory.
+     */
+    public boolean put(String address, GattDatabase database) {
+        final String key = toKey(address);
+        if (key == null) return false;
+        mEntries.put(key, database);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return false;
+        final File temporary = new File(mDirectory, key + TEMPORARY_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            database.writeTo(out);
+        } catch (IOException e) {
+            temporary.delete();
+            return false;
+        }
+        return temporary.renameTo(new File(mDirectory, key + FILE_SUFFIX));
+    }
+
+    /**
+     * Drops the attribute table of a device, for example because its server reported a
+     * Service Changed indication.
+     *
+     * @param address Bluetooth address as string
+     */
+    public void invalidate(String address) {
+        final String key = toKey(address);
+        if (key == null) return;
+        mEntries.remove(key);
+        new File(mDirectory, key + FILE_SUFFIX).delete();
+        mInvalidationCount++;
+    }
+
+    /**
+     * Returns the number of lookups that found a table.
+     *
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of lookups that found no table.
+     *
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of tables dropped by {@link #invalidate(String)}.
+     *
+     * @return The number of invalidations.
+     */
+    public long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    private GattDatabase load(String key) {
+        final File file = new File(mDirectory, key + FILE_SUFFIX);
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            return GattDatabase.readFrom(in);
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    private static String toKey(String address) {
+        final long packed = MacAddressIndex.pack(address);
+        return packed == MacAddressIndex.INVALID_ADDRESS ? null : Long.toHexString(packed);
+    }
+}
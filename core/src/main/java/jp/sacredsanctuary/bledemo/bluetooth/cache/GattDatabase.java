@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.scan.AdvertisingDataParser;
+
+/**
+ * Immutable attribute table of a GATT server: its services, their characteristics and the
+ * descriptors of those, together with the Database Hash the server reported for it.
+ * <p>
+ * Tables are built with a {@link Builder}, either from a service discovery or from
+ * {@link #readFrom(DataInputStream)}.
+ */
+public final class GattDatabase {
+    // Generic Attribute service and its characteristics, see Bluetooth Core Specification,
+    // Vol 3, Part G, 7.
+    public static final UUID GENERIC_ATTRIBUTE_SERVICE = uuid16(0x1801);
+    public static final UUID SERVICE_CHANGED = uuid16(0x2A05);
+    public static final UUID DATABASE_HASH = uuid16(0x2B2A);
+    // Descriptor enabling the notifications and indications of a characteristic.
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = uuid16(0x2902);
+    // Properties that allow a characteristic to be subscribed to.
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * A descriptor of a characteristic.
+     */
+    public static final class Descriptor {
+        private final UUID mUuid;
+        private final int mHandle;
+
+        Descriptor(UUID uuid, int handle) {
+            mUuid = uuid;
+            mHandle = handle;
+        }
+
+        /**
+         * Returns the UUID of this descriptor.
+         *
+         * @return The UUID.
+         */
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        /**
+         * Returns the attribute handle of this descriptor.
+         *
+         * @return The handle, or 0 if the platform does not expose it.
+         */
+        public int getHandle() {
+            return mHandle;
+        }
+    }
+
+    /**
+     * A characteristic of a service.
+     */
+    public static final class Characteristic {
+        private final UUID mUuid;
+        private final int mHandle;
+        private final int mProperties;
+        private final List<Descriptor> mDescriptors = new ArrayList<>();
+
+        Characteristic(UUID uuid, int handle, int properties) {
+            mUuid = uuid;
+            mHandle = handle;
+            mProperties = properties;
+        }
+
+        /**
+         * Returns the UUID of this characteristic.
+         *
+         * @return The UUID.
+         */
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        /**
+         * Returns the attribute handle, or the instance id, of this characteristic.
+         *
+         * @return The handle.
+         */
+        public int getHandle() {
+            return mHandle;
+        }
+
+        /**
+         * Returns the properties of this characteristic.
+         *
+         * @return The {@code BluetoothGattCharacteristic#PROPERTY_*} bits.
+         */
+        public int getProperties() {
+            return mProperties;
+        }
+
+        /**
+         * Determines if this characteristic supports notifications or indications.
+         *
+         * @return Returns {@code true} if it can be subscribed to, {@code false} otherwise.
+         */
+        public boolean isSubscribable() {
+            return (mProperties & (PROPERTY_NOTIFY | PROPERTY_INDICATE)) != 0;
+        }
+
+        /**
+         * Returns the descriptors of this characteristic.
+         *
+         * @return The descriptors, in handle order.
+         */
+        public List<Descriptor> getDescriptors() {
+            return Collections.unmodifiableList(mDescriptors);
+        }
+
+        /**
+         * Determines if this characteristic has a descriptor.
+         *
+         * @param uuid The UUID of the descriptor
+         * @return Returns {@code true} if the descriptor is present, {@code false} otherwise.
+         */
+        public boolean hasDescriptor(UUID uuid) {
+            for (Descriptor descriptor : mDescriptors) {
+                if (descriptor.getUuid().equals(uuid)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A primary service.
+     */
+    public static final class Service {
+        private final UUID mUuid;
+        private final int mHandle;
+        private final List<Characteristic> mCharacteristics = new ArrayList<>();
+
+        Service(UUID uuid, int handle) {
+            mUuid = uuid;
+            mHandle = handle;
+        }
+
+        /**
+         * Returns the UUID of this service.
+         *
+         * @return The UUID.
+         */
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        /**
+         * Returns the attribute handle, or the instance id, of this service.
+         *
+         * @return The handle.
+         */
+        public int getHandle() {
+            return mHandle;
+        }
+
+        /**
+         * Returns the characteristics of this service.
+         *
+         * @return The characteristics, in handle order.
+         */
+        public List<Characteristic> getCharacteristics() {
+            return Collections.unmodifiableList(mCharacteristics);
+        }
+    }
+
+    /**
+     * Builder for {@link GattDatabase}. Characteristics are added to the last service added,
+     * descriptors to the last characteristic added.
+     */
+    public static final class Builder {
+        private final List<Service> mServices = new ArrayList<>();
+        private byte[] mHash = new byte[0];
+
+        /**
+         * Adds a service.
+         *
+         * @param uuid   The UUID of the service
+         * @param handle The handle of the service
+         * @return This builder.
+         */
+        public Builder addService(UUID uuid, int handle) {
+            mServices.add(new Service(uuid, handle));
+            return this;
+        }
+
+        /**
+         * Adds a characteristic to the last service added.
+         *
+         * @param uuid       The UUID of the characteristic
+         * @param handle     The handle of the characteristic
+         * @param properties The properties of the characteristic
+         * @return This builder.
+         */
+        public Builder addCharacteristic(UUID uuid, int handle, int properties) {
+            if (mServices.isEmpty()) {
+                throw new IllegalStateException("no service");
+            }
+            mServices.get(mServices.size() - 1).mCharacteristics.add(
+                    new Characteristic(uuid, handle, properties));
+            return this;
+        }
+
+        /**
+         * Adds a descriptor to the last characteristic added.
+         *
+         * @param uuid   The UUID of the descriptor
+         * @param handle The handle of the descriptor
+         * @return This builder.
+         */
+        public Builder addDescriptor(UUID uuid, int handle) {
+            final List<Characteristic> characteristics = mServices.isEmpty() ? null
+                    : mServices.get(mServices.size() - 1).mCharacteristics;
+            if (characteristics == null || characteristics.isEmpty()) {
+                throw new IllegalStateException("no characteristic");
+            }
+            characteristics.get(characteristics.size() - 1).mDescriptors.add(
+                    new Descriptor(uuid, handle));
+            return this;
+        }
+
+        /**
+         * Sets the value of the Database Hash characteristic.
+         *
+         * @param hash The hash, or an empty array if the server does not expose one
+         * @return This builder.
+         */
+        public Builder setHash(byte[] hash) {
+            mHash = hash.clone();
+            return this;
+        }
+
+        /**
+         * Build {@link GattDatabase}.
+         *
+         * @return The attribute table.
+         */
+        public GattDatabase build() {
+            return new GattDatabase(new ArrayList<>(mServices), mHash);
+        }
+    }
+
+    private final List<Service> mServices;
+    private final byte[] mHash;
+
+    private GattDatabase(List<Service> services, byte[] hash) {
+        mServices = services;
+        mHash = hash;
+    }
+
+    /**
+     * Returns the services of this table.
+     *
+     * @return The services, in handle order.
+     */
+    public List<Service> getServices() {
+        return Collections.unmodifiableList(mServices);
+    }
+
+    /**
+     * Returns the number of attributes of this table, services, characteristics and
+     * descriptors included.
+     *
+     * @return The number of attributes.
+     */
+    public int getAttributeCount() {
+        int count = 0;
+        for (Service service : mServices) {
+            count++;
+            for (Characteristic characteristic : service.mCharacteristics) {
+                count += 1 + characteristic.mDescriptors.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the value of the Database Hash characteristic read for this table.
+     *
+     * @return A copy of the hash, empty if the server does not expose one.
+     */
+    public byte[] getHash() {
+        return mHash.clone();
+    }
+
+    /**
+     * Determines if the Database Hash of this table is known.
+     *
+     * @return Returns {@code true} if the table has a hash, {@code false} otherwise.
+     */
+    public boolean hasHash() {
+        return mHash.length > 0;
+    }
+
+    /**
+     * Determines if this table has the given Database Hash.
+     *
+     * @param hash The hash read from the server
+     * @return Returns {@code true} if the hashes are equal, {@code false} otherwise.
+     */
+    public boolean hasHash(byte[] hash) {
+        return Arrays.equals(mHash, hash);
+    }
+
+    /**
+     * Returns a copy of this table with the given Database Hash.
+     *
+     * @param hash The hash read from the server
+     * @return The table with {@code hash}.
+     */
+    public GattDatabase withHash(byte[] hash) {
+        return new GattDatabase(mServices, hash.clone());
+    }
+
+    /**
+     * Looks up a characteristic.
+     *
+     * @param serviceUuid        The UUID of the service
+     * @param characteristicUuid The UUID of the characteristic
+     * @return The first matching characteristic, or null.
+     */
+    public Characteristic findCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        for (Service service : mServices) {
+            if (!service.mUuid.equals(serviceUuid)) continue;
+            for (Characteristic characteristic : service.mCharacteristics) {
+                if (characteristic.mUuid.equals(characteristicUuid)) return characteristic;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines if this table holds the same attributes as another one, with the same
+     * handles and properties. The hashes are not compared.
+     *
+     * @param other The table to compare with
+     * @return Returns {@code true} if the attributes are the same, {@code false} otherwise.
+     */
+    public boolean hasSameAttributes(GattDatabase other) {
+        if (mServices.size() != other.mServices.size()) return false;
+        for (int i = 0; i < mServices.size(); i++) {
+            final Service service = mServices.get(i);
+            final Service otherService = other.mServices.get(i);
+            if (!service.mUuid.equals(otherService.mUuid)
+                    || service.mHandle != otherService.mHandle
+                    || service.mCharacteristics.size() != otherService.mCharacteristics.size()) {
+                return false;
+            }
+            for (int j = 0; j < service.mCharacteristics.size(); j++) {
+                if (!isSameCharacteristic(service.mCharacteristics.get(j),
+                        otherService.mCharacteristics.get(j))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes this table in the format read by {@link #readFrom(DataInputStream)}.
+     *
+     * @param out The stream to write to
+     * @throws IOException If the stream cannot be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeShort(mHash.length);
+        out.write(mHash);
+        out.writeShort(mServices.size());
+        for (Service service : mServices) {
+            writeUuid(out, service.mUuid);
+            out.writeInt(service.mHandle);
+            out.writeShort(service.mCharacteristics.size());
+            for (Characteristic characteristic : service.mCharacteristics) {
+                writeUuid(out, characteristic.mUuid);
+                out.writeInt(characteristic.mHandle);
+                out.writeInt(characteristic.mProperties);
+                out.writeShort(characteristic.mDescriptors.size());
+                for (Descriptor descriptor : characteristic.mDescriptors) {
+                    writeUuid(out, descriptor.mUuid);
+                    out.writeInt(descriptor.mHandle);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param in The stream to read from
+     * @return The table.
+     * @throws IOException If the stream cannot be read or holds no valid table
+     */
+    public static GattDatabase readFrom(DataInputStream in) throws IOException {
+        final int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("version:" + version);
+        }
+        final Builder builder = new Builder();
+        final byte[] hash = new byte[in.readUnsignedShort()];
+        in.readFully(hash);
+        builder.setHash(hash);
+        final int serviceCount = in.readUnsignedShort();
+        for (int i = 0; i < serviceCount; i++) {
+            builder.addService(readUuid(in), in.readInt());
+            final int characteristicCount = in.readUnsignedShort();
+            for (int j = 0; j < characteristicCount; j++) {
+                builder.addCharacteristic(readUuid(in), in.readInt(), in.readInt());
+                final int descriptorCount = in.readUnsignedShort();
+                for (int k = 0; k < descriptorCount; k++) {
+                    builder.addDescriptor(readUuid(in), in.readInt());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean isSameCharacteristic(Characteristic a, Characteristic b) {
+        if (!a.mUuid.equals(b.mUuid) || a.mHandle != b.mHandle
+                || a.mProperties != b.mProperties
+                || a.mDescriptors.size() != b.mDescriptors.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.mDescriptors.size(); i++) {
+            final Descriptor descriptor = a.mDescriptors.get(i);
+            final Descriptor otherDescriptor = b.mDescriptors.get(i);
+            if (!descriptor.mUuid.equals(otherDescriptor.mUuid)
+                    || descriptor.mHandle != otherDescriptor.mHandle) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static UUID uuid16(int uuid) {
+        return new UUID(AdvertisingDataParser.BASE_UUID_MOST_SIGNIFICANT_BITS | (long) uuid << 32,
+                AdvertisingDataParser.BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+}
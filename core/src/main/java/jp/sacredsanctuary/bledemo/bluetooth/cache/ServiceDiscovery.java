@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.cache;
+
+/**
+ * Resolves the attribute table of a connected device, from a {@link GattAttributeCache} when
+ * possible and by a service discovery otherwise.
+ * <p>
+ * A cached table is used only if the client can address its attributes without discovering
+ * them. When the table carries a Database Hash the hash is read from the server first, a
+ * single request instead of the whole discovery, and a mismatch falls back to a discovery.
+ * Tables without a hash are trusted until the server sends a Service Changed indication, see
+ * {@link #onServiceChanged()}. Discovered tables are stored in the cache with their hash.
+ * <p>
+ * Requests are started through a {@link Client}, whose results are reported back through
+ * {@link #onServicesDiscovered(GattDatabase)} and {@link #onDatabaseHashRead(byte[])}. This
+ * class is not thread safe.
+ */
+public class ServiceDiscovery {
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_VALIDATING = 1;
+    private static final int STATE_DISCOVERING = 2;
+    private static final int STATE_READING_HASH = 3;
+
+    /**
+     * Issues the GATT requests of a discovery.
+     */
+    public interface Client {
+        /**
+         * Determines if the attributes of a cached table can be used without discovering them.
+         *
+         * @param database The cached table
+         * @return Returns {@code true} if the table can be used, {@code false} otherwise.
+         */
+        boolean canUseCachedDatabase(GattDatabase database);
+
+        /**
+         * Starts a service discovery, whose result is reported through
+         * {@link ServiceDiscovery#onServicesDiscovered(GattDatabase)}.
+         *
+         * @return Returns {@code true} if the discovery was started, {@code false} otherwise.
+         */
+        boolean discoverServices();
+
+        /**
+         * Starts reading the Database Hash characteristic, whose value is reported through
+         * {@link ServiceDiscovery#onDatabaseHashRead(byte[])}.
+         *
+         * @return Returns {@code true} if the read was started, {@code false} if the server has
+         * no Database Hash characteristic or the read could not be started.
+         */
+        boolean readDatabaseHash();
+    }
+
+    /**
+     * Receives the result of a discovery.
+     */
+    public interface Listener {
+        /**
+         * Called once the attribute table of the device is known.
+         *
+         * @param database The attribute table
+         * @param cached   {@code true} if the table was taken from the cache
+         */
+        void onDiscoveryCompleted(GattDatabase database, boolean cached);
+
+        /**
+         * Called if the attribute table could not be discovered.
+         */
+        void onDiscoveryFailed();
+    }
+
+    private final GattAttributeCache mCache;
+    private final Client mClient;
+    private final Listener mListener;
+    private int mState = STATE_IDLE;
+    private String mAddress;
+    private GattDatabase mCandidate;
+    private long mCachedCount;
+    private long mDiscoveredCount;
+
+    /**
+     * Create a new ServiceDiscovery.
+     *
+     * @param cache    The cache of attribute tables
+     * @param client   The client issuing the GATT requests
+     * @param listener The listener receiving the results
+     */
+    public ServiceDiscovery(GattAttributeCache cache, Client client, Listener listener) {
+        mCache = cache;
+        mClient = client;
+        mListener = listener;
+    }
+
+    /**
+     * Resolves the attribute table of a device that has just connected.
+     *
+     * @param address Bluetooth address as string
+     */
+    public void start(String address) {
+        mAddress = address;
+        mCandidate = null;
+        final GattDatabase cached = mCache.get(address);
+        if (cached != null && mClient.canUseCachedDatabase(cached)) {
+            if (!cached.hasHash()) {
+                completeFromCache(cached);
+                return;
+            }
+            mState = STATE_VALIDATING;
+            mCandidate = cached;
+            if (mClient.readDatabaseHash()) return;
+        }
+        discover();
+    }
+
+    /**
+     * Reports the result of {@link Client#discoverServices()}.
+     *
+     * @param database The discovered table, without hash, or null if the discovery failed
+     */
+    public void onServicesDiscovered(GattDatabase database) {
+        if (mState != STATE_DISCOVERING) return;
+        if (database == null) {
+            mState = STATE_IDLE;
+            mListener.onDiscoveryFailed();
+            return;
+        }
+        if (database.findCharacteristic(GattDatabase.GENERIC_ATTRIBUTE_SERVICE,
+                GattDatabase.DATABASE_HASH) != null) {
+            mState = STATE_READING_HASH;
+            mCandidate = database;
+            if (mClient.readDatabaseHash()) return;
+        }
+        store(database);
+    }
+
+    /**
+     * Reports the result of {@link Client#readDatabaseHash()}.
+     *
+     * @param hash The value of the Database Hash characteristic, or null if the read failed
+     */
+    public void onDatabaseHashRead(byte[] hash) {
+        if (mState == STATE_VALIDATING) {
+            if (hash != null && mCandidate.hasHash(hash)) {
+                completeFromCache(mCandidate);
+            } else {
+                mCache.invalidate(mAddress);
+                discover();
+            }
+        } else if (mState == STATE_READING_HASH) {
+            store(hash == null ? mCandidate : mCandidate.withHash(hash));
+        }
+    }
+
+    /**
+     * Drops the cached table of the current device because its server reported a Service
+     * Changed indication, and discovers the services again.
+     */
+    public void onServiceChanged() {
+        if (mAddress == null) return;
+        mCache.invalidate(mAddress);
+        discover();
+    }
+
+    /**
+     * Abandons the discovery in progress, for example because the link was lost.
+     */
+    public void cancel() {
+        mState = STATE_IDLE;
+        mCandidate = null;
+    }
+
+    /**
+     * Returns the number of discoveries completed from the cache.
+     *
+     * @return The number of cached discoveries.
+     */
+    public long getCachedCount() {
+        return mCachedCount;
+    }
+
+    /**
+     * Returns the number of discoveries completed by discovering the services.
+     *
+     * @return The number of full discoveries.
+     */
+    public long getDiscoveredCount() {
+        return mDiscoveredCount;
+    }
+
+    private void discover() {
+        mState = STATE_DISCOVERING;
+        mCandidate = null;
+        if (!mClient.discoverServices()) {
+            mState = STATE_IDLE;
+            mListener.onDiscoveryFailed();
+        }
+    }
+
+    private void store(GattDatabase database) {
+        mCache.put(mAddress, database);
+        mDiscoveredCount++;
+        mState = STATE_IDLE;
+        mCandidate = null;
+        mListener.onDiscoveryCompleted(database, false);
+    }
+
+    private void completeFromCache(GattDatabase database) {
+        mCachedCount++;
+        mState = STATE_IDLE;
+        mCandidate = null;
+        mListener.onDiscoveryCompleted(database, true);
+    }
+}
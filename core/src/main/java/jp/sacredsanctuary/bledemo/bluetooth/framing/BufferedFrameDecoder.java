@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+/**
+ * Base class for decoders that accumulate a partial message in a reusable, growable buffer.
+ */
+abstract class BufferedFrameDecoder implements FrameDecoder {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int mMaxFrameLength;
+    byte[] mBuffer;
+    int mLength;
+    private long mErrorCount;
+
+    /**
+     * Create a new BufferedFrameDecoder.
+     *
+     * @param maxFrameLength Largest message accepted, in bytes
+     */
+    BufferedFrameDecoder(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength:" + maxFrameLength);
+        }
+        mMaxFrameLength = maxFrameLength;
+        mBuffer = new byte[Math.min(INITIAL_CAPACITY, maxFrameLength)];
+    }
+
+    /**
+     * Returns the largest message accepted by this decoder.
+     *
+     * @return The maximum message length in bytes.
+     */
+    public int getMaxFrameLength() {
+        return mMaxFrameLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        mLength = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+
+    void onError() {
+        mErrorCount++;
+    }
+
+    /**
+     * Grows the buffer so that it holds at least {@code capacity} bytes. The buffer only grows,
+     * so a stream of similarly sized messages stops allocating after the first one.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= mBuffer.length) return;
+        int newCapacity = Math.max(mBuffer.length * 2, capacity);
+        byte[] buffer = new byte[Math.min(newCapacity, mMaxFrameLength)];
+        System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+        mBuffer = buffer;
+    }
+}
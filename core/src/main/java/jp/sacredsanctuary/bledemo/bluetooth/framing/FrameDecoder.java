@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+/**
+ * Reassembles messages that are split across several notification packets.
+ * <p>
+ * A decoder keeps the partial message of a single stream between calls, so every
+ * characteristic needs its own instance. Implementations decode into reusable buffers and
+ * never allocate per packet.
+ */
+public interface FrameDecoder {
+    /**
+     * Receives complete messages from a {@link FrameDecoder}.
+     */
+    interface FrameListener {
+        /**
+         * Called for every complete message.
+         *
+         * @param buffer Array holding the message. It is owned by the decoder and only valid
+         *               until this method returns.
+         * @param offset Offset of the message in {@code buffer}
+         * @param length Length of the message in bytes
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Feeds a packet to the decoder.
+     *
+     * @param data     Array holding the packet
+     * @param offset   Offset of the packet in {@code data}
+     * @param length   Length of the packet in bytes
+     * @param listener Listener receiving every message completed by this packet
+     */
+    void decode(byte[] data, int offset, int length, FrameListener listener);
+
+    /**
+     * Drops the partial message, if any.
+     */
+    void reset();
+
+    /**
+     * Returns the number of malformed or oversized messages dropped so far.
+     *
+     * @return The number of dropped messages.
+     */
+    long getErrorCount();
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+/**
+ * Decodes messages preceded by an unsigned length field.
+ * <p>
+ * A message that is fully contained in a single packet is delivered straight from the packet
+ * without being copied. Messages whose length exceeds the maximum are skipped.
+ */
+public class LengthPrefixedFrameDecoder extends BufferedFrameDecoder {
+    private final int mHeaderSize;
+    private final boolean mBigEndian;
+    private int mHeaderRead;
+    private long mHeaderValue;
+    private int mFrameLength = -1;
+    private long mSkipRemaining;
+
+    /**
+     * Create a new LengthPrefixedFrameDecoder.
+     *
+     * @param headerSize     Size of the length field: 1, 2 or 4 bytes
+     * @param bigEndian      {@code true} if the length field is big endian
+     * @param maxFrameLength Largest message accepted, in bytes
+     */
+    public LengthPrefixedFrameDecoder(int headerSize, boolean bigEndian, int maxFrameLength) {
+        super(maxFrameLength);
+        if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+            throw new IllegalArgumentException("headerSize:" + headerSize);
+        }
+        mHeaderSize = headerSize;
+        mBigEndian = bigEndian;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void decode(byte[] data, int offset, int length, FrameListener listener) {
+        final int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            if (mSkipRemaining > 0) {
+                final int skipped = (int) Math.min(mSkipRemaining, end - position);
+                mSkipRemaining -= skipped;
+                position += skipped;
+                continue;
+            }
+            if (mFrameLength < 0) {
+                readHeader(data[position++] & 0xFF, listener);
+                continue;
+            }
+            final int needed = mFrameLength - mLength;
+            final int available = end - position;
+            if (mLength == 0 && available >= needed) {
+                listener.onFrame(data, position, needed);
+                position += needed;
+                mFrameLength = -1;
+                continue;
+            }
+            final int copied = Math.min(needed, available);
+            ensureCapacity(mFrameLength);
+            System.arraycopy(data, position, mBuffer, mLength, copied);
+            mLength += copied;
+            position += copied;
+            if (mLength == mFrameLength) {
+                listener.onFrame(mBuffer, 0, mLength);
+                mLength = 0;
+                mFrameLength = -1;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        mHeaderRead = 0;
+        mHeaderValue = 0;
+        mFrameLength = -1;
+        mSkipRemaining = 0;
+    }
+
+    private void readHeader(int value, FrameListener listener) {
+        if (mBigEndian) {
+            mHeaderValue = (mHeaderValue << 8) | value;
+        } else {
+            mHeaderValue |= ((long) value) << (8 * mHeaderRead);
+        }
+        if (++mHeaderRead < mHeaderSize) return;
+
+        final long frameLength = mHeaderValue;
+        mHeaderRead = 0;
+        mHeaderValue = 0;
+        if (frameLength > getMaxFrameLength()) {
+            onError();
+            mSkipRemaining = frameLength;
+        } else if (frameLength == 0) {
+            listener.onFrame(mBuffer, 0, 0);
+        } else {
+            mFrameLength = (int) frameLength;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Routes notification packets to the {@link FrameDecoder} registered for their characteristic
+ * and reports every reassembled message.
+ */
+public class NotificationReassembler {
+    /**
+     * Receives reassembled messages.
+     */
+    public interface MessageListener {
+        /**
+         * Called for every complete message.
+         *
+         * @param uuid   The UUID of the characteristic that sent the message
+         * @param buffer Array holding the message, only valid until this method returns
+         * @param offset Offset of the message in {@code buffer}
+         * @param length Length of the message in bytes
+         */
+        void onMessage(UUID uuid, byte[] buffer, int offset, int length);
+    }
+
+    private final Map<UUID, FrameDecoder> mDecoders = new HashMap<>();
+    private MessageListener mListener;
+    private UUID mCurrentUuid;
+    private final FrameDecoder.FrameListener mFrameListener = (buffer, offset, length) -> {
+        if (mListener != null) {
+            mListener.onMessage(mCurrentUuid, buffer, offset, length);
+        }
+    };
+
+    /**
+     * Sets the listener receiving reassembled messages.
+     *
+     * @param listener The new listener or null, if the listener should be unregistered.
+     */
+    public synchronized void setListener(MessageListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Registers the decoder used for the notifications of a characteristic.
+     *
+     * @param uuid    The UUID of the characteristic
+     * @param decoder The decoder, or null to stop reassembling that characteristic
+     */
+    public synchronized void setDecoder(UUID uuid, FrameDecoder decoder) {
+        if (decoder == null) {
+            mDecoders.remove(uuid);
+        } else {
+            mDecoders.put(uuid, decoder);
+        }
+    }
+
+    /**
+     * Determines if notifications of a characteristic are reassembled.
+     *
+     * @param uuid The UUID of the characteristic
+     * @return Returns {@code true} if a decoder is registered, {@code false} otherwise.
+     */
+    public synchronized boolean hasDecoder(UUID uuid) {
+        return mDecoders.containsKey(uuid);
+    }
+
+    /**
+     * Feeds a notification packet to the decoder of its characteristic.
+     *
+     * @param uuid  The UUID of the characteristic that sent the notification
+     * @param value The value of the notification
+     * @return Returns {@code true} if the packet was consumed, {@code false} if no decoder is
+     * registered for the characteristic.
+     */
+    public synchronized boolean onNotification(UUID uuid, byte[] value) {
+        final FrameDecoder decoder = mDecoders.get(uuid);
+        if (decoder == null) return false;
+        if (value == null) return true;
+        mCurrentUuid = uuid;
+        decoder.decode(value, 0, value.length, mFrameListener);
+        mCurrentUuid = null;
+        return true;
+    }
+
+    /**
+     * Drops the partial message of every characteristic, e.g. after the link was lost.
+     */
+    public synchronized void reset() {
+        for (FrameDecoder decoder : mDecoders.values()) {
+            decoder.reset();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+/**
+ * Decodes SLIP (RFC 1055) framed messages.
+ * <p>
+ * Every message is terminated by {@code END}; {@code END} and {@code ESC} bytes inside a
+ * message are escaped. Empty messages are ignored, and a message exceeding the maximum length
+ * is dropped up to the next {@code END}.
+ */
+public class SlipFrameDecoder extends BufferedFrameDecoder {
+    static final byte END = (byte) 0xC0;
+    static final byte ESC = (byte) 0xDB;
+    static final byte ESC_END = (byte) 0xDC;
+    static final byte ESC_ESC = (byte) 0xDD;
+
+    private boolean mEscaped = false;
+    private boolean mOverflow = false;
+
+    /**
+     * Create a new SlipFrameDecoder.
+     *
+     * @param maxFrameLength Largest decoded message accepted, in bytes
+     */
+    public SlipFrameDecoder(int maxFrameLength) {
+        super(maxFrameLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void decode(byte[] data, int offset, int length, FrameListener listener) {
+        final int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            final byte value = data[position];
+            if (!mEscaped && !mOverflow && value != END && value != ESC) {
+                // Copy a run of plain bytes at once.
+                int runEnd = position + 1;
+                while (runEnd < end && data[runEnd] != END && data[runEnd] != ESC) {
+                    runEnd++;
+                }
+                append(data, position, runEnd - position);
+                position = runEnd;
+                continue;
+            }
+            position++;
+            if (value == END) {
+                if (!mOverflow && !mEscaped && mLength > 0) {
+                    listener.onFrame(mBuffer, 0, mLength);
+                } else if (mEscaped) {
+                    onError();
+                }
+                mLength = 0;
+                mEscaped = false;
+                mOverflow = false;
+            } else if (mOverflow) {
+                // Drop everything up to the next END.
+            } else if (value == ESC) {
+                mEscaped = true;
+            } else {
+                mEscaped = false;
+                if (value == ESC_END) {
+                    append(END);
+                } else if (value == ESC_ESC) {
+                    append(ESC);
+                } else {
+                    // Protocol violation, RFC 1055 keeps the byte as is.
+                    append(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        mEscaped = false;
+        mOverflow = false;
+    }
+
+    /**
+     * Encodes a message into a SLIP frame.
+     *
+     * @param data   Array holding the message
+     * @param offset Offset of the message in {@code data}
+     * @param length Length of the message in bytes
+     * @return The encoded frame, terminated by {@code END}.
+     */
+    public static byte[] encode(byte[] data, int offset, int length) {
+        int encodedLength = length + 1;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == END || data[i] == ESC) encodedLength++;
+        }
+        final byte[] frame = new byte[encodedLength];
+        int position = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == END) {
+                frame[position++] = ESC;
+                frame[position++] = ESC_END;
+            } else if (data[i] == ESC) {
+                frame[position++] = ESC;
+                frame[position++] = ESC_ESC;
+            } else {
+                frame[position++] = data[i];
+            }
+        }
+        frame[position] = END;
+        return frame;
+    }
+
+    private void append(byte value) {
+        if (mLength == getMaxFrameLength()) {
+            onError();
+            mOverflow = true;
+            return;
+        }
+        ensureCapacity(mLength + 1);
+        mBuffer[mLength++] = value;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (length > getMaxFrameLength() - mLength) {
+            onError();
+            mOverflow = true;
+            return;
+        }
+        ensureCapacity(mLength + length);
+        System.arraycopy(data, offset, mBuffer, mLength, length);
+        mLength += length;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+
+/**
+ * Reads back the notifications appended by {@link NotificationRecorder}, segment after
+ * segment, from the oldest.
+ * <p>
+ * {@link #next()} moves to the next notification, which the getters then describe. A segment
+ * ends at its first zero type byte, at the end of the file or at a record cut short, so the
+ * segment being written and the segments of a recording interrupted by a crash are read up to
+ * their last complete record.
+ */
+public final class NotificationLogReader implements Closeable {
+    private final List<File> mSegments;
+    private int mNextSegment = 0;
+    private File mSegment;
+    private MappedByteBuffer mBuffer;
+    private long mSegmentStartNanos;
+    private long mSegmentStartMillis;
+    private String[] mDevices = new String[8];
+    private UUID[] mCharacteristics = new UUID[8];
+    private long mTimestampNanos;
+    private int mDevice;
+    private int mCharacteristic;
+    private int mValueOffset;
+    private int mLength;
+
+    /**
+     * Create a new NotificationLogReader reading every segment of a directory.
+     *
+     * @param directory The directory of the segments
+     */
+    public NotificationLogReader(File directory) {
+        this(listSegments(directory));
+    }
+
+    /**
+     * Create a new NotificationLogReader.
+     *
+     * @param segments The segment files, in the order they are read
+     */
+    public NotificationLogReader(List<File> segments) {
+        mSegments = new ArrayList<>(segments);
+    }
+
+    /**
+     * Returns the segments of a directory, from the oldest.
+     *
+     * @param directory The directory of the segments
+     * @return The segment files.
+     */
+    public static List<File> listSegments(File directory) {
+        final File[] files = directory.listFiles();
+        if (null == files) return Collections.emptyList();
+        final List<File> segments = new ArrayList<>();
+        for (File file : files) {
+            if (NotificationRecorder.segmentNumber(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments, (first, second) -> Long.compare(
+                NotificationRecorder.segmentNumber(first),
+                NotificationRecorder.segmentNumber(second)));
+        return segments;
+    }
+
+    /**
+     * Moves to the next notification.
+     *
+     * @return Returns {@code true} if there is one, {@code false} at the end of the segments.
+     * @throws IOException If a segment cannot be read or is not a segment
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (null == mBuffer && !openNextSegment()) return false;
+            try {
+                if (readRecord()) return true;
+            } catch (BufferUnderflowException e) {
+                // A record cut short ends the segment.
+            }
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Returns the segment of the current notification.
+     *
+     * @return The segment file.
+     */
+    public File getSegment() {
+        return mSegment;
+    }
+
+    /**
+     * Returns the time the notification was received, on the clock of the recording.
+     *
+     * @return The timestamp in nanoseconds.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns the time the notification was received, on the wall clock of the recording.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getWallClockMillis() {
+        return mSegmentStartMillis + (mTimestampNanos - mSegmentStartNanos) / 1000000L;
+    }
+
+    /**
+     * Returns the index of the device within the recording.
+     *
+     * @return The device index.
+     */
+    public int getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Returns the address of the device.
+     *
+     * @return The address, {@code null} if the segment does not define it.
+     */
+    public String getDeviceAddress() {
+        return mDevice < mDevices.length ? mDevices[mDevice] : null;
+    }
+
+    /**
+     * Returns the index of the characteristic within the recording.
+     *
+     * @return The characteristic index.
+     */
+    public int getCharacteristicIndex() {
+        return mCharacteristic;
+    }
+
+    /**
+     * Returns the UUID of the characteristic.
+     *
+     * @return The UUID, {@code null} if the segment does not define it.
+     */
+    public UUID getCharacteristic() {
+        return mCharacteristic < mCharacteristics.length ? mCharacteristics[mCharacteristic]
+                : null;
+    }
+
+    /**
+     * Returns the length of the value.
+     *
+     * @return The length in bytes.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Copies the value of the notification.
+     *
+     * @param buffer The buffer receiving the value, of at least {@link #getLength()} bytes
+     * @param offset Offset of the value in the buffer
+     * @return The length of the value.
+     */
+    public int getValue(byte[] buffer, int offset) {
+        final int position = mBuffer.position();
+        mBuffer.position(mValueOffset);
+        mBuffer.get(buffer, offset, mLength);
+        mBuffer.position(position);
+        return mLength;
+    }
+
+    /**
+     * Returns a copy of the value of the notification.
+     *
+     * @return The value.
+     */
+    public byte[] getValue() {
+        final byte[] value = new byte[mLength];
+        getValue(value, 0);
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        mBuffer = null;
+        mNextSegment = mSegments.size();
+    }
+
+    private boolean openNextSegment() throws IOException {
+        while (mNextSegment < mSegments.size()) {
+            final File file = mSegments.get(mNextSegment++);
+            final MappedByteBuffer buffer;
+            try (RandomAccessFile access = new RandomAccessFile(file, "r")) {
+                final FileChannel channel = access.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            // A segment lost before its header was synced is empty.
+            if (buffer.remaining() < NotificationRecorder.HEADER_SIZE) continue;
+            final int magic = buffer.getInt();
+            if (0 == magic) continue;
+            if (NotificationRecorder.MAGIC != magic) throw new IOException("magic:" + magic);
+            final int version = buffer.getShort();
+            if (NotificationRecorder.VERSION != version) {
+                throw new IOException("version:" + version);
+            }
+            buffer.getShort();
+            mSegmentStartNanos = buffer.getLong();
+            mSegmentStartMillis = buffer.getLong();
+            mTimestampNanos = mSegmentStartNanos;
+            Arrays.fill(mDevices, null);
+            Arrays.fill(mCharacteristics, null);
+            mSegment = file;
+            mBuffer = buffer;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the records up to the next notification.
+     *
+     * @return Returns {@code false} at the end of the segment.
+     */
+    private boolean readRecord() throws IOException {
+        while (mBuffer.hasRemaining()) {
+            final int type = mBuffer.get();
+            switch (type) {
+                case NotificationRecorder.RECORD_END:
+                    return false;
+                case NotificationRecorder.RECORD_NOTIFICATION: {
+                    final long delta = readVarLong();
+                    final long timestamp = mTimestampNanos + ((delta >>> 1) ^ -(delta & 1));
+                    final int device = (int) readVarLong();
+                    final int characteristic = (int) readVarLong();
+                    final int length = (int) readVarLong();
+                    if (device < 0 || characteristic < 0) {
+                        throw new IOException("index in " + mSegment);
+                    }
+                    if (length < 0 || length > mBuffer.remaining()) return false;
+                    mTimestampNanos = timestamp;
+                    mDevice = device;
+                    mCharacteristic = characteristic;
+                    mLength = length;
+                    mValueOffset = mBuffer.position();
+                    mBuffer.position(mValueOffset + length);
+                    return true;
+                }
+                case NotificationRecorder.RECORD_DEVICE: {
+                    final int device = (int) readVarLong();
+                    if (device < 0) throw new IOException("device:" + device);
+                    long address = 0;
+                    for (int i = 0; i < NotificationRecorder.ADDRESS_SIZE; i++) {
+                        address = (address << 8) | (mBuffer.get() & 0xFF);
+                    }
+                    if (device >= mDevices.length) {
+                        mDevices = Arrays.copyOf(mDevices, Math.max(device + 1,
+                                2 * mDevices.length));
+                    }
+                    mDevices[device] = MacAddressIndex.format(address);
+                    break;
+                }
+                case NotificationRecorder.RECORD_CHARACTERISTIC: {
+                    final int characteristic = (int) readVarLong();
+                    if (characteristic < 0) {
+                        throw new IOException("characteristic:" + characteristic);
+                    }
+                    final UUID uuid = new UUID(mBuffer.getLong(), mBuffer.getLong());
+                    if (characteristic >= mCharacteristics.length) {
+                        mCharacteristics = Arrays.copyOf(mCharacteristics,
+                                Math.max(characteristic + 1, 2 * mCharacteristics.length));
+                    }
+                    mCharacteristics[characteristic] = uuid;
+                    break;
+                }
+                default:
+                    throw new IOException("record:" + type + " in " + mSegment);
+            }
+        }
+        return false;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = mBuffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("varint in " + mSegment);
+    }
+}
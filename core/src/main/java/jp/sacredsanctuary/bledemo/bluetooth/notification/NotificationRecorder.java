@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+
+/**
+ * Appends notifications to segment files mapped in memory, to be read back by
+ * {@link NotificationLogReader}.
+ * <p>
+ * A segment starts with a header holding the time it was opened, on the clock of the
+ * notifications and on the wall clock, followed by records made of a type byte and a body:
+ * <ul>
+ * <li>{@link #RECORD_NOTIFICATION}: the time since the previous record as a zigzag varint, the
+ * device and characteristic indexes and the value length as varints, then the value. A 20 byte
+ * notification received every millisecond takes 27 bytes.</li>
+ * <li>{@link #RECORD_DEVICE}: an index and the 6 bytes of the address it stands for, written
+ * before the first notification of the device in the segment.</li>
+ * <li>{@link #RECORD_CHARACTERISTIC}: an index and the 16 bytes of the UUID it stands for.</li>
+ * </ul>
+ * Every segment is readable on its own. The type byte of a record is written after its body,
+ * so a segment cut short by the app being killed ends with a complete record, and the zeros
+ * following the last record end it. Segments are opened, synced, closed and deleted as set by
+ * the {@link RecordingPolicy}.
+ * <p>
+ * Appending allocates nothing except when a segment is opened. The recorder is a
+ * {@link NotificationRingBuffer.Handler}, usually fed by a consumer of the ring on its own
+ * thread. It is not thread-safe.
+ */
+public final class NotificationRecorder implements NotificationRingBuffer.Handler, Closeable {
+    // Segment header: magic, version, reserved, start time in nanoseconds on the clock of the
+    // notifications and in milliseconds on the wall clock.
+    static final int MAGIC = 0x424C4E52;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    // Record types. A zero type ends the records of a segment.
+    static final int RECORD_END = 0;
+    static final int RECORD_NOTIFICATION = 1;
+    static final int RECORD_DEVICE = 2;
+    static final int RECORD_CHARACTERISTIC = 3;
+    static final int ADDRESS_SIZE = 6;
+    static final String SEGMENT_PREFIX = "notifications-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    // Largest varint of an int and of a long, and the definitions a notification may need.
+    private static final int MAX_VARINT = 5;
+    private static final int MAX_VARLONG = 10;
+    private static final int MAX_DEFINITIONS = 2 * (1 + MAX_VARINT) + ADDRESS_SIZE + 16;
+
+    /**
+     * Names the devices and characteristics of the indexes in the notifications.
+     */
+    public interface Dictionary {
+        /**
+         * Returns the address of a device.
+         *
+         * @param device The index of the device
+         * @return The address.
+         */
+        String getDeviceAddress(int device);
+
+        /**
+         * Returns the UUID of a characteristic.
+         *
+         * @param characteristic The index of the characteristic
+         * @return The UUID.
+         */
+        UUID getCharacteristic(int characteristic);
+    }
+
+    private final File mDirectory;
+    private final Dictionary mDictionary;
+    private final RecordingPolicy mPolicy;
+    private final ArrayDeque<File> mSegments = new ArrayDeque<>();
+    private long mNextSegment;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private long mSegmentStartNanos;
+    private long mLastTimestampNanos;
+    // End of the data synced, and the time of the first record written since.
+    private int mSyncedPosition;
+    private long mUnsyncedSinceNanos;
+    // Indexes already defined in the segment.
+    private boolean[] mDevicesDefined = new boolean[8];
+    private boolean[] mCharacteristicsDefined = new boolean[8];
+    private boolean mClosed = false;
+    private IOException mFailure;
+    private long mRecordCount = 0;
+    private long mClosedBytes = 0;
+    private long mSyncCount = 0;
+    private long mDroppedCount = 0;
+
+    /**
+     * Create a new NotificationRecorder. Segments are numbered after the ones already in the
+     * directory, which count towards the maximum number of segments.
+     *
+     * @param directory  The directory of the segments, created if needed
+     * @param dictionary The names of the device and characteristic indexes
+     * @param policy     The policy of the segments
+     * @throws IOException If the directory cannot be created
+     */
+    public NotificationRecorder(File directory, Dictionary dictionary, RecordingPolicy policy)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("directory:" + directory);
+        }
+        mDirectory = directory;
+        mDictionary = dictionary;
+        mPolicy = policy;
+        for (File segment : NotificationLogReader.listSegments(directory)) {
+            mSegments.add(segment);
+            mNextSegment = segmentNumber(segment) + 1;
+        }
+    }
+
+    /**
+     * Returns the number of a segment from its name.
+     *
+     * @param segment The segment file
+     * @return The number of the segment, -1 if the file is not a segment.
+     */
+    static long segmentNumber(File segment) {
+        final String name = segment.getName();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Appends the notification. After a write failure, notifications are dropped, see
+     * {@link #getFailure()}.
+     */
+    @Override
+    public void onNotification(long sequence, long timestampNanos, int device,
+            int characteristic, byte[] buffer, int offset, int length, boolean endOfBatch) {
+        if (null != mFailure || mClosed) {
+            mDroppedCount++;
+            return;
+        }
+        try {
+            append(timestampNanos, device, characteristic, buffer, offset, length);
+        } catch (IOException e) {
+            mFailure = e;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Appends a notification.
+     *
+     * @param timestampNanos The time the notification was received
+     * @param device         The index of the device
+     * @param characteristic The index of the characteristic
+     * @param value          Buffer holding the value
+     * @param offset         Offset of the value in the buffer
+     * @param length         Length of the value
+     * @return Returns {@code true} if the notification was appended, {@code false} if it is
+     * too large for a segment.
+     * @throws IOException If a segment cannot be opened, synced or closed
+     */
+    public boolean append(long timestampNanos, int device, int characteristic, byte[] value,
+            int offset, int length) throws IOException {
+        if (mClosed) throw new IOException("closed");
+        if (device < 0) throw new IllegalArgumentException("device:" + device);
+        if (characteristic < 0) {
+            throw new IllegalArgumentException("characteristic:" + characteristic);
+        }
+        final int size = 1 + MAX_VARLONG + 3 * MAX_VARINT + length + MAX_DEFINITIONS;
+        if (HEADER_SIZE + size > mPolicy.getSegmentSize()) {
+            mDroppedCount++;
+            return false;
+        }
+        if (null != mBuffer && (mBuffer.remaining() < size || isExpired(timestampNanos))) {
+            closeSegment();
+        }
+        if (null == mBuffer) {
+            openSegment(timestampNanos);
+        }
+        if (Long.MIN_VALUE == mUnsyncedSinceNanos) {
+            mUnsyncedSinceNanos = timestampNanos;
+        }
+        if (device >= mDevicesDefined.length || !mDevicesDefined[device]) {
+            defineDevice(device);
+        }
+        if (characteristic >= mCharacteristicsDefined.length
+                || !mCharacteristicsDefined[characteristic]) {
+            defineCharacteristic(characteristic);
+        }
+        final int start = mBuffer.position();
+        mBuffer.position(start + 1);
+        final long delta = timestampNanos - mLastTimestampNanos;
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        writeVarLong(device);
+        writeVarLong(characteristic);
+        writeVarLong(length);
+        mBuffer.put(value, offset, length);
+        mBuffer.put(start, (byte) RECORD_NOTIFICATION);
+        mLastTimestampNanos = timestampNanos;
+        mRecordCount++;
+        syncIfDue(timestampNanos);
+        return true;
+    }
+
+    /**
+     * Syncs the segment or closes it if the policy says so when no notification arrives. Call
+     * it regularly, for example each time a consumer of the ring times out.
+     *
+     * @param nowNanos The current time, on the clock of the notifications
+     * @throws IOException If the segment cannot be synced or closed
+     */
+    public void tick(long nowNanos) throws IOException {
+        if (null == mBuffer) return;
+        if (isExpired(nowNanos)) {
+            closeSegment();
+        } else {
+            syncIfDue(nowNanos);
+        }
+    }
+
+    /**
+     * Syncs what was appended to storage.
+     */
+    public void sync() {
+        if (null == mBuffer || mBuffer.position() == mSyncedPosition) return;
+        mBuffer.force();
+        mSyncedPosition = mBuffer.position();
+        mUnsyncedSinceNanos = Long.MIN_VALUE;
+        mSyncCount++;
+    }
+
+    /**
+     * Closes the segment being written, cut to its records. Appending afterwards fails.
+     *
+     * @throws IOException If the segment cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        closeSegment();
+    }
+
+    /**
+     * Returns the error that stopped the recording of notifications.
+     *
+     * @return The error, {@code null} if there was none.
+     */
+    public IOException getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * Returns the segments of the directory, from the oldest, the one written included.
+     *
+     * @return The segment files.
+     */
+    public List<File> getSegments() {
+        return new ArrayList<>(mSegments);
+    }
+
+    /**
+     * Returns the number of notifications appended.
+     *
+     * @return The number of records.
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Returns the number of bytes written to the segments opened by this recorder.
+     *
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        final MappedByteBuffer buffer = mBuffer;
+        return mClosedBytes + (null != buffer ? buffer.position() : 0);
+    }
+
+    /**
+     * Returns the number of times a segment was synced to storage.
+     *
+     * @return The number of syncs.
+     */
+    public long getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * Returns the number of notifications not appended, because they were too large or the
+     * recording stopped.
+     *
+     * @return The number of notifications dropped.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private boolean isExpired(long nowNanos) {
+        final long maxAge = mPolicy.getMaxSegmentAgeNanos();
+        return maxAge > 0 && nowNanos - mSegmentStartNanos >= maxAge;
+    }
+
+    private void syncIfDue(long nowNanos) {
+        if (mBuffer.position() == mSyncedPosition) return;
+        final int syncBytes = mPolicy.getSyncBytes();
+        final long syncInterval = mPolicy.getSyncIntervalNanos();
+        if ((syncBytes > 0 && mBuffer.position() - mSyncedPosition >= syncBytes)
+                || (syncInterval > 0 && nowNanos - mUnsyncedSinceNanos >= syncInterval)) {
+            sync();
+        }
+    }
+
+    private void openSegment(long timestampNanos) throws IOException {
+        final File file = new File(mDirectory, String.format(Locale.ROOT, "%s%010d%s",
+                SEGMENT_PREFIX, mNextSegment, SEGMENT_SUFFIX));
+        final RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            mChannel = access.getChannel();
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mPolicy.getSegmentSize());
+        } catch (IOException e) {
+            mChannel = null;
+            access.close();
+            file.delete();
+            throw e;
+        }
+        mNextSegment++;
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort((short) VERSION);
+        mBuffer.putShort((short) 0);
+        mBuffer.putLong(timestampNanos);
+        mBuffer.putLong(System.currentTimeMillis());
+        mSegmentStartNanos = timestampNanos;
+        mLastTimestampNanos = timestampNanos;
+        mSyncedPosition = 0;
+        mUnsyncedSinceNanos = timestampNanos;
+        Arrays.fill(mDevicesDefined, false);
+        Arrays.fill(mCharacteristicsDefined, false);
+        mSegments.add(file);
+        final int maxSegments = mPolicy.getMaxSegments();
+        while (maxSegments > 0 && mSegments.size() > maxSegments) {
+            mSegments.poll().delete();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (null == mBuffer) return;
+        final int length = mBuffer.position();
+        sync();
+        mBuffer = null;
+        mClosedBytes += length;
+        try {
+            mChannel.truncate(length);
+        } finally {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    private void closeQuietly() {
+        mBuffer = null;
+        if (null == mChannel) return;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Already failing.
+        }
+        mChannel = null;
+    }
+
+    private void defineDevice(int device) {
+        if (device >= mDevicesDefined.length) {
+            mDevicesDefined = Arrays.copyOf(mDevicesDefined,
+                    Math.max(device + 1, 2 * mDevicesDefined.length));
+        }
+        final long address = MacAddressIndex.pack(mDictionary.getDeviceAddress(device));
+        final int start = mBuffer.position();
+        mBuffer.position(start + 1);
+        writeVarLong(device);
+        for (int shift = 8 * (ADDRESS_SIZE - 1); shift >= 0; shift -= 8) {
+            mBuffer.put((byte) (address >>> shift));
+        }
+        mBuffer.put(start, (byte) RECORD_DEVICE);
+        mDevicesDefined[device] = true;
+    }
+
+    private void defineCharacteristic(int characteristic) {
+        if (characteristic >= mCharacteristicsDefined.length) {
+            mCharacteristicsDefined = Arrays.copyOf(mCharacteristicsDefined,
+                    Math.max(characteristic + 1, 2 * mCharacteristicsDefined.length));
+        }
+        final UUID uuid = mDictionary.getCharacteristic(characteristic);
+        final int start = mBuffer.position();
+        mBuffer.position(start + 1);
+        writeVarLong(characteristic);
+        mBuffer.putLong(null != uuid ? uuid.getMostSignificantBits() : 0);
+        mBuffer.putLong(null != uuid ? uuid.getLeastSignificantBits() : 0);
+        mBuffer.put(start, (byte) RECORD_CHARACTERISTIC);
+        mCharacteristicsDefined[characteristic] = true;
+    }
+
+    private void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            mBuffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        mBuffer.put((byte) value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "NotificationRecorder{" + mDirectory + " segments=" + mSegments.size()
+                + " records=" + mRecordCount + " bytes=" + getBytesWritten()
+                + " syncs=" + mSyncCount + " dropped=" + mDroppedCount
+                + (null != mFailure ? " failure=" + mFailure : "") + "}";
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring of notifications written by one producer and read by any number of
+ * consumers, in the manner of the LMAX Disruptor.
+ * <p>
+ * Every slot holds the time a notification was received, the index of its device and of its
+ * characteristic, and up to {@link #getMaxPayload()} bytes of value, in arrays allocated once,
+ * so publishing copies the value and allocates nothing. The producer publishes a slot by
+ * advancing a cursor; each consumer follows the cursor with its own sequence and drains every
+ * notification published since its last call in one batch, reading the slots in place.
+ * <p>
+ * When the slowest consumer is a whole ring behind, the overflow policy applies:
+ * <ul>
+ * <li>{@link #OVERFLOW_BLOCK}: the producer waits for the consumer.</li>
+ * <li>{@link #OVERFLOW_DROP_NEWEST}: the notification published is dropped.</li>
+ * <li>{@link #OVERFLOW_DROP_OLDEST}: the oldest notification is overwritten; consumers that
+ * fell behind skip it and count it as lost. Consumers then copy each notification out of its
+ * slot before handing it over, and the producer never waits longer than such a copy.</li>
+ * </ul>
+ * A consumer that has caught up waits for the producer with the wait strategy of the ring, from
+ * {@link #WAIT_BUSY_SPIN}, the lowest latency at the cost of a core, to {@link #WAIT_BLOCKING},
+ * which sleeps until signalled at the cost of a lock on every publication a consumer waits for.
+ * <p>
+ * {@link #publish} must not be called by several threads at once. Each {@link Consumer} must be
+ * used by one thread at a time.
+ */
+public final class NotificationRingBuffer {
+    // What the producer does when the slowest consumer is a whole ring behind.
+    public static final int OVERFLOW_BLOCK = 0;
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+    // How a consumer waits for the producer: spinning, spinning then yielding, spinning then
+    // yielding then sleeping, or on a lock signalled by the producer.
+    public static final int WAIT_BUSY_SPIN = 0;
+    public static final int WAIT_YIELDING = 1;
+    public static final int WAIT_SLEEPING = 2;
+    public static final int WAIT_BLOCKING = 3;
+    // Attempts spent spinning, then yielding, before sleeping, and the time slept.
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long NOT_READING = Long.MAX_VALUE;
+    private static final Consumer[] NO_CONSUMERS = new Consumer[0];
+
+    /**
+     * Receives the notifications drained by a consumer.
+     */
+    public interface Handler {
+        /**
+         * Called for every notification, in the order they were published.
+         *
+         * @param sequence       The sequence number of the notification, from 0
+         * @param timestampNanos The time the notification was received
+         * @param device         The index of the device
+         * @param characteristic The index of the characteristic
+         * @param buffer         Buffer holding the value. It is only valid during this call.
+         * @param offset         Offset of the value in the buffer
+         * @param length         Length of the value
+         * @param endOfBatch     {@code true} for the last notification of the batch
+         */
+        void onNotification(long sequence, long timestampNanos, int device, int characteristic,
+                byte[] buffer, int offset, int length, boolean endOfBatch);
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mMaxPayload;
+    private final int mOverflow;
+    private final int mWaitStrategy;
+    private final long[] mTimestamps;
+    private final int[] mDevices;
+    private final int[] mCharacteristics;
+    private final int[] mLengths;
+    private final byte[] mPayloads;
+    // Sequence of the last notification published.
+    private final AtomicLong mCursor = new AtomicLong(-1);
+    // Sequence of the last notification written or being written, announced before a slot is
+    // overwritten with OVERFLOW_DROP_OLDEST.
+    private final AtomicLong mClaim = new AtomicLong(-1);
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    // Consumers blocked on mLock with WAIT_BLOCKING.
+    private final AtomicInteger mWaiters = new AtomicInteger();
+    private final Object mLock = new Object();
+    private volatile Consumer[] mConsumers = NO_CONSUMERS;
+    private volatile boolean mConsumersChanged = false;
+    // Owned by the producer: the last sequence published and the slowest consumer last seen.
+    private long mNext = -1;
+    private long mGate = -1;
+
+    /**
+     * Create a new NotificationRingBuffer.
+     *
+     * @param capacity     Number of slots, a power of two
+     * @param maxPayload   Largest value held by a slot, in bytes
+     * @param overflow     One of the {@code OVERFLOW_*} constants
+     * @param waitStrategy One of the {@code WAIT_*} constants
+     */
+    public NotificationRingBuffer(int capacity, int maxPayload, int overflow, int waitStrategy) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity:" + capacity);
+        }
+        if (maxPayload < 0 || (long) capacity * maxPayload > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxPayload:" + maxPayload);
+        }
+        if (overflow < OVERFLOW_BLOCK || overflow > OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("overflow:" + overflow);
+        }
+        if (waitStrategy < WAIT_BUSY_SPIN || waitStrategy > WAIT_BLOCKING) {
+            throw new IllegalArgumentException("waitStrategy:" + waitStrategy);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mMaxPayload = maxPayload;
+        mOverflow = overflow;
+        mWaitStrategy = waitStrategy;
+        mTimestamps = new long[capacity];
+        mDevices = new int[capacity];
+        mCharacteristics = new int[capacity];
+        mLengths = new int[capacity];
+        mPayloads = new byte[capacity * maxPayload];
+    }
+
+    /**
+     * Returns the number of slots.
+     *
+     * @return The capacity of the ring.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the largest value a slot holds.
+     *
+     * @return The maximum payload in bytes.
+     */
+    public int getMaxPayload() {
+        return mMaxPayload;
+    }
+
+    /**
+     * Returns the overflow policy.
+     *
+     * @return One of the {@code OVERFLOW_*} constants.
+     */
+    public int getOverflow() {
+        return mOverflow;
+    }
+
+    /**
+     * Returns the sequence of the last notification published.
+     *
+     * @return The cursor, -1 if nothing was published.
+     */
+    public long getCursor() {
+        return mCursor.get();
+    }
+
+    /**
+     * Returns the number of notifications published.
+     *
+     * @return The number of notifications published, dropped ones excluded.
+     */
+    public long getPublishedCount() {
+        return mCursor.get() + 1;
+    }
+
+    /**
+     * Returns the number of notifications dropped by {@link #OVERFLOW_DROP_NEWEST}.
+     *
+     * @return The number of notifications dropped.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the number of consumers.
+     *
+     * @return The number of consumers.
+     */
+    public int getConsumerCount() {
+        return mConsumers.length;
+    }
+
+    /**
+     * Adds a consumer, which receives the notifications published from now on.
+     *
+     * @return The consumer.
+     */
+    public synchronized Consumer newConsumer() {
+        final Consumer consumer = new Consumer(mCursor.get());
+        final Consumer[] consumers = mConsumers;
+        final Consumer[] updated = new Consumer[consumers.length + 1];
+        System.arraycopy(consumers, 0, updated, 0, consumers.length);
+        updated[consumers.length] = consumer;
+        mConsumers = updated;
+        mConsumersChanged = true;
+        // Skip what was published while the producer could not see the consumer yet.
+        consumer.mSequence.set(mCursor.get());
+        return consumer;
+    }
+
+    /**
+     * Removes a consumer. The producer no longer waits for it.
+     *
+     * @param consumer The consumer
+     * @return Returns {@code true} if the consumer was removed, {@code false} otherwise.
+     */
+    public synchronized boolean removeConsumer(Consumer consumer) {
+        final Consumer[] consumers = mConsumers;
+        for (int index = 0; index < consumers.length; index++) {
+            if (consumers[index] != consumer) continue;
+            final Consumer[] updated = new Consumer[consumers.length - 1];
+            System.arraycopy(consumers, 0, updated, 0, index);
+            System.arraycopy(consumers, index + 1, updated, index, updated.length - index);
+            mConsumers = updated;
+            mConsumersChanged = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Publishes a notification.
+     *
+     * @param timestampNanos The time the notification was received
+     * @param device         The index of the device
+     * @param characteristic The index of the characteristic
+     * @param value          Buffer holding the value, copied into the ring
+     * @param offset         Offset of the value in the buffer
+     * @param length         Length of the value, at most {@link #getMaxPayload()}
+     * @return Returns {@code true} if the notification was published, {@code false} if it was
+     * dropped by {@link #OVERFLOW_DROP_NEWEST}.
+     */
+    public boolean publish(long timestampNanos, int device, int characteristic, byte[] value,
+            int offset, int length) {
+        if (length < 0 || length > mMaxPayload) {
+            throw new IllegalArgumentException("length:" + length);
+        }
+        final long sequence = mNext + 1;
+        final long wrap = sequence - mCapacity;
+        if (OVERFLOW_DROP_OLDEST == mOverflow) {
+            if (wrap >= 0) {
+                claimOldest(sequence, wrap);
+            }
+        } else if (wrap > mGate || mConsumersChanged) {
+            if (!awaitConsumers(wrap)) return false;
+        }
+        final int index = (int) sequence & mMask;
+        mTimestamps[index] = timestampNanos;
+        mDevices[index] = device;
+        mCharacteristics[index] = characteristic;
+        mLengths[index] = length;
+        System.arraycopy(value, offset, mPayloads, index * mMaxPayload, length);
+        mNext = sequence;
+        if (WAIT_BLOCKING == mWaitStrategy) {
+            // A full barrier, so that either a consumer about to block sees the cursor or the
+            // producer sees the consumer.
+            mCursor.set(sequence);
+            if (mWaiters.get() > 0) {
+                synchronized (mLock) {
+                    mLock.notifyAll();
+                }
+            }
+        } else {
+            mCursor.lazySet(sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Announces that the slot of {@code wrap} is overwritten, and waits for the consumers
+     * copying it out.
+     */
+    private void claimOldest(long sequence, long wrap) {
+        mClaim.set(sequence);
+        for (Consumer consumer : mConsumers) {
+            while (consumer.mReading.get() == wrap) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Waits until the slot of {@code wrap} has been consumed by every consumer.
+     *
+     * @return Returns {@code false} if the notification is dropped instead.
+     */
+    private boolean awaitConsumers(long wrap) {
+        mConsumersChanged = false;
+        int tries = 0;
+        while (true) {
+            long gate = mNext;
+            for (Consumer consumer : mConsumers) {
+                gate = Math.min(gate, consumer.mSequence.get());
+            }
+            mGate = gate;
+            if (wrap <= gate) return true;
+            if (OVERFLOW_DROP_NEWEST == mOverflow) {
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+            // The producer never blocks on the lock, consumers do not signal it.
+            tries = idle(WAIT_BLOCKING == mWaitStrategy ? WAIT_SLEEPING : mWaitStrategy, tries);
+        }
+    }
+
+    private static int idle(int waitStrategy, int tries) {
+        if (WAIT_YIELDING == waitStrategy) {
+            if (tries >= SPIN_TRIES) Thread.yield();
+        } else if (WAIT_SLEEPING == waitStrategy) {
+            if (tries >= SPIN_TRIES + YIELD_TRIES) {
+                LockSupport.parkNanos(SLEEP_NANOS);
+            } else if (tries >= SPIN_TRIES) {
+                Thread.yield();
+            }
+        }
+        return tries + 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "NotificationRingBuffer{capacity=" + mCapacity + " maxPayload=" + mMaxPayload
+                + " overflow=" + mOverflow + " waitStrategy=" + mWaitStrategy
+                + " published=" + getPublishedCount() + " dropped=" + getDroppedCount()
+                + " consumers=" + getConsumerCount() + "}";
+    }
+
+    /**
+     * Reader of the ring following the producer with its own sequence, see
+     * {@link NotificationRingBuffer#newConsumer()}.
+     */
+    public final class Consumer {
+        // Sequence of the last notification consumed, read by the producer.
+        private final AtomicLong mSequence;
+        // Sequence of the notification being copied out of its slot with OVERFLOW_DROP_OLDEST.
+        private final AtomicLong mReading = new AtomicLong(NOT_READING);
+        private final byte[] mCopy;
+        private volatile long mLostCount;
+
+        private Consumer(long sequence) {
+            mSequence = new AtomicLong(sequence);
+            mCopy = OVERFLOW_DROP_OLDEST == mOverflow ? new byte[mMaxPayload] : null;
+        }
+
+        /**
+         * Drains the notifications published since the last call, without waiting.
+         *
+         * @param handler  The handler receiving the notifications
+         * @param maxBatch Largest number of notifications drained
+         * @return The number of notifications handed to the handler.
+         */
+        public int poll(Handler handler, int maxBatch) {
+            if (maxBatch <= 0) throw new IllegalArgumentException("maxBatch:" + maxBatch);
+            final long next = mSequence.get() + 1;
+            final long available = mCursor.get();
+            if (available < next) return 0;
+            if (OVERFLOW_DROP_OLDEST == mOverflow) {
+                return pollCopies(handler, next, available, maxBatch);
+            }
+            final long last = Math.min(available, next + maxBatch - 1);
+            for (long sequence = next; sequence <= last; sequence++) {
+                final int index = (int) sequence & mMask;
+                handler.onNotification(sequence, mTimestamps[index], mDevices[index],
+                        mCharacteristics[index], mPayloads, index * mMaxPayload,
+                        mLengths[index], sequence == last);
+            }
+            // Hands the slots back to the producer once they have been read.
+            mSequence.lazySet(last);
+            return (int) (last - next + 1);
+        }
+
+        /**
+         * Drains the notifications published since the last call, waiting for one if there are
+         * none.
+         *
+         * @param handler      The handler receiving the notifications
+         * @param maxBatch     Largest number of notifications drained
+         * @param timeoutNanos Longest time to wait
+         * @return The number of notifications handed to the handler, 0 on timeout.
+         * @throws InterruptedException If the thread is interrupted while waiting
+         */
+        public int take(Handler handler, int maxBatch, long timeoutNanos)
+                throws InterruptedException {
+            final int count = poll(handler, maxBatch);
+            if (count > 0) return count;
+            return waitFor(mSequence.get() + 1, timeoutNanos) ? poll(handler, maxBatch) : 0;
+        }
+
+        /**
+         * Returns the sequence of the last notification consumed.
+         *
+         * @return The sequence of the consumer.
+         */
+        public long getSequence() {
+            return mSequence.get();
+        }
+
+        /**
+         * Returns the number of notifications published and not consumed yet.
+         *
+         * @return The backlog of the consumer.
+         */
+        public long getBacklog() {
+            return Math.max(0, mCursor.get() - mSequence.get());
+        }
+
+        /**
+         * Returns the number of notifications overwritten by {@link #OVERFLOW_DROP_OLDEST}
+         * before this consumer read them.
+         *
+         * @return The number of notifications lost.
+         */
+        public long getLostCount() {
+            return mLostCount;
+        }
+
+        private int pollCopies(Handler handler, long next, long available, int maxBatch) {
+            int count = 0;
+            long lost = 0;
+            long last = Math.min(available, next + maxBatch - 1);
+            long sequence = next;
+            while (sequence <= last) {
+                final int index = (int) sequence & mMask;
+                // Either the producer sees the announcement and waits for the copy, or the
+                // consumer sees the claim and skips the slot.
+                mReading.set(sequence);
+                final long oldest = mClaim.get() - mCapacity + 1;
+                if (sequence < oldest) {
+                    mReading.lazySet(NOT_READING);
+                    lost += oldest - sequence;
+                    sequence = oldest;
+                    last = Math.min(mCursor.get(), sequence + maxBatch - count - 1);
+                    continue;
+                }
+                final long timestamp = mTimestamps[index];
+                final int device = mDevices[index];
+                final int characteristic = mCharacteristics[index];
+                final int length = mLengths[index];
+                System.arraycopy(mPayloads, index * mMaxPayload, mCopy, 0, length);
+                mReading.lazySet(NOT_READING);
+                handler.onNotification(sequence, timestamp, device, characteristic, mCopy, 0,
+                        length, sequence == last);
+                count++;
+                sequence++;
+            }
+            if (lost > 0) {
+                mLostCount += lost;
+            }
+            mSequence.lazySet(sequence - 1);
+            return count;
+        }
+
+        private boolean waitFor(long sequence, long timeoutNanos) throws InterruptedException {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            if (WAIT_BLOCKING == mWaitStrategy) {
+                synchronized (mLock) {
+                    mWaiters.incrementAndGet();
+                    try {
+                        while (mCursor.get() < sequence) {
+                            final long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) return false;
+                            TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                        }
+                    } finally {
+                        mWaiters.decrementAndGet();
+                    }
+                }
+                return true;
+            }
+            int tries = 0;
+            while (mCursor.get() < sequence) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (deadline - System.nanoTime() <= 0) return false;
+                tries = idle(mWaitStrategy, tries);
+            }
+            return true;
+        }
+    }
+}
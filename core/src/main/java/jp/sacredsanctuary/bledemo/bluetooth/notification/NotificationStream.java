@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+
+/**
+ * Publishes the notifications of every device to one {@link NotificationRingBuffer}, numbering
+ * devices and characteristics in the order they are first seen.
+ * <p>
+ * {@link #publish} may be called from several threads; publications are serialized, so the
+ * ring keeps its single producer. Consumers map the indexes of a slot back with
+ * {@link #getDeviceAddress(int)} and {@link #getCharacteristic(int)}, as does a
+ * {@link NotificationRecorder} draining the ring.
+ */
+public final class NotificationStream implements NotificationRecorder.Dictionary {
+    private final NotificationRingBuffer mBuffer;
+    private final MacAddressIndex mDeviceIndexes = new MacAddressIndex();
+    private final List<String> mDevices = new ArrayList<>();
+    private final Map<UUID, Integer> mCharacteristicIndexes = new HashMap<>();
+    private final List<UUID> mCharacteristics = new ArrayList<>();
+    private long mTruncatedCount = 0;
+
+    /**
+     * Create a new NotificationStream.
+     *
+     * @param buffer The ring the notifications are published to
+     */
+    public NotificationStream(NotificationRingBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Returns the ring the notifications are published to.
+     *
+     * @return The ring buffer.
+     */
+    public NotificationRingBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Publishes a notification. A value longer than a slot is truncated.
+     *
+     * @param timestampNanos The time the notification was received
+     * @param address        The address of the device
+     * @param uuid           The UUID of the characteristic
+     * @param value          The value of the characteristic
+     * @return Returns {@code true} if the notification was published, {@code false} if it was
+     * dropped.
+     */
+    public synchronized boolean publish(long timestampNanos, String address, UUID uuid,
+            byte[] value) {
+        int length = value.length;
+        if (length > mBuffer.getMaxPayload()) {
+            length = mBuffer.getMaxPayload();
+            mTruncatedCount++;
+        }
+        return mBuffer.publish(timestampNanos, indexOfDevice(address),
+                indexOfCharacteristic(uuid), value, 0, length);
+    }
+
+    /**
+     * Returns the address of a device.
+     *
+     * @param index The index of the device in a slot
+     * @return The address, {@code null} if unknown.
+     */
+    @Override
+    public synchronized String getDeviceAddress(int index) {
+        return index >= 0 && index < mDevices.size() ? mDevices.get(index) : null;
+    }
+
+    /**
+     * Returns the UUID of a characteristic.
+     *
+     * @param index The index of the characteristic in a slot
+     * @return The UUID, {@code null} if unknown.
+     */
+    @Override
+    public synchronized UUID getCharacteristic(int index) {
+        return index >= 0 && index < mCharacteristics.size() ? mCharacteristics.get(index) : null;
+    }
+
+    /**
+     * Returns the number of values truncated to the payload of a slot.
+     *
+     * @return The number of values truncated.
+     */
+    public synchronized long getTruncatedCount() {
+        return mTruncatedCount;
+    }
+
+    private int indexOfDevice(String address) {
+        final long key = MacAddressIndex.pack(address);
+        if (MacAddressIndex.INVALID_ADDRESS == key) {
+            throw new IllegalArgumentException("address:" + address);
+        }
+        int index = mDeviceIndexes.get(key);
+        if (MacAddressIndex.NOT_FOUND == index) {
+            index = mDevices.size();
+            mDevices.add(address);
+            mDeviceIndexes.put(key, index);
+        }
+        return index;
+    }
+
+    private int indexOfCharacteristic(UUID uuid) {
+        Integer index = mCharacteristicIndexes.get(uuid);
+        if (null == index) {
+            index = mCharacteristics.size();
+            mCharacteristics.add(uuid);
+            mCharacteristicIndexes.put(uuid, index);
+        }
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "NotificationStream{" + mBuffer + " devices=" + mDevices.size()
+                + " characteristics=" + mCharacteristics.size()
+                + " truncated=" + mTruncatedCount + "}";
+    }
+}
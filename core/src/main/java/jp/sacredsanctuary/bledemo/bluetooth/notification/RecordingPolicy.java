@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link NotificationRecorder} lays out and syncs its segment files.
+ * <p>
+ * A segment is mapped in memory at its full size and cut to what was written when it is
+ * closed, once it is full or older than the maximum age. Data written to a mapping survives the
+ * app being killed, but only data synced to storage survives the device losing power: the
+ * segment is synced once enough bytes are pending or the oldest pending byte is old enough,
+ * so a sync is shared by many notifications. The oldest segments are deleted to keep at most
+ * the maximum number of segments.
+ * <p>
+ * Instances are immutable.
+ */
+public final class RecordingPolicy {
+    /**
+     * Segments of 4 MiB or one hour, synced every 64 KiB or second, 64 segments kept.
+     */
+    public static final RecordingPolicy DEFAULT = new RecordingPolicy(4 << 20,
+            TimeUnit.HOURS.toNanos(1), 64 << 10, TimeUnit.SECONDS.toNanos(1), 64);
+    // Smallest segment, which holds a notification of the largest ATT value.
+    public static final int MIN_SEGMENT_SIZE = 4096;
+
+    private final int mSegmentSize;
+    private final long mMaxSegmentAgeNanos;
+    private final int mSyncBytes;
+    private final long mSyncIntervalNanos;
+    private final int mMaxSegments;
+
+    /**
+     * Create a new RecordingPolicy.
+     *
+     * @param segmentSize        Size of a segment in bytes, at least {@link #MIN_SEGMENT_SIZE}
+     * @param maxSegmentAgeNanos Time after which a segment is closed, 0 for none
+     * @param syncBytes          Bytes written before the segment is synced, 0 to sync only
+     *                           when the interval elapses
+     * @param syncIntervalNanos  Longest time data stays written and not synced, 0 for none
+     * @param maxSegments        Number of segments kept, 0 to keep them all
+     */
+    public RecordingPolicy(int segmentSize, long maxSegmentAgeNanos, int syncBytes,
+            long syncIntervalNanos, int maxSegments) {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize:" + segmentSize);
+        }
+        if (maxSegmentAgeNanos < 0) {
+            throw new IllegalArgumentException("maxSegmentAgeNanos:" + maxSegmentAgeNanos);
+        }
+        if (syncBytes < 0) throw new IllegalArgumentException("syncBytes:" + syncBytes);
+        if (syncIntervalNanos < 0) {
+            throw new IllegalArgumentException("syncIntervalNanos:" + syncIntervalNanos);
+        }
+        if (maxSegments < 0) throw new IllegalArgumentException("maxSegments:" + maxSegments);
+        mSegmentSize = segmentSize;
+        mMaxSegmentAgeNanos = maxSegmentAgeNanos;
+        mSyncBytes = syncBytes;
+        mSyncIntervalNanos = syncIntervalNanos;
+        mMaxSegments = maxSegments;
+    }
+
+    /**
+     * Returns the size a segment is mapped at.
+     *
+     * @return The segment size in bytes.
+     */
+    public int getSegmentSize() {
+        return mSegmentSize;
+    }
+
+    /**
+     * Returns the time after which a segment is closed.
+     *
+     * @return The maximum age of a segment, 0 for none.
+     */
+    public long getMaxSegmentAgeNanos() {
+        return mMaxSegmentAgeNanos;
+    }
+
+    /**
+     * Returns the number of bytes written before the segment is synced.
+     *
+     * @return The sync threshold in bytes, 0 for none.
+     */
+    public int getSyncBytes() {
+        return mSyncBytes;
+    }
+
+    /**
+     * Returns the longest time data stays written and not synced.
+     *
+     * @return The sync interval, 0 for none.
+     */
+    public long getSyncIntervalNanos() {
+        return mSyncIntervalNanos;
+    }
+
+    /**
+     * Returns the number of segments kept.
+     *
+     * @return The maximum number of segments, 0 for no limit.
+     */
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "RecordingPolicy{segmentSize=" + mSegmentSize
+                + " maxSegmentAgeMs=" + TimeUnit.NANOSECONDS.toMillis(mMaxSegmentAgeNanos)
+                + " syncBytes=" + mSyncBytes
+                + " syncIntervalMs=" + TimeUnit.NANOSECONDS.toMillis(mSyncIntervalNanos)
+                + " maxSegments=" + mMaxSegments + "}";
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+/**
+ * Flyweight parser walking the AD structures of a raw advertising record in place.
+ * <p>
+ * An advertising record is a sequence of AD structures, each made of a length byte, an AD type
+ * and {@code length - 1} bytes of data. The parser is a cursor over those structures:
+ * {@link #reset(byte[], int, int)} points it at a record, {@link #next()} moves it to the next
+ * structure and the accessors decode the current one straight from the record. Nothing is
+ * copied or allocated, so a single instance can parse every advertisement of a scan. UUIDs are
+ * returned as their most and least significant bits, 16 and 32-bit UUIDs being expanded with
+ * the Bluetooth base UUID.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class AdvertisingDataParser {
+    // AD types, see Bluetooth Assigned Numbers, Generic Access Profile.
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_16 = 0x02;
+    public static final int TYPE_COMPLETE_SERVICE_UUIDS_16 = 0x03;
+    public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_32 = 0x04;
+    public static final int TYPE_COMPLETE_SERVICE_UUIDS_32 = 0x05;
+    public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_128 = 0x06;
+    public static final int TYPE_COMPLETE_SERVICE_UUIDS_128 = 0x07;
+    public static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_128 = 0x21;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    // Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB.
+    public static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    public static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805F9B34FBL;
+
+    private byte[] mRecord;
+    private int mEnd;
+    private int mNext;
+    private int mType;
+    private int mDataOffset;
+    private int mDataLength;
+    private boolean mMalformed;
+
+    /**
+     * Points the parser at a record, before its first AD structure.
+     *
+     * @param record Array holding the record, or null for an empty record
+     * @param offset Offset of the record in {@code record}
+     * @param length Length of the record in bytes
+     * @return This parser.
+     */
+    public AdvertisingDataParser reset(byte[] record, int offset, int length) {
+        mRecord = record;
+        mEnd = record == null ? offset : offset + length;
+        mNext = offset;
+        mType = -1;
+        mDataOffset = offset;
+        mDataLength = 0;
+        mMalformed = false;
+        return this;
+    }
+
+    /**
+     * Moves to the next AD structure. Parsing stops at the end of the record, at a zero length
+     * structure, which starts the padding of a legacy record, and at a truncated structure.
+     *
+     * @return Returns {@code true} if the parser is on a structure, {@code false} at the end.
+     */
+    public boolean next() {
+        while (mNext < mEnd) {
+            final int length = mRecord[mNext] & 0xFF;
+            if (length == 0) break;
+            if (mNext + 1 + length > mEnd) {
+                mMalformed = true;
+                break;
+            }
+            mType = mRecord[mNext + 1] & 0xFF;
+            mDataOffset = mNext + 2;
+            mDataLength = length - 1;
+            mNext += 1 + length;
+            return true;
+        }
+        mNext = mEnd;
+        mType = -1;
+        mDataLength = 0;
+        return false;
+    }
+
+    /**
+     * Moves to the next AD structure of the given type.
+     *
+     * @param type The AD type to look for
+     * @return Returns {@code true} if a structure was found, {@code false} at the end.
+     */
+    public boolean next(int type) {
+        while (next()) {
+            if (mType == type) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the record ended with a structure longer than the record.
+     *
+     * @return Returns {@code true} if the record is truncated, {@code false} otherwise.
+     */
+    public boolean isMalformed() {
+        return mMalformed;
+    }
+
+    /**
+     * Returns the AD type of the current structure.
+     *
+     * @return The AD type, or -1 if the parser is not on a structure.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the array holding the record.
+     *
+     * @return The record.
+     */
+    public byte[] getRecord() {
+        return mRecord;
+    }
+
+    /**
+     * Returns the offset of the data of the current structure in {@link #getRecord()}.
+     *
+     * @return The offset of the data.
+     */
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
+    /**
+     * Returns the length of the data of the current structure, AD type excluded.
+     *
+     * @return The length of the data in bytes.
+     */
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Returns the data byte at the given index of the current structure.
+     *
+     * @param index Index of the byte in the data
+     * @return The unsigned byte value.
+     */
+    public int getByte(int index) {
+        checkIndex(index, 1);
+        return mRecord[mDataOffset + index] & 0xFF;
+    }
+
+    /**
+     * Returns the flags of a {@link #TYPE_FLAGS} structure.
+     *
+     * @return The flags, or 0 if the structure holds none.
+     */
+    public int getFlags() {
+        return mDataLength > 0 ? getByte(0) : 0;
+    }
+
+    /**
+     * Returns the power level of a {@link #TYPE_TX_POWER_LEVEL} structure.
+     *
+     * @return The transmit power in dBm.
+     */
+    public int getTxPowerLevel() {
+        checkIndex(0, 1);
+        return mRecord[mDataOffset];
+    }
+
+    /**
+     * Returns the company identifier of a {@link #TYPE_MANUFACTURER_SPECIFIC_DATA} structure.
+     * The manufacturer data follows at {@code getDataOffset() + 2}.
+     *
+     * @return The company identifier.
+     */
+    public int getManufacturerId() {
+        return (int) readUnsignedLittleEndian(0, 2);
+    }
+
+    /**
+     * Returns the size of the UUIDs held by the current structure, a UUID list or service
+     * data.
+     *
+     * @return 2, 4 or 16, or 0 if the structure holds no UUID.
+     */
+    public int getUuidSize() {
+        switch (mType) {
+            case TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+            case TYPE_COMPLETE_SERVICE_UUIDS_16:
+            case TYPE_SERVICE_DATA_16:
+                return 2;
+            case TYPE_INCOMPLETE_SERVICE_UUIDS_32:
+            case TYPE_COMPLETE_SERVICE_UUIDS_32:
+            case TYPE_SERVICE_DATA_32:
+                return 4;
+            case TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+            case TYPE_COMPLETE_SERVICE_UUIDS_128:
+            case TYPE_SERVICE_DATA_128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the number of UUIDs held by the current structure. Service data holds a single
+     * UUID, followed by the data at {@code getDataOffset() + getUuidSize()}.
+     *
+     * @return The number of UUIDs.
+     */
+    public int getUuidCount() {
+        final int size = getUuidSize();
+        if (size == 0) return 0;
+        if (isServiceData()) return mDataLength >= size ? 1 : 0;
+        return mDataLength / size;
+    }
+
+    /**
+     * Returns the most significant bits of a UUID of the current structure.
+     *
+     * @param index Index of the UUID, below {@link #getUuidCount()}
+     * @return The most significant bits of the 128-bit UUID.
+     */
+    public long getUuidMostSignificantBits(int index) {
+        final int size = getUuidSize();
+        if (size == 16) {
+            return readLongLittleEndian(index * size + 8);
+        }
+        return BASE_UUID_MOST_SIGNIFICANT_BITS
+                | readUnsignedLittleEndian(index * size, size) << 32;
+    }
+
+    /**
+     * Returns the least significant bits of a UUID of the current structure.
+     *
+     * @param index Index of the UUID, below {@link #getUuidCount()}
+     * @return The least significant bits of the 128-bit UUID.
+     */
+    public long getUuidLeastSignificantBits(int index) {
+        final int size = getUuidSize();
+        if (size == 16) {
+            return readLongLittleEndian(index * size);
+        }
+        checkIndex(index * size, size);
+        return BASE_UUID_LEAST_SIGNIFICANT_BITS;
+    }
+
+    /**
+     * Determines if the current structure is a UUID list or service data holding the given
+     * UUID.
+     *
+     * @param mostSignificantBits  The most significant bits of the UUID
+     * @param leastSignificantBits The least significant bits of the UUID
+     * @return Returns {@code true} if the UUID is held, {@code false} otherwise.
+     */
+    public boolean containsUuid(long mostSignificantBits, long leastSignificantBits) {
+        final int count = getUuidCount();
+        for (int i = 0; i < count; i++) {
+            if (getUuidLeastSignificantBits(i) == leastSignificantBits
+                    && getUuidMostSignificantBits(i) == mostSignificantBits) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the data of the current structure starts with the given bytes, for example
+     * the UTF-8 encoded prefix of a local name.
+     *
+     * @param prefix The bytes to compare
+     * @return Returns {@code true} if the data starts with {@code prefix}, {@code false}
+     * otherwise.
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (mDataLength < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (mRecord[mDataOffset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean isServiceData() {
+        return mType == TYPE_SERVICE_DATA_16 || mType == TYPE_SERVICE_DATA_32
+                || mType == TYPE_SERVICE_DATA_128;
+    }
+
+    private long readUnsignedLittleEndian(int index, int size) {
+        checkIndex(index, size);
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (mRecord[mDataOffset + index + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private long readLongLittleEndian(int index) {
+        return readUnsignedLittleEndian(index, 8);
+    }
+
+    private void checkIndex(int index, int size) {
+        if (index < 0 || index + size > mDataLength) {
+            throw new IndexOutOfBoundsException("index:" + index + " size:" + size
+                    + " dataLength:" + mDataLength);
+        }
+    }
+}
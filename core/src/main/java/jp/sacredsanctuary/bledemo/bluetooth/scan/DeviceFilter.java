@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Conditions an advertisement must meet to be reported by a scan. Every condition that is set
+ * must match.
+ * <p>
+ * The service UUID and manufacturer data are matched by the Bluetooth stack, in the controller
+ * when it supports filter offload, so advertisements that do not match never wake the app. The
+ * name prefix and RSSI floor have no platform equivalent and are matched by
+ * {@link ScanFilterEngine}.
+ */
+public final class DeviceFilter {
+    // Manufacturer ID meaning that no manufacturer data is required.
+    public static final int NO_MANUFACTURER = -1;
+    // RSSI floor meaning that every signal strength is accepted.
+    public static final int NO_RSSI_FLOOR = Integer.MIN_VALUE;
+
+    private final UUID mServiceUuid;
+    private final int mManufacturerId;
+    private final byte[] mManufacturerData;
+    private final byte[] mManufacturerDataMask;
+    private final byte[] mNamePrefix;
+    private final int mRssiFloor;
+
+    private DeviceFilter(Builder builder) {
+        mServiceUuid = builder.mServiceUuid;
+        mManufacturerId = builder.mManufacturerId;
+        mManufacturerData = builder.mManufacturerData;
+        mManufacturerDataMask = builder.mManufacturerDataMask;
+        mNamePrefix = builder.mNamePrefix;
+        mRssiFloor = builder.mRssiFloor;
+    }
+
+    /**
+     * Returns the service UUID the device must advertise.
+     *
+     * @return The service UUID, or null if any service is accepted.
+     */
+    public UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    /**
+     * Returns the company identifier of the manufacturer data the device must advertise.
+     *
+     * @return The manufacturer ID, or {@link #NO_MANUFACTURER}.
+     */
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * Returns the manufacturer data to match, following the company identifier.
+     *
+     * @return The data, or null if only the manufacturer ID is matched.
+     */
+    public byte[] getManufacturerData() {
+        return mManufacturerData == null ? null : mManufacturerData.clone();
+    }
+
+    /**
+     * Returns the mask selecting the bits of the manufacturer data to match.
+     *
+     * @return The mask, or null if every bit is matched.
+     */
+    public byte[] getManufacturerDataMask() {
+        return mManufacturerDataMask == null ? null : mManufacturerDataMask.clone();
+    }
+
+    /**
+     * Returns the UTF-8 encoded prefix the advertised local name must start with.
+     *
+     * @return The prefix, or null if any name is accepted.
+     */
+    byte[] getNamePrefixBytes() {
+        return mNamePrefix;
+    }
+
+    /**
+     * Returns the weakest signal strength accepted.
+     *
+     * @return The RSSI floor in dBm, or {@link #NO_RSSI_FLOOR}.
+     */
+    public int getRssiFloor() {
+        return mRssiFloor;
+    }
+
+    /**
+     * Builder for {@link DeviceFilter}.
+     */
+    public static final class Builder {
+        private UUID mServiceUuid;
+        private int mManufacturerId = NO_MANUFACTURER;
+        private byte[] mManufacturerData;
+        private byte[] mManufacturerDataMask;
+        private byte[] mNamePrefix;
+        private int mRssiFloor = NO_RSSI_FLOOR;
+
+        /**
+         * Requires the device to advertise the given service.
+         *
+         * @param serviceUuid The service UUID, or null to accept any service
+         * @return This builder.
+         */
+        public Builder setServiceUuid(UUID serviceUuid) {
+            mServiceUuid = serviceUuid;
+            return this;
+        }
+
+        /**
+         * Requires the device to advertise manufacturer data matching the given data in the
+         * bits selected by the mask.
+         *
+         * @param manufacturerId The company identifier
+         * @param data           The data following the company identifier, or null to match the
+         *                       identifier only
+         * @param mask           The bits of {@code data} to match, or null to match every bit
+         * @return This builder.
+         */
+        public Builder setManufacturerData(int manufacturerId, byte[] data, byte[] mask) {
+            if (manufacturerId < 0 || manufacturerId > 0xFFFF) {
+                throw new IllegalArgumentException("manufacturerId:" + manufacturerId);
+            }
+            if (mask != null && (data == null || mask.length != data.length)) {
+                throw new IllegalArgumentException("mask does not match data");
+            }
+            mManufacturerId = manufacturerId;
+            mManufacturerData = data == null ? null : data.clone();
+            mManufacturerDataMask = mask == null ? null : mask.clone();
+            return this;
+        }
+
+        /**
+         * Requires the advertised local name to start with the given prefix.
+         *
+         * @param prefix The prefix, or null to accept any name
+         * @return This builder.
+         */
+        public Builder setNamePrefix(String prefix) {
+            mNamePrefix = prefix == null || prefix.isEmpty()
+                    ? null : prefix.getBytes(StandardCharsets.UTF_8);
+            return this;
+        }
+
+        /**
+         * Drops advertisements received with a weaker signal than the given one.
+         *
+         * @param rssiFloor The weakest RSSI accepted in dBm, or {@link #NO_RSSI_FLOOR}
+         * @return This builder.
+         */
+        public Builder setRssiFloor(int rssiFloor) {
+            mRssiFloor = rssiFloor;
+            return this;
+        }
+
+        /**
+         * Creates the filter.
+         *
+         * @return A new DeviceFilter.
+         */
+        public DeviceFilter build() {
+            return new DeviceFilter(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceFilter{serviceUuid=" + mServiceUuid
+                + " manufacturerId=" + mManufacturerId
+                + " manufacturerData=" + Arrays.toString(mManufacturerData)
+                + " namePrefix=" + (mNamePrefix == null
+                ? null : new String(mNamePrefix, StandardCharsets.UTF_8))
+                + " rssiFloor=" + mRssiFloor + "}";
+    }
+}
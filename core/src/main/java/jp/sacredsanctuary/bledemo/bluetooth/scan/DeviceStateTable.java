@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+
+/**
+ * Fixed capacity table holding the latest advertisement state of every scanned device.
+ * <p>
+ * Each device, keyed by its packed address (see {@link MacAddressIndex#pack(String)}), has one
+ * slot holding its last RSSI, timestamp, raw advertising record and the number of
+ * advertisements seen. Slots are kept in least recently updated order: a new device replaces
+ * the least recently updated one once the table is full, and devices that have not advertised
+ * within the time to live are dropped. Every array is allocated up front and record buffers
+ * are reused, so updating the table does not allocate once every slot has held a record of
+ * the largest size.
+ * <p>
+ * This class is thread safe.
+ *
+ * @param <T> Type of the object attached to every device, typically the latest scan result
+ */
+public class DeviceStateTable<T> {
+    // Link value marking the end of a list.
+    private static final int NONE = -1;
+
+    /**
+     * Receives the state of every device, see {@link #forEach(Visitor)}.
+     */
+    public interface Visitor<T> {
+        /**
+         * Called for every device.
+         *
+         * @param address        The packed address of the device
+         * @param rssi           The last received signal strength in dBm
+         * @param timestampNanos The time of the last advertisement
+         * @param record         Array holding the last advertising record. It is reused once
+         *                       this method returns.
+         * @param recordLength   Length of the record in bytes
+         * @param count          Number of advertisements seen
+         * @param value          The object attached by the last update
+         */
+        void visit(long address, int rssi, long timestampNanos, byte[] record, int recordLength,
+                int count, T value);
+    }
+
+    private final int mCapacity;
+    private final long mTtlNanos;
+    private final MacAddressIndex mIndex;
+    private final long[] mAddresses;
+    private final int[] mRssi;
+    private final long[] mTimestamps;
+    private final int[] mCounts;
+    private final byte[][] mRecords;
+    private final int[] mRecordLengths;
+    private final Object[] mValues;
+    // Doubly linked list of the used slots, from the most (head) to the least (tail) recently
+    // updated. Free slots are chained through mNext.
+    private final int[] mPrev;
+    private final int[] mNext;
+    private int mHead = NONE;
+    private int mTail = NONE;
+    private int mFree;
+    private int mSize;
+    private long mEvictedCount;
+    private long mExpiredCount;
+
+    /**
+     * Create a new DeviceStateTable.
+     *
+     * @param capacity Maximum number of devices held
+     * @param ttlNanos Time after which a device that has not advertised is dropped, or 0 to keep
+     *                 devices until they are evicted by newer ones
+     */
+    public DeviceStateTable(int capacity, long ttlNanos) {
+        if (capacity <= 0 || ttlNanos < 0) {
+            throw new IllegalArgumentException("capacity:" + capacity + " ttlNanos:" + ttlNanos);
+        }
+        mCapacity = capacity;
+        mTtlNanos = ttlNanos;
+        mIndex = new MacAddressIndex(capacity);
+        mAddresses = new long[capacity];
+        mRssi = new int[capacity];
+        mTimestamps = new long[capacity];
+        mCounts = new int[capacity];
+        mRecords = new byte[capacity][];
+        mRecordLengths = new int[capacity];
+        mValues = new Object[capacity];
+        mPrev = new int[capacity];
+        mNext = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            mNext[slot] = slot + 1 < capacity ? slot + 1 : NONE;
+        }
+        mFree = 0;
+    }
+
+    /**
+     * Records an advertisement. Devices whose time to live has expired at
+     * {@code timestampNanos} are dropped first.
+     *
+     * @param address        The packed address of the device
+     * @param rssi           The received signal strength in dBm
+     * @param timestampNanos The time of the advertisement, from a monotonic clock
+     * @param record         The raw advertising record, copied into the table, or null
+     * @param value          Object to attach to the device, or null
+     * @return Returns {@code true} if the device was not in the table, {@code false} otherwise.
+     */
+    public synchronized boolean update(long address, int rssi, long timestampNanos,
+            byte[] record, T value) {
+        if (address < 0) throw new IllegalArgumentException("address:" + address);
+        evictExpired(timestampNanos);
+        int slot = mIndex.get(address);
+        final boolean added = slot == MacAddressIndex.NOT_FOUND;
+        if (added) {
+            if (mFree == NONE) {
+                mEvictedCount++;
+                remove(mTail);
+            }
+            slot = mFree;
+            mFree = mNext[slot];
+            mIndex.put(address, slot);
+            mAddresses[slot] = address;
+            mCounts[slot] = 0;
+            mSize++;
+        } else {
+            unlink(slot);
+        }
+        mRssi[slot] = rssi;
+        mTimestamps[slot] = timestampNanos;
+        mCounts[slot]++;
+        mValues[slot] = value;
+        copyRecord(slot, record);
+        linkFirst(slot);
+        return added;
+    }
+
+    /**
+     * Drops the devices that have not advertised within the time to live.
+     *
+     * @param nowNanos The current time, from the clock used for the updates
+     * @return The number of devices dropped.
+     */
+    public synchronized int evictExpired(long nowNanos) {
+        if (mTtlNanos == 0) return 0;
+        int expired = 0;
+        // The tail holds the oldest timestamp as long as updates arrive in time order.
+        while (mTail != NONE && nowNanos - mTimestamps[mTail] > mTtlNanos) {
+            remove(mTail);
+            expired++;
+        }
+        mExpiredCount += expired;
+        return expired;
+    }
+
+    /**
+     * Determines if the given device is in the table.
+     *
+     * @param address The packed address of the device
+     * @return Returns {@code true} if the device is present, {@code false} otherwise.
+     */
+    public synchronized boolean contains(long address) {
+        return mIndex.contains(address);
+    }
+
+    /**
+     * Returns the number of advertisements seen from the given device.
+     *
+     * @param address The packed address of the device
+     * @return The number of advertisements, or 0 if the device is absent.
+     */
+    public synchronized int getCount(long address) {
+        final int slot = mIndex.get(address);
+        return slot == MacAddressIndex.NOT_FOUND ? 0 : mCounts[slot];
+    }
+
+    /**
+     * Returns the last received signal strength of the given device.
+     *
+     * @param address The packed address of the device
+     * @param absent  Value returned if the device is absent
+     * @return The RSSI in dBm, or {@code absent}.
+     */
+    public synchronized int getRssi(long address, int absent) {
+        final int slot = mIndex.get(address);
+        return slot == MacAddressIndex.NOT_FOUND ? absent : mRssi[slot];
+    }
+
+    /**
+     * Returns the time of the last advertisement of the given device.
+     *
+     * @param address The packed address of the device
+     * @return The timestamp in nanoseconds, or -1 if the device is absent.
+     */
+    public synchronized long getTimestampNanos(long address) {
+        final int slot = mIndex.get(address);
+        return slot == MacAddressIndex.NOT_FOUND ? -1 : mTimestamps[slot];
+    }
+
+    /**
+     * Returns the object attached to the given device by its last update.
+     *
+     * @param address The packed address of the device
+     * @return The attached object, or null if the device is absent.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T getValue(long address) {
+        final int slot = mIndex.get(address);
+        return slot == MacAddressIndex.NOT_FOUND ? null : (T) mValues[slot];
+    }
+
+    /**
+     * Calls the visitor for every device, from the most to the least recently updated.
+     *
+     * @param visitor The visitor to call
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void forEach(Visitor<? super T> visitor) {
+        for (int slot = mHead; slot != NONE; slot = mNext[slot]) {
+            visitor.visit(mAddresses[slot], mRssi[slot], mTimestamps[slot], mRecords[slot],
+                    mRecordLengths[slot], mCounts[slot], (T) mValues[slot]);
+        }
+    }
+
+    /**
+     * Returns the objects attached to the devices, from the most to the least recently updated.
+     * Devices without an attached object are skipped.
+     *
+     * @return A new list of the attached objects.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> values() {
+        final List<T> values = new ArrayList<>(mSize);
+        for (int slot = mHead; slot != NONE; slot = mNext[slot]) {
+            if (mValues[slot] != null) {
+                values.add((T) mValues[slot]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of devices in the table.
+     *
+     * @return The number of devices.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of devices held.
+     *
+     * @return The capacity of the table.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of devices dropped to make room for new ones.
+     *
+     * @return The number of evicted devices.
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Returns the number of devices dropped because their time to live expired.
+     *
+     * @return The number of expired devices.
+     */
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * Removes every device while keeping the record buffers allocated.
+     */
+    public synchronized void clear() {
+        while (mTail != NONE) {
+            remove(mTail);
+        }
+        mEvictedCount = 0;
+        mExpiredCount = 0;
+    }
+
+    private void copyRecord(int slot, byte[] record) {
+        final int length = record == null ? 0 : record.length;
+        if (mRecords[slot] == null || mRecords[slot].length < length) {
+            mRecords[slot] = new byte[length];
+        }
+        if (length > 0) {
+            System.arraycopy(record, 0, mRecords[slot], 0, length);
+        }
+        mRecordLengths[slot] = length;
+    }
+
+    private void remove(int slot) {
+        unlink(slot);
+        mIndex.remove(mAddresses[slot]);
+        mValues[slot] = null;
+        mNext[slot] = mFree;
+        mFree = slot;
+        mSize--;
+    }
+
+    private void linkFirst(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) {
+            mPrev[mHead] = slot;
+        } else {
+            mTail = slot;
+        }
+        mHead = slot;
+    }
+
+    private void unlink(int slot) {
+        final int prev = mPrev[slot];
+        final int next = mNext[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+/**
+ * Counts how often a scan wakes the app up and how many results each wakeup delivers.
+ * <p>
+ * A real-time scan wakes the app once per result, a batch scan once per batch; comparing the
+ * wakeups per minute of both modes shows how much work the controller offloads.
+ */
+public class ScanDeliveryStats {
+    private static final long NANOS_PER_MINUTE = 60000000000L;
+
+    private long mStartedNanos = -1;
+    private long mLastDeliveryNanos = -1;
+    private long mWakeupCount;
+    private long mResultCount;
+    private int mLastBatchSize;
+    private int mMaxBatchSize;
+
+    /**
+     * Clears every value and starts a new measurement.
+     *
+     * @param nowNanos The current time, from a monotonic clock
+     */
+    public synchronized void start(long nowNanos) {
+        mStartedNanos = nowNanos;
+        mLastDeliveryNanos = -1;
+        mWakeupCount = 0;
+        mResultCount = 0;
+        mLastBatchSize = 0;
+        mMaxBatchSize = 0;
+    }
+
+    /**
+     * Records a wakeup of the app.
+     *
+     * @param resultCount Number of results delivered by the wakeup
+     * @param nowNanos    The current time, from the clock passed to {@link #start(long)}
+     */
+    public synchronized void onDelivery(int resultCount, long nowNanos) {
+        if (mStartedNanos < 0) mStartedNanos = nowNanos;
+        mLastDeliveryNanos = nowNanos;
+        mWakeupCount++;
+        mResultCount += resultCount;
+        mLastBatchSize = resultCount;
+        mMaxBatchSize = Math.max(mMaxBatchSize, resultCount);
+    }
+
+    /**
+     * Returns the number of times results were delivered.
+     *
+     * @return The number of wakeups.
+     */
+    public synchronized long getWakeupCount() {
+        return mWakeupCount;
+    }
+
+    /**
+     * Returns the number of results delivered.
+     *
+     * @return The number of results.
+     */
+    public synchronized long getResultCount() {
+        return mResultCount;
+    }
+
+    /**
+     * Returns the number of results delivered by the last wakeup.
+     *
+     * @return The size of the last batch.
+     */
+    public synchronized int getLastBatchSize() {
+        return mLastBatchSize;
+    }
+
+    /**
+     * Returns the largest number of results delivered by a single wakeup.
+     *
+     * @return The size of the largest batch.
+     */
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Returns the average number of results delivered per wakeup.
+     *
+     * @return The average batch size, or 0 if nothing was delivered.
+     */
+    public synchronized double getAverageBatchSize() {
+        return mWakeupCount == 0 ? 0 : (double) mResultCount / mWakeupCount;
+    }
+
+    /**
+     * Returns the wakeup rate between the start and the given time.
+     *
+     * @param nowNanos The end of the measurement, from the clock passed to {@link #start(long)}
+     * @return The number of wakeups per minute, or 0 if no time has elapsed.
+     */
+    public synchronized double getWakeupsPerMinute(long nowNanos) {
+        final long elapsed = nowNanos - mStartedNanos;
+        return mStartedNanos < 0 || elapsed <= 0
+                ? 0 : (double) mWakeupCount * NANOS_PER_MINUTE / elapsed;
+    }
+
+    /**
+     * Returns the time of the last wakeup.
+     *
+     * @return The time in nanoseconds, or -1 if nothing was delivered.
+     */
+    public synchronized long getLastDeliveryNanos() {
+        return mLastDeliveryNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ScanDeliveryStats{wakeups=" + mWakeupCount + " results=" + mResultCount
+                + " lastBatch=" + mLastBatchSize + " maxBatch=" + mMaxBatchSize + "}";
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+/**
+ * Applies the conditions of a {@link DeviceFilter} that the Bluetooth stack cannot apply.
+ * <p>
+ * Each of those conditions is compiled into a stage of a predicate chain. Stages start in
+ * order of cost; every {@value #REORDER_INTERVAL} evaluations they are reordered so the stage
+ * rejecting the most results per unit of cost runs first, which makes most rejections cheap.
+ * The number of results rejected by every stage is counted to help tuning filters.
+ * <p>
+ * This class is thread safe.
+ */
+public class ScanFilterEngine {
+    public static final int STAGE_RSSI = 0;
+    public static final int STAGE_NAME_PREFIX = 1;
+    public static final int STAGE_COUNT = 2;
+
+    private static final int REORDER_INTERVAL = 1024;
+
+    private abstract static class Stage {
+        final int mId;
+        // Relative cost of a single evaluation.
+        final int mCost;
+        long mEvaluated;
+        long mRejected;
+
+        Stage(int id, int cost) {
+            mId = id;
+            mCost = cost;
+        }
+
+        abstract boolean accept(int rssi, byte[] record, int length);
+
+        // Expected rejections per unit of cost; higher ranked stages run first.
+        double rank() {
+            return mEvaluated == 0 ? 0 : (double) mRejected / mEvaluated / mCost;
+        }
+    }
+
+    private final DeviceFilter mFilter;
+    private final Stage[] mStages;
+    private final long[] mRejectedCounts = new long[STAGE_COUNT];
+    private final AdvertisingDataParser mParser = new AdvertisingDataParser();
+    private long mEvaluatedCount;
+    private long mAcceptedCount;
+
+    /**
+     * Create a new ScanFilterEngine.
+     *
+     * @param filter The filter to compile
+     */
+    public ScanFilterEngine(DeviceFilter filter) {
+        mFilter = filter;
+        int count = 0;
+        final Stage[] stages = new Stage[STAGE_COUNT];
+        if (filter.getRssiFloor() != DeviceFilter.NO_RSSI_FLOOR) {
+            stages[count++] = new Stage(STAGE_RSSI, 1) {
+                @Override
+                boolean accept(int rssi, byte[] record, int length) {
+                    return rssi >= mFilter.getRssiFloor();
+                }
+            };
+        }
+        if (filter.getNamePrefixBytes() != null) {
+            stages[count++] = new Stage(STAGE_NAME_PREFIX, 8) {
+                @Override
+                boolean accept(int rssi, byte[] record, int length) {
+                    return hasNamePrefix(record, length, mFilter.getNamePrefixBytes());
+                }
+            };
+        }
+        mStages = new Stage[count];
+        System.arraycopy(stages, 0, mStages, 0, count);
+    }
+
+    /**
+     * Returns the filter this engine was compiled from.
+     *
+     * @return The filter.
+     */
+    public DeviceFilter getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Determines if an advertisement meets the conditions applied in software.
+     *
+     * @param rssi   The received signal strength in dBm
+     * @param record The raw advertising record, or null
+     * @param length Length of the record in bytes
+     * @return Returns {@code true} if the advertisement is accepted, {@code false} otherwise.
+     */
+    public synchronized boolean test(int rssi, byte[] record, int length) {
+        if (++mEvaluatedCount % REORDER_INTERVAL == 0) {
+            reorder();
+        }
+        for (Stage stage : mStages) {
+            stage.mEvaluated++;
+            if (!stage.accept(rssi, record, record == null ? 0 : length)) {
+                stage.mRejected++;
+                mRejectedCounts[stage.mId]++;
+                return false;
+            }
+        }
+        mAcceptedCount++;
+        return true;
+    }
+
+    /**
+     * Returns the number of advertisements evaluated.
+     *
+     * @return The number of evaluated advertisements.
+     */
+    public synchronized long getEvaluatedCount() {
+        return mEvaluatedCount;
+    }
+
+    /**
+     * Returns the number of advertisements accepted by every stage.
+     *
+     * @return The number of accepted advertisements.
+     */
+    public synchronized long getAcceptedCount() {
+        return mAcceptedCount;
+    }
+
+    /**
+     * Returns the number of advertisements rejected by a stage. An advertisement is counted by
+     * the first stage rejecting it only.
+     *
+     * @param stage One of the {@code STAGE_*} constants
+     * @return The number of rejected advertisements.
+     */
+    public synchronized long getRejectedCount(int stage) {
+        return mRejectedCounts[stage];
+    }
+
+    /**
+     * Returns the stages in the order they currently run.
+     *
+     * @return The {@code STAGE_*} constants of the compiled stages.
+     */
+    public synchronized int[] getStageOrder() {
+        final int[] order = new int[mStages.length];
+        for (int i = 0; i < mStages.length; i++) {
+            order[i] = mStages[i].mId;
+        }
+        return order;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ScanFilterEngine{evaluated=" + mEvaluatedCount + " accepted=" + mAcceptedCount
+                + " rejectedByRssi=" + mRejectedCounts[STAGE_RSSI]
+                + " rejectedByNamePrefix=" + mRejectedCounts[STAGE_NAME_PREFIX] + "}";
+    }
+
+    private void reorder() {
+        // Insertion sort; there are only a few stages.
+        for (int i = 1; i < mStages.length; i++) {
+            final Stage stage = mStages[i];
+            final double rank = stage.rank();
+            int j = i - 1;
+            while (j >= 0 && mStages[j].rank() < rank) {
+                mStages[j + 1] = mStages[j];
+                j--;
+            }
+            mStages[j + 1] = stage;
+        }
+    }
+
+    private boolean hasNamePrefix(byte[] record, int length, byte[] prefix) {
+        final AdvertisingDataParser parser = mParser.reset(record, 0, length);
+        while (parser.next()) {
+            final int type = parser.getType();
+            if (type == AdvertisingDataParser.TYPE_COMPLETE_LOCAL_NAME
+                    || type == AdvertisingDataParser.TYPE_SHORTENED_LOCAL_NAME) {
+                return parser.startsWith(prefix);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+/**
+ * Runs a continuous scan and adapts its duty cycle to the rate new devices are discovered.
+ * <p>
+ * The scan starts in a given mode and is re-evaluated on every {@link #onTick(long, long)}:
+ * while devices keep being discovered faster than the raise rate the scan moves to the next
+ * more aggressive mode; once the rate drops below the lower rate and the mode has been kept
+ * for a while it moves to the next more economic one. Changing the mode restarts the scan, and
+ * Android silently ignores the scans of an app starting more than {@value #MAX_STARTS} scans
+ * within 30 s, so starts are rate limited and a change that would exceed the limit is deferred
+ * to a later tick. Android also downgrades scans running for longer than 30 minutes, so long
+ * scans are restarted before that.
+ * <p>
+ * Time is passed in by the caller, which lets tests drive the scheduler with a virtual clock.
+ * This class is thread safe.
+ */
+public class ScanScheduler {
+    // Same values as ScanSettings.SCAN_MODE_*.
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+    public static final int MODE_COUNT = 3;
+
+    public static final int MAX_STARTS = 5;
+    public static final long START_WINDOW_NANOS = 30000000000L;
+    static final long MAX_SCAN_DURATION_NANOS = 25 * 60000000000L;
+    // Minimum time spent in a mode before moving to a more economic one.
+    static final long MIN_DWELL_NANOS = 30000000000L;
+
+    private static final long NANOS_PER_MINUTE = 60000000000L;
+    // Weight of the latest tick in the smoothed discovery rate.
+    private static final double RATE_SMOOTHING = 0.3;
+    // Share of the time the radio listens in each mode, as configured by AOSP.
+    private static final int[] DUTY_CYCLE_PERCENT = {10, 25, 100};
+
+    /**
+     * Starts and stops the underlying scan.
+     */
+    public interface Scanner {
+        /**
+         * Starts scanning in the given mode.
+         *
+         * @param mode One of the {@code MODE_*} constants
+         * @return Returns {@code true} if the scan was started, {@code false} otherwise.
+         */
+        boolean startScan(int mode);
+
+        /**
+         * Stops scanning.
+         */
+        void stopScan();
+    }
+
+    private final Scanner mScanner;
+    private final double mRaiseRate;
+    private final double mLowerRate;
+    private final long[] mStartTimes = new long[MAX_STARTS];
+    private final long[] mTimeInMode = new long[MODE_COUNT];
+    private final long[] mDiscoveries = new long[MODE_COUNT];
+    private int mNextStart;
+    private long mStartCount;
+    private long mDeferredCount;
+    private boolean mRunning = false;
+    private boolean mScanActive = false;
+    private int mMode;
+    private long mModeSinceNanos;
+    private long mScanStartedNanos;
+    private long mLastTickNanos;
+    private long mLastDiscoveryCount;
+    private double mRate;
+
+    /**
+     * Create a new ScanScheduler.
+     *
+     * @param scanner         The scanner to drive
+     * @param raisePerMinute  Discovery rate, in new devices per minute, above which the scan
+     *                        moves to a more aggressive mode
+     * @param lowerPerMinute  Discovery rate below which the scan moves to a more economic mode
+     */
+    public ScanScheduler(Scanner scanner, double raisePerMinute, double lowerPerMinute) {
+        if (lowerPerMinute > raisePerMinute) {
+            throw new IllegalArgumentException(
+                    "raisePerMinute:" + raisePerMinute + " lowerPerMinute:" + lowerPerMinute);
+        }
+        mScanner = scanner;
+        mRaiseRate = raisePerMinute;
+        mLowerRate = lowerPerMinute;
+        for (int i = 0; i < MAX_STARTS; i++) {
+            mStartTimes[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Returns the share of the time the radio listens in the given mode.
+     *
+     * @param mode One of the {@code MODE_*} constants
+     * @return The duty cycle in percent.
+     */
+    public static int getDutyCyclePercent(int mode) {
+        return DUTY_CYCLE_PERCENT[mode];
+    }
+
+    /**
+     * Starts scanning.
+     *
+     * @param mode           The initial mode, one of the {@code MODE_*} constants
+     * @param nowNanos       The current time
+     * @param discoveryCount The number of devices discovered so far
+     */
+    public synchronized void start(int mode, long nowNanos, long discoveryCount) {
+        if (mRunning) return;
+        mRunning = true;
+        mMode = mode;
+        mModeSinceNanos = nowNanos;
+        mLastTickNanos = nowNanos;
+        mLastDiscoveryCount = discoveryCount;
+        mRate = 0;
+        if (!restart(mode, nowNanos)) {
+            mDeferredCount++;
+        }
+    }
+
+    /**
+     * Stops scanning.
+     *
+     * @param nowNanos       The current time
+     * @param discoveryCount The number of devices discovered so far
+     */
+    public synchronized void stop(long nowNanos, long discoveryCount) {
+        if (!mRunning) return;
+        account(nowNanos, discoveryCount);
+        mRunning = false;
+        if (mScanActive) {
+            mScanner.stopScan();
+            mScanActive = false;
+        }
+    }
+
+    /**
+     * Re-evaluates the mode. Meant to be called every few seconds.
+     *
+     * @param nowNanos       The current time
+     * @param discoveryCount The number of devices discovered so far
+     */
+    public synchronized void onTick(long nowNanos, long discoveryCount) {
+        if (!mRunning) return;
+        final long elapsed = nowNanos - mLastTickNanos;
+        final long discovered = discoveryCount - mLastDiscoveryCount;
+        account(nowNanos, discoveryCount);
+        if (elapsed > 0) {
+            final double rate = (double) discovered * NANOS_PER_MINUTE / elapsed;
+            mRate += RATE_SMOOTHING * (rate - mRate);
+        }
+
+        int mode = mMode;
+        if (mRate > mRaiseRate && mode < MODE_LOW_LATENCY) {
+            mode++;
+        } else if (mRate < mLowerRate && mode > MODE_LOW_POWER
+                && nowNanos - mModeSinceNanos >= MIN_DWELL_NANOS) {
+            mode--;
+        }
+        final boolean expired = mScanActive
+                && nowNanos - mScanStartedNanos >= MAX_SCAN_DURATION_NANOS;
+        if (mode != mMode || expired || !mScanActive) {
+            if (!restart(mode, nowNanos)) {
+                mDeferredCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the current mode.
+     *
+     * @return One of the {@code MODE_*} constants.
+     */
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Returns the smoothed discovery rate.
+     *
+     * @return The number of new devices per minute.
+     */
+    public synchronized double getDiscoveryRate() {
+        return mRate;
+    }
+
+    /**
+     * Returns the time spent scanning in the given mode.
+     *
+     * @param mode One of the {@code MODE_*} constants
+     * @return The time in nanoseconds.
+     */
+    public synchronized long getTimeInMode(int mode) {
+        return mTimeInMode[mode];
+    }
+
+    /**
+     * Returns the number of devices discovered while scanning in the given mode.
+     *
+     * @param mode One of the {@code MODE_*} constants
+     * @return The number of discovered devices.
+     */
+    public synchronized long getDiscoveryCount(int mode) {
+        return mDiscoveries[mode];
+    }
+
+    /**
+     * Returns the average duty cycle since the scheduler was created.
+     *
+     * @return The duty cycle in percent, or 0 if no time has been spent scanning.
+     */
+    public synchronized double getAverageDutyCyclePercent() {
+        long total = 0;
+        double weighted = 0;
+        for (int mode = 0; mode < MODE_COUNT; mode++) {
+            total += mTimeInMode[mode];
+            weighted += (double) mTimeInMode[mode] * DUTY_CYCLE_PERCENT[mode];
+        }
+        return total == 0 ? 0 : weighted / total;
+    }
+
+    /**
+     * Returns the number of scans started.
+     *
+     * @return The number of scan starts.
+     */
+    public synchronized long getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * Returns the number of scan starts deferred because of the start limit or refused by the
+     * scanner.
+     *
+     * @return The number of deferred starts.
+     */
+    public synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("ScanScheduler{mode=").append(mMode)
+                .append(" rate/min=").append(Math.round(mRate))
+                .append(" starts=").append(mStartCount)
+                .append(" deferred=").append(mDeferredCount)
+                .append(" dutyCycle%=").append(Math.round(getAverageDutyCyclePercent()));
+        for (int mode = 0; mode < MODE_COUNT; mode++) {
+            builder.append(" [mode").append(mode)
+                    .append(" ms=").append(mTimeInMode[mode] / 1000000)
+                    .append(" found=").append(mDiscoveries[mode]).append(']');
+        }
+        return builder.append('}').toString();
+    }
+
+    private void account(long nowNanos, long discoveryCount) {
+        if (mScanActive) {
+            mTimeInMode[mMode] += nowNanos - mLastTickNanos;
+            mDiscoveries[mMode] += discoveryCount - mLastDiscoveryCount;
+        }
+        mLastTickNanos = nowNanos;
+        mLastDiscoveryCount = discoveryCount;
+    }
+
+    private boolean restart(int mode, long nowNanos) {
+        // The oldest of the last MAX_STARTS starts must have left the window.
+        if (mStartTimes[mNextStart] != Long.MIN_VALUE
+                && nowNanos - mStartTimes[mNextStart] < START_WINDOW_NANOS) {
+            return false;
+        }
+        if (mScanActive) {
+            mScanner.stopScan();
+            mScanActive = false;
+        }
+        mStartTimes[mNextStart] = nowNanos;
+        mNextStart = (mNextStart + 1) % MAX_STARTS;
+        mStartCount++;
+        if (!mScanner.startScan(mode)) {
+            return false;
+        }
+        mScanActive = true;
+        if (mode != mMode) {
+            mMode = mode;
+            mModeSinceNanos = nowNanos;
+        }
+        mScanStartedNanos = nowNanos;
+        return true;
+    }
+}
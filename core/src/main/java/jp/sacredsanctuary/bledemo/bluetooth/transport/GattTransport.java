@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+
+/**
+ * GATT client connected to a single device, as seen by {@link
+ * jp.sacredsanctuary.bledemo.bluetooth.GattSession}.
+ * <p>
+ * Requests only start an operation; results are reported through the {@link Callback}, on the
+ * thread that owns the session. Notifications may be reported on another thread. The app runs
+ * on a transport backed by {@code BluetoothGatt}; tests and benchmarks run on the in-memory
+ * transport of {@link VirtualBleStack}.
+ */
+public interface GattTransport {
+    // Status values, the same as those of BluetoothGatt.
+    int GATT_SUCCESS = 0;
+    int GATT_INSUFFICIENT_AUTHENTICATION = 0x05;
+    int GATT_CONNECTION_TIMEOUT = 0x08;
+    int GATT_ERROR = 0x85;
+    int GATT_FAILURE = 0x101;
+    // Values of the Client Characteristic Configuration written by setNotification().
+    int CCCD_DISABLED = 0;
+    int CCCD_NOTIFICATION = 1;
+    int CCCD_INDICATION = 2;
+
+    /**
+     * Receives the results of the requests and the events of the device.
+     */
+    interface Callback {
+        /**
+         * Called when the link to the device is up or has been lost.
+         *
+         * @param connected {@code true} if the link is up
+         * @param status    {@link #GATT_SUCCESS}, or the reason of a failure or a link loss
+         */
+        void onConnectionStateChanged(boolean connected, int status);
+
+        /**
+         * Called when a service discovery has completed. The attribute table is then available
+         * through {@link GattTransport#getDatabase()}.
+         *
+         * @param status {@link #GATT_SUCCESS} if the services have been discovered
+         */
+        void onServicesDiscovered(int status);
+
+        /**
+         * Called when the MTU exchange has completed.
+         *
+         * @param mtu    The MTU negotiated
+         * @param status {@link #GATT_SUCCESS} if the MTU has been changed
+         */
+        void onMtuChanged(int mtu, int status);
+
+        /**
+         * Called when the PHY of the link has been read or updated.
+         *
+         * @param txPhy  The transmitter PHY, one of the {@code BluetoothDevice.PHY_LE_*} values
+         * @param rxPhy  The receiver PHY, one of the {@code BluetoothDevice.PHY_LE_*} values
+         * @param status {@link #GATT_SUCCESS} if the PHY is known
+         */
+        void onPhyUpdated(int txPhy, int rxPhy, int status);
+
+        /**
+         * Called when the connection parameters have been updated.
+         *
+         * @param interval Connection interval, in units of 1.25 ms
+         * @param latency  Peripheral latency, in connection events
+         * @param timeout  Supervision timeout, in units of 10 ms
+         * @param status   {@link #GATT_SUCCESS} if the parameters have been updated
+         */
+        void onConnectionUpdated(int interval, int latency, int timeout, int status);
+
+        /**
+         * Called when a characteristic read has completed.
+         *
+         * @param uuid   The UUID of the characteristic
+         * @param value  The value read, or null if the read failed
+         * @param status {@link #GATT_SUCCESS} if the value has been read
+         */
+        void onCharacteristicRead(UUID uuid, byte[] value, int status);
+
+        /**
+         * Called when a characteristic write has completed.
+         *
+         * @param uuid   The UUID of the characteristic
+         * @param status {@link #GATT_SUCCESS} if the value has been written
+         */
+        void onCharacteristicWrite(UUID uuid, int status);
+
+        /**
+         * Called when the Client Characteristic Configuration of a characteristic has been
+         * written.
+         *
+         * @param uuid   The UUID of the characteristic
+         * @param status {@link #GATT_SUCCESS} if the configuration has been written
+         */
+        void onNotificationChanged(UUID uuid, int status);
+
+        /**
+         * Called when the device has sent a notification. May be called on another thread than
+         * the other events.
+         *
+         * @param uuid  The UUID of the characteristic
+         * @param value The value notified. It may be reused once this method returns.
+         */
+        void onNotification(UUID uuid, byte[] value);
+
+        /**
+         * Called when the device has reported a Service Changed indication.
+         */
+        void onServiceChanged();
+    }
+
+    /**
+     * Returns the address of the device.
+     *
+     * @return Bluetooth address as string.
+     */
+    String getAddress();
+
+    /**
+     * Sets the callback receiving the results and the events.
+     *
+     * @param callback The callback
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Connects to the device, or reconnects after the link was lost.
+     *
+     * @param autoConnect {@code false} for a direct connection, which fails if the device
+     *                    cannot be reached within about 30 seconds; {@code true} for a
+     *                    background connection, which waits for the device to advertise
+     * @return Returns {@code true} if the connection attempt was started, {@code false}
+     * otherwise.
+     */
+    boolean connect(boolean autoConnect);
+
+    /**
+     * Disconnects from the device, or cancels a connection attempt.
+     */
+    void disconnect();
+
+    /**
+     * Releases the client. No event is reported afterwards.
+     */
+    void close();
+
+    /**
+     * Starts discovering the attribute table of the device.
+     *
+     * @return Returns {@code true} if the discovery was started, {@code false} otherwise.
+     */
+    boolean discoverServices();
+
+    /**
+     * Returns the attribute table of the device, which is kept across reconnects.
+     *
+     * @return The attribute table, or null if no discovery has completed.
+     */
+    GattDatabase getDatabase();
+
+    /**
+     * Starts an MTU exchange.
+     *
+     * @param mtu The MTU requested
+     * @return Returns {@code true} if the exchange was started, {@code false} otherwise.
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Requests the PHY preferred for the link. The PHY in use is reported once, through
+     * {@link Callback#onPhyUpdated(int, int, int)}.
+     *
+     * @param phyMask Preferred transmitter and receiver PHY, a combination of the
+     *                {@code BluetoothDevice.PHY_LE_*_MASK} values
+     * @return Returns {@code true} if the request was started, {@code false} otherwise.
+     */
+    boolean setPreferredPhy(int phyMask);
+
+    /**
+     * Requests a connection priority. The stack reports no result for this request.
+     *
+     * @param priority One of the {@code LinkProfile.CONNECTION_PRIORITY_*} constants
+     * @return Returns {@code true} if the request was accepted, {@code false} otherwise.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Starts reading a characteristic.
+     *
+     * @param serviceUuid The UUID of the service
+     * @param uuid        The UUID of the characteristic
+     * @return Returns {@code true} if the read was started, {@code false} otherwise.
+     */
+    boolean readCharacteristic(UUID serviceUuid, UUID uuid);
+
+    /**
+     * Starts writing a characteristic.
+     *
+     * @param serviceUuid  The UUID of the service
+     * @param uuid         The UUID of the characteristic
+     * @param value        The value to write. The array may be reused once the write has
+     *                     completed.
+     * @param withResponse {@code true} to write with response, {@code false} to write without
+     *                     response
+     * @return Returns {@code true} if the write was started, {@code false} otherwise.
+     */
+    boolean writeCharacteristic(UUID serviceUuid, UUID uuid, byte[] value, boolean withResponse);
+
+    /**
+     * Enables the notifications or the indications of a characteristic, or disables both, by
+     * writing its Client Characteristic Configuration.
+     *
+     * @param serviceUuid   The UUID of the service
+     * @param uuid          The UUID of the characteristic
+     * @param configuration One of the {@code CCCD_*} constants
+     * @return Returns {@code true} if the write was started, {@code false} otherwise.
+     */
+    boolean setNotification(UUID serviceUuid, UUID uuid, int configuration);
+}
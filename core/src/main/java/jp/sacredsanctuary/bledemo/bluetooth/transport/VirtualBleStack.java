@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * In-memory Bluetooth stack hosting {@link VirtualPeripheral}s, so that connection setup,
+ * streaming and scanning run on a plain JVM.
+ * <p>
+ * GATT clients are opened with {@link #openGatt(String)} and hand their events to a
+ * {@link jp.sacredsanctuary.bledemo.bluetooth.GattSession} exactly as the Android transport
+ * does; scans are run by a {@link VirtualScanner}. Every event is run by the
+ * {@link VirtualScheduler}, whose virtual clock also serves as the clock of the code under
+ * test, so runs are fast and reproducible for a given seed.
+ */
+public class VirtualBleStack {
+    private final VirtualScheduler mScheduler;
+    private final Random mRandom;
+    private final Map<String, VirtualPeripheral> mPeripherals = new LinkedHashMap<>();
+
+    /**
+     * Create a new VirtualBleStack.
+     *
+     * @param scheduler The scheduler running the events of the stack
+     * @param seed      Seed of the random draws of the radio, for reproducible runs
+     */
+    public VirtualBleStack(VirtualScheduler scheduler, long seed) {
+        mScheduler = scheduler;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Returns the scheduler running the events of the stack.
+     *
+     * @return The scheduler.
+     */
+    public VirtualScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Adds a peripheral in range.
+     *
+     * @param peripheral The peripheral
+     * @return The peripheral.
+     */
+    public VirtualPeripheral addPeripheral(VirtualPeripheral peripheral) {
+        if (mPeripherals.containsKey(peripheral.getAddress())) {
+            throw new IllegalArgumentException("address:" + peripheral.getAddress());
+        }
+        mPeripherals.put(peripheral.getAddress(), peripheral);
+        return peripheral;
+    }
+
+    /**
+     * Takes a peripheral out of range. Its connection, if any, is lost.
+     *
+     * @param address Bluetooth address as string
+     */
+    public void removePeripheral(String address) {
+        final VirtualPeripheral peripheral = mPeripherals.remove(toKey(address));
+        if (peripheral != null) {
+            peripheral.disconnect(GattTransport.GATT_CONNECTION_TIMEOUT);
+        }
+    }
+
+    /**
+     * Returns a peripheral in range.
+     *
+     * @param address Bluetooth address as string
+     * @return The peripheral, or null if no peripheral has this address.
+     */
+    public VirtualPeripheral getPeripheral(String address) {
+        return mPeripherals.get(toKey(address));
+    }
+
+    /**
+     * Returns the peripherals in range.
+     *
+     * @return A snapshot of the peripherals, in the order they were added.
+     */
+    public List<VirtualPeripheral> getPeripherals() {
+        return new ArrayList<>(mPeripherals.values());
+    }
+
+    /**
+     * Creates a GATT client for a device. The device does not need to be in range yet.
+     *
+     * @param address Bluetooth address as string
+     * @return The transport, not connected.
+     */
+    public GattTransport openGatt(String address) {
+        return new VirtualGattTransport(this, toKey(address));
+    }
+
+    /**
+     * Creates a scanner receiving the advertisements of the peripherals in range.
+     *
+     * @param listener The listener receiving the advertisements
+     * @return The scanner, not scanning.
+     */
+    public VirtualScanner newScanner(VirtualScanner.Listener listener) {
+        return new VirtualScanner(this, listener);
+    }
+
+    Random getRandom() {
+        return mRandom;
+    }
+
+    private static String toKey(String address) {
+        // BluetoothDevice reports addresses in upper case.
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
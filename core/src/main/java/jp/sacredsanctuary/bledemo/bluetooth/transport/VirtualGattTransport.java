@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.bluetooth.GattOperation;
+import jp.sacredsanctuary.bledemo.bluetooth.GattSubscription;
+import jp.sacredsanctuary.bledemo.bluetooth.LinkProfile;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+
+/**
+ * {@link GattTransport} to a {@link VirtualPeripheral}, created by
+ * {@link VirtualBleStack#openGatt(String)}.
+ * <p>
+ * Every request is answered by an event of the {@link VirtualScheduler}, after the latency of
+ * the peripheral. Events of a connection are dropped once its link is lost or the transport is
+ * closed, as the Android stack does. A hung peripheral answers the requests it received once it
+ * recovers, as ATT keeps a request pending until its response or the loss of the link.
+ */
+class VirtualGattTransport implements GattTransport {
+    // Time after which a connection attempt to a device that does not answer fails, and the
+    // status reported, as on Android.
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // Interval at which a background connection looks for a device out of range.
+    private static final long AUTO_CONNECT_SCAN_NANOS = TimeUnit.MILLISECONDS.toNanos(1280);
+    // Connection parameters granted for every connection priority, in the units of the link
+    // layer: the interval in 1.25 ms, the supervision timeout in 10 ms.
+    private static final int[] INTERVALS = {24, 9, 80};
+    private static final int[] LATENCIES = {0, 0, 2};
+    private static final int SUPERVISION_TIMEOUT = 500;
+    // Error of a CCCD write the characteristic does not support, reported as is by the stack.
+    private static final int GATT_CCCD_IMPROPERLY_CONFIGURED = 0xFD;
+
+    /**
+     * Delivers the result of a request.
+     */
+    private interface Response {
+        void onResponse(int status);
+    }
+
+    private final VirtualBleStack mStack;
+    private final VirtualScheduler mScheduler;
+    private final String mAddress;
+    private final Map<UUID, VirtualScheduler.Task> mSubscriptions = new HashMap<>();
+    // Answers of the requests received while the peripheral was hung, in order.
+    private final ArrayDeque<Runnable> mHeldResponses = new ArrayDeque<>();
+    private Callback mCallback;
+    private VirtualPeripheral mPeripheral;
+    private GattDatabase mDatabase;
+    private boolean mConnecting = false;
+    private boolean mConnected = false;
+    private boolean mClosed = false;
+    private int mMtu = 23;
+    // Incremented whenever a link goes away, to drop the events of the previous one.
+    private int mGeneration;
+
+    VirtualGattTransport(VirtualBleStack stack, String address) {
+        mStack = stack;
+        mScheduler = stack.getScheduler();
+        mAddress = address;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean connect(boolean autoConnect) {
+        if (mClosed) return false;
+        if (mConnecting) return true;
+        if (mConnected) {
+            post(0, () -> mCallback.onConnectionStateChanged(true, GATT_SUCCESS));
+            return true;
+        }
+        mConnecting = true;
+        startConnection(autoConnect);
+        return true;
+    }
+
+    private void startConnection(boolean autoConnect) {
+        final VirtualPeripheral peripheral = mStack.getPeripheral(mAddress);
+        if (peripheral == null || peripheral.isConnected()) {
+            if (autoConnect) {
+                // The background scan of the stack looks for the device again and again.
+                post(AUTO_CONNECT_SCAN_NANOS, () -> startConnection(true));
+            } else {
+                post(CONNECT_TIMEOUT_NANOS, () -> onConnectFailed(GATT_ERROR));
+            }
+            return;
+        }
+        final int status = peripheral.takeConnectStatus();
+        post(peripheral.getLatencyNanos(), () -> {
+            if (GATT_SUCCESS != status || peripheral.isConnected()) {
+                onConnectFailed(GATT_SUCCESS != status ? status : GATT_ERROR);
+                return;
+            }
+            mConnecting = false;
+            mConnected = true;
+            mPeripheral = peripheral;
+            mMtu = 23;
+            peripheral.onConnected(this);
+            mCallback.onConnectionStateChanged(true, GATT_SUCCESS);
+            reportConnectionParameters(LinkProfile.CONNECTION_PRIORITY_BALANCED);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void disconnect() {
+        if (mConnecting) {
+            mGeneration++;
+            mConnecting = false;
+            post(0, () -> mCallback.onConnectionStateChanged(false, GATT_SUCCESS));
+        } else if (mConnected) {
+            final VirtualPeripheral peripheral = mPeripheral;
+            post(peripheral.getLatencyNanos(), () -> dropLink(GATT_SUCCESS));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        if (mConnected) {
+            stopSubscriptions();
+            mPeripheral.onDisconnected(this);
+            mPeripheral = null;
+        }
+        mClosed = true;
+        mConnecting = false;
+        mConnected = false;
+        mGeneration++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean discoverServices() {
+        return request(GattOperation.TYPE_DISCOVER_SERVICES, 0, true, status -> {
+            if (GATT_SUCCESS == status) {
+                mDatabase = mPeripheral.getDatabase();
+            }
+            mCallback.onServicesDiscovered(status);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public GattDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requestMtu(int mtu) {
+        return request(GattOperation.TYPE_REQUEST_MTU, 0, true, status -> {
+            if (GATT_SUCCESS == status) {
+                mMtu = Math.max(23, Math.min(mtu, mPeripheral.getMaxMtu()));
+            }
+            mCallback.onMtuChanged(mMtu, status);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setPreferredPhy(int phyMask) {
+        return request(GattOperation.TYPE_SET_PREFERRED_PHY, 0, true, status -> {
+            final int phy = (phyMask & LinkProfile.PHY_LE_2M_MASK) != 0
+                    && mPeripheral.is2MPhySupported()
+                    ? VirtualPeripheral.PHY_LE_2M : VirtualPeripheral.PHY_LE_1M;
+            mCallback.onPhyUpdated(phy, phy, status);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (!mConnected || priority < 0 || priority >= INTERVALS.length) return false;
+        // No result is reported for this request, so an injected failure rejects it.
+        final int status = mPeripheral.takeStatus(GattOperation.TYPE_REQUEST_CONNECTION_PRIORITY);
+        if (GATT_SUCCESS != status) return false;
+        post(mPeripheral.getLatencyNanos(), () -> reportConnectionParameters(priority));
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean readCharacteristic(UUID serviceUuid, UUID uuid) {
+        if (!hasCharacteristic(serviceUuid, uuid)) return false;
+        return request(GattOperation.TYPE_READ_CHARACTERISTIC, 0, true, status ->
+                mCallback.onCharacteristicRead(uuid,
+                        GATT_SUCCESS == status ? mPeripheral.getValue(uuid) : null, status));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean writeCharacteristic(UUID serviceUuid, UUID uuid, byte[] value,
+            boolean withResponse) {
+        if (!hasCharacteristic(serviceUuid, uuid)) return false;
+        final byte[] copy = value.clone();
+        return request(GattOperation.TYPE_WRITE_CHARACTERISTIC, copy.length, withResponse,
+                status -> {
+                    if (GATT_SUCCESS == status) {
+                        mPeripheral.onWrite(uuid, copy);
+                    }
+                    mCallback.onCharacteristicWrite(uuid, status);
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean setNotification(UUID serviceUuid, UUID uuid, int configuration) {
+        if (!mConnected) return false;
+        final GattDatabase.Characteristic characteristic =
+                mPeripheral.getDatabase().findCharacteristic(serviceUuid, uuid);
+        if (characteristic == null
+                || !characteristic.hasDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG)) {
+            return false;
+        }
+        // A configuration the characteristic does not support is rejected by the peripheral.
+        final int status = GattSubscription.isSupported(characteristic, configuration)
+                ? GATT_SUCCESS : GATT_CCCD_IMPROPERLY_CONFIGURED;
+        return request(GattOperation.TYPE_WRITE_DESCRIPTOR, 0, true, result -> {
+            final int reported = GATT_SUCCESS == result ? status : result;
+            if (GATT_SUCCESS == reported) {
+                if (CCCD_DISABLED != configuration) {
+                    subscribe(uuid);
+                } else {
+                    unsubscribe(uuid);
+                }
+            }
+            mCallback.onNotificationChanged(uuid, reported);
+        });
+    }
+
+    /**
+     * Reports the link loss caused by the peripheral.
+     */
+    void onLinkLost(int status) {
+        post(0, () -> dropLink(status));
+    }
+
+    /**
+     * Reports the Service Changed indication of the peripheral.
+     */
+    void onServiceChanged() {
+        post(0, () -> mCallback.onServiceChanged());
+    }
+
+    /**
+     * Answers the requests left pending while the peripheral was hung.
+     */
+    void onPeripheralRecovered() {
+        Runnable response;
+        while ((response = mHeldResponses.poll()) != null) {
+            response.run();
+        }
+    }
+
+    /**
+     * Delivers a notification sent by the peripheral.
+     *
+     * @return Returns {@code true} if the client is subscribed to the characteristic.
+     */
+    boolean onPeripheralNotification(UUID uuid, byte[] value) {
+        if (!mSubscriptions.containsKey(uuid)) return false;
+        post(0, () -> deliver(uuid, value));
+        return true;
+    }
+
+    private boolean request(int type, int length, boolean withResponse, Response response) {
+        if (!mConnected) return false;
+        final VirtualPeripheral peripheral = mPeripheral;
+        final int status = peripheral.takeStatus(type);
+        final long delayNanos = peripheral.getResponseDelayNanos(length, withResponse);
+        // A hung peripheral keeps the link up but does not answer until it recovers.
+        if (peripheral.isUnresponsive()) {
+            final int generation = mGeneration;
+            mHeldResponses.add(() -> {
+                if (generation == mGeneration) {
+                    post(delayNanos, () -> response.onResponse(status));
+                }
+            });
+            return true;
+        }
+        post(delayNanos, () -> response.onResponse(status));
+        return true;
+    }
+
+    private void reportConnectionParameters(int priority) {
+        mCallback.onConnectionUpdated(INTERVALS[priority], LATENCIES[priority],
+                SUPERVISION_TIMEOUT, GATT_SUCCESS);
+    }
+
+    private void onConnectFailed(int status) {
+        mConnecting = false;
+        mCallback.onConnectionStateChanged(false, status);
+    }
+
+    private void dropLink(int status) {
+        if (!mConnected) return;
+        stopSubscriptions();
+        mHeldResponses.clear();
+        mPeripheral.onDisconnected(this);
+        mPeripheral = null;
+        mConnected = false;
+        mGeneration++;
+        mCallback.onConnectionStateChanged(false, status);
+    }
+
+    private void subscribe(UUID uuid) {
+        if (mSubscriptions.containsKey(uuid)) return;
+        final VirtualPeripheral.NotificationStream stream = mPeripheral.getNotificationStream(uuid);
+        if (stream == null) {
+            mSubscriptions.put(uuid, null);
+            return;
+        }
+        final int generation = mGeneration;
+        final Runnable emitter = new Runnable() {
+            private long mSequence;
+
+            @Override
+            public void run() {
+                if (generation != mGeneration || !mSubscriptions.containsKey(uuid)) return;
+                deliver(uuid, stream.mSource.nextValue(mSequence++));
+                mSubscriptions.put(uuid, mScheduler.schedule(stream.mIntervalNanos, this));
+            }
+        };
+        mSubscriptions.put(uuid, mScheduler.schedule(stream.mIntervalNanos, emitter));
+    }
+
+    private void unsubscribe(UUID uuid) {
+        final VirtualScheduler.Task task = mSubscriptions.remove(uuid);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    private void stopSubscriptions() {
+        for (VirtualScheduler.Task task : mSubscriptions.values()) {
+            if (task != null) {
+                task.cancel();
+            }
+        }
+        mSubscriptions.clear();
+    }
+
+    private void deliver(UUID uuid, byte[] value) {
+        mPeripheral.onNotificationSent();
+        mCallback.onNotification(uuid, value);
+    }
+
+    private boolean hasCharacteristic(UUID serviceUuid, UUID uuid) {
+        return mConnected
+                && mPeripheral.getDatabase().findCharacteristic(serviceUuid, uuid) != null;
+    }
+
+    /**
+     * Schedules an event of the current link, dropped if the link goes away first.
+     */
+    private void post(long delayNanos, Runnable event) {
+        final int generation = mGeneration;
+        mScheduler.schedule(delayNanos, () -> {
+            if (generation == mGeneration && !mClosed) {
+                event.run();
+            }
+        });
+    }
+}
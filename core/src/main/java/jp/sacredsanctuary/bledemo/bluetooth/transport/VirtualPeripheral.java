@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.bluetooth.GattOperation;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+
+/**
+ * In-memory GATT server advertising and accepting connections through a
+ * {@link VirtualBleStack}.
+ * <p>
+ * A peripheral is configured with its attribute table, the values of its characteristics,
+ * the notifications it streams once subscribed to, and the timing of its link: response
+ * latency, write throughput and largest MTU. Faults can be injected at any time: failed
+ * requests, requests left unanswered, refused connections and link losses.
+ * <p>
+ * A peripheral accepts one connection at a time. Like the rest of the virtual stack, it must
+ * be used on the thread running the {@link VirtualScheduler}.
+ */
+public class VirtualPeripheral {
+    // Same values as BluetoothDevice.PHY_LE_*.
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    // Largest ATT_MTU allowed by the specification.
+    public static final int MAX_MTU = 517;
+    // Default time taken by the peripheral to answer a request: two connection events at
+    // 7.5 ms.
+    private static final long DEFAULT_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(15000);
+
+    /**
+     * Produces the values of a notification stream.
+     */
+    public interface NotificationSource {
+        /**
+         * Returns the value of the next notification.
+         *
+         * @param sequence Number of notifications sent before this one on the connection
+         * @return The value to notify. The array may be reused once the notification has been
+         * delivered.
+         */
+        byte[] nextValue(long sequence);
+    }
+
+    /**
+     * A notification stream: its interval and the source of its values.
+     */
+    static final class NotificationStream {
+        final long mIntervalNanos;
+        final NotificationSource mSource;
+
+        NotificationStream(long intervalNanos, NotificationSource source) {
+            mIntervalNanos = intervalNanos;
+            mSource = source;
+        }
+    }
+
+    private final String mAddress;
+    private GattDatabase mDatabase;
+    private final Map<UUID, byte[]> mValues = new HashMap<>();
+    private final Map<UUID, NotificationStream> mStreams = new HashMap<>();
+    private final Map<UUID, Long> mBytesWritten = new HashMap<>();
+    private byte[] mAdvertisingData;
+    private long mAdvertisingIntervalNanos;
+    private int mRssi = -60;
+    private int mMaxMtu = MAX_MTU;
+    private boolean m2MPhySupported = true;
+    private long mLatencyNanos = DEFAULT_LATENCY_NANOS;
+    private long mBytesPerSecond;
+    // Fault injection.
+    private final int[] mFailureStatus = new int[GattOperation.TYPE_COUNT];
+    private final int[] mFailureCount = new int[GattOperation.TYPE_COUNT];
+    private int mConnectStatus = GattTransport.GATT_SUCCESS;
+    private double mErrorRate;
+    private Random mErrorRandom;
+    private boolean mUnresponsive = false;
+    // Current connection and statistics.
+    private VirtualGattTransport mConnection;
+    private long mConnectionCount;
+    private long mWriteCount;
+    private long mNotificationCount;
+
+    /**
+     * Create a new VirtualPeripheral.
+     *
+     * @param address  Bluetooth address as string, of the form {@code "00:11:22:AA:BB:CC"}
+     * @param database The attribute table of the GATT server
+     */
+    public VirtualPeripheral(String address, GattDatabase database) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("address:" + address);
+        }
+        mAddress = address.toUpperCase(Locale.ROOT);
+        mDatabase = database;
+    }
+
+    /**
+     * Returns the address of this peripheral.
+     *
+     * @return Bluetooth address as string, in upper case.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Returns the attribute table of the GATT server.
+     *
+     * @return The attribute table.
+     */
+    public GattDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Replaces the attribute table of the GATT server, and sends a Service Changed indication
+     * to the connected client.
+     *
+     * @param database The new attribute table
+     */
+    public void changeServices(GattDatabase database) {
+        mDatabase = database;
+        if (mConnection != null) {
+            mConnection.onServiceChanged();
+        }
+    }
+
+    /**
+     * Makes this peripheral advertise.
+     *
+     * @param data          The advertising data, in the format of a scan record
+     * @param intervalNanos The advertising interval, to which the stack adds a random delay of
+     *                      up to 10 ms
+     * @param rssi          The RSSI the advertisements are received with, before noise
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setAdvertising(byte[] data, long intervalNanos, int rssi) {
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("intervalNanos:" + intervalNanos);
+        }
+        mAdvertisingData = data.clone();
+        mAdvertisingIntervalNanos = intervalNanos;
+        mRssi = rssi;
+        return this;
+    }
+
+    /**
+     * Sets the value returned when a characteristic is read.
+     *
+     * @param uuid  The UUID of the characteristic
+     * @param value The value
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setValue(UUID uuid, byte[] value) {
+        mValues.put(uuid, value.clone());
+        return this;
+    }
+
+    /**
+     * Returns the value of a characteristic, as last set or written.
+     *
+     * @param uuid The UUID of the characteristic
+     * @return The value, or null if the characteristic has none.
+     */
+    public byte[] getValue(UUID uuid) {
+        final byte[] value = mValues.get(uuid);
+        if (value == null && GattDatabase.DATABASE_HASH.equals(uuid) && mDatabase.hasHash()) {
+            return mDatabase.getHash();
+        }
+        return value == null ? null : value.clone();
+    }
+
+    /**
+     * Streams notifications of a characteristic while a client is subscribed to it.
+     *
+     * @param uuid          The UUID of the characteristic
+     * @param intervalNanos Time between two notifications
+     * @param source        The source of the notified values
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setNotificationSource(UUID uuid, long intervalNanos,
+            NotificationSource source) {
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("intervalNanos:" + intervalNanos);
+        }
+        mStreams.put(uuid, new NotificationStream(intervalNanos, source));
+        return this;
+    }
+
+    /**
+     * Sets the largest MTU this peripheral accepts in an MTU exchange.
+     *
+     * @param maxMtu The largest ATT_MTU
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setMaxMtu(int maxMtu) {
+        if (maxMtu < 23 || maxMtu > MAX_MTU) throw new IllegalArgumentException("maxMtu:" + maxMtu);
+        mMaxMtu = maxMtu;
+        return this;
+    }
+
+    /**
+     * Sets whether this peripheral supports the LE 2M PHY.
+     *
+     * @param supported {@code true} if the 2M PHY is supported
+     * @return This peripheral.
+     */
+    public VirtualPeripheral set2MPhySupported(boolean supported) {
+        m2MPhySupported = supported;
+        return this;
+    }
+
+    /**
+     * Sets the time this peripheral takes to answer a request.
+     *
+     * @param latencyNanos The response latency
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setLatency(long latencyNanos) {
+        if (latencyNanos < 0) throw new IllegalArgumentException("latencyNanos:" + latencyNanos);
+        mLatencyNanos = latencyNanos;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which written data crosses the link.
+     *
+     * @param bytesPerSecond The throughput of the link, or 0 for no limit
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setThroughput(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond:" + bytesPerSecond);
+        }
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Makes the next requests of a type fail.
+     *
+     * @param type   One of the {@code GattOperation.TYPE_*} constants
+     * @param status The status reported, such as {@link GattTransport#GATT_ERROR}
+     * @param count  The number of requests that fail
+     * @return This peripheral.
+     */
+    public VirtualPeripheral failNextRequests(int type, int status, int count) {
+        if (type < 0 || type >= GattOperation.TYPE_COUNT) {
+            throw new IllegalArgumentException("type:" + type);
+        }
+        mFailureStatus[type] = status;
+        mFailureCount[type] = count;
+        return this;
+    }
+
+    /**
+     * Makes a share of all requests fail with {@link GattTransport#GATT_ERROR}.
+     *
+     * @param rate The probability of a request failing, from 0 to 1
+     * @param seed Seed of the random draws, for reproducible runs
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setErrorRate(double rate, long seed) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("rate:" + rate);
+        mErrorRate = rate;
+        mErrorRandom = new Random(seed);
+        return this;
+    }
+
+    /**
+     * Makes the next connection attempt fail.
+     *
+     * @param status The status reported, such as {@link GattTransport#GATT_ERROR}
+     * @return This peripheral.
+     */
+    public VirtualPeripheral failNextConnection(int status) {
+        mConnectStatus = status;
+        return this;
+    }
+
+    /**
+     * Makes this peripheral stop answering requests, as a device that hangs while keeping the
+     * link up. The requests received in the meantime are answered once it recovers.
+     *
+     * @param unresponsive {@code true} to leave every request unanswered until recovery
+     * @return This peripheral.
+     */
+    public VirtualPeripheral setUnresponsive(boolean unresponsive) {
+        mUnresponsive = unresponsive;
+        if (!unresponsive && mConnection != null) {
+            mConnection.onPeripheralRecovered();
+        }
+        return this;
+    }
+
+    /**
+     * Drops the link to the connected client.
+     *
+     * @param status The reason reported to the client, such as
+     *               {@link GattTransport#GATT_CONNECTION_TIMEOUT} for a link loss
+     */
+    public void disconnect(int status) {
+        if (mConnection != null) {
+            mConnection.onLinkLost(status);
+        }
+    }
+
+    /**
+     * Sends a notification to the connected client, if it has subscribed to the
+     * characteristic.
+     *
+     * @param uuid  The UUID of the characteristic
+     * @param value The value to notify
+     * @return Returns {@code true} if the notification was sent, {@code false} otherwise.
+     */
+    public boolean notify(UUID uuid, byte[] value) {
+        return mConnection != null && mConnection.onPeripheralNotification(uuid, value.clone());
+    }
+
+    /**
+     * Determines if a client is connected.
+     *
+     * @return Returns {@code true} if a client is connected, {@code false} otherwise.
+     */
+    public boolean isConnected() {
+        return mConnection != null;
+    }
+
+    /**
+     * Returns the number of connections accepted.
+     *
+     * @return The number of connections.
+     */
+    public long getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /**
+     * Returns the number of characteristic writes received.
+     *
+     * @return The number of writes.
+     */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Returns the number of bytes written to a characteristic.
+     *
+     * @param uuid The UUID of the characteristic
+     * @return The number of bytes received.
+     */
+    public long getBytesWritten(UUID uuid) {
+        final Long bytes = mBytesWritten.get(uuid);
+        return bytes == null ? 0 : bytes;
+    }
+
+    /**
+     * Returns the number of notifications sent.
+     *
+     * @return The number of notifications.
+     */
+    public long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    byte[] getAdvertisingData() {
+        return mAdvertisingData;
+    }
+
+    long getAdvertisingIntervalNanos() {
+        return mAdvertisingIntervalNanos;
+    }
+
+    int getRssi() {
+        return mRssi;
+    }
+
+    int getMaxMtu() {
+        return mMaxMtu;
+    }
+
+    boolean is2MPhySupported() {
+        return m2MPhySupported;
+    }
+
+    boolean isUnresponsive() {
+        return mUnresponsive;
+    }
+
+    NotificationStream getNotificationStream(UUID uuid) {
+        return mStreams.get(uuid);
+    }
+
+    /**
+     * Returns the time taken to answer a request carrying a payload.
+     */
+    long getResponseDelayNanos(int length, boolean withResponse) {
+        final long transmission = mBytesPerSecond == 0 ? 0
+                : length * TimeUnit.SECONDS.toNanos(1) / mBytesPerSecond;
+        return (withResponse ? mLatencyNanos : 0) + transmission;
+    }
+
+    long getLatencyNanos() {
+        return mLatencyNanos;
+    }
+
+    /**
+     * Returns the status of a new request, consuming the injected failures.
+     */
+    int takeStatus(int type) {
+        if (mFailureCount[type] > 0) {
+            mFailureCount[type]--;
+            return mFailureStatus[type];
+        }
+        if (mErrorRate > 0 && mErrorRandom.nextDouble() < mErrorRate) {
+            return GattTransport.GATT_ERROR;
+        }
+        return GattTransport.GATT_SUCCESS;
+    }
+
+    /**
+     * Returns the status of a new connection attempt, consuming the injected failure.
+     */
+    int takeConnectStatus() {
+        final int status = mConnectStatus;
+        mConnectStatus = GattTransport.GATT_SUCCESS;
+        return status;
+    }
+
+    void onConnected(VirtualGattTransport connection) {
+        mConnection = connection;
+        mConnectionCount++;
+    }
+
+    void onDisconnected(VirtualGattTransport connection) {
+        if (mConnection == connection) {
+            mConnection = null;
+        }
+    }
+
+    void onWrite(UUID uuid, byte[] value) {
+        mWriteCount++;
+        mBytesWritten.put(uuid, getBytesWritten(uuid) + value.length);
+        mValues.put(uuid, value);
+    }
+
+    void onNotificationSent() {
+        mNotificationCount++;
+    }
+}
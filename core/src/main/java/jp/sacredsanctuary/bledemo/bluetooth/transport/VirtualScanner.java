@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanScheduler;
+import jp.sacredsanctuary.bledemo.util.MacAddressIndex;
+
+/**
+ * Scanner receiving the advertisements of the {@link VirtualPeripheral}s of a
+ * {@link VirtualBleStack}.
+ * <p>
+ * Every peripheral advertises at its interval plus a random delay of up to 10 ms, as the
+ * link layer does. The scanner receives the share of the advertising events given by the
+ * duty cycle of its scan mode, see {@link ScanScheduler#getDutyCyclePercent(int)}, with some
+ * noise on the RSSI. It implements {@link ScanScheduler.Scanner}, so the continuous scan can
+ * run on it. Peripherals added while scanning are picked up by the next scan.
+ */
+public class VirtualScanner implements ScanScheduler.Scanner {
+    // Largest random delay added to every advertising event, see Bluetooth Core
+    // Specification, Vol 6, Part B, 4.4.2.2.1.
+    private static final long MAX_ADVERTISING_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Largest difference between a reported RSSI and the RSSI of the peripheral.
+    private static final int RSSI_NOISE = 4;
+
+    /**
+     * Receives the advertisements, on the thread running the scheduler.
+     */
+    public interface Listener {
+        /**
+         * Called for every advertisement received.
+         *
+         * @param address        The packed address of the peripheral, see
+         *                       {@link MacAddressIndex#pack(String)}
+         * @param rssi           The RSSI of the advertisement
+         * @param timestampNanos The virtual time the advertisement was received at
+         * @param record         The advertising data. It must not be modified.
+         */
+        void onAdvertisement(long address, int rssi, long timestampNanos, byte[] record);
+    }
+
+    private final VirtualScheduler mScheduler;
+    private final Random mRandom;
+    private final VirtualBleStack mStack;
+    private final Listener mListener;
+    private final List<VirtualScheduler.Task> mTasks = new ArrayList<>();
+    private boolean mScanning = false;
+    private int mMode;
+    private long mAdvertisingEventCount;
+    private long mReceivedCount;
+
+    VirtualScanner(VirtualBleStack stack, Listener listener) {
+        mStack = stack;
+        mScheduler = stack.getScheduler();
+        mRandom = stack.getRandom();
+        mListener = listener;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean startScan(int mode) {
+        if (mScanning || mode < 0 || mode >= ScanScheduler.MODE_COUNT) return false;
+        mScanning = true;
+        mMode = mode;
+        for (VirtualPeripheral peripheral : mStack.getPeripherals()) {
+            if (peripheral.getAdvertisingData() == null) continue;
+            // Peripherals advertise independently of the scan, so the first event of each
+            // falls anywhere within its interval.
+            final long first = (long) (mRandom.nextDouble()
+                    * peripheral.getAdvertisingIntervalNanos());
+            schedule(peripheral, first);
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stopScan() {
+        mScanning = false;
+        for (VirtualScheduler.Task task : mTasks) {
+            task.cancel();
+        }
+        mTasks.clear();
+    }
+
+    /**
+     * Determines if a scan is running.
+     *
+     * @return Returns {@code true} if scanning, {@code false} otherwise.
+     */
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Returns the number of advertising events of the peripherals while scanning.
+     *
+     * @return The number of advertising events.
+     */
+    public long getAdvertisingEventCount() {
+        return mAdvertisingEventCount;
+    }
+
+    /**
+     * Returns the number of advertisements received.
+     *
+     * @return The number of advertisements reported to the listener.
+     */
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    private void schedule(VirtualPeripheral peripheral, long delayNanos) {
+        final int index = mTasks.size();
+        mTasks.add(mScheduler.schedule(delayNanos, new Runnable() {
+            @Override
+            public void run() {
+                if (!mScanning) return;
+                onAdvertisingEvent(peripheral);
+                final long next = peripheral.getAdvertisingIntervalNanos()
+                        + (long) (mRandom.nextDouble() * MAX_ADVERTISING_DELAY_NANOS);
+                mTasks.set(index, mScheduler.schedule(next, this));
+            }
+        }));
+    }
+
+    private void onAdvertisingEvent(VirtualPeripheral peripheral) {
+        mAdvertisingEventCount++;
+        // Peripherals taken out of range stop advertising.
+        if (mStack.getPeripheral(peripheral.getAddress()) != peripheral) return;
+        final byte[] record = peripheral.getAdvertisingData();
+        if (record == null) return;
+        if (mRandom.nextInt(100) >= ScanScheduler.getDutyCyclePercent(mMode)) return;
+        mReceivedCount++;
+        final int rssi = peripheral.getRssi() + mRandom.nextInt(2 * RSSI_NOISE + 1) - RSSI_NOISE;
+        mListener.onAdvertisement(MacAddressIndex.pack(peripheral.getAddress()), rssi,
+                mScheduler.nanoTime(), record);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import java.util.PriorityQueue;
+
+import jp.sacredsanctuary.bledemo.bluetooth.GattOperationQueue;
+
+/**
+ * Virtual clock and event loop driving the in-memory Bluetooth stack of
+ * {@link VirtualBleStack}.
+ * <p>
+ * Events run in time order, and events due at the same time in the order they were scheduled.
+ * Time only moves forward while events are run, so a simulated minute of traffic takes as
+ * long as the code under test needs to handle it. This class is not thread safe; the
+ * simulation and the code under test run on the same thread.
+ */
+public class VirtualScheduler implements GattOperationQueue.Clock {
+    /**
+     * An event waiting to run.
+     */
+    public static final class Task implements Comparable<Task> {
+        private final long mTimeNanos;
+        private final long mSequence;
+        private final Runnable mRunnable;
+        private boolean mCancelled = false;
+
+        private Task(long timeNanos, long sequence, Runnable runnable) {
+            mTimeNanos = timeNanos;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        /**
+         * Prevents this event from running. Has no effect once it has run.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * Returns the time this event is due.
+         *
+         * @return The virtual time, in nanoseconds.
+         */
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mTimeNanos != other.mTimeNanos) {
+                return mTimeNanos < other.mTimeNanos ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNowNanos;
+    private long mSequence;
+    private long mExecutedCount;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long nanoTime() {
+        return mNowNanos;
+    }
+
+    /**
+     * Schedules an event.
+     *
+     * @param delayNanos Time from now after which the event runs
+     * @param runnable   The event
+     * @return The task, which can be cancelled.
+     */
+    public Task schedule(long delayNanos, Runnable runnable) {
+        if (delayNanos < 0) throw new IllegalArgumentException("delayNanos:" + delayNanos);
+        final Task task = new Task(mNowNanos + delayNanos, mSequence++, runnable);
+        mTasks.add(task);
+        return task;
+    }
+
+    /**
+     * Runs the events due within a period, then moves the clock to the end of the period.
+     *
+     * @param nanos Length of the period
+     */
+    public void advanceBy(long nanos) {
+        if (nanos < 0) throw new IllegalArgumentException("nanos:" + nanos);
+        final long end = mNowNanos + nanos;
+        while (runNext(end)) {
+            // Events scheduled by the event that ran are picked up by the next iteration.
+        }
+        mNowNanos = end;
+    }
+
+    /**
+     * Runs events until none is left, or until the clock reaches a limit. Periodic events,
+     * such as notification streams, never let the scheduler become idle.
+     *
+     * @param maxNanos Maximum time the clock may move forward
+     * @return Returns {@code true} if no event is left, {@code false} if the limit was reached.
+     */
+    public boolean runUntilIdle(long maxNanos) {
+        final long end = mNowNanos + maxNanos;
+        while (runNext(end)) {
+            // Keep going.
+        }
+        purgeCancelled();
+        if (mTasks.isEmpty()) return true;
+        mNowNanos = end;
+        return false;
+    }
+
+    /**
+     * Returns the number of events waiting to run, including cancelled ones not purged yet.
+     *
+     * @return The number of pending events.
+     */
+    public int getPendingCount() {
+        return mTasks.size();
+    }
+
+    /**
+     * Returns the number of events that have run.
+     *
+     * @return The number of executed events.
+     */
+    public long getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    private boolean runNext(long end) {
+        purgeCancelled();
+        final Task task = mTasks.peek();
+        if (task == null || task.mTimeNanos > end) return false;
+        mTasks.poll();
+        mNowNanos = task.mTimeNanos;
+        mExecutedCount++;
+        task.mRunnable.run();
+        return true;
+    }
+
+    private void purgeCancelled() {
+        while (!mTasks.isEmpty() && mTasks.peek().mCancelled) {
+            mTasks.poll();
+        }
+    }
+}
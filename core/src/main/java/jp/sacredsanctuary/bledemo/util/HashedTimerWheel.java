@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.util;
+
+/**
+ * Hashed timing wheel holding a large number of timeouts that are mostly cancelled before
+ * they expire, such as the deadlines of requests sent to many devices at once.
+ * <p>
+ * Time is split into ticks. A timeout is hashed to the bucket of the tick it expires in, so
+ * scheduling and cancelling are O(1) whatever the number of timeouts, and a timeout may span
+ * several turns of the wheel. The wheel does not own a thread: {@link #advance(long)} expires
+ * the timeouts due, typically from a single periodic event that runs only while
+ * {@link #isEmpty()} is false. Timeouts expire up to one tick late.
+ * <p>
+ * A {@link Timeout} can be scheduled again once expired or cancelled, so a client re-arming
+ * the same deadline allocates nothing. This class is not thread safe.
+ */
+public class HashedTimerWheel {
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_EXPIRING = 2;
+
+    /**
+     * A task run once its deadline has passed, unless cancelled before.
+     */
+    public static final class Timeout {
+        private final Runnable mTask;
+        private int mState = STATE_IDLE;
+        private long mDeadlineNanos;
+        private long mDeadlineTick;
+        // Links of the bucket holding a pending timeout.
+        private Timeout mPrevious;
+        private Timeout mNext;
+        // Link of the list of timeouts expired by the current advance().
+        private Timeout mNextExpired;
+
+        /**
+         * Create a new Timeout.
+         *
+         * @param task The task run when the timeout expires
+         */
+        public Timeout(Runnable task) {
+            mTask = task;
+        }
+
+        /**
+         * Determines if this timeout is scheduled and has not expired yet.
+         *
+         * @return Returns {@code true} if the timeout is pending, {@code false} otherwise.
+         */
+        public boolean isPending() {
+            return mState == STATE_PENDING;
+        }
+
+        /**
+         * Returns the deadline this timeout was last scheduled for.
+         *
+         * @return The deadline, in nanoseconds of the clock passed to the wheel.
+         */
+        public long getDeadlineNanos() {
+            return mDeadlineNanos;
+        }
+    }
+
+    private final long mTickNanos;
+    private final long mOriginNanos;
+    private final Timeout[] mBuckets;
+    private final int mMask;
+    // Next tick to process.
+    private long mTick;
+    private int mSize;
+    private boolean mAdvancing = false;
+
+    /**
+     * Create a new HashedTimerWheel.
+     *
+     * @param tickNanos     Length of a tick, the resolution of the timeouts
+     * @param ticksPerWheel Number of buckets, rounded up to a power of two. Timeouts shorter
+     *                      than one turn of the wheel are checked only when they expire.
+     * @param nowNanos      Current time, the start of the first tick
+     */
+    public HashedTimerWheel(long tickNanos, int ticksPerWheel, long nowNanos) {
+        if (tickNanos <= 0) throw new IllegalArgumentException("tickNanos:" + tickNanos);
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 20) {
+            throw new IllegalArgumentException("ticksPerWheel:" + ticksPerWheel);
+        }
+        int buckets = 1;
+        while (buckets < ticksPerWheel) {
+            buckets <<= 1;
+        }
+        mTickNanos = tickNanos;
+        mOriginNanos = nowNanos;
+        mBuckets = new Timeout[buckets];
+        mMask = buckets - 1;
+    }
+
+    /**
+     * Returns the length of a tick.
+     *
+     * @return The resolution of the timeouts, in nanoseconds.
+     */
+    public long getTickNanos() {
+        return mTickNanos;
+    }
+
+    /**
+     * Returns the number of pending timeouts.
+     *
+     * @return The number of timeouts scheduled that have neither expired nor been cancelled.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Determines if no timeout is pending.
+     *
+     * @return Returns {@code true} if the wheel is empty, {@code false} otherwise.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Schedules a timeout, moving it to its new deadline if it is already pending.
+     *
+     * @param timeout    The timeout
+     * @param nowNanos   Current time
+     * @param delayNanos Time from now after which the timeout expires
+     */
+    public void schedule(Timeout timeout, long nowNanos, long delayNanos) {
+        if (delayNanos < 0) throw new IllegalArgumentException("delayNanos:" + delayNanos);
+        cancel(timeout);
+        final long deadline = nowNanos + delayNanos;
+        // The first tick whose start is at or after the deadline, never one already processed.
+        final long elapsed = deadline - mOriginNanos;
+        final long tick = elapsed <= 0 ? 0 : (elapsed + mTickNanos - 1) / mTickNanos;
+        timeout.mDeadlineNanos = deadline;
+        timeout.mDeadlineTick = Math.max(tick, mTick);
+        timeout.mState = STATE_PENDING;
+        final int index = (int) (timeout.mDeadlineTick & mMask);
+        final Timeout head = mBuckets[index];
+        timeout.mPrevious = null;
+        timeout.mNext = head;
+        if (head != null) {
+            head.mPrevious = timeout;
+        }
+        mBuckets[index] = timeout;
+        mSize++;
+    }
+
+    /**
+     * Cancels a timeout. A timeout expired by the {@link #advance(long)} in progress is not
+     * run if cancelled by a timeout run before it.
+     *
+     * @param timeout The timeout
+     * @return Returns {@code true} if the timeout was pending, {@code false} otherwise.
+     */
+    public boolean cancel(Timeout timeout) {
+        if (timeout.mState == STATE_EXPIRING) {
+            timeout.mState = STATE_IDLE;
+            return false;
+        }
+        if (timeout.mState != STATE_PENDING) return false;
+        unlink(timeout);
+        timeout.mState = STATE_IDLE;
+        return true;
+    }
+
+    /**
+     * Runs the timeouts whose tick has started. Timeouts scheduled by the tasks run are left
+     * for the next call, even if already due.
+     *
+     * @param nowNanos Current time
+     * @return The number of timeouts run.
+     */
+    public int advance(long nowNanos) {
+        if (mAdvancing || nowNanos < mOriginNanos) return 0;
+        final long target = (nowNanos - mOriginNanos) / mTickNanos;
+        Timeout expired = null;
+        Timeout last = null;
+        // Each bucket is visited at most once however long ago the last call was, and the
+        // walk stops early once the wheel is empty.
+        final long end = Math.min(target, mTick + mMask);
+        while (mTick <= end && mSize > 0) {
+            Timeout timeout = mBuckets[(int) (mTick & mMask)];
+            while (timeout != null) {
+                final Timeout next = timeout.mNext;
+                if (timeout.mDeadlineTick <= target) {
+                    unlink(timeout);
+                    timeout.mState = STATE_EXPIRING;
+                    timeout.mNextExpired = null;
+                    if (last == null) {
+                        expired = timeout;
+                    } else {
+                        last.mNextExpired = timeout;
+                    }
+                    last = timeout;
+                }
+                timeout = next;
+            }
+            mTick++;
+        }
+        mTick = Math.max(mTick, target + 1);
+        int count = 0;
+        mAdvancing = true;
+        try {
+            while (expired != null) {
+                final Timeout timeout = expired;
+                expired = timeout.mNextExpired;
+                timeout.mNextExpired = null;
+                // Cancelled or scheduled again by a timeout run before this one.
+                if (timeout.mState != STATE_EXPIRING) continue;
+                timeout.mState = STATE_IDLE;
+                count++;
+                timeout.mTask.run();
+            }
+        } finally {
+            mAdvancing = false;
+            // Leave no timeout marked as expiring if a task threw.
+            while (expired != null) {
+                final Timeout timeout = expired;
+                expired = timeout.mNextExpired;
+                timeout.mNextExpired = null;
+                if (timeout.mState == STATE_EXPIRING) {
+                    timeout.mState = STATE_IDLE;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.mPrevious != null) {
+            timeout.mPrevious.mNext = timeout.mNext;
+        } else {
+            mBuckets[(int) (timeout.mDeadlineTick & mMask)] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout.mPrevious;
+        }
+        timeout.mPrevious = null;
+        timeout.mNext = null;
+        mSize--;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.util;
+
+import java.util.Arrays;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds.
+ * <p>
+ * Every power of two is split into {@link #SUB_BUCKETS} equal buckets, so a recorded value is
+ * known within about 3% of itself from a nanosecond up to {@link #MAX_VALUE}. Larger values
+ * are counted in the last bucket. The buckets are allocated up front: recording is a few
+ * arithmetic operations and an array increment, and allocates nothing.
+ * <p>
+ * This class is thread safe.
+ */
+public class LatencyHistogram {
+    // Buckets per power of two; the relative error of a value is at most 1/SUB_BUCKETS.
+    public static final int SUB_BUCKETS = 32;
+    // Largest value told apart from the others, about 68 seconds.
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int MAX_BIT = 35;
+    private static final int BUCKET_COUNT = (MAX_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotal;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    /**
+     * Records a latency. Negative values are recorded as 0.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        mCounts[indexOf(value)]++;
+        mCount++;
+        mTotal += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return The number of values.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the smallest recorded value.
+     *
+     * @return The minimum in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return The maximum in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return The mean in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getMean() {
+        return mCount == 0 ? 0 : mTotal / mCount;
+    }
+
+    /**
+     * Returns the value below which the given share of the recorded values falls. The result
+     * is the upper bound of the bucket holding that value, within the recorded minimum and
+     * maximum.
+     *
+     * @param percentile The share of values, from 0 to 100
+     * @return The value in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile:" + percentile);
+        }
+        if (mCount == 0) return 0;
+        if (percentile == 0) return mMin;
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            seen += mCounts[index];
+            if (seen >= rank) {
+                if (index == BUCKET_COUNT - 1) return mMax;
+                return Math.max(mMin, Math.min(mMax, highestValueOf(index)));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     *
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        final long[] counts;
+        final long count;
+        final long total;
+        final long min;
+        final long max;
+        synchronized (other) {
+            counts = other.mCounts.clone();
+            count = other.mCount;
+            total = other.mTotal;
+            min = other.mMin;
+            max = other.mMax;
+        }
+        synchronized (this) {
+            for (int index = 0; index < BUCKET_COUNT; index++) {
+                mCounts[index] += counts[index];
+            }
+            mCount += count;
+            mTotal += total;
+            mMin = Math.min(mMin, min);
+            mMax = Math.max(mMax, max);
+        }
+    }
+
+    /**
+     * Clears every recorded value.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        if (value > MAX_VALUE) return BUCKET_COUNT - 1;
+        final int bit = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = bit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.util;
+
+import java.util.Arrays;
+
+/**
+ * Builds log messages from a format and its arguments, each {} of the format being replaced by
+ * the next argument. A byte[] argument is printed as its values, or as its length once it is
+ * longer than {@link #MAX_PRINTED_BYTES}.
+ * <p>
+ * Kept apart from the Android logger so the callers can defer calling it until the level is
+ * known to be enabled.
+ */
+public final class LogFormat {
+    // Longest byte[] printed with its values; longer ones are printed with their length.
+    public static final int MAX_PRINTED_BYTES = 32;
+
+    private LogFormat() {
+    }
+
+    /**
+     * Returns the message built from a format and its arguments. Arguments without a {} left
+     * in the format are ignored, and a {} without an argument is kept as is.
+     *
+     * @param format The message, with a {} in place of each argument
+     * @param args   The arguments replacing the {} of the format, in order
+     * @return The message.
+     */
+    public static String format(String format, Object... args) {
+        final StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            final int index = format.indexOf("{}", start);
+            if (index < 0) break;
+            builder.append(format, start, index);
+            if (arg instanceof byte[]) {
+                final byte[] value = (byte[]) arg;
+                builder.append(value.length > MAX_PRINTED_BYTES
+                        ? "length=" + value.length : Arrays.toString(value));
+            } else {
+                builder.append(arg);
+            }
+            start = index + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2020 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.bledemo.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from a Bluetooth device address to an int, typically the position
+ * of the device in a list.
+ * <p>
+ * The 48-bit address is packed into a primitive {@code long} (see {@link #pack(String)}), so
+ * lookups and updates neither hash nor compare Strings and allocate nothing. Collisions are
+ * resolved by linear probing and the table doubles once it is half full.
+ * <p>
+ * This class is not thread safe.
+ */
+public class MacAddressIndex {
+    // Value returned by get() for an absent address.
+    public static final int NOT_FOUND = -1;
+    // Value returned by pack() for a malformed address.
+    public static final long INVALID_ADDRESS = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final long EMPTY = -1L;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+    private int mShift;
+
+    /**
+     * Create a new MacAddressIndex.
+     */
+    public MacAddressIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Create a new MacAddressIndex.
+     *
+     * @param expectedSize Number of addresses expected, used to size the table up front
+     */
+    public MacAddressIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Packs an address of the form {@code "00:11:22:AA:BB:CC"} into the low 48 bits of a long.
+     *
+     * @param address The address to pack
+     * @return The packed address, or {@link #INVALID_ADDRESS} if it is malformed.
+     */
+    public static long pack(String address) {
+        if (address == null || address.length() != 17) return INVALID_ADDRESS;
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return INVALID_ADDRESS;
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) return INVALID_ADDRESS;
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Formats a packed address back into the form {@code "00:11:22:AA:BB:CC"}.
+     *
+     * @param packed The packed address
+     * @return The formatted address.
+     */
+    public static String format(long packed) {
+        final char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            final int value = (int) (packed >>> (8 * (5 - i))) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(value >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(value & 0xF, 16));
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the value mapped to the given address.
+     *
+     * @param key The packed address
+     * @return The value, or {@link #NOT_FOUND} if the address is absent.
+     */
+    public int get(long key) {
+        final int slot = find(key);
+        return mKeys[slot] == EMPTY ? NOT_FOUND : mValues[slot];
+    }
+
+    /**
+     * Determines if the given address is present.
+     *
+     * @param key The packed address
+     * @return Returns {@code true} if the address is present, {@code false} otherwise.
+     */
+    public boolean contains(long key) {
+        return mKeys[find(key)] != EMPTY;
+    }
+
+    /**
+     * Maps an address to a value, replacing the previous value if any.
+     *
+     * @param key   The packed address
+     * @param value The value, which must not be negative
+     * @return The previous value, or {@link #NOT_FOUND} if the address was absent.
+     */
+    public int put(long key, int value) {
+        if (key < 0) throw new IllegalArgumentException("key:" + key);
+        int slot = find(key);
+        if (mKeys[slot] != EMPTY) {
+            final int previous = mValues[slot];
+            mValues[slot] = value;
+            return previous;
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+            slot = find(key);
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+        return NOT_FOUND;
+    }
+
+    /**
+     * Removes an address.
+     *
+     * @param key The packed address
+     * @return The removed value, or {@link #NOT_FOUND} if the address was absent.
+     */
+    public int remove(long key) {
+        int slot = find(key);
+        if (mKeys[slot] == EMPTY) return NOT_FOUND;
+        final int removed = mValues[slot];
+        final int mask = mKeys.length - 1;
+        // Shift the following entries of the probe sequence back so no tombstone is needed.
+        int next = (slot + 1) & mask;
+        while (mKeys[next] != EMPTY) {
+            final int home = hash(mKeys[next]);
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                mKeys[slot] = mKeys[next];
+                mValues[slot] = mValues[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mKeys[slot] = EMPTY;
+        mSize--;
+        return removed;
+    }
+
+    /**
+     * Returns the number of addresses in this index.
+     *
+     * @return The number of addresses.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes every address while keeping the table allocated.
+     */
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private int hash(long key) {
+        // Fibonacci hashing spreads addresses that share a vendor prefix.
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> mShift);
+    }
+
+    private int find(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key);
+        while (mKeys[slot] != EMPTY && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+        mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final int[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                final int slot = find(keys[i]);
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ConnectionLimiter}.
+ */
+public class ConnectionLimiterTest {
+    private static final String A = "00:11:22:33:44:01";
+    private static final String B = "00:11:22:33:44:02";
+    private static final String C = "00:11:22:33:44:03";
+    private static final String D = "00:11:22:33:44:04";
+
+    private final List<String> mConnected = new ArrayList<>();
+    private final Set<String> mUnreachable = new HashSet<>();
+    private final ConnectionLimiter.Connector mConnector = address -> {
+        if (mUnreachable.contains(address)) return false;
+        mConnected.add(address);
+        return true;
+    };
+
+    @Test
+    public void capsConnectionsAndAdmitsWaitingDevicesInOrder() {
+        ConnectionLimiter limiter = new ConnectionLimiter(2, mConnector);
+        assertTrue(limiter.request(A));
+        assertTrue(limiter.request(B));
+        assertTrue(limiter.request(C));
+        assertTrue(limiter.request(D));
+
+        assertEquals(Arrays.asList(A, B), mConnected);
+        assertEquals(2, limiter.getActiveCount());
+        assertEquals(2, limiter.getWaitingCount());
+        assertTrue(limiter.isWaiting(C));
+
+        limiter.release(B);
+        assertEquals(Arrays.asList(A, B, C), mConnected);
+        assertTrue(limiter.isActive(C));
+        assertFalse(limiter.isActive(B));
+        limiter.release(A);
+        assertEquals(Arrays.asList(A, B, C, D), mConnected);
+        assertEquals(0, limiter.getWaitingCount());
+        assertEquals(2, limiter.getQueuedCount());
+    }
+
+    @Test
+    public void requestsAreNotDuplicated() {
+        ConnectionLimiter limiter = new ConnectionLimiter(1, mConnector);
+        limiter.request(A);
+        limiter.request(B);
+        limiter.request(B);
+        assertEquals(1, limiter.getWaitingCount());
+
+        // A reconnect keeps the slot the device already holds.
+        assertTrue(limiter.request(A));
+        assertEquals(Arrays.asList(A, A), mConnected);
+        assertEquals(1, limiter.getActiveCount());
+    }
+
+    @Test
+    public void cancelledAndFailedRequestsFreeTheirSlot() {
+        ConnectionLimiter limiter = new ConnectionLimiter(1, mConnector);
+        limiter.request(A);
+        limiter.request(B);
+        limiter.request(C);
+        limiter.cancel(B);
+        // Releasing a device that only waits does not free a slot.
+        limiter.release(C);
+        assertTrue(limiter.isWaiting(C));
+
+        mUnreachable.add(C);
+        limiter.request(D);
+        limiter.release(A);
+        // C cannot be connected, so the slot goes to D.
+        assertEquals(Arrays.asList(A, D), mConnected);
+        assertFalse(limiter.isActive(C));
+        assertTrue(limiter.isActive(D));
+        assertTrue(limiter.request(C));
+        assertTrue(limiter.isWaiting(C));
+    }
+}
@@ -0,0 +1,159 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattOperationQueue}, driven by a fake GATT client.
+ */
+public class GattOperationQueueTest {
+    private static final long MILLIS = 1000000L;
+
+    private long mNow;
+    private GattOperationQueue mQueue;
+    private FakeGatt mGatt;
+
+    /**
+     * Stands in for BluetoothGatt: records requests and lets the test report their results.
+     */
+    private class FakeGatt {
+        final List<Integer> mStarted = new ArrayList<>();
+        boolean mAccept = true;
+
+        GattOperation operation(int type, int length) {
+            return new GattOperation(type, length) {
+                @Override
+                public boolean execute() {
+                    if (!mAccept) return false;
+                    mStarted.add(type);
+                    return true;
+                }
+            };
+        }
+
+        void complete(int type, long elapsedMillis) {
+            mNow += elapsedMillis * MILLIS;
+            assertTrue(mQueue.onOperationCompleted(type, GattOperationQueue.GATT_SUCCESS));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mNow = 0;
+        mQueue = new GattOperationQueue(() -> mNow);
+        mGatt = new FakeGatt();
+    }
+
+    @Test
+    public void onlyOneOperationIsOutstanding() {
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_DISCOVER_SERVICES, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_WRITE_DESCRIPTOR, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_REQUEST_MTU, 0));
+
+        assertEquals(1, mGatt.mStarted.size());
+        assertEquals(2, mQueue.getPendingCount());
+
+        mGatt.complete(GattOperation.TYPE_DISCOVER_SERVICES, 1);
+        assertEquals(2, mGatt.mStarted.size());
+        assertEquals(GattOperation.TYPE_WRITE_DESCRIPTOR, (int) mGatt.mStarted.get(1));
+
+        mGatt.complete(GattOperation.TYPE_WRITE_DESCRIPTOR, 1);
+        mGatt.complete(GattOperation.TYPE_REQUEST_MTU, 1);
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void unsolicitedCompletionIsIgnored() {
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_DISCOVER_SERVICES, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_REQUEST_MTU, 0));
+
+        assertFalse(mQueue.onOperationCompleted(GattOperation.TYPE_REQUEST_MTU,
+                GattOperationQueue.GATT_SUCCESS));
+        assertEquals(1, mGatt.mStarted.size());
+    }
+
+    @Test
+    public void operationThatFailsToStartIsSkipped() {
+        mGatt.mAccept = false;
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_WRITE_CHARACTERISTIC, 20));
+        mGatt.mAccept = true;
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_REQUEST_MTU, 0));
+
+        assertEquals(1, mGatt.mStarted.size());
+        assertEquals(1, mQueue.getMetrics().getFailedCount(
+                GattOperation.TYPE_WRITE_CHARACTERISTIC));
+    }
+
+    @Test
+    public void operationCompletedFromExecuteStartsTheNextOne() {
+        // Link setup: the connection priority request has no callback and completes at once.
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_REQUEST_MTU, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_SET_PREFERRED_PHY, 0));
+        mQueue.enqueue(new GattOperation(GattOperation.TYPE_REQUEST_CONNECTION_PRIORITY) {
+            @Override
+            public boolean execute() {
+                mGatt.mStarted.add(getType());
+                mQueue.onOperationCompleted(getType(), GattOperationQueue.GATT_SUCCESS);
+                return true;
+            }
+        });
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_WRITE_DESCRIPTOR, 0));
+        mGatt.complete(GattOperation.TYPE_REQUEST_MTU, 20);
+        mGatt.complete(GattOperation.TYPE_SET_PREFERRED_PHY, 5);
+
+        assertEquals(4, mGatt.mStarted.size());
+        assertEquals(GattOperation.TYPE_WRITE_DESCRIPTOR, (int) mGatt.mStarted.get(3));
+        assertEquals(1, mQueue.getMetrics().getCompletedCount(
+                GattOperation.TYPE_REQUEST_CONNECTION_PRIORITY));
+        assertFalse(mQueue.isIdle());
+    }
+
+    @Test
+    public void connectionLostDropsPendingOperations() {
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_DISCOVER_SERVICES, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_REQUEST_MTU, 0));
+
+        mQueue.onConnectionLost();
+
+        assertTrue(mQueue.isIdle());
+        assertEquals(1, mQueue.getMetrics().getFailedCount(
+                GattOperation.TYPE_DISCOVER_SERVICES));
+    }
+
+    @Test
+    public void connectionSetupTimeIsMeasured() {
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_CONNECT, 0));
+        mGatt.complete(GattOperation.TYPE_CONNECT, 30);
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_DISCOVER_SERVICES, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_WRITE_DESCRIPTOR, 0));
+        mQueue.enqueue(mGatt.operation(GattOperation.TYPE_REQUEST_MTU, 0));
+        mGatt.complete(GattOperation.TYPE_DISCOVER_SERVICES, 100);
+        mGatt.complete(GattOperation.TYPE_WRITE_DESCRIPTOR, 20);
+        mGatt.complete(GattOperation.TYPE_REQUEST_MTU, 50);
+
+        GattOperationMetrics metrics = mQueue.getMetrics();
+        assertEquals(200 * MILLIS, metrics.getConnectionSetupNanos());
+        assertEquals(100 * MILLIS,
+                metrics.getAverageLatencyNanos(GattOperation.TYPE_DISCOVER_SERVICES));
+    }
+
+    @Test
+    public void writeThroughputIsMeasured() {
+        for (int i = 0; i < 10; i++) {
+            mQueue.enqueue(mGatt.operation(GattOperation.TYPE_WRITE_CHARACTERISTIC, 500));
+        }
+        for (int i = 0; i < 10; i++) {
+            mGatt.complete(GattOperation.TYPE_WRITE_CHARACTERISTIC, 10);
+        }
+
+        GattOperationMetrics metrics = mQueue.getMetrics();
+        assertEquals(5000, metrics.getBytesWritten());
+        assertEquals(50000, metrics.getWriteThroughput());
+        assertEquals(10, metrics.getCompletedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+    }
+}
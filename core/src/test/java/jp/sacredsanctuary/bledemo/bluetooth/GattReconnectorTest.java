@@ -0,0 +1,220 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualBleStack;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualPeripheral;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattReconnector}, restoring the links of virtual peripherals
+ * that drop or go out of range.
+ */
+public class GattReconnectorTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID NOTIFY = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+    // Status of a link lost to the supervision timeout.
+    private static final int GATT_CONNECTION_TIMEOUT = 0x08;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final VirtualBleStack mStack = new VirtualBleStack(mScheduler, 1);
+    private final GattWatchdog mWatchdog = new GattWatchdog(GattTimeoutPolicy.DEFAULT,
+            mScheduler, (delayNanos, task) -> mScheduler.schedule(delayNanos, task));
+    private final List<String> mLost = new ArrayList<>();
+    private final List<Boolean> mResolved = new ArrayList<>();
+    private final List<Integer> mReconnected = new ArrayList<>();
+    private final List<Boolean> mScheduled = new ArrayList<>();
+    private GattSession mSession;
+
+    private final GattSession.Listener mListener = new GattSession.Listener() {
+        @Override
+        public void onConnected(GattSession session) {
+            session.discoverServices();
+        }
+
+        @Override
+        public void onConnectionLost(GattSession session) {
+            mLost.add(session.getAddress());
+        }
+
+        @Override
+        public void onServicesResolved(GattSession session, GattDatabase database,
+                boolean cached) {
+            mResolved.add(cached);
+        }
+
+        @Override
+        public void onLinkConfigured(GattSession session, boolean success) {
+        }
+
+        @Override
+        public void onNotification(GattSession session, UUID uuid, byte[] value) {
+        }
+
+        @Override
+        public void onMessageReceived(GattSession session, UUID uuid, byte[] buffer,
+                int offset, int length) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mSession = new GattSession(mStack.openGatt(ADDRESS),
+                new GattAttributeCache(new File(mFolder.getRoot(), "gatt")), mListener,
+                mScheduler);
+        mSession.setWatchdog(mWatchdog);
+        mSession.setReconnectPolicy(ReconnectPolicy.DEFAULT,
+                (delayNanos, task) -> mScheduler.schedule(delayNanos, task), new Random(1));
+        mSession.getReconnector().setListener(new GattReconnector.Listener() {
+            @Override
+            public void onReconnectScheduled(GattSession session, int attempt, long delayNanos,
+                    boolean autoConnect) {
+                mScheduled.add(autoConnect);
+            }
+
+            @Override
+            public void onReconnected(GattSession session, int attempts, long latencyNanos,
+                    boolean success) {
+                assertTrue(success);
+                mReconnected.add(attempts);
+            }
+        });
+    }
+
+    private static VirtualPeripheral newPeripheral() {
+        return new VirtualPeripheral(ADDRESS, new GattDatabase.Builder()
+                .addService(SERVICE, 1)
+                .addCharacteristic(NOTIFY, 2, GattDatabase.PROPERTY_NOTIFY)
+                .addDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG, 4)
+                .build())
+                .setLatency(10 * MILLIS);
+    }
+
+    private VirtualPeripheral connect() {
+        final VirtualPeripheral peripheral = mStack.addPeripheral(newPeripheral());
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        mSession.requestMtu(185);
+        assertNotNull(mSession.subscribe(
+                Collections.singletonMap(NOTIFY, GattTransport.CCCD_NOTIFICATION), null));
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertEquals(185, mSession.getMtu());
+        assertTrue(peripheral.notify(NOTIFY, new byte[]{1}));
+        return peripheral;
+    }
+
+    @Test
+    public void droppedLinkIsRestoredWithItsMtuAndSubscriptions() {
+        final VirtualPeripheral peripheral = connect();
+        peripheral.disconnect(GATT_CONNECTION_TIMEOUT);
+        mScheduler.advanceBy(0);
+        assertTrue(mSession.isReconnecting());
+        assertFalse(mSession.isConnected());
+
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertFalse(mSession.isReconnecting());
+        assertTrue(mSession.isLinkConfigured());
+        assertEquals(185, mSession.getMtu());
+        assertTrue(peripheral.notify(NOTIFY, new byte[]{2}));
+        assertEquals(2, peripheral.getConnectionCount());
+        // The app neither saw the link go nor discovered anything, the cache served the table.
+        assertTrue(mLost.isEmpty());
+        assertEquals(2, mResolved.size());
+        assertTrue(mResolved.get(1));
+
+        final GattReconnector reconnector = mSession.getReconnector();
+        assertEquals(Collections.singletonList(1), mReconnected);
+        assertEquals(1, reconnector.getLinkLossCount());
+        assertEquals(1, reconnector.getReconnectCount());
+        assertEquals(1.0, reconnector.getSuccessRate(), 0);
+        final long latency = mSession.getLatencyStats()
+                .getValueAtPercentile(GattLatencyStats.TYPE_RECONNECT, 100);
+        assertTrue(latency > 0 && latency <= SECOND);
+    }
+
+    @Test
+    public void peripheralOutOfRangeFallsBackToBackgroundConnection() {
+        connect();
+        mStack.removePeripheral(ADDRESS);
+
+        // Three direct attempts of 30 seconds each, then a background connection.
+        mScheduler.advanceBy(100 * SECOND);
+        final GattReconnector reconnector = mSession.getReconnector();
+        assertEquals(4, reconnector.getAttemptCount());
+        assertEquals(1, reconnector.getAutoConnectCount());
+        assertEquals(4, mScheduled.size());
+        assertFalse(mScheduled.get(2));
+        assertTrue(mScheduled.get(3));
+
+        // The background connection waits for the device without a deadline.
+        mScheduler.advanceBy(3600 * SECOND);
+        assertEquals(4, reconnector.getAttemptCount());
+        assertEquals(0, mWatchdog.getTimeoutCount(GattOperation.TYPE_CONNECT));
+        assertTrue(mSession.isReconnecting());
+
+        final VirtualPeripheral peripheral = mStack.addPeripheral(newPeripheral());
+        mScheduler.advanceBy(5 * SECOND);
+        assertFalse(mSession.isReconnecting());
+        assertTrue(peripheral.notify(NOTIFY, new byte[]{1}));
+        assertEquals(185, mSession.getMtu());
+        assertTrue(mLost.isEmpty());
+        assertEquals(Collections.singletonList(4), mReconnected);
+        assertEquals(0.25, reconnector.getSuccessRate(), 0);
+        assertTrue(mSession.getLatencyStats()
+                .getValueAtPercentile(GattLatencyStats.TYPE_RECONNECT, 100) > 3600 * SECOND);
+    }
+
+    @Test
+    public void disconnectStopsTheReconnection() {
+        connect();
+        mStack.removePeripheral(ADDRESS);
+        mScheduler.advanceBy(SECOND);
+        assertEquals(1, mSession.getReconnector().getAttemptCount());
+
+        // The attempt in progress is cancelled and reported as a loss.
+        mSession.disconnect();
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertFalse(mSession.isReconnecting());
+        assertEquals(1, mSession.getReconnector().getAttemptCount());
+        assertEquals(Collections.singletonList(ADDRESS), mLost);
+
+        // The subscriptions of the link disconnected are not restored on the next one.
+        final VirtualPeripheral peripheral = mStack.addPeripheral(newPeripheral());
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertTrue(mSession.isLinkConfigured());
+        assertFalse(peripheral.notify(NOTIFY, new byte[]{1}));
+        assertEquals(LinkProfile.BALANCED.getMtu(), mSession.getMtu());
+    }
+
+    @Test
+    public void failedFirstConnectionIsLeftToTheApp() {
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertFalse(mSession.isReconnecting());
+        assertEquals(Collections.singletonList(ADDRESS), mLost);
+        assertEquals(0, mSession.getReconnector().getAttemptCount());
+        assertTrue(mScheduled.isEmpty());
+    }
+}
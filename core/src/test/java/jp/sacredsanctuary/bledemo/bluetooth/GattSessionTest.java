@@ -0,0 +1,343 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.framing.LengthPrefixedFrameDecoder;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualBleStack;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualPeripheral;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattSession}, connected to a virtual peripheral.
+ */
+public class GattSessionTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID RX = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID TX = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final VirtualBleStack mStack = new VirtualBleStack(mScheduler, 1);
+    private final Recorder mRecorder = new Recorder();
+    private VirtualPeripheral mPeripheral;
+    private GattAttributeCache mCache;
+    private GattSession mSession;
+
+    /**
+     * Discovers the services once connected, as the app does, and records the other events.
+     */
+    private class Recorder implements GattSession.Listener {
+        int mConnected;
+        int mLost;
+        GattDatabase mDatabase;
+        boolean mCached;
+        int mFailed;
+        int mLinkConfigured;
+        int mNotifications;
+        int mMessages;
+        long mMessageBytes;
+
+        @Override
+        public void onConnected(GattSession session) {
+            mConnected++;
+            session.discoverServices();
+        }
+
+        @Override
+        public void onConnectionLost(GattSession session) {
+            mLost++;
+        }
+
+        @Override
+        public void onServicesResolved(GattSession session, GattDatabase database,
+                boolean cached) {
+            if (database == null) {
+                mFailed++;
+                return;
+            }
+            mDatabase = database;
+            mCached = cached;
+        }
+
+        @Override
+        public void onLinkConfigured(GattSession session, boolean success) {
+            if (success) mLinkConfigured++;
+        }
+
+        @Override
+        public void onNotification(GattSession session, UUID uuid, byte[] value) {
+            mNotifications++;
+        }
+
+        @Override
+        public void onMessageReceived(GattSession session, UUID uuid, byte[] buffer, int offset,
+                int length) {
+            mMessages++;
+            mMessageBytes += length;
+        }
+    }
+
+    static GattDatabase database(byte[] hash) {
+        return new GattDatabase.Builder()
+                .addService(GattDatabase.GENERIC_ATTRIBUTE_SERVICE, 1)
+                .addCharacteristic(GattDatabase.SERVICE_CHANGED, 2,
+                        GattDatabase.PROPERTY_INDICATE)
+                .addDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG, 4)
+                .addCharacteristic(GattDatabase.DATABASE_HASH, 5, 0x02)
+                .addService(SERVICE, 16)
+                .addCharacteristic(RX, 17, 0x0C)
+                .addCharacteristic(TX, 19, GattDatabase.PROPERTY_NOTIFY)
+                .addDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG, 21)
+                .setHash(hash)
+                .build();
+    }
+
+    @Before
+    public void setUp() {
+        mPeripheral = mStack.addPeripheral(
+                new VirtualPeripheral(ADDRESS, database(new byte[]{1, 2, 3, 4})));
+        mCache = new GattAttributeCache(new File(mFolder.getRoot(), "gatt"));
+        mSession = new GattSession(mStack.openGatt(ADDRESS), mCache, mRecorder, mScheduler);
+    }
+
+    // Connects and waits until the link is set up, returning the virtual time it took.
+    private long connectToReady() {
+        final long start = mScheduler.nanoTime();
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertTrue(mSession.isLinkConfigured());
+        return mScheduler.nanoTime() - start;
+    }
+
+    @Test
+    public void connectionSetupAppliesTheLinkProfile() {
+        mPeripheral.setMaxMtu(247);
+        mSession.setLinkProfile(LinkProfile.THROUGHPUT);
+
+        connectToReady();
+        assertTrue(mSession.isConnected());
+        assertFalse(mRecorder.mCached);
+        assertTrue(mRecorder.mDatabase.hasHash(new byte[]{1, 2, 3, 4}));
+        assertEquals(1, mRecorder.mLinkConfigured);
+        assertEquals(247, mSession.getMtu());
+        assertEquals(VirtualPeripheral.PHY_LE_2M, mSession.getTxPhy());
+        assertEquals(LinkProfile.CONNECTION_PRIORITY_HIGH, mSession.getConnectionPriority());
+        assertEquals(11250, mSession.getConnectionIntervalMicros());
+        assertTrue(mSession.getOperationQueue().isIdle());
+
+        // Switching to the low-power profile applies right away.
+        mPeripheral.set2MPhySupported(false);
+        mSession.setLinkProfile(LinkProfile.LOW_POWER);
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertEquals(VirtualPeripheral.PHY_LE_1M, mSession.getTxPhy());
+        assertEquals(LinkProfile.CONNECTION_PRIORITY_LOW_POWER,
+                mSession.getConnectionPriority());
+        assertEquals(100000, mSession.getConnectionIntervalMicros());
+    }
+
+    @Test
+    public void reconnectUsesTheCachedAttributes() {
+        final long uncached = connectToReady();
+
+        mPeripheral.disconnect(GattTransport.GATT_CONNECTION_TIMEOUT);
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertEquals(1, mRecorder.mLost);
+        assertFalse(mSession.isConnected());
+        assertEquals(GattSession.DEFAULT_MTU, mSession.getMtu());
+
+        final long cached = connectToReady();
+        assertTrue(mRecorder.mCached);
+        assertEquals(2, mPeripheral.getConnectionCount());
+        assertEquals(1, mSession.getServiceDiscovery().getCachedCount());
+        assertTrue(cached < uncached);
+    }
+
+    @Test
+    public void serviceChangedDiscoversTheServicesAgain() {
+        connectToReady();
+        mPeripheral.changeServices(database(new byte[]{5}));
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertFalse(mRecorder.mCached);
+        assertTrue(mRecorder.mDatabase.hasHash(new byte[]{5}));
+        assertEquals(2, mSession.getServiceDiscovery().getDiscoveredCount());
+    }
+
+    @Test
+    public void streamingWriteIsPacedByTheLink() {
+        mPeripheral.setMaxMtu(247).setThroughput(100000);
+        connectToReady();
+
+        final boolean[] success = new boolean[1];
+        final GattWriteTransfer transfer = mSession.writeCharacteristicStream(SERVICE, RX,
+                new ByteArrayInputStream(new byte[64 * 1024]), (t, s) -> success[0] = s);
+        assertNotNull(transfer);
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertTrue(success[0]);
+        assertEquals(64 * 1024, mPeripheral.getBytesWritten(RX));
+        assertEquals(244, transfer.getChunkSize());
+        assertEquals(100000, mSession.getThroughput(), 1000);
+
+        // Unknown characteristics are refused up front.
+        assertNull(mSession.writeCharacteristicStream(SERVICE, GattDatabase.DATABASE_HASH,
+                new ByteArrayInputStream(new byte[1]), null));
+    }
+
+    @Test
+    public void notificationsAreReassembledIntoMessages() {
+        // 100 messages of 300 bytes per second, each split across two notifications.
+        final byte[][] fragments = new byte[2][];
+        fragments[0] = new byte[150];
+        fragments[0][0] = 0x01;
+        fragments[0][1] = 0x2C;
+        fragments[1] = new byte[152];
+        mPeripheral.setMaxMtu(247).setNotificationSource(TX, 5 * MILLIS,
+                sequence -> fragments[(int) (sequence % 2)]);
+        connectToReady();
+        mSession.getReassembler().setDecoder(TX, new LengthPrefixedFrameDecoder(2, true, 512));
+
+        assertEquals(2, mSession.setNotifications(true));
+        mScheduler.advanceBy(SECOND);
+        assertEquals(0, mRecorder.mNotifications);
+        assertTrue(mRecorder.mMessages >= 95);
+        assertEquals(300L * mRecorder.mMessages, mRecorder.mMessageBytes);
+
+        // Without decoder, raw notifications are reported.
+        mSession.getReassembler().setDecoder(TX, null);
+        mScheduler.advanceBy(SECOND);
+        assertTrue(mRecorder.mNotifications >= 195);
+
+        // Disabling the notifications stops the stream.
+        mSession.setNotifications(false);
+        mScheduler.advanceBy(SECOND);
+        final long sent = mPeripheral.getNotificationCount();
+        mScheduler.advanceBy(SECOND);
+        assertEquals(sent, mPeripheral.getNotificationCount());
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+    }
+
+    @Test
+    public void injectedErrorsFailTheirOperations() {
+        mPeripheral.failNextRequests(GattOperation.TYPE_REQUEST_MTU, GattTransport.GATT_ERROR, 1);
+        connectToReady();
+        // The link is still set up, on the default MTU.
+        assertEquals(1, mRecorder.mLinkConfigured);
+        assertEquals(GattSession.DEFAULT_MTU, mSession.getMtu());
+        final GattOperationMetrics metrics = mSession.getOperationQueue().getMetrics();
+        assertEquals(1, metrics.getFailedCount(GattOperation.TYPE_REQUEST_MTU));
+
+        mPeripheral.setErrorRate(0.5, 7);
+        for (int i = 0; i < 100; i++) {
+            mSession.writeCharacteristic(SERVICE, RX, new byte[]{(byte) i});
+        }
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        final long failed = metrics.getFailedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC);
+        assertEquals(100, failed + mPeripheral.getWriteCount());
+        assertTrue(failed > 30 && failed < 70);
+    }
+
+    @Test
+    public void linkLossFailsTheTransferInProgress() {
+        mPeripheral.setThroughput(10000);
+        connectToReady();
+
+        final int[] result = {-1};
+        mSession.writeCharacteristicStream(SERVICE, RX,
+                new ByteArrayInputStream(new byte[64 * 1024]), (t, s) -> result[0] = s ? 1 : 0);
+        mScheduler.schedule(500 * MILLIS,
+                () -> mPeripheral.disconnect(GattTransport.GATT_CONNECTION_TIMEOUT));
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertEquals(0, result[0]);
+        assertEquals(1, mRecorder.mLost);
+        assertTrue(mSession.getOperationQueue().isIdle());
+        assertTrue(mPeripheral.getBytesWritten(RX) < 64 * 1024);
+    }
+
+    @Test
+    public void failedConnectionsAreReported() {
+        mPeripheral.failNextConnection(GattTransport.GATT_ERROR);
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertEquals(1, mRecorder.mLost);
+        assertFalse(mSession.isConnected());
+
+        // A device out of range times out.
+        mStack.removePeripheral(ADDRESS);
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertEquals(2, mRecorder.mLost);
+        assertEquals(0, mRecorder.mConnected);
+    }
+
+    @Test
+    public void unresponsivePeripheralStallsTheQueue() {
+        connectToReady();
+        mPeripheral.setUnresponsive(true);
+        mSession.writeCharacteristic(SERVICE, RX, new byte[]{1});
+        mSession.writeCharacteristic(SERVICE, RX, new byte[]{2});
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertFalse(mSession.getOperationQueue().isIdle());
+        assertEquals(1, mSession.getOperationQueue().getPendingCount());
+
+        // Only a link loss releases the queue.
+        mPeripheral.disconnect(GattTransport.GATT_CONNECTION_TIMEOUT);
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertTrue(mSession.getOperationQueue().isIdle());
+    }
+
+    @Test
+    public void latenciesAreRecordedPerDeviceAndInAggregate() {
+        final GattLatencyStats aggregate = new GattLatencyStats();
+        mSession = new GattSession(mStack.openGatt(ADDRESS), mCache, mRecorder, mScheduler,
+                new GattLatencyStats(aggregate));
+        mPeripheral.setLatency(20 * MILLIS).setNotificationSource(TX, 10 * MILLIS,
+                sequence -> new byte[]{(byte) sequence});
+        connectToReady();
+        mSession.setNotifications(true);
+        mScheduler.advanceBy(SECOND);
+
+        final GattLatencyStats stats = mSession.getLatencyStats();
+        assertEquals(1, stats.getHistogram(GattOperation.TYPE_CONNECT).getCount());
+        assertEquals(20 * MILLIS, stats.getValueAtPercentile(GattOperation.TYPE_CONNECT, 50),
+                MILLIS);
+        assertEquals(1, stats.getHistogram(GattOperation.TYPE_DISCOVER_SERVICES).getCount());
+        assertEquals(1, stats.getHistogram(GattOperation.TYPE_REQUEST_MTU).getCount());
+        assertEquals(2, stats.getHistogram(GattOperation.TYPE_WRITE_DESCRIPTOR).getCount());
+        assertEquals(10 * MILLIS, stats.getValueAtPercentile(
+                GattLatencyStats.TYPE_NOTIFICATION_INTERVAL, 99), MILLIS / 2);
+        for (int type = 0; type < GattLatencyStats.TYPE_COUNT; type++) {
+            assertEquals(stats.getHistogram(type).getCount(),
+                    aggregate.getHistogram(type).getCount());
+        }
+
+        // A new link starts a new series of notification intervals.
+        final long intervals = stats.getHistogram(GattLatencyStats.TYPE_NOTIFICATION_INTERVAL)
+                .getCount();
+        mPeripheral.disconnect(GattTransport.GATT_CONNECTION_TIMEOUT);
+        mScheduler.advanceBy(SECOND);
+        connectToReady();
+        mSession.setNotifications(true);
+        mScheduler.advanceBy(SECOND);
+        assertEquals(2, stats.getHistogram(GattOperation.TYPE_CONNECT).getCount());
+        assertTrue(stats.getHistogram(GattLatencyStats.TYPE_NOTIFICATION_INTERVAL).getMax()
+                < 11 * MILLIS);
+        assertTrue(stats.getHistogram(GattLatencyStats.TYPE_NOTIFICATION_INTERVAL).getCount()
+                > intervals);
+    }
+}
@@ -0,0 +1,226 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualBleStack;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualPeripheral;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattSubscription}, subscribing to a virtual peripheral.
+ */
+public class GattSubscriptionTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID NOTIFY = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID INDICATE = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID BOTH = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+    private static final UUID PLAIN = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final VirtualBleStack mStack = new VirtualBleStack(mScheduler, 1);
+    private final List<UUID> mNotifications = new ArrayList<>();
+    private final List<Boolean> mCompletions = new ArrayList<>();
+    private final GattSubscription.Listener mListener =
+            (subscription, success) -> mCompletions.add(success);
+    private VirtualPeripheral mPeripheral;
+    private GattSession mSession;
+
+    private static GattDatabase database() {
+        return new GattDatabase.Builder()
+                .addService(SERVICE, 1)
+                .addCharacteristic(NOTIFY, 2, GattDatabase.PROPERTY_NOTIFY)
+                .addDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG, 4)
+                .addCharacteristic(INDICATE, 5, GattDatabase.PROPERTY_INDICATE)
+                .addDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG, 7)
+                .addCharacteristic(BOTH, 8,
+                        GattDatabase.PROPERTY_NOTIFY | GattDatabase.PROPERTY_INDICATE)
+                .addDescriptor(GattDatabase.CLIENT_CHARACTERISTIC_CONFIG, 10)
+                .addCharacteristic(PLAIN, 11, 0x02)
+                .build();
+    }
+
+    @Before
+    public void setUp() {
+        mPeripheral = mStack.addPeripheral(new VirtualPeripheral(ADDRESS, database()))
+                .setLatency(10 * MILLIS);
+        final GattSession.Listener listener = new GattSession.Listener() {
+            @Override
+            public void onConnected(GattSession session) {
+                session.discoverServices();
+            }
+
+            @Override
+            public void onConnectionLost(GattSession session) {
+            }
+
+            @Override
+            public void onServicesResolved(GattSession session, GattDatabase database,
+                    boolean cached) {
+            }
+
+            @Override
+            public void onLinkConfigured(GattSession session, boolean success) {
+            }
+
+            @Override
+            public void onNotification(GattSession session, UUID uuid, byte[] value) {
+                mNotifications.add(uuid);
+            }
+
+            @Override
+            public void onMessageReceived(GattSession session, UUID uuid, byte[] buffer,
+                    int offset, int length) {
+            }
+        };
+        mSession = new GattSession(mStack.openGatt(ADDRESS),
+                new GattAttributeCache(new File(mFolder.getRoot(), "gatt")), listener,
+                mScheduler);
+        mSession.connect();
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertTrue(mSession.isLinkConfigured());
+    }
+
+    private static Map<UUID, Integer> configurations(Object... entries) {
+        final Map<UUID, Integer> configurations = new LinkedHashMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            configurations.put((UUID) entries[i], (Integer) entries[i + 1]);
+        }
+        return configurations;
+    }
+
+    @Test
+    public void subscribesToTheSelectedCharacteristicsOnly() throws Exception {
+        final GattSubscription subscription = mSession.subscribe(configurations(
+                INDICATE, GattTransport.CCCD_INDICATION,
+                BOTH, GattTransport.CCCD_NOTIFICATION), mListener);
+        assertNotNull(subscription);
+        assertFalse(subscription.isDone());
+        assertEquals(0, subscription.getWrittenCount());
+
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertTrue(subscription.isDone());
+        assertTrue(subscription.get(0, TimeUnit.SECONDS));
+        assertEquals(1, mCompletions.size());
+        assertTrue(mCompletions.get(0));
+        assertEquals(2, subscription.getWrittenCount());
+        assertEquals(INDICATE, subscription.getUuid(0));
+        assertEquals(GattTransport.CCCD_NOTIFICATION, subscription.getConfiguration(1));
+
+        // Each write waits for the previous one: one round trip each.
+        assertEquals(10 * MILLIS, subscription.getElapsedNanos(INDICATE));
+        assertEquals(10 * MILLIS, subscription.getElapsedNanos(1));
+        assertEquals(20 * MILLIS, subscription.getTotalElapsedNanos());
+        assertEquals(-1, subscription.getElapsedNanos(NOTIFY));
+
+        assertFalse(mPeripheral.notify(NOTIFY, new byte[]{1}));
+        assertTrue(mPeripheral.notify(INDICATE, new byte[]{2}));
+        assertTrue(mPeripheral.notify(BOTH, new byte[]{3}));
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertEquals(2, mNotifications.size());
+    }
+
+    @Test
+    public void unsupportedConfigurationsAreRejected() {
+        assertNull(mSession.subscribe(configurations(
+                NOTIFY, GattTransport.CCCD_INDICATION), mListener));
+        assertNull(mSession.subscribe(configurations(
+                PLAIN, GattTransport.CCCD_NOTIFICATION), mListener));
+        assertNull(mSession.subscribe(configurations(
+                UUID.randomUUID(), GattTransport.CCCD_NOTIFICATION), mListener));
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertTrue(mCompletions.isEmpty());
+    }
+
+    @Test
+    public void firstFailureEndsTheSubscription() throws Exception {
+        mPeripheral.failNextRequests(GattOperation.TYPE_WRITE_DESCRIPTOR,
+                GattTransport.GATT_INSUFFICIENT_AUTHENTICATION, 1);
+        final GattSubscription subscription = mSession.subscribe(configurations(
+                NOTIFY, GattTransport.CCCD_NOTIFICATION,
+                INDICATE, GattTransport.CCCD_INDICATION), mListener);
+
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertFalse(subscription.get());
+        assertFalse(subscription.isSuccessful());
+        assertEquals(0, subscription.getWrittenCount());
+        assertFalse(mPeripheral.notify(INDICATE, new byte[]{1}));
+        assertEquals(1, mSession.getOperationQueue().getMetrics()
+                .getFailedCount(GattOperation.TYPE_WRITE_DESCRIPTOR));
+        assertEquals(0, mSession.getOperationQueue().getMetrics()
+                .getCompletedCount(GattOperation.TYPE_WRITE_DESCRIPTOR));
+    }
+
+    @Test
+    public void cancelStopsBeforeTheNextWrite() throws Exception {
+        final GattSubscription subscription = mSession.subscribe(configurations(
+                NOTIFY, GattTransport.CCCD_NOTIFICATION,
+                INDICATE, GattTransport.CCCD_INDICATION), mListener);
+
+        // The first write is in flight.
+        mScheduler.advanceBy(5 * MILLIS);
+        assertTrue(subscription.cancel(false));
+        assertFalse(subscription.cancel(false));
+        assertTrue(subscription.isCancelled());
+        assertEquals(1, mCompletions.size());
+        assertFalse(mCompletions.get(0));
+
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertTrue(mPeripheral.notify(NOTIFY, new byte[]{1}));
+        assertFalse(mPeripheral.notify(INDICATE, new byte[]{1}));
+        assertEquals(1, mCompletions.size());
+        try {
+            subscription.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void linkLossFailsTheSubscription() throws Exception {
+        final GattSubscription subscription = mSession.subscribe(configurations(
+                NOTIFY, GattTransport.CCCD_NOTIFICATION,
+                BOTH, GattTransport.CCCD_INDICATION), mListener);
+        mScheduler.advanceBy(15 * MILLIS);
+        mPeripheral.disconnect(GattTransport.GATT_CONNECTION_TIMEOUT);
+
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertFalse(subscription.get(0, TimeUnit.SECONDS));
+        assertEquals(1, subscription.getWrittenCount());
+    }
+
+    @Test
+    public void setNotificationsSubscribesToEveryCharacteristic() {
+        assertEquals(3, mSession.setNotifications(true));
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertTrue(mPeripheral.notify(NOTIFY, new byte[]{1}));
+        assertTrue(mPeripheral.notify(INDICATE, new byte[]{1}));
+        assertTrue(mPeripheral.notify(BOTH, new byte[]{1}));
+
+        assertEquals(3, mSession.setNotifications(false));
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+        assertFalse(mPeripheral.notify(NOTIFY, new byte[]{1}));
+    }
+}
@@ -0,0 +1,313 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattAttributeCache;
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.GattTransport;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualBleStack;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualPeripheral;
+import jp.sacredsanctuary.bledemo.bluetooth.transport.VirtualScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattWatchdog}, timing out the requests sent to virtual
+ * peripherals that stop answering.
+ */
+public class GattWatchdogTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID DATA = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final VirtualBleStack mStack = new VirtualBleStack(mScheduler, 1);
+    private final GattWatchdog mWatchdog = new GattWatchdog(GattTimeoutPolicy.DEFAULT,
+            mScheduler, (delayNanos, task) -> mScheduler.schedule(delayNanos, task));
+    private final List<String> mLost = new ArrayList<>();
+    private GattAttributeCache mCache;
+
+    private final GattSession.Listener mListener = new GattSession.Listener() {
+        @Override
+        public void onConnected(GattSession session) {
+            session.discoverServices();
+        }
+
+        @Override
+        public void onConnectionLost(GattSession session) {
+            mLost.add(session.getAddress());
+        }
+
+        @Override
+        public void onServicesResolved(GattSession session, GattDatabase database,
+                boolean cached) {
+        }
+
+        @Override
+        public void onLinkConfigured(GattSession session, boolean success) {
+        }
+
+        @Override
+        public void onNotification(GattSession session, UUID uuid, byte[] value) {
+        }
+
+        @Override
+        public void onMessageReceived(GattSession session, UUID uuid, byte[] buffer,
+                int offset, int length) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mCache = new GattAttributeCache(new File(mFolder.getRoot(), "gatt"));
+    }
+
+    private GattSession open(String address) {
+        final GattSession session = new GattSession(mStack.openGatt(address), mCache, mListener,
+                mScheduler);
+        session.setWatchdog(mWatchdog);
+        return session;
+    }
+
+    private VirtualPeripheral addPeripheral(String address) {
+        return mStack.addPeripheral(new VirtualPeripheral(address, new GattDatabase.Builder()
+                .addService(SERVICE, 1)
+                .addCharacteristic(DATA, 2, 0x08)
+                .build()))
+                .setLatency(10 * MILLIS);
+    }
+
+    private GattSession connect(VirtualPeripheral peripheral) {
+        final GattSession session = open(peripheral.getAddress());
+        session.connect();
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertTrue(session.isLinkConfigured());
+        return session;
+    }
+
+    private GattOperation write(GattSession session, byte[] value, boolean[] results,
+            int index) {
+        return new GattOperation(GattOperation.TYPE_WRITE_CHARACTERISTIC) {
+            @Override
+            public boolean execute() {
+                return session.getTransport().writeCharacteristic(SERVICE, DATA, value, true);
+            }
+
+            @Override
+            protected void onCompleted(boolean success) {
+                results[index] = success;
+            }
+        };
+    }
+
+    @Test
+    public void answeredRequestsStopTheWatchdog() {
+        final GattSession session = connect(addPeripheral(ADDRESS));
+        session.writeCharacteristic(SERVICE, DATA, new byte[]{1});
+
+        // Nothing is left to watch, so the periodic event is not scheduled again.
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertEquals(0, mWatchdog.getPendingCount());
+        final GattOperationMetrics metrics = session.getOperationQueue().getMetrics();
+        for (int type = 0; type < GattOperation.TYPE_COUNT; type++) {
+            assertEquals(0, metrics.getTimeoutCount(type));
+            assertEquals(0, mWatchdog.getTimeoutCount(type));
+        }
+        assertEquals(1, metrics.getCompletedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+    }
+
+    @Test
+    public void stalledMtuExchangeIsRetriedThenTearsTheLinkDown() {
+        final VirtualPeripheral peripheral = addPeripheral(ADDRESS);
+        final GattSession session = connect(peripheral);
+        peripheral.setUnresponsive(true);
+        session.requestMtu(247);
+        session.writeCharacteristic(SERVICE, DATA, new byte[]{1});
+
+        mScheduler.advanceBy(5 * SECOND);
+        assertTrue(session.isConnected());
+        mScheduler.advanceBy(SECOND);
+        assertEquals(1, mWatchdog.getRecoveryCount(GattTimeoutPolicy.ACTION_RETRY));
+        assertTrue(session.isConnected());
+
+        mScheduler.advanceBy(5 * SECOND);
+        assertFalse(session.isConnected());
+        assertFalse(peripheral.isConnected());
+        assertEquals(1, mLost.size());
+        assertTrue(session.getOperationQueue().isIdle());
+
+        final GattOperationMetrics metrics = session.getOperationQueue().getMetrics();
+        assertEquals(2, metrics.getTimeoutCount(GattOperation.TYPE_REQUEST_MTU));
+        assertEquals(1, metrics.getRecoveryCount(GattTimeoutPolicy.ACTION_RETRY));
+        assertEquals(1, metrics.getRecoveryCount(GattTimeoutPolicy.ACTION_DISCONNECT));
+        assertEquals(1, metrics.getFailedCount(GattOperation.TYPE_REQUEST_MTU));
+        // The write waiting behind the exchange was dropped.
+        assertEquals(0, peripheral.getWriteCount());
+        assertEquals(2, mWatchdog.getTimeoutCount(GattOperation.TYPE_REQUEST_MTU));
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+    }
+
+    @Test
+    public void stalledWriteFailsAndTheQueueMovesOn() {
+        final VirtualPeripheral peripheral = addPeripheral(ADDRESS);
+        final GattSession session = connect(peripheral);
+        final boolean[] results = new boolean[2];
+        peripheral.setUnresponsive(true);
+        session.getOperationQueue().enqueue(write(session, new byte[]{1}, results, 0));
+        session.getOperationQueue().enqueue(write(session, new byte[]{2}, results, 1));
+
+        // The device recovers before the deadline of the second write, and answers both.
+        mScheduler.advanceBy(7 * SECOND);
+        peripheral.setUnresponsive(false);
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+
+        assertFalse(results[0]);
+        assertTrue(results[1]);
+        assertTrue(session.isConnected());
+        assertTrue(mLost.isEmpty());
+        assertEquals(2, peripheral.getWriteCount());
+        final GattOperationMetrics metrics = session.getOperationQueue().getMetrics();
+        assertEquals(1, metrics.getTimeoutCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+        assertEquals(1, metrics.getRecoveryCount(GattTimeoutPolicy.ACTION_FAIL));
+        assertEquals(1, metrics.getFailedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+        assertEquals(1, metrics.getCompletedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+    }
+
+    @Test
+    public void lateResultDoesNotCompleteTheNextOperation() {
+        final VirtualPeripheral peripheral = addPeripheral(ADDRESS);
+        final GattSession session = connect(peripheral);
+        final boolean[] results = new boolean[2];
+        // The first write is rejected, but the answer comes after its deadline.
+        peripheral.failNextRequests(GattOperation.TYPE_WRITE_CHARACTERISTIC,
+                GattTransport.GATT_ERROR, 1).setUnresponsive(true);
+        session.getOperationQueue().enqueue(write(session, new byte[]{1}, results, 0));
+        session.getOperationQueue().enqueue(write(session, new byte[]{2}, results, 1));
+        mScheduler.advanceBy(6 * SECOND);
+        assertEquals(1, session.getOperationQueue().getMetrics()
+                .getTimeoutCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+
+        // The rejection arrives while the second write is outstanding, and is dropped.
+        peripheral.setUnresponsive(false);
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertFalse(results[0]);
+        assertTrue(results[1]);
+        assertEquals(1, peripheral.getWriteCount());
+        final GattOperationMetrics metrics = session.getOperationQueue().getMetrics();
+        assertEquals(1, metrics.getFailedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+        assertEquals(1, metrics.getCompletedCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+        assertTrue(session.getOperationQueue().isIdle());
+    }
+
+    @Test
+    public void lateResultDoesNotCompleteTheRetry() {
+        final VirtualPeripheral peripheral = addPeripheral(ADDRESS);
+        final GattSession session = connect(peripheral);
+        final GattOperationMetrics metrics = session.getOperationQueue().getMetrics();
+        final long completed = metrics.getCompletedCount(GattOperation.TYPE_REQUEST_MTU);
+        // The first attempt is rejected, but the answer comes after its deadline.
+        peripheral.failNextRequests(GattOperation.TYPE_REQUEST_MTU, GattTransport.GATT_ERROR, 1)
+                .setUnresponsive(true);
+        session.requestMtu(247);
+        mScheduler.advanceBy(6 * SECOND);
+        assertEquals(1, mWatchdog.getRecoveryCount(GattTimeoutPolicy.ACTION_RETRY));
+
+        // Both attempts are answered: the first answer is dropped, the second one completes.
+        peripheral.setUnresponsive(false);
+        assertTrue(mScheduler.runUntilIdle(10 * SECOND));
+        assertTrue(session.isConnected());
+        assertTrue(session.getOperationQueue().isIdle());
+        assertEquals(247, session.getMtu());
+        assertEquals(1, metrics.getTimeoutCount(GattOperation.TYPE_REQUEST_MTU));
+        assertEquals(completed + 1, metrics.getCompletedCount(GattOperation.TYPE_REQUEST_MTU));
+        assertEquals(0, metrics.getFailedCount(GattOperation.TYPE_REQUEST_MTU));
+    }
+
+    @Test
+    public void consecutiveTimeoutsTearTheLinkDown() {
+        final VirtualPeripheral peripheral = addPeripheral(ADDRESS);
+        final GattSession session = connect(peripheral);
+        peripheral.setUnresponsive(true);
+        for (int i = 0; i < 5; i++) {
+            session.writeCharacteristic(SERVICE, DATA, new byte[]{(byte) i});
+        }
+
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertFalse(session.isConnected());
+        assertEquals(1, mLost.size());
+        final GattOperationMetrics metrics = session.getOperationQueue().getMetrics();
+        assertEquals(3, metrics.getTimeoutCount(GattOperation.TYPE_WRITE_CHARACTERISTIC));
+        assertEquals(2, metrics.getRecoveryCount(GattTimeoutPolicy.ACTION_FAIL));
+        assertEquals(1, metrics.getRecoveryCount(GattTimeoutPolicy.ACTION_DISCONNECT));
+        assertEquals(0, mWatchdog.getPendingCount());
+    }
+
+    @Test
+    public void stalledConnectionAttemptIsCancelled() {
+        mWatchdog.setPolicy(new GattTimeoutPolicy.Builder()
+                .setTimeout(GattOperation.TYPE_CONNECT, 5 * SECOND, 0,
+                        GattTimeoutPolicy.ACTION_DISCONNECT)
+                .build());
+        // No such device: the stack itself would give up after 30 seconds.
+        final GattSession session = open(ADDRESS);
+        session.connect();
+
+        mScheduler.advanceBy(6 * SECOND);
+        assertEquals(1, mLost.size());
+        assertEquals(1, mWatchdog.getTimeoutCount(GattOperation.TYPE_CONNECT));
+        assertTrue(session.getOperationQueue().isIdle());
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertEquals(1, mLost.size());
+    }
+
+    @Test
+    public void oneWatchdogServesManyLinks() {
+        final int links = 100;
+        final List<GattSession> sessions = new ArrayList<>();
+        for (int i = 0; i < links; i++) {
+            final VirtualPeripheral peripheral = addPeripheral(
+                    String.format(Locale.ROOT, "00:11:22:33:44:%02X", i));
+            final GattSession session = connect(peripheral);
+            // Every other device hangs.
+            peripheral.setUnresponsive(i % 2 == 0);
+            sessions.add(session);
+        }
+        final long executed = mScheduler.getExecutedCount();
+        for (GattSession session : sessions) {
+            session.requestMtu(247);
+        }
+        assertEquals(links, mWatchdog.getPendingCount());
+        mScheduler.advanceBy(SECOND);
+        assertEquals(links / 2, mWatchdog.getPendingCount());
+
+        assertTrue(mScheduler.runUntilIdle(60 * SECOND));
+        assertEquals(links / 2, mLost.size());
+        assertEquals(links, mWatchdog.getTimeoutCount(GattOperation.TYPE_REQUEST_MTU));
+        assertEquals(links / 2, mWatchdog.getRecoveryCount(GattTimeoutPolicy.ACTION_DISCONNECT));
+        // A single periodic event drives every deadline: about four per second over the ten
+        // seconds of the two attempts, on top of two events per link for the answers and
+        // disconnections.
+        assertTrue(mScheduler.getExecutedCount() - executed < 2 * links + 50);
+
+        final StringWriter dump = new StringWriter();
+        mWatchdog.dump(new PrintWriter(dump), "");
+        assertTrue(dump.toString().contains("requestMtu:"));
+        assertTrue(dump.toString().contains("disconnect=50"));
+    }
+}
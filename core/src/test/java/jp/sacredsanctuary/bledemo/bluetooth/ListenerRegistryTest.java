@@ -0,0 +1,238 @@
+package jp.sacredsanctuary.bledemo.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ListenerRegistry} and {@link EventFilter}.
+ */
+public class ListenerRegistryTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final String OTHER_ADDRESS = "00:11:22:AA:BB:CD";
+    private static final UUID DATA = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final int EVENT_CONNECTION = 0;
+    private static final int EVENT_NOTIFICATION = 1;
+    private static final int EVENT_SCAN = 2;
+
+    /**
+     * Listener recording the values it is given.
+     */
+    private static class Recorder {
+        final List<byte[]> mValues = new ArrayList<>();
+        final AtomicInteger mCount = new AtomicInteger();
+
+        void onValue(byte[] value) {
+            synchronized (mValues) {
+                mValues.add(value);
+            }
+            mCount.incrementAndGet();
+        }
+    }
+
+    private static ListenerRegistry.Event<Recorder> event(byte[] value) {
+        return recorder -> recorder.onValue(value);
+    }
+
+    @Test
+    public void filterMatchesTheAttributesAnEventHas() {
+        final EventFilter filter = new EventFilter.Builder()
+                .addEventType(EVENT_CONNECTION)
+                .addEventType(EVENT_NOTIFICATION)
+                .addDevice(ADDRESS)
+                .addCharacteristic(DATA)
+                .build();
+        assertTrue(filter.accepts(EVENT_NOTIFICATION, ADDRESS, DATA));
+        assertFalse(filter.accepts(EVENT_NOTIFICATION, ADDRESS, OTHER));
+        assertFalse(filter.accepts(EVENT_NOTIFICATION, OTHER_ADDRESS, DATA));
+        assertFalse(filter.accepts(EVENT_SCAN, null, null));
+        // Connection events have no characteristic, so the characteristic does not matter.
+        assertTrue(filter.accepts(EVENT_CONNECTION, ADDRESS, null));
+        assertTrue(EventFilter.ALL.accepts(EventFilter.MAX_EVENT_TYPES - 1, OTHER_ADDRESS, OTHER));
+        try {
+            new EventFilter.Builder().addEventType(EventFilter.MAX_EVENT_TYPES);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void eventsReachTheListenersWhoseFilterAcceptsThem() {
+        final ListenerRegistry<Recorder> registry = new ListenerRegistry<>();
+        final Recorder all = new Recorder();
+        final Recorder device = new Recorder();
+        final Recorder scan = new Recorder();
+        registry.add(all, null, null);
+        registry.add(device, null, new EventFilter.Builder().addDevice(ADDRESS).build());
+        registry.add(scan, null, new EventFilter.Builder().addEventType(EVENT_SCAN).build());
+        assertEquals(3, registry.size());
+
+        assertEquals(2, registry.dispatch(EVENT_NOTIFICATION, ADDRESS, DATA, event(null)));
+        assertEquals(1, registry.dispatch(EVENT_NOTIFICATION, OTHER_ADDRESS, DATA, event(null)));
+        assertEquals(3, registry.dispatch(EVENT_SCAN, null, null, event(null)));
+        assertEquals(3, all.mCount.get());
+        assertEquals(2, device.mCount.get());
+        assertEquals(1, scan.mCount.get());
+        assertTrue(registry.hasListeners(EVENT_CONNECTION, OTHER_ADDRESS, null));
+
+        // Adding a listener again replaces its filter.
+        registry.add(all, null, new EventFilter.Builder().addEventType(EVENT_SCAN).build());
+        assertEquals(3, registry.size());
+        assertFalse(registry.hasListeners(EVENT_CONNECTION, OTHER_ADDRESS, null));
+        assertTrue(registry.remove(scan));
+        assertFalse(registry.remove(scan));
+        assertEquals(2, registry.size());
+        registry.clear();
+        assertEquals(0, registry.dispatch(EVENT_SCAN, null, null, event(null)));
+    }
+
+    @Test
+    public void listenersOnAnExecutorReceiveOneCopyOfTransientEvents() {
+        final ListenerRegistry<Recorder> registry = new ListenerRegistry<>();
+        final List<Runnable> queue = new ArrayList<>();
+        final Recorder direct = new Recorder();
+        final Recorder first = new Recorder();
+        final Recorder second = new Recorder();
+        registry.add(direct, null, null);
+        registry.add(first, queue::add, null);
+        registry.add(second, queue::add, null);
+        final byte[] buffer = {1, 2, 3};
+        final AtomicInteger copies = new AtomicInteger();
+
+        registry.dispatch(EVENT_NOTIFICATION, ADDRESS, DATA,
+                new ListenerRegistry.TransientEvent<Recorder>() {
+                    @Override
+                    public void dispatch(Recorder listener) {
+                        listener.onValue(buffer);
+                    }
+
+                    @Override
+                    public ListenerRegistry.Event<Recorder> copy() {
+                        copies.incrementAndGet();
+                        return event(buffer.clone());
+                    }
+                });
+        // The buffer is reused once the direct listeners have returned.
+        buffer[0] = 9;
+        for (Runnable task : queue) {
+            task.run();
+        }
+        assertEquals(1, copies.get());
+        assertSame(buffer, direct.mValues.get(0));
+        assertEquals(1, first.mValues.get(0)[0]);
+        assertSame(first.mValues.get(0), second.mValues.get(0));
+    }
+
+    @Test
+    public void removedListenerDropsTheEventsQueuedForIt() {
+        final ListenerRegistry<Recorder> registry = new ListenerRegistry<>();
+        final List<Runnable> queue = new ArrayList<>();
+        final Recorder recorder = new Recorder();
+        registry.add(recorder, queue::add, null);
+        registry.dispatch(EVENT_NOTIFICATION, ADDRESS, DATA, event(null));
+        registry.remove(recorder);
+        assertEquals(1, queue.size());
+        queue.get(0).run();
+        assertEquals(0, recorder.mCount.get());
+    }
+
+    @Test
+    public void listenerMayUnregisterItselfWhileCalled() {
+        final ListenerRegistry<Recorder> registry = new ListenerRegistry<>();
+        final Recorder other = new Recorder();
+        final Recorder once = new Recorder() {
+            @Override
+            void onValue(byte[] value) {
+                super.onValue(value);
+                registry.remove(this);
+                registry.remove(other);
+            }
+        };
+        registry.add(once, null, null);
+        registry.add(other, null, null);
+        registry.dispatch(EVENT_SCAN, null, null, event(null));
+        registry.dispatch(EVENT_SCAN, null, null, event(null));
+        assertEquals(1, once.mCount.get());
+        // Removed before its turn came, so not called.
+        assertEquals(0, other.mCount.get());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void slowListenerDoesNotDelayTheOthers() throws InterruptedException {
+        final ListenerRegistry<Recorder> registry = new ListenerRegistry<>();
+        final ExecutorService ui = Executors.newSingleThreadExecutor();
+        final ExecutorService logger = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Recorder slow = new Recorder() {
+            @Override
+            void onValue(byte[] value) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onValue(value);
+            }
+        };
+        final Recorder logging = new Recorder();
+        final Recorder direct = new Recorder();
+        registry.add(slow, ui, null);
+        registry.add(logging, logger, null);
+        registry.add(direct, null, null);
+
+        final int events = 10000;
+        for (int i = 0; i < events; i++) {
+            registry.dispatch(EVENT_NOTIFICATION, ADDRESS, DATA, event(null));
+        }
+        logger.shutdown();
+        assertTrue(logger.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(events, logging.mCount.get());
+        assertEquals(events, direct.mCount.get());
+        assertEquals(0, slow.mCount.get());
+
+        release.countDown();
+        ui.shutdown();
+        assertTrue(ui.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(events, slow.mCount.get());
+    }
+
+    @Test
+    public void listenersComeAndGoWhileEventsAreDispatched() throws InterruptedException {
+        final ListenerRegistry<Recorder> registry = new ListenerRegistry<>();
+        final Recorder steady = new Recorder();
+        registry.add(steady, null, null);
+        final int dispatchers = 4;
+        final int events = 20000;
+        final Thread[] threads = new Thread[dispatchers];
+        for (int t = 0; t < dispatchers; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < events; i++) {
+                    registry.dispatch(EVENT_NOTIFICATION, ADDRESS, DATA, event(null));
+                }
+            });
+            threads[t].start();
+        }
+        for (int i = 0; i < 1000; i++) {
+            final Recorder transientListener = new Recorder();
+            registry.add(transientListener, null, null);
+            registry.remove(transientListener);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(dispatchers * events, steady.mCount.get());
+        assertEquals(1, registry.size());
+    }
+}
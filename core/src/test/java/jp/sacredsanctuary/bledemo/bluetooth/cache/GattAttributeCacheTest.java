@@ -0,0 +1,91 @@
+package jp.sacredsanctuary.bledemo.bluetooth.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link GattAttributeCache}.
+ */
+public class GattAttributeCacheTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID RX = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID TX = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static GattDatabase database(byte[] hash) {
+        return new GattDatabase.Builder()
+                .addService(GattDatabase.GENERIC_ATTRIBUTE_SERVICE, 1)
+                .addCharacteristic(GattDatabase.SERVICE_CHANGED, 2,
+                        GattDatabase.PROPERTY_INDICATE)
+                .addDescriptor(CCCD, 4)
+                .addCharacteristic(GattDatabase.DATABASE_HASH, 5, 0x02)
+                .addService(SERVICE, 16)
+                .addCharacteristic(RX, 17, 0x0C)
+                .addCharacteristic(TX, 19, GattDatabase.PROPERTY_NOTIFY)
+                .addDescriptor(CCCD, 21)
+                .setHash(hash)
+                .build();
+    }
+
+    @Test
+    public void persistsEntries() {
+        final File directory = new File(mFolder.getRoot(), "gatt");
+        final GattDatabase database = database(new byte[]{1, 2, 3, 4});
+
+        GattAttributeCache cache = new GattAttributeCache(directory);
+        assertNull(cache.get(ADDRESS));
+        assertTrue(cache.put(ADDRESS, database));
+
+        // A new instance reads the entry back from disk, as after a restart of the app.
+        cache = new GattAttributeCache(directory);
+        GattDatabase cached = cache.get(ADDRESS.toLowerCase());
+        assertNotNull(cached);
+        assertTrue(cached.hasSameAttributes(database));
+        assertTrue(cached.hasHash(new byte[]{1, 2, 3, 4}));
+        assertEquals(8, cached.getAttributeCount());
+        assertEquals(GattDatabase.PROPERTY_NOTIFY,
+                cached.findCharacteristic(SERVICE, TX).getProperties());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void invalidatesEntries() {
+        final File directory = new File(mFolder.getRoot(), "gatt");
+        GattAttributeCache cache = new GattAttributeCache(directory);
+        cache.put(ADDRESS, database(new byte[0]));
+
+        cache.invalidate(ADDRESS);
+        assertNull(cache.get(ADDRESS));
+        assertNull(new GattAttributeCache(directory).get(ADDRESS));
+        assertEquals(1, cache.getInvalidationCount());
+        assertNull(cache.get("not an address"));
+        assertFalse(cache.put("not an address", database(new byte[0])));
+    }
+
+    @Test
+    public void dropsCorruptEntries() throws IOException {
+        final File directory = new File(mFolder.getRoot(), "gatt");
+        new GattAttributeCache(directory).put(ADDRESS, database(new byte[]{1}));
+        final File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        try (FileOutputStream out = new FileOutputStream(files[0])) {
+            out.write(new byte[]{0, 0, 0, 1, 0});
+        }
+
+        assertNull(new GattAttributeCache(directory).get(ADDRESS));
+        assertFalse(files[0].exists());
+    }
+}
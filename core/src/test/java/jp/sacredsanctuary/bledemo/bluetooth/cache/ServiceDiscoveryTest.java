@@ -0,0 +1,168 @@
+package jp.sacredsanctuary.bledemo.bluetooth.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ServiceDiscovery}.
+ * <p>
+ * The peripheral is simulated on a virtual clock where every ATT request takes one connection
+ * event, which is what dominates the connect-to-ready time on a real link.
+ */
+public class ServiceDiscoveryTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final long CONNECTION_INTERVAL_MILLIS = 30;
+    // Connection establishment, in connection events.
+    private static final int CONNECT_EVENTS = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // GATT server of the simulated peripheral, answering from the virtual clock.
+    private class SimulatedPeripheral implements ServiceDiscovery.Client,
+            ServiceDiscovery.Listener {
+        GattDatabase mDatabase;
+        byte[] mHash;
+        ServiceDiscovery mDiscovery;
+        GattDatabase mResolved;
+        boolean mCached;
+        long mNowMillis;
+
+        SimulatedPeripheral(byte[] hash) {
+            mHash = hash;
+            mDatabase = GattAttributeCacheTest.database(new byte[0]);
+        }
+
+        void request(int count) {
+            mNowMillis += count * CONNECTION_INTERVAL_MILLIS;
+        }
+
+        // Connects, resolves the attributes, subscribes and exchanges the MTU.
+        long connectToReady(GattAttributeCache cache) {
+            mDiscovery = new ServiceDiscovery(cache, this, this);
+            mResolved = null;
+            final long start = mNowMillis;
+            request(CONNECT_EVENTS);
+            mDiscovery.start(ADDRESS);
+            assertNotNull(mResolved);
+            for (GattDatabase.Service service : mResolved.getServices()) {
+                for (GattDatabase.Characteristic characteristic : service.getCharacteristics()) {
+                    if (characteristic.isSubscribable()) request(1);
+                }
+            }
+            request(1);
+            return mNowMillis - start;
+        }
+
+        @Override
+        public boolean canUseCachedDatabase(GattDatabase database) {
+            return true;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            // Primary services, then the characteristics of every service and the descriptors
+            // of every characteristic, each procedure ending with an empty response.
+            int requests = 1;
+            for (GattDatabase.Service service : mDatabase.getServices()) {
+                requests += 2;
+                for (GattDatabase.Characteristic characteristic : service.getCharacteristics()) {
+                    requests += 2 + characteristic.getDescriptors().size();
+                }
+            }
+            request(requests);
+            mDiscovery.onServicesDiscovered(mDatabase);
+            return true;
+        }
+
+        @Override
+        public boolean readDatabaseHash() {
+            request(1);
+            mDiscovery.onDatabaseHashRead(mHash);
+            return true;
+        }
+
+        @Override
+        public void onDiscoveryCompleted(GattDatabase database, boolean cached) {
+            mResolved = database;
+            mCached = cached;
+        }
+
+        @Override
+        public void onDiscoveryFailed() {
+            fail();
+        }
+    }
+
+    @Test
+    public void reconnectSkipsDiscovery() {
+        final File directory = new File(mFolder.getRoot(), "gatt");
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(new byte[]{7, 7, 7, 7});
+        GattAttributeCache cache = new GattAttributeCache(directory);
+
+        final long uncached = peripheral.connectToReady(cache);
+        assertFalse(peripheral.mCached);
+        assertTrue(peripheral.mResolved.hasHash(new byte[]{7, 7, 7, 7}));
+
+        final long cached = peripheral.connectToReady(cache);
+        assertTrue(peripheral.mCached);
+        // The cache survives a restart of the app.
+        final long restarted = peripheral.connectToReady(new GattAttributeCache(directory));
+        assertTrue(peripheral.mCached);
+
+        // Connect-to-ready times on the simulated link.
+        assertEquals(660, uncached);
+        assertEquals(210, cached);
+        assertTrue(cached < uncached / 2);
+        assertEquals(cached, restarted);
+    }
+
+    @Test
+    public void changedDatabaseIsDiscoveredAgain() {
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(new byte[]{1});
+        GattAttributeCache cache = new GattAttributeCache(new File(mFolder.getRoot(), "gatt"));
+        peripheral.connectToReady(cache);
+
+        // A firmware update changed the database while disconnected.
+        peripheral.mHash = new byte[]{2};
+        peripheral.connectToReady(cache);
+        assertFalse(peripheral.mCached);
+        assertTrue(peripheral.mResolved.hasHash(new byte[]{2}));
+        assertEquals(1, cache.getInvalidationCount());
+
+        // The database changes while connected.
+        peripheral.mHash = new byte[]{3};
+        peripheral.mDiscovery.onServiceChanged();
+        assertFalse(peripheral.mCached);
+        assertTrue(peripheral.mResolved.hasHash(new byte[]{3}));
+        assertEquals(2, cache.getInvalidationCount());
+        assertEquals(2, peripheral.mDiscovery.getDiscoveredCount());
+
+        peripheral.connectToReady(cache);
+        assertTrue(peripheral.mCached);
+    }
+
+    @Test
+    public void tableWithoutHashIsTrustedUntilServiceChanged() {
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(null);
+        peripheral.mDatabase = new GattDatabase.Builder()
+                .addService(GattDatabase.GENERIC_ATTRIBUTE_SERVICE, 1)
+                .addCharacteristic(GattDatabase.SERVICE_CHANGED, 2,
+                        GattDatabase.PROPERTY_INDICATE)
+                .build();
+        GattAttributeCache cache = new GattAttributeCache(new File(mFolder.getRoot(), "gatt"));
+
+        peripheral.connectToReady(cache);
+        assertFalse(peripheral.mResolved.hasHash());
+        peripheral.connectToReady(cache);
+        assertTrue(peripheral.mCached);
+
+        peripheral.mDiscovery.onServiceChanged();
+        assertFalse(peripheral.mCached);
+    }
+}
@@ -0,0 +1,146 @@
+package jp.sacredsanctuary.bledemo.bluetooth.framing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the {@link FrameDecoder} implementations and
+ * {@link NotificationReassembler}.
+ */
+public class FrameDecoderTest {
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final FrameDecoder.FrameListener mListener =
+            (buffer, offset, length) -> mFrames.add(Arrays.copyOfRange(buffer, offset,
+                    offset + length));
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private void feed(FrameDecoder decoder, byte[] stream, int packetSize) {
+        for (int offset = 0; offset < stream.length; offset += packetSize) {
+            decoder.decode(stream, offset, Math.min(packetSize, stream.length - offset),
+                    mListener);
+        }
+    }
+
+    @Test
+    public void lengthPrefixed_reassemblesAcrossPackets() {
+        FrameDecoder decoder = new LengthPrefixedFrameDecoder(2, true, 1024);
+        byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        byte[] stream = new byte[302];
+        stream[0] = 0x01;
+        stream[1] = 0x2C;
+        System.arraycopy(payload, 0, stream, 2, payload.length);
+
+        feed(decoder, stream, 20);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(payload, mFrames.get(0));
+    }
+
+    @Test
+    public void lengthPrefixed_splitsSeveralMessagesInOnePacket() {
+        FrameDecoder decoder = new LengthPrefixedFrameDecoder(1, true, 16);
+
+        decoder.decode(bytes(2, 0xA, 0xB, 0, 1, 0xC, 2), 0, 7, mListener);
+        decoder.decode(bytes(0xD, 0xE), 0, 2, mListener);
+
+        assertEquals(4, mFrames.size());
+        assertArrayEquals(bytes(0xA, 0xB), mFrames.get(0));
+        assertArrayEquals(bytes(), mFrames.get(1));
+        assertArrayEquals(bytes(0xC), mFrames.get(2));
+        assertArrayEquals(bytes(0xD, 0xE), mFrames.get(3));
+    }
+
+    @Test
+    public void lengthPrefixed_littleEndianHeader() {
+        FrameDecoder decoder = new LengthPrefixedFrameDecoder(4, false, 16);
+
+        feed(decoder, bytes(3, 0, 0, 0, 7, 8, 9), 1);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(bytes(7, 8, 9), mFrames.get(0));
+    }
+
+    @Test
+    public void lengthPrefixed_skipsOversizedMessage() {
+        FrameDecoder decoder = new LengthPrefixedFrameDecoder(1, true, 2);
+
+        decoder.decode(bytes(3, 1, 2, 3, 2, 4, 5), 0, 7, mListener);
+
+        assertEquals(1, decoder.getErrorCount());
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(bytes(4, 5), mFrames.get(0));
+    }
+
+    @Test
+    public void lengthPrefixed_completePacketIsNotCopied() {
+        FrameDecoder decoder = new LengthPrefixedFrameDecoder(1, true, 16);
+        byte[] packet = bytes(2, 0xA, 0xB);
+        final byte[][] delivered = new byte[1][];
+
+        decoder.decode(packet, 0, packet.length, (buffer, offset, length) -> delivered[0] = buffer);
+
+        assertSame(packet, delivered[0]);
+    }
+
+    @Test
+    public void slip_decodesEscapedBytesAcrossPackets() {
+        FrameDecoder decoder = new SlipFrameDecoder(64);
+        byte[] payload = bytes(1, 0xC0, 2, 0xDB, 3);
+        byte[] frame = SlipFrameDecoder.encode(payload, 0, payload.length);
+
+        feed(decoder, frame, 2);
+        feed(decoder, frame, 3);
+
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(payload, mFrames.get(0));
+        assertArrayEquals(payload, mFrames.get(1));
+    }
+
+    @Test
+    public void slip_dropsOverflowUntilNextEnd() {
+        FrameDecoder decoder = new SlipFrameDecoder(2);
+
+        decoder.decode(bytes(1, 2, 3, 0xC0, 4, 0xC0, 0xC0), 0, 7, mListener);
+
+        assertEquals(1, decoder.getErrorCount());
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(bytes(4), mFrames.get(0));
+    }
+
+    @Test
+    public void reassembler_keepsStatePerCharacteristic() {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        List<UUID> sources = new ArrayList<>();
+        NotificationReassembler reassembler = new NotificationReassembler();
+        reassembler.setDecoder(first, new LengthPrefixedFrameDecoder(1, true, 16));
+        reassembler.setDecoder(second, new LengthPrefixedFrameDecoder(1, true, 16));
+        reassembler.setListener((uuid, buffer, offset, length) -> {
+            sources.add(uuid);
+            mFrames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        });
+
+        assertTrue(reassembler.onNotification(first, bytes(2, 1)));
+        assertTrue(reassembler.onNotification(second, bytes(1, 9)));
+        assertTrue(reassembler.onNotification(first, bytes(2)));
+        assertFalse(reassembler.onNotification(UUID.randomUUID(), bytes(1, 1)));
+
+        assertEquals(Arrays.asList(second, first), sources);
+        assertArrayEquals(bytes(9), mFrames.get(0));
+        assertArrayEquals(bytes(1, 2), mFrames.get(1));
+    }
+}
@@ -0,0 +1,239 @@
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link NotificationRecorder} and {@link NotificationLogReader}, checking
+ * that the recording allocates nothing. Throughput is measured by NotificationRecorderBenchmark.
+ */
+public class NotificationRecorderTest {
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+    private static final String[] DEVICES = {"00:11:22:33:44:55", "00:11:22:33:44:66"};
+    private static final UUID[] CHARACTERISTICS = {
+            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e")};
+    private static final NotificationRecorder.Dictionary DICTIONARY =
+            new NotificationRecorder.Dictionary() {
+                @Override
+                public String getDeviceAddress(int device) {
+                    return DEVICES[device];
+                }
+
+                @Override
+                public UUID getCharacteristic(int characteristic) {
+                    return CHARACTERISTICS[characteristic];
+                }
+            };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] valueOf(int index, int length) {
+        final byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (index + i);
+        }
+        return value;
+    }
+
+    /**
+     * Appends notifications of 20 bytes, one per millisecond, alternating devices.
+     */
+    private static void record(NotificationRecorder recorder, int from, int count)
+            throws Exception {
+        for (int index = from; index < from + count; index++) {
+            assertTrue(recorder.append(index * MILLIS, index % 2, index % 3 == 0 ? 1 : 0,
+                    valueOf(index, 20), 0, 20));
+        }
+    }
+
+    /**
+     * Reads the notifications back, checking them, and returns the index of the first.
+     */
+    private static int check(NotificationLogReader reader, int count) throws Exception {
+        int first = -1;
+        int read = 0;
+        while (reader.next()) {
+            final int index = (int) (reader.getTimestampNanos() / MILLIS);
+            if (first < 0) first = index;
+            assertEquals(first + read, index);
+            assertEquals(DEVICES[index % 2], reader.getDeviceAddress());
+            assertEquals(CHARACTERISTICS[index % 3 == 0 ? 1 : 0], reader.getCharacteristic());
+            assertArrayEquals(valueOf(index, 20), reader.getValue());
+            read++;
+        }
+        assertEquals(count, read);
+        return first;
+    }
+
+    @Test
+    public void readsBackCompactRecords() throws Exception {
+        final File directory = mFolder.newFolder();
+        final NotificationRecorder recorder = new NotificationRecorder(directory, DICTIONARY,
+                RecordingPolicy.DEFAULT);
+        record(recorder, 0, 1000);
+        // Variable lengths, out of order timestamps and large indexes are kept as they are.
+        final byte[] large = valueOf(7, 514);
+        assertTrue(recorder.append(2 * SECOND, 0, 1, large, 0, 514));
+        assertTrue(recorder.append(SECOND, 1, 0, large, 0, 0));
+        recorder.close();
+        assertEquals(1002, recorder.getRecordCount());
+        assertEquals(1, recorder.getSegments().size());
+        assertEquals(recorder.getBytesWritten(), recorder.getSegments().get(0).length());
+        // Header, definitions and 27 bytes per notification of 20 bytes.
+        assertTrue(recorder.getBytesWritten() < 24 + 64 + 1000 * 27 + 600);
+
+        final NotificationLogReader reader = new NotificationLogReader(directory);
+        for (int index = 0; index < 1000; index++) {
+            assertTrue(reader.next());
+            assertEquals(index * MILLIS, reader.getTimestampNanos());
+            assertEquals(DEVICES[index % 2], reader.getDeviceAddress());
+            assertEquals(index % 2, reader.getDevice());
+            assertArrayEquals(valueOf(index, 20), reader.getValue());
+        }
+        assertTrue(reader.next());
+        assertEquals(2 * SECOND, reader.getTimestampNanos());
+        assertEquals(1, reader.getCharacteristicIndex());
+        assertArrayEquals(large, reader.getValue());
+        assertTrue(reader.next());
+        assertEquals(SECOND, reader.getTimestampNanos());
+        assertEquals(0, reader.getLength());
+        assertFalse(reader.next());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void rotatesSegmentsBySizeAndAge() throws Exception {
+        final File directory = mFolder.newFolder();
+        final NotificationRecorder recorder = new NotificationRecorder(directory, DICTIONARY,
+                new RecordingPolicy(RecordingPolicy.MIN_SEGMENT_SIZE, SECOND, 0, 0, 3));
+        record(recorder, 0, 1000);
+        // 27 kB in segments of 4 kB, of which the 3 most recent are kept.
+        final List<File> segments = recorder.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(segments, NotificationLogReader.listSegments(directory));
+
+        // Each segment names its devices and characteristics again.
+        recorder.close();
+        final NotificationLogReader last = new NotificationLogReader(segments.subList(2, 3));
+        assertTrue(last.next());
+        assertNotNull(last.getDeviceAddress());
+        assertNotNull(last.getCharacteristic());
+
+        final NotificationLogReader reader = new NotificationLogReader(directory);
+        int count = 0;
+        while (reader.next()) {
+            count++;
+        }
+        // The notifications kept are the most recent ones.
+        assertEquals(1000, check(new NotificationLogReader(directory), count) + count);
+
+        // A recorder opened on the directory numbers its segments after the existing ones.
+        final NotificationRecorder aged = new NotificationRecorder(directory, DICTIONARY,
+                new RecordingPolicy(RecordingPolicy.MIN_SEGMENT_SIZE, SECOND, 0, 0, 0));
+        record(aged, 1000, 10);
+        final File open = aged.getSegments().get(3);
+        aged.tick(1000 * MILLIS + SECOND - 1);
+        assertEquals(RecordingPolicy.MIN_SEGMENT_SIZE, open.length());
+        // Closed a second after it was opened, and cut to its records.
+        aged.tick(1000 * MILLIS + SECOND);
+        assertEquals(aged.getBytesWritten(), open.length());
+        assertEquals(4, aged.getSegments().size());
+        record(aged, 3000, 10);
+        assertEquals(5, aged.getSegments().size());
+        aged.close();
+        final List<File> all = NotificationLogReader.listSegments(directory);
+        assertEquals(5, all.size());
+        assertEquals(3000, check(new NotificationLogReader(all.subList(4, 5)), 10));
+    }
+
+    @Test
+    public void batchesSyncs() throws Exception {
+        final NotificationRecorder bySize = new NotificationRecorder(mFolder.newFolder(),
+                DICTIONARY, new RecordingPolicy(1 << 20, 0, 1024, 0, 0));
+        record(bySize, 0, 1000);
+        // Each sync writes between 1 kB and 1 kB and a record.
+        final long bytes = bySize.getBytesWritten();
+        assertTrue(bySize.getSyncCount() <= bytes / 1024);
+        assertTrue(bySize.getSyncCount() >= bytes / (1024 + 64));
+
+        final NotificationRecorder byTime = new NotificationRecorder(mFolder.newFolder(),
+                DICTIONARY, new RecordingPolicy(1 << 20, 0, 0, 100 * MILLIS, 0));
+        record(byTime, 0, 1000);
+        // At 100, 201, 302 ... 908 ms.
+        assertEquals(9, byTime.getSyncCount());
+        // Without notifications, the pending data is synced by the ticks.
+        byTime.tick(1008 * MILLIS);
+        assertEquals(9, byTime.getSyncCount());
+        byTime.tick(1009 * MILLIS);
+        assertEquals(10, byTime.getSyncCount());
+        byTime.tick(2 * SECOND);
+        assertEquals(10, byTime.getSyncCount());
+    }
+
+    @Test
+    public void readsUpToTheLastCompleteRecord() throws Exception {
+        final File directory = mFolder.newFolder();
+        final NotificationRecorder recorder = new NotificationRecorder(directory, DICTIONARY,
+                RecordingPolicy.DEFAULT);
+        record(recorder, 0, 100);
+        // The segment being written is read while it is mapped at its full size.
+        assertEquals(RecordingPolicy.DEFAULT.getSegmentSize(),
+                recorder.getSegments().get(0).length());
+        assertEquals(0, check(new NotificationLogReader(directory), 100));
+        recorder.close();
+
+        // A segment cut in the middle of a record ends with the record before it.
+        final File segment = recorder.getSegments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        assertEquals(0, check(new NotificationLogReader(directory), 99));
+
+        // Segments that were never synced are empty.
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory,
+                NotificationRecorder.SEGMENT_PREFIX + "0000000009"
+                        + NotificationRecorder.SEGMENT_SUFFIX), "rw")) {
+            file.setLength(4096);
+        }
+        assertEquals(0, check(new NotificationLogReader(directory), 99));
+    }
+
+    @Test
+    public void appendAllocatesNothing() throws Exception {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final boolean allocations = threads instanceof com.sun.management.ThreadMXBean;
+        final NotificationRecorder recorder = new NotificationRecorder(mFolder.newFolder(),
+                DICTIONARY, new RecordingPolicy(64 << 20, 0, 64 << 10, SECOND, 0));
+        final byte[] value = valueOf(0, 20);
+        final int count = 1000000;
+        // Warm up, then measure in the mapped segment.
+        for (int index = 0; index < count / 10; index++) {
+            recorder.append(index * MILLIS, index & 1, 0, value, 0, 20);
+        }
+        final long thread = Thread.currentThread().getId();
+        final long allocated = allocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread) : 0;
+        for (int index = count / 10; index < count; index++) {
+            recorder.append(index * MILLIS, index & 1, 0, value, 0, 20);
+        }
+        final long garbage = allocations
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread)
+                - allocated : 0;
+        recorder.close();
+        assertEquals(count, recorder.getRecordCount());
+        assertEquals(0, recorder.getDroppedCount());
+        assertTrue("allocated " + garbage, garbage < 16 * 1024);
+    }
+}
@@ -0,0 +1,296 @@
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link NotificationRingBuffer}, with its overflow policies and wait
+ * strategies. Throughput and latency are measured by NotificationRingBufferBenchmark.
+ */
+public class NotificationRingBufferTest {
+    private static final long MILLIS = 1000000L;
+    private static final int PAYLOAD = 20;
+    private static final int COUNT = 200000;
+
+    private static byte[] valueOf(long sequence) {
+        final byte[] value = new byte[PAYLOAD];
+        for (int i = 0; i < 8; i++) {
+            value[i] = (byte) (sequence >>> (8 * i));
+        }
+        return value;
+    }
+
+    private static long sequenceOf(byte[] buffer, int offset) {
+        long sequence = 0;
+        for (int i = 7; i >= 0; i--) {
+            sequence = (sequence << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return sequence;
+    }
+
+    private static boolean publish(NotificationRingBuffer buffer, long sequence) {
+        return buffer.publish(sequence * 10, (int) sequence % 3, 1, valueOf(sequence), 0,
+                PAYLOAD);
+    }
+
+    /**
+     * Collects the sequences decoded from the payloads, checking every field of the slot.
+     */
+    private static final class Collector implements NotificationRingBuffer.Handler {
+        private final List<Long> mValues = new ArrayList<>();
+        private int mBatches = 0;
+
+        @Override
+        public void onNotification(long sequence, long timestampNanos, int device,
+                int characteristic, byte[] buffer, int offset, int length, boolean endOfBatch) {
+            final long value = sequenceOf(buffer, offset);
+            assertEquals(sequence, value);
+            assertEquals(value * 10, timestampNanos);
+            assertEquals(value % 3, device);
+            assertEquals(1, characteristic);
+            assertEquals(PAYLOAD, length);
+            mValues.add(value);
+            if (endOfBatch) mBatches++;
+        }
+    }
+
+    @Test
+    public void consumersDrainBatchesInPlace() {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(8, PAYLOAD,
+                NotificationRingBuffer.OVERFLOW_BLOCK, NotificationRingBuffer.WAIT_SLEEPING);
+        final NotificationRingBuffer.Consumer first = buffer.newConsumer();
+        final NotificationRingBuffer.Consumer second = buffer.newConsumer();
+        for (long sequence = 0; sequence < 5; sequence++) {
+            assertTrue(publish(buffer, sequence));
+        }
+        assertEquals(5, buffer.getPublishedCount());
+        assertEquals(5, first.getBacklog());
+
+        final Collector collector = new Collector();
+        assertEquals(3, first.poll(collector, 3));
+        assertEquals(2, first.poll(collector, 3));
+        assertEquals(0, first.poll(collector, 3));
+        assertEquals(2, collector.mBatches);
+        assertEquals(0, first.getBacklog());
+
+        // Each consumer reads every notification.
+        final Collector other = new Collector();
+        assertEquals(5, second.poll(other, 16));
+        assertEquals(collector.mValues, other.mValues);
+        assertEquals(1, other.mBatches);
+
+        // A consumer added later starts from the cursor.
+        final NotificationRingBuffer.Consumer late = buffer.newConsumer();
+        assertEquals(0, late.poll(new Collector(), 16));
+        assertEquals(3, buffer.getConsumerCount());
+        assertTrue(buffer.removeConsumer(late));
+        assertFalse(buffer.removeConsumer(late));
+    }
+
+    @Test
+    public void dropNewestKeepsWhatConsumersHaveNotRead() {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(4, PAYLOAD,
+                NotificationRingBuffer.OVERFLOW_DROP_NEWEST, NotificationRingBuffer.WAIT_YIELDING);
+        final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+        for (long sequence = 0; sequence < 4; sequence++) {
+            assertTrue(publish(buffer, sequence));
+        }
+        assertFalse(publish(buffer, 4));
+        assertFalse(publish(buffer, 4));
+        assertEquals(2, buffer.getDroppedCount());
+
+        final Collector collector = new Collector();
+        assertEquals(4, consumer.poll(collector, 16));
+        assertTrue(publish(buffer, 4));
+        assertEquals(1, consumer.poll(collector, 16));
+        assertEquals(5, collector.mValues.size());
+
+        // Without consumers nothing is kept, so nothing is dropped.
+        buffer.removeConsumer(consumer);
+        for (long sequence = 5; sequence < 20; sequence++) {
+            assertTrue(publish(buffer, sequence));
+        }
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestOverwritesWhatConsumersHaveNotRead() {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(4, PAYLOAD,
+                NotificationRingBuffer.OVERFLOW_DROP_OLDEST, NotificationRingBuffer.WAIT_YIELDING);
+        final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+        for (long sequence = 0; sequence < 10; sequence++) {
+            assertTrue(publish(buffer, sequence));
+        }
+        final Collector collector = new Collector();
+        assertEquals(4, consumer.poll(collector, 16));
+        assertEquals(6, consumer.getLostCount());
+        assertEquals(0, buffer.getDroppedCount());
+        assertEquals(6L, (long) collector.mValues.get(0));
+        assertEquals(9L, (long) collector.mValues.get(3));
+        assertEquals(1, collector.mBatches);
+    }
+
+    @Test
+    public void blockWaitsForTheSlowestConsumer() throws Exception {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(4, PAYLOAD,
+                NotificationRingBuffer.OVERFLOW_BLOCK, NotificationRingBuffer.WAIT_BLOCKING);
+        final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread producer = new Thread(() -> {
+            for (long sequence = 0; sequence < 8; sequence++) {
+                publish(buffer, sequence);
+            }
+            done.countDown();
+        });
+        producer.start();
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(3, buffer.getCursor());
+
+        final Collector collector = new Collector();
+        while (collector.mValues.size() < 8) {
+            consumer.take(collector, 2, 1000 * MILLIS);
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(0, buffer.getDroppedCount());
+        assertEquals(0, consumer.getLostCount());
+    }
+
+    @Test
+    public void takeWaitsForTheProducer() throws Exception {
+        for (int strategy = NotificationRingBuffer.WAIT_BUSY_SPIN;
+                strategy <= NotificationRingBuffer.WAIT_BLOCKING; strategy++) {
+            final NotificationRingBuffer buffer = new NotificationRingBuffer(4, PAYLOAD,
+                    NotificationRingBuffer.OVERFLOW_BLOCK, strategy);
+            final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+            final Collector collector = new Collector();
+            assertEquals(0, consumer.take(collector, 4, 5 * MILLIS));
+
+            final Thread producer = new Thread(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                publish(buffer, 0);
+            });
+            producer.start();
+            assertEquals("strategy " + strategy, 1,
+                    consumer.take(collector, 4, 5000 * MILLIS));
+            producer.join();
+        }
+    }
+
+    @Test
+    public void dropOldestNeverHandsOverTornSlots() throws Exception {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(16, PAYLOAD,
+                NotificationRingBuffer.OVERFLOW_DROP_OLDEST, NotificationRingBuffer.WAIT_YIELDING);
+        final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[] received = new long[1];
+        final Thread reader = new Thread(() -> {
+            final NotificationRingBuffer.Handler handler = (sequence, timestampNanos, device,
+                    characteristic, value, offset, length, endOfBatch) -> {
+                // The payload and the other fields come from the same publication.
+                if (sequenceOf(value, offset) != sequence || timestampNanos != sequence * 10) {
+                    failure.compareAndSet(null, new AssertionError("torn slot " + sequence));
+                }
+                received[0]++;
+            };
+            try {
+                while (consumer.getSequence() < COUNT - 1) {
+                    consumer.take(handler, 8, 100 * MILLIS);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+        reader.start();
+        for (long sequence = 0; sequence < COUNT; sequence++) {
+            publish(buffer, sequence);
+        }
+        reader.join(10000);
+        assertNull(failure.get());
+        assertEquals(COUNT, received[0] + consumer.getLostCount());
+    }
+
+    @Test
+    public void dropOldestKeepsOrderAcrossLaps() {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(4, PAYLOAD,
+                NotificationRingBuffer.OVERFLOW_DROP_OLDEST, NotificationRingBuffer.WAIT_YIELDING);
+        final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+        final Collector collector = new Collector();
+        long sequence = 0;
+        for (int lap = 1; lap <= 100; lap++) {
+            // Up to two laps of the ring between polls, so some of them overwrite.
+            final int published = lap % 9;
+            for (int i = 0; i < published; i++) {
+                assertTrue(publish(buffer, sequence++));
+            }
+            final int size = collector.mValues.size();
+            consumer.poll(collector, 16);
+            // The newest notifications are kept, oldest first.
+            final int kept = Math.min(published, 4);
+            assertEquals(kept, collector.mValues.size() - size);
+            for (int i = 0; i < kept; i++) {
+                assertEquals(sequence - kept + i, (long) collector.mValues.get(size + i));
+            }
+        }
+        assertEquals(sequence, collector.mValues.size() + consumer.getLostCount());
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void everyWaitStrategyDeliversEveryNotificationInOrder() throws Exception {
+        final int consumers = 2;
+        final boolean spin = Runtime.getRuntime().availableProcessors() > consumers;
+        for (int strategy = spin ? NotificationRingBuffer.WAIT_BUSY_SPIN
+                : NotificationRingBuffer.WAIT_YIELDING;
+                strategy <= NotificationRingBuffer.WAIT_BLOCKING; strategy++) {
+            // Many laps of a small ring, with the producer waiting for the consumers.
+            final NotificationRingBuffer buffer = new NotificationRingBuffer(64, PAYLOAD,
+                    NotificationRingBuffer.OVERFLOW_BLOCK, strategy);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final long[] received = new long[consumers];
+            final Thread[] threads = new Thread[consumers];
+            for (int i = 0; i < consumers; i++) {
+                final NotificationRingBuffer.Consumer consumer = buffer.newConsumer();
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    final NotificationRingBuffer.Handler handler = (sequence, timestampNanos,
+                            device, characteristic, value, offset, length, endOfBatch) -> {
+                        if (sequence != received[index]++ || sequenceOf(value, offset) != sequence
+                                || timestampNanos != sequence * 10) {
+                            failure.compareAndSet(null, new AssertionError("gap " + sequence));
+                        }
+                    };
+                    try {
+                        while (received[index] < COUNT) {
+                            consumer.take(handler, 16, 100 * MILLIS);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                });
+                threads[i].start();
+            }
+            for (long sequence = 0; sequence < COUNT; sequence++) {
+                publish(buffer, sequence);
+            }
+            for (Thread thread : threads) {
+                thread.join(10000);
+            }
+            assertNull(failure.get());
+            for (int i = 0; i < consumers; i++) {
+                assertEquals(COUNT, received[i]);
+            }
+            assertEquals(0, buffer.getDroppedCount());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package jp.sacredsanctuary.bledemo.bluetooth.notification;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link NotificationStream}.
+ */
+public class NotificationStreamTest {
+    private static final UUID HEART_RATE =
+            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void numbersDevicesAndCharacteristicsInOrderOfAppearance() {
+        final NotificationStream stream = new NotificationStream(new NotificationRingBuffer(8, 4,
+                NotificationRingBuffer.OVERFLOW_DROP_OLDEST,
+                NotificationRingBuffer.WAIT_SLEEPING));
+        final NotificationRingBuffer.Consumer consumer = stream.getBuffer().newConsumer();
+        assertTrue(stream.publish(1, "00:11:22:33:44:55", HEART_RATE, new byte[]{1, 2}));
+        assertTrue(stream.publish(2, "00:11:22:33:44:66", BATTERY, new byte[]{3}));
+        assertTrue(stream.publish(3, "00:11:22:33:44:55", BATTERY, new byte[]{4, 5, 6, 7, 8}));
+
+        final int[] devices = new int[3];
+        final int[] characteristics = new int[3];
+        final int[] lengths = new int[3];
+        assertEquals(3, consumer.poll((sequence, timestampNanos, device, characteristic, buffer,
+                offset, length, endOfBatch) -> {
+            devices[(int) sequence] = device;
+            characteristics[(int) sequence] = characteristic;
+            lengths[(int) sequence] = length;
+        }, 8));
+        assertArrayEquals(new int[]{0, 1, 0}, devices);
+        assertArrayEquals(new int[]{0, 1, 1}, characteristics);
+        assertArrayEquals(new int[]{2, 1, 4}, lengths);
+        assertEquals("00:11:22:33:44:66", stream.getDeviceAddress(1));
+        assertEquals(BATTERY, stream.getCharacteristic(1));
+        assertNull(stream.getDeviceAddress(2));
+        assertEquals(1, stream.getTruncatedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMalformedAddresses() {
+        new NotificationStream(new NotificationRingBuffer(8, 4,
+                NotificationRingBuffer.OVERFLOW_BLOCK, NotificationRingBuffer.WAIT_SLEEPING))
+                .publish(1, "00:11", BATTERY, new byte[0]);
+    }
+}
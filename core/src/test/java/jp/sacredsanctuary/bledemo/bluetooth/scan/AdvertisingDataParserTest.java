@@ -0,0 +1,150 @@
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link AdvertisingDataParser}.
+ */
+public class AdvertisingDataParserTest {
+    // iBeacon: flags, Apple manufacturer data.
+    static final byte[] IBEACON = hex("0201061AFF4C000215"
+            + "E2C56DB5DFFB48D2B060D0F5A71096E0" + "00010002C5");
+    // Eddystone-URL: flags, 16-bit service UUID list, service data.
+    static final byte[] EDDYSTONE = hex("0201060303AAFE0D16AAFE10EB03676F6F676C6500");
+    // Heart rate sensor: flags, 16-bit service UUID list, TX power, complete local name.
+    static final byte[] HEART_RATE = hex("02010605030D180F18020AF40A0948524D2D3132333435");
+    // UART peripheral: flags, 128-bit service UUID list, shortened local name, padding.
+    static final byte[] UART = hex("0201061107"
+            + "9ECADC240EE5A9E093F3A3B50100406E" + "05084E555331" + "00000000");
+    static final byte[][] CAPTURED_RECORDS = {IBEACON, EDDYSTONE, HEART_RATE, UART};
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static long uuid16(int uuid) {
+        return AdvertisingDataParser.BASE_UUID_MOST_SIGNIFICANT_BITS | (long) uuid << 32;
+    }
+
+    @Test
+    public void parsesManufacturerData() {
+        AdvertisingDataParser parser = new AdvertisingDataParser()
+                .reset(IBEACON, 0, IBEACON.length);
+
+        assertTrue(parser.next());
+        assertEquals(AdvertisingDataParser.TYPE_FLAGS, parser.getType());
+        assertEquals(0x06, parser.getFlags());
+        assertTrue(parser.next());
+        assertEquals(AdvertisingDataParser.TYPE_MANUFACTURER_SPECIFIC_DATA, parser.getType());
+        assertEquals(0x004C, parser.getManufacturerId());
+        assertEquals(25, parser.getDataLength());
+        assertEquals(0x02, parser.getByte(2));
+        assertFalse(parser.next());
+        assertFalse(parser.isMalformed());
+    }
+
+    @Test
+    public void parsesServiceUuidsAndData() {
+        AdvertisingDataParser parser = new AdvertisingDataParser();
+
+        parser.reset(HEART_RATE, 0, HEART_RATE.length);
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_COMPLETE_SERVICE_UUIDS_16));
+        assertEquals(2, parser.getUuidCount());
+        assertEquals(uuid16(0x180F), parser.getUuidMostSignificantBits(1));
+        assertTrue(parser.containsUuid(uuid16(0x180D),
+                AdvertisingDataParser.BASE_UUID_LEAST_SIGNIFICANT_BITS));
+        assertFalse(parser.containsUuid(uuid16(0x1810),
+                AdvertisingDataParser.BASE_UUID_LEAST_SIGNIFICANT_BITS));
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_TX_POWER_LEVEL));
+        assertEquals(-12, parser.getTxPowerLevel());
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_COMPLETE_LOCAL_NAME));
+        assertTrue(parser.startsWith("HRM-".getBytes(StandardCharsets.UTF_8)));
+
+        parser.reset(UART, 0, UART.length);
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_COMPLETE_SERVICE_UUIDS_128));
+        assertEquals(1, parser.getUuidCount());
+        assertEquals(0x6E400001B5A3F393L, parser.getUuidMostSignificantBits(0));
+        assertEquals(0xE0A9E50E24DCCA9EL, parser.getUuidLeastSignificantBits(0));
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_SHORTENED_LOCAL_NAME));
+        // Parsing stops at the zero padding.
+        assertFalse(parser.next());
+        assertFalse(parser.isMalformed());
+
+        parser.reset(EDDYSTONE, 0, EDDYSTONE.length);
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_SERVICE_DATA_16));
+        assertEquals(1, parser.getUuidCount());
+        assertEquals(uuid16(0xFEAA), parser.getUuidMostSignificantBits(0));
+        assertEquals(0x10, parser.getByte(parser.getUuidSize()));
+    }
+
+    @Test
+    public void stopsAtTruncatedStructure() {
+        AdvertisingDataParser parser = new AdvertisingDataParser()
+                .reset(HEART_RATE, 0, HEART_RATE.length - 1);
+
+        assertTrue(parser.next(AdvertisingDataParser.TYPE_TX_POWER_LEVEL));
+        assertFalse(parser.next());
+        assertTrue(parser.isMalformed());
+        assertEquals(-1, parser.getType());
+
+        parser.reset(null, 0, 0);
+        assertFalse(parser.next());
+        assertFalse(parser.isMalformed());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsReadPastStructure() {
+        AdvertisingDataParser parser = new AdvertisingDataParser()
+                .reset(IBEACON, 0, IBEACON.length);
+        parser.next();
+        parser.getManufacturerId();
+    }
+
+    @Test
+    public void parsesWithoutAllocating() {
+        AdvertisingDataParser parser = new AdvertisingDataParser();
+        long checksum = 0;
+        for (int i = 0; i < 100000; i++) {
+            checksum += walk(parser, CAPTURED_RECORDS[i & 3]);
+        }
+
+        final long allocatedBefore = getAllocatedBytes();
+        for (int i = 0; i < 1000000; i++) {
+            checksum += walk(parser, CAPTURED_RECORDS[i & 3]);
+        }
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        assertTrue(checksum != 0);
+        if (allocatedBefore >= 0) {
+            assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        }
+    }
+
+    private static long walk(AdvertisingDataParser parser, byte[] record) {
+        long checksum = 0;
+        parser.reset(record, 0, record.length);
+        while (parser.next()) {
+            checksum += parser.getType();
+            for (int i = 0; i < parser.getUuidCount(); i++) {
+                checksum ^= parser.getUuidMostSignificantBits(i);
+            }
+        }
+        return checksum;
+    }
+
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+}
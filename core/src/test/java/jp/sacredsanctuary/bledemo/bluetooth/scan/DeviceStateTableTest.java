@@ -0,0 +1,106 @@
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link DeviceStateTable}.
+ */
+public class DeviceStateTableTest {
+    private static final long SECOND = 1000000000L;
+    private static final byte[] RECORD = {2, 1, 6, 3, 3, (byte) 0xAA, (byte) 0xFE};
+
+    @Test
+    public void keepsLatestStatePerDevice() {
+        DeviceStateTable<String> table = new DeviceStateTable<>(4, 0);
+        assertTrue(table.update(1L, -70, 10, RECORD, "first"));
+        assertFalse(table.update(1L, -40, 20, new byte[]{1}, "second"));
+
+        assertEquals(1, table.size());
+        assertEquals(2, table.getCount(1L));
+        assertEquals(-40, table.getRssi(1L, 0));
+        assertEquals(20, table.getTimestampNanos(1L));
+        assertEquals("second", table.getValue(1L));
+        table.forEach((address, rssi, timestampNanos, record, recordLength, count, value) -> {
+            assertEquals(1, recordLength);
+            assertEquals(1, record[0]);
+        });
+    }
+
+    @Test
+    public void evictsLeastRecentlyUpdatedDevice() {
+        DeviceStateTable<String> table = new DeviceStateTable<>(3, 0);
+        table.update(1L, -70, 1, RECORD, null);
+        table.update(2L, -70, 2, RECORD, null);
+        table.update(3L, -70, 3, RECORD, null);
+        // Device 1 advertises again, so device 2 is now the least recently updated.
+        table.update(1L, -70, 4, RECORD, null);
+        table.update(4L, -70, 5, RECORD, null);
+
+        assertEquals(3, table.size());
+        assertTrue(table.contains(1L));
+        assertFalse(table.contains(2L));
+        assertTrue(table.contains(4L));
+        assertEquals(1, table.getEvictedCount());
+    }
+
+    @Test
+    public void dropsDevicesPastTimeToLive() {
+        DeviceStateTable<String> table = new DeviceStateTable<>(8, 10 * SECOND);
+        table.update(1L, -70, 0, RECORD, null);
+        table.update(2L, -70, 5 * SECOND, RECORD, null);
+        table.update(3L, -70, 12 * SECOND, RECORD, null);
+
+        assertFalse(table.contains(1L));
+        assertTrue(table.contains(2L));
+        assertEquals(1, table.evictExpired(20 * SECOND));
+        assertFalse(table.contains(2L));
+        assertEquals(2, table.getExpiredCount());
+    }
+
+    @Test
+    public void stressKeepsTableBoundedWithoutAllocating() {
+        final int capacity = 1024;
+        final int results = 5000000;
+        DeviceStateTable<Object> table = new DeviceStateTable<>(capacity, 30 * SECOND);
+        Object value = new Object();
+        Random random = new Random(7);
+        long[] addresses = new long[50000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+        }
+        // Warm up so every slot holds a record of the largest size.
+        long now = 0;
+        for (int i = 0; i < capacity * 4; i++) {
+            table.update(addresses[i % addresses.length], -60, now += 1000, RECORD, value);
+        }
+
+        final long allocatedBefore = getAllocatedBytes();
+        for (int i = 0; i < results; i++) {
+            // Mostly a hot set of nearby devices, sometimes one passing by.
+            final int device = random.nextInt(8) == 0
+                    ? random.nextInt(addresses.length) : random.nextInt(capacity / 2);
+            now += 700000; // About one hour of advertisements in total.
+            table.update(addresses[device], -40 - (i & 63), now, RECORD, value);
+            assertTrue(table.size() <= capacity);
+        }
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        assertEquals(capacity, table.getCapacity());
+        assertTrue(table.getEvictedCount() > 0);
+        if (allocatedBefore >= 0) {
+            assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+}
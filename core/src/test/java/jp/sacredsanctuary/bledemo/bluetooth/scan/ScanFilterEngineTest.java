@@ -0,0 +1,83 @@
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanFilterEngine}.
+ */
+public class ScanFilterEngineTest {
+    private static byte[] record(String name, int nameType) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] record = new byte[3 + 2 + bytes.length + 4];
+        // Flags, then the local name, then zero padding as delivered by the stack.
+        record[0] = 2;
+        record[1] = 0x01;
+        record[2] = 0x06;
+        record[3] = (byte) (bytes.length + 1);
+        record[4] = (byte) nameType;
+        System.arraycopy(bytes, 0, record, 5, bytes.length);
+        return record;
+    }
+
+    private static boolean test(ScanFilterEngine engine, int rssi, byte[] record) {
+        return engine.test(rssi, record, record.length);
+    }
+
+    @Test
+    public void matchesNamePrefix() {
+        ScanFilterEngine engine = new ScanFilterEngine(
+                new DeviceFilter.Builder().setNamePrefix("Tag-").build());
+
+        assertTrue(test(engine, -60, record("Tag-0042", 0x09)));
+        assertTrue(test(engine, -60, record("Tag-", 0x08)));
+        assertFalse(test(engine, -60, record("Tag", 0x09)));
+        assertFalse(test(engine, -60, record("Beacon", 0x09)));
+        assertFalse(engine.test(-60, null, 0));
+        assertEquals(3, engine.getRejectedCount(ScanFilterEngine.STAGE_NAME_PREFIX));
+    }
+
+    @Test
+    public void stopsAtTruncatedRecord() {
+        ScanFilterEngine engine = new ScanFilterEngine(
+                new DeviceFilter.Builder().setNamePrefix("Tag-").build());
+        byte[] record = record("Tag-0042", 0x09);
+
+        assertFalse(engine.test(-60, record, 8));
+    }
+
+    @Test
+    public void countsRejectionsPerStage() {
+        ScanFilterEngine engine = new ScanFilterEngine(new DeviceFilter.Builder()
+                .setNamePrefix("Tag-").setRssiFloor(-80).build());
+
+        assertTrue(test(engine, -70, record("Tag-1", 0x09)));
+        assertFalse(test(engine, -90, record("Tag-1", 0x09)));
+        assertFalse(test(engine, -70, record("Other", 0x09)));
+
+        assertEquals(3, engine.getEvaluatedCount());
+        assertEquals(1, engine.getAcceptedCount());
+        assertEquals(1, engine.getRejectedCount(ScanFilterEngine.STAGE_RSSI));
+        assertEquals(1, engine.getRejectedCount(ScanFilterEngine.STAGE_NAME_PREFIX));
+    }
+
+    @Test
+    public void cheapStageRunsFirstUntilAnotherRejectsMore() {
+        ScanFilterEngine engine = new ScanFilterEngine(new DeviceFilter.Builder()
+                .setNamePrefix("Tag-").setRssiFloor(-80).build());
+        assertArrayEquals(new int[]{ScanFilterEngine.STAGE_RSSI,
+                ScanFilterEngine.STAGE_NAME_PREFIX}, engine.getStageOrder());
+
+        // Every signal is strong but almost no device matches the name.
+        byte[] other = record("Other", 0x09);
+        for (int i = 0; i < 2048; i++) {
+            test(engine, -50, other);
+        }
+
+        assertArrayEquals(new int[]{ScanFilterEngine.STAGE_NAME_PREFIX,
+                ScanFilterEngine.STAGE_RSSI}, engine.getStageOrder());
+    }
+}
@@ -0,0 +1,191 @@
+package jp.sacredsanctuary.bledemo.bluetooth.scan;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ScanScheduler}, driven by a fake scanner and a virtual clock.
+ */
+public class ScanSchedulerTest {
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+    private static final long STEP = 10 * MILLIS;
+    private static final long TICK = 2 * SECOND;
+    // Scan window and interval of every mode, as configured by AOSP.
+    private static final long[] WINDOW = {512 * MILLIS, 1024 * MILLIS, 4096 * MILLIS};
+    private static final long[] INTERVAL = {5120 * MILLIS, 4096 * MILLIS, 4096 * MILLIS};
+    private static final long ADVERTISING_INTERVAL = 1000 * MILLIS;
+
+    private long mNow;
+
+    /**
+     * Stands in for BluetoothLeScanner: listens during the scan window of the current mode and
+     * fails like Android when scans are started too often.
+     */
+    private class FakeScanner implements ScanScheduler.Scanner {
+        final List<Long> mStarts = new ArrayList<>();
+        int mMode = -1;
+        long mStartedNanos;
+
+        @Override
+        public boolean startScan(int mode) {
+            int recent = 0;
+            for (long start : mStarts) {
+                if (mNow - start < ScanScheduler.START_WINDOW_NANOS) recent++;
+            }
+            assertTrue("too many scan starts at " + mNow, recent < ScanScheduler.MAX_STARTS);
+            mStarts.add(mNow);
+            mMode = mode;
+            mStartedNanos = mNow;
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            mMode = -1;
+        }
+
+        boolean isListening() {
+            return mMode >= 0 && (mNow - mStartedNanos) % INTERVAL[mMode] < WINDOW[mMode];
+        }
+    }
+
+    /**
+     * Result of a simulated inventory run.
+     */
+    private static class Run {
+        final long[] mLatencySum = new long[ScanScheduler.MODE_COUNT];
+        final int[] mLatencyCount = new int[ScanScheduler.MODE_COUNT];
+        int mDiscovered;
+        double mDutyCycle;
+
+        double meanLatencyMillis() {
+            long sum = 0;
+            int count = 0;
+            for (int mode = 0; mode < ScanScheduler.MODE_COUNT; mode++) {
+                sum += mLatencySum[mode];
+                count += mLatencyCount[mode];
+            }
+            return count == 0 ? 0 : (double) sum / count / MILLIS;
+        }
+
+        double meanLatencyMillis(int mode) {
+            return mLatencyCount[mode] == 0
+                    ? 0 : (double) mLatencySum[mode] / mLatencyCount[mode] / MILLIS;
+        }
+    }
+
+    /**
+     * Simulates 20 minutes of a warehouse where pallets of tags arrive in three bursts, each
+     * tag advertising every second.
+     */
+    private Run simulate(FakeScanner scanner, ScanScheduler scheduler, int initialMode) {
+        Random random = new Random(1);
+        List<long[]> tags = new ArrayList<>();
+        long[][] bursts = {{10, 30}, {400, 40}, {900, 20}};
+        for (long[] burst : bursts) {
+            for (int i = 0; i < burst[1]; i++) {
+                long arrival = burst[0] * SECOND + (long) (random.nextDouble() * 10 * SECOND);
+                long phase = (long) (random.nextDouble() * ADVERTISING_INTERVAL);
+                // arrival, advertising phase, discovery time
+                tags.add(new long[]{arrival, phase, -1});
+            }
+        }
+
+        Run run = new Run();
+        mNow = 0;
+        scheduler.start(initialMode, mNow, 0);
+        for (; mNow < 20 * 60 * SECOND; mNow += STEP) {
+            if (scanner.isListening()) {
+                for (long[] tag : tags) {
+                    if (tag[2] >= 0 || mNow < tag[0]) continue;
+                    if ((mNow - tag[1]) % ADVERTISING_INTERVAL < STEP) {
+                        tag[2] = mNow;
+                        run.mLatencySum[scanner.mMode] += mNow - tag[0];
+                        run.mLatencyCount[scanner.mMode]++;
+                        run.mDiscovered++;
+                    }
+                }
+            }
+            if (mNow % TICK == 0) {
+                scheduler.onTick(mNow, run.mDiscovered);
+            }
+        }
+        scheduler.stop(mNow, run.mDiscovered);
+        run.mDutyCycle = scheduler.getAverageDutyCyclePercent();
+        return run;
+    }
+
+    @Test
+    public void adaptiveScanTradesLatencyForDutyCycle() {
+        FakeScanner economic = new FakeScanner();
+        Run lowPower = simulate(economic,
+                new ScanScheduler(economic, Double.MAX_VALUE, 0), ScanScheduler.MODE_LOW_POWER);
+        FakeScanner aggressive = new FakeScanner();
+        Run lowLatency = simulate(aggressive,
+                new ScanScheduler(aggressive, Double.MAX_VALUE, -1),
+                ScanScheduler.MODE_LOW_LATENCY);
+        FakeScanner adaptiveScanner = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(adaptiveScanner, 6, 2);
+        Run adaptive = simulate(adaptiveScanner, scheduler, ScanScheduler.MODE_LOW_POWER);
+
+        assertEquals(90, lowPower.mDiscovered);
+        assertEquals(90, lowLatency.mDiscovered);
+        assertEquals(90, adaptive.mDiscovered);
+        assertEquals(10, lowPower.mDutyCycle, 0.01);
+        assertEquals(100, lowLatency.mDutyCycle, 0.01);
+        assertTrue(adaptive.meanLatencyMillis() < lowPower.meanLatencyMillis() / 2);
+        assertTrue(adaptive.mDutyCycle < 25);
+        assertTrue(adaptive.meanLatencyMillis() > lowLatency.meanLatencyMillis());
+        // Every mode found devices, the aggressive ones while they were still arriving.
+        int found = 0;
+        for (int mode = 0; mode < ScanScheduler.MODE_COUNT; mode++) {
+            assertTrue(adaptive.mLatencyCount[mode] > 0);
+            found += adaptive.mLatencyCount[mode];
+        }
+        assertEquals(adaptive.mDiscovered, found);
+        assertTrue(adaptive.meanLatencyMillis(ScanScheduler.MODE_LOW_LATENCY)
+                < adaptive.meanLatencyMillis(ScanScheduler.MODE_LOW_POWER));
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.getMode());
+    }
+
+    @Test
+    public void startsBeyondLimitAreDeferred() {
+        FakeScanner scanner = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(scanner, Double.MAX_VALUE, -1);
+        for (mNow = 0; mNow < ScanScheduler.MAX_STARTS * SECOND; mNow += SECOND) {
+            scheduler.start(ScanScheduler.MODE_BALANCED, mNow, 0);
+            scheduler.stop(mNow, 0);
+        }
+
+        // The fake scanner fails the test if the limit is exceeded.
+        scheduler.start(ScanScheduler.MODE_BALANCED, mNow, 0);
+        assertEquals(1, scheduler.getDeferredCount());
+        assertEquals(-1, scanner.mMode);
+
+        mNow = ScanScheduler.START_WINDOW_NANOS - TICK;
+        scheduler.onTick(mNow, 0);
+        assertEquals(-1, scanner.mMode);
+        mNow = ScanScheduler.START_WINDOW_NANOS;
+        scheduler.onTick(mNow, 0);
+        assertEquals(ScanScheduler.MODE_BALANCED, scanner.mMode);
+    }
+
+    @Test
+    public void longScanIsRestarted() {
+        FakeScanner scanner = new FakeScanner();
+        ScanScheduler scheduler = new ScanScheduler(scanner, Double.MAX_VALUE, -1);
+        mNow = 0;
+        scheduler.start(ScanScheduler.MODE_BALANCED, mNow, 0);
+        for (; mNow <= ScanScheduler.MAX_SCAN_DURATION_NANOS; mNow += TICK) {
+            scheduler.onTick(mNow, 0);
+        }
+        assertEquals(2, scanner.mStarts.size());
+        assertEquals(ScanScheduler.MODE_BALANCED, scanner.mMode);
+    }
+}
@@ -0,0 +1,89 @@
+package jp.sacredsanctuary.bledemo.bluetooth.transport;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import jp.sacredsanctuary.bledemo.bluetooth.cache.GattDatabase;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.DeviceStateTable;
+import jp.sacredsanctuary.bledemo.bluetooth.scan.ScanScheduler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link VirtualScanner}, scanning a crowd of virtual peripherals.
+ */
+public class VirtualScannerTest {
+    private static final long MILLIS = 1000000L;
+    private static final long SECOND = 1000 * MILLIS;
+    private static final int PERIPHERALS = 500;
+    // Flags and a complete local name.
+    private static final byte[] RECORD = {0x02, 0x01, 0x06, 0x04, 0x09, 'B', 'L', 'E'};
+
+    private final VirtualScheduler mScheduler = new VirtualScheduler();
+    private final VirtualBleStack mStack = new VirtualBleStack(mScheduler, 3);
+    private final DeviceStateTable<Void> mDevices = new DeviceStateTable<>(1024, 0);
+
+    private VirtualScanner populate() {
+        for (int i = 0; i < PERIPHERALS; i++) {
+            final String address = String.format(Locale.ROOT, "00:11:22:33:%02X:%02X",
+                    i >> 8, i & 0xFF);
+            mStack.addPeripheral(new VirtualPeripheral(address, new GattDatabase.Builder().build())
+                    .setAdvertising(RECORD, 100 * MILLIS, -70));
+        }
+        return mStack.newScanner((address, rssi, timestampNanos, record) ->
+                mDevices.update(address, rssi, timestampNanos, record, null));
+    }
+
+    @Test
+    public void dutyCycleSetsTheShareOfAdvertisementsReceived() {
+        final VirtualScanner scanner = populate();
+
+        assertTrue(scanner.startScan(ScanScheduler.MODE_LOW_LATENCY));
+        assertFalse(scanner.startScan(ScanScheduler.MODE_LOW_LATENCY));
+        mScheduler.advanceBy(SECOND);
+        assertEquals(PERIPHERALS, mDevices.size());
+        assertEquals(scanner.getAdvertisingEventCount(), scanner.getReceivedCount());
+        scanner.stopScan();
+
+        final long events = scanner.getAdvertisingEventCount();
+        final long received = scanner.getReceivedCount();
+        assertTrue(scanner.startScan(ScanScheduler.MODE_LOW_POWER));
+        mScheduler.advanceBy(10 * SECOND);
+        scanner.stopScan();
+        final double share = (double) (scanner.getReceivedCount() - received)
+                / (scanner.getAdvertisingEventCount() - events);
+        assertEquals(ScanScheduler.getDutyCyclePercent(ScanScheduler.MODE_LOW_POWER) / 100.0,
+                share, 0.02);
+
+        // Nothing is received once stopped, and no event is left behind.
+        assertTrue(mScheduler.runUntilIdle(SECOND));
+    }
+
+    @Test
+    public void continuousScanBacksOffOnceEveryDeviceIsKnown() {
+        final VirtualScanner scanner = populate();
+        final ScanScheduler scheduler = new ScanScheduler(scanner, 6, 2);
+
+        scheduler.start(ScanScheduler.MODE_LOW_LATENCY, mScheduler.nanoTime(), 0);
+        for (int tick = 0; tick < 60; tick++) {
+            mScheduler.advanceBy(2 * SECOND);
+            scheduler.onTick(mScheduler.nanoTime(), mDevices.size());
+        }
+        assertEquals(PERIPHERALS, mDevices.size());
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.getMode());
+        assertTrue(scanner.isScanning());
+        scheduler.stop(mScheduler.nanoTime(), mDevices.size());
+        assertFalse(scanner.isScanning());
+    }
+
+    @Test
+    public void peripheralsOutOfRangeStopAdvertising() {
+        final VirtualScanner scanner = populate();
+        mStack.removePeripheral("00:11:22:33:00:00");
+
+        scanner.startScan(ScanScheduler.MODE_LOW_LATENCY);
+        mScheduler.advanceBy(SECOND);
+        assertEquals(PERIPHERALS - 1, mDevices.size());
+    }
+}
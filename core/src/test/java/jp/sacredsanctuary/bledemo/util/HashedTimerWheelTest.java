@@ -0,0 +1,125 @@
+package jp.sacredsanctuary.bledemo.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link HashedTimerWheel}.
+ */
+public class HashedTimerWheelTest {
+    private static final long TICK = 10;
+
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(TICK, 8, 1000);
+    private final List<Integer> mExpired = new ArrayList<>();
+
+    private HashedTimerWheel.Timeout timeout(int id) {
+        return new HashedTimerWheel.Timeout(() -> mExpired.add(id));
+    }
+
+    @Test
+    public void timeoutExpiresWithinOneTickOfItsDeadline() {
+        final HashedTimerWheel.Timeout timeout = timeout(1);
+        mWheel.schedule(timeout, 1000, 25);
+        assertTrue(timeout.isPending());
+        assertEquals(1025, timeout.getDeadlineNanos());
+        assertEquals(1, mWheel.size());
+
+        assertEquals(0, mWheel.advance(1024));
+        assertEquals(0, mWheel.advance(1029));
+        assertEquals(1, mWheel.advance(1030));
+        assertEquals(1, mExpired.size());
+        assertFalse(timeout.isPending());
+        assertTrue(mWheel.isEmpty());
+        assertEquals(0, mWheel.advance(2000));
+    }
+
+    @Test
+    public void timeoutsSpanSeveralTurnsOfTheWheel() {
+        // A turn of the wheel is 8 ticks.
+        mWheel.schedule(timeout(1), 1000, 5);
+        mWheel.schedule(timeout(2), 1000, 85);
+        mWheel.schedule(timeout(3), 1000, 245);
+
+        mWheel.advance(1080);
+        assertEquals(1, mExpired.size());
+        mWheel.advance(1090);
+        assertEquals(2, mExpired.size());
+        mWheel.advance(1240);
+        assertEquals(2, mExpired.size());
+        mWheel.advance(1250);
+        assertEquals(3, mExpired.size());
+        assertTrue(mWheel.isEmpty());
+    }
+
+    @Test
+    public void longGapExpiresEveryTimeoutDue() {
+        final Random random = new Random(3);
+        for (int id = 0; id < 1000; id++) {
+            mWheel.schedule(timeout(id), 1000, random.nextInt(10000));
+        }
+        mWheel.schedule(timeout(-1), 1000, 20000);
+        assertEquals(1001, mWheel.size());
+
+        assertEquals(1000, mWheel.advance(1000 + 10000));
+        assertEquals(1, mWheel.size());
+        assertEquals(1, mWheel.advance(1000 + 20000));
+    }
+
+    @Test
+    public void cancelledAndRescheduledTimeoutsDoNotExpireEarly() {
+        final HashedTimerWheel.Timeout first = timeout(1);
+        final HashedTimerWheel.Timeout second = timeout(2);
+        mWheel.schedule(first, 1000, 20);
+        mWheel.schedule(second, 1000, 20);
+        assertTrue(mWheel.cancel(first));
+        assertFalse(mWheel.cancel(first));
+        // Re-arming moves the deadline rather than adding a second one.
+        mWheel.schedule(second, 1010, 50);
+        assertEquals(1, mWheel.size());
+
+        mWheel.advance(1030);
+        assertTrue(mExpired.isEmpty());
+        mWheel.advance(1060);
+        assertEquals(1, mExpired.size());
+        assertEquals(2, (int) mExpired.get(0));
+
+        mWheel.schedule(first, 1060, 0);
+        mWheel.advance(1070);
+        assertEquals(1, (int) mExpired.get(1));
+    }
+
+    @Test
+    public void tasksMayRescheduleOrCancelOtherTimeouts() {
+        final HashedTimerWheel.Timeout victim = timeout(2);
+        final HashedTimerWheel.Timeout[] self = new HashedTimerWheel.Timeout[1];
+        self[0] = new HashedTimerWheel.Timeout(() -> {
+            mExpired.add(1);
+            // The victim expired in the same tick but has not run yet.
+            mWheel.cancel(victim);
+            // Scheduled again for now, which is left for the next call.
+            if (mExpired.size() == 1) {
+                mWheel.schedule(self[0], 1010, 0);
+            }
+        });
+        mWheel.schedule(victim, 1000, 10);
+        mWheel.schedule(self[0], 1000, 10);
+
+        assertEquals(1, mWheel.advance(1010));
+        assertEquals(1, mExpired.size());
+        assertTrue(self[0].isPending());
+        assertFalse(victim.isPending());
+        assertEquals(1, mWheel.advance(1020));
+        assertEquals(2, mExpired.size());
+        assertTrue(mWheel.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDelayIsRejected() {
+        mWheel.schedule(timeout(1), 1000, -1);
+    }
+}
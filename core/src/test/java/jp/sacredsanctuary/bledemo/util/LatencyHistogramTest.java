@@ -0,0 +1,114 @@
+package jp.sacredsanctuary.bledemo.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        for (int index = 0; index < 1023; index++) {
+            final long highest = LatencyHistogram.highestValueOf(index);
+            assertEquals(index, LatencyHistogram.indexOf(highest));
+            assertEquals(index + 1, LatencyHistogram.indexOf(highest + 1));
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.highestValueOf(1023));
+        assertEquals(1023, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        final Random random = new Random(7);
+        final long[] values = new long[100000];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal around a few milliseconds, as GATT operations are.
+            values[i] = (long) Math.exp(15 + random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            final long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            final long estimate = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ":" + estimate, estimate >= exact);
+            assertTrue(percentile + ":" + estimate,
+                    estimate <= exact + exact / LatencyHistogram.SUB_BUCKETS);
+        }
+        assertEquals(values[0], histogram.getValueAtPercentile(0));
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+        assertEquals(values.length, histogram.getCount());
+    }
+
+    @Test
+    public void valuesOutOfRangeAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(100 * LatencyHistogram.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(100 * LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileAboveHundredIsRejected() {
+        new LatencyHistogram().getValueAtPercentile(100.5);
+    }
+
+    @Test
+    public void addMergesAndResetClears() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(1000);
+        second.record(3000);
+        first.add(second);
+        assertEquals(2, first.getCount());
+        assertEquals(1000, first.getMin());
+        assertEquals(3000, first.getMax());
+        assertEquals(2000, first.getMean());
+        first.reset();
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+        LatencyHistogram histogram = new LatencyHistogram();
+        // Warm up so that the measured loop runs compiled code.
+        for (long value = 0; value < 100000; value++) {
+            histogram.record(value * 7919);
+        }
+
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (long value = 0; value < 100000; value++) {
+            histogram.record(value * 7919);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // Leaves room for the bookkeeping of the measurement itself.
+        assertTrue("allocated:" + allocated, allocated < 1024);
+    }
+}
@@ -0,0 +1,44 @@
+package jp.sacredsanctuary.bledemo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LogFormat}.
+ */
+public class LogFormatTest {
+    @Test
+    public void format_replacesPlaceholdersInOrder() {
+        assertEquals("onConnectionUpdated() [INF] interval:6 latency:0 timeout:500 status:0",
+                LogFormat.format("onConnectionUpdated() [INF] interval:{} latency:{} timeout:{}"
+                        + " status:{}", 6L, 0L, 500L, 0L));
+        assertEquals("a=x b=null", LogFormat.format("a={} b={}", "x", null));
+    }
+
+    @Test
+    public void format_printsByteArrayValues() {
+        assertEquals("val=[1, -2, 3]", LogFormat.format("val={}", (Object) new byte[]{1, -2, 3}));
+        assertEquals("val=[]", LogFormat.format("val={}", (Object) new byte[0]));
+    }
+
+    @Test
+    public void format_printsLengthOfLongByteArray() {
+        byte[] value = new byte[LogFormat.MAX_PRINTED_BYTES + 1];
+        assertEquals("val=length=33", LogFormat.format("val={}", (Object) value));
+        assertTrue(LogFormat.format("val={}", (Object) new byte[LogFormat.MAX_PRINTED_BYTES])
+                .startsWith("val=[0, 0"));
+    }
+
+    @Test
+    public void format_keepsPlaceholdersWithoutArgument() {
+        assertEquals("a=1 b={}", LogFormat.format("a={} b={}", 1));
+        assertEquals("no placeholders", LogFormat.format("no placeholders"));
+    }
+
+    @Test
+    public void format_ignoresArgumentsWithoutPlaceholder() {
+        assertEquals("a=1", LogFormat.format("a={}", 1, 2, 3));
+        assertEquals("plain", LogFormat.format("plain", "unused"));
+    }
+}
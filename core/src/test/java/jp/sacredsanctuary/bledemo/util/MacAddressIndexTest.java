@@ -0,0 +1,63 @@
+package jp.sacredsanctuary.bledemo.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link MacAddressIndex}.
+ */
+public class MacAddressIndexTest {
+    @Test
+    public void pack_roundTrips() {
+        long packed = MacAddressIndex.pack("00:1A:7d:DA:71:13");
+        assertEquals(0x001A7DDA7113L, packed);
+        assertEquals("00:1A:7D:DA:71:13", MacAddressIndex.format(packed));
+    }
+
+    @Test
+    public void pack_rejectsMalformedAddress() {
+        assertEquals(MacAddressIndex.INVALID_ADDRESS, MacAddressIndex.pack(null));
+        assertEquals(MacAddressIndex.INVALID_ADDRESS, MacAddressIndex.pack("00:1A:7D:DA:71"));
+        assertEquals(MacAddressIndex.INVALID_ADDRESS, MacAddressIndex.pack("00-1A-7D-DA-71-13"));
+        assertEquals(MacAddressIndex.INVALID_ADDRESS, MacAddressIndex.pack("00:1A:7D:DA:71:1G"));
+    }
+
+    @Test
+    public void putGetAndReplace() {
+        MacAddressIndex index = new MacAddressIndex();
+        assertEquals(MacAddressIndex.NOT_FOUND, index.put(1L, 10));
+        assertEquals(10, index.put(1L, 11));
+        assertEquals(11, index.get(1L));
+        assertEquals(MacAddressIndex.NOT_FOUND, index.get(2L));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        MacAddressIndex index = new MacAddressIndex();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // Share a vendor prefix and keep the key space small to force collisions.
+            long key = 0xAC233F000000L | random.nextInt(4096);
+            if (random.nextInt(3) == 0) {
+                Integer removed = expected.remove(key);
+                assertEquals(removed == null ? MacAddressIndex.NOT_FOUND : removed,
+                        index.remove(key));
+            } else {
+                Integer previous = expected.put(key, i);
+                assertEquals(previous == null ? MacAddressIndex.NOT_FOUND : previous,
+                        index.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals((int) entry.getValue(), index.get(entry.getKey()));
+        }
+    }
+}